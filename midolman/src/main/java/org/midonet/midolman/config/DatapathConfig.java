@@ -37,6 +37,13 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    /**
+     * How many datagrams to read off a datapath channel with each recvmmsg()
+     * call. Every datagram beyond the first takes a 64kb buffer per channel.
+     */
+    @ConfigInt(key = "msgs_per_read", defaultValue = 4)
+    public int getMaxMessagesPerRead();
+
     /**
      * The wildcard flows have idle times, so the table should take care of itself. Having a smaller table (a limited
      * size table) means that the system would be potentially evicting valid flows often, causing more simulations and
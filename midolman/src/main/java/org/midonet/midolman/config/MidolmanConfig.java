@@ -95,6 +95,28 @@ public interface MidolmanConfig
     @ConfigInt(key = "simulation_threads", defaultValue = 1)
     public int getSimulationThreads();
 
+    @ConfigString(key = "simulation_input", defaultValue = "mailbox")
+    public String getSimulationInput();
+
+    @ConfigInt(key = "simulation_input_ring_size", defaultValue = 4096)
+    public int getSimulationInputRingSize();
+
+    @ConfigString(key = "simulation_wait_strategy", defaultValue = "park")
+    public String getSimulationWaitStrategy();
+
+    @ConfigBool(key = "off_heap_flow_state", defaultValue = false)
+    public boolean getOffHeapFlowState();
+
+    @ConfigString(key = "flow_state_storage", defaultValue = "cassandra")
+    public String getFlowStateStorage();
+
+    @ConfigString(key = "flow_state_journal_dir",
+                  defaultValue = "/var/lib/midolman/flow_state")
+    public String getFlowStateJournalDir();
+
+    @ConfigInt(key = "flow_state_journal_size_mb", defaultValue = 64)
+    public int getFlowStateJournalSizeMb();
+
     @ConfigInt(key = "output_channels", defaultValue = 1)
     public int getNumOutputChannels();
 
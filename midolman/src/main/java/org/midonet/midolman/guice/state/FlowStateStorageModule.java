@@ -15,6 +15,9 @@
  */
 package org.midonet.midolman.guice.state;
 
+import java.io.File;
+
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Key;
 import com.google.inject.PrivateModule;
@@ -25,9 +28,11 @@ import com.google.inject.name.Names;
 import org.midonet.cluster.backend.cassandra.CassandraClient;
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.guice.zookeeper.ZkConnectionProvider;
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
+import org.midonet.midolman.state.JournalFlowStateStorageFactory;
 import org.midonet.util.eventloop.Reactor;
 
 
@@ -37,6 +42,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZkConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -53,27 +59,40 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public FlowStateStorageFactory get() {
+            if ("journal".equals(config.getFlowStateStorage())) {
+                return new JournalFlowStateStorageFactory(
+                    new File(config.getFlowStateJournalDir()),
+                    config.getFlowStateJournalSizeMb() * 1024 * 1024);
+            }
+
             CassandraClient cass = new CassandraClient(
                     config.getCassandraServers(), config.getCassandraCluster(),
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return new FlowStateStorageFactoryImpl(
+                cass, new FlowStateStorageMetrics(metricRegistry));
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateStorageMetrics metrics;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           FlowStateStorageMetrics metrics) {
             this.cass = cass;
+            this.metrics = metrics;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, metrics);
         }
     }
 }
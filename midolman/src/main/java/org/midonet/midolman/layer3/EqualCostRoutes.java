@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * The routes of a prefix that share the lowest weight, as precomputed by the
+ * routing tables. The group carries the counter of the lookups balanced over
+ * it, so that counting them takes neither a map lookup nor an allocation.
+ */
+public final class EqualCostRoutes extends AbstractList<Route>
+                                   implements RandomAccess {
+
+    private final Route[] routes;
+
+    /* Set on the first lookup balanced over the group */
+    public volatile Counter hits;
+
+    public EqualCostRoutes(List<Route> routes) {
+        this.routes = routes.toArray(new Route[routes.size()]);
+    }
+
+    @Override
+    public Route get(int index) {
+        return routes[index];
+    }
+
+    @Override
+    public int size() {
+        return routes.length;
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.midonet.midolman.layer3;
 
+import java.util.List;
+
 import org.midonet.packets.IPv4Addr;
 
 /**
@@ -35,8 +37,18 @@ public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
         legacyTable.deleteRoute(rt);
     }
 
-    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
         return legacyTable.lookup(src.toInt(), dst.toInt());
     }
 
+    /**
+     * Returns a copy of this table that later updates to it don't affect.
+     * The copy shares the routes of this table, so it takes constant time.
+     */
+    public IPv4RoutingTable snapshot() {
+        IPv4RoutingTable copy = new IPv4RoutingTable();
+        copy.legacyTable.copyFrom(legacyTable);
+        return copy;
+    }
+
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+/**
+ * A routing table for IPv6 routes, those with IPv6 prefixes.
+ *
+ * Like RoutesTrie, the routes are kept in a persistent, path compressed
+ * binary trie indexed by destination prefix, here on the two 64 bit words of
+ * the address. Each node precomputes the routes a lookup ending on it
+ * returns, so looking up destinations whose routes apply to any source
+ * doesn't allocate, and snapshots take constant time.
+ */
+public class IPv6RoutingTable implements RoutingTableIfc<IPv6Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger(IPv6RoutingTable.class);
+
+    private static final List<Route> NO_ROUTES = Collections.emptyList();
+
+    private Node root;
+    private int numRoutes = 0;
+
+    static final class Node {
+        final int bitlen;
+        final long upper;
+        final long lower;
+        final Node left;
+        final Node right;
+        final List<Route> routes;
+        /* The routes with the lowest weight, or null if some route only
+         * applies to some sources. */
+        final List<Route> group;
+
+        Node(int bitlen, long upper, long lower, Node left, Node right,
+             List<Route> routes) {
+            this(bitlen, upper, lower, left, right, routes, groupOf(routes));
+        }
+
+        private Node(int bitlen, long upper, long lower, Node left,
+                     Node right, List<Route> routes, List<Route> group) {
+            this.bitlen = bitlen;
+            this.upper = upper;
+            this.lower = lower;
+            this.left = left;
+            this.right = right;
+            this.routes = routes;
+            this.group = group;
+        }
+
+        private static List<Route> groupOf(List<Route> routes) {
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (null != rt.srcSubnet6 && rt.srcSubnet6.getPrefixLen() != 0)
+                    return null;
+                minWeight = Math.min(minWeight, rt.weight);
+            }
+            if (routes.size() <= 1)
+                return routes;
+            List<Route> group = new ArrayList<>(routes.size());
+            for (Route rt : routes) {
+                if (rt.weight == minWeight)
+                    group.add(rt);
+            }
+            return new EqualCostRoutes(group);
+        }
+
+        Node withLeft(Node child) {
+            return new Node(bitlen, upper, lower, child, right, routes, group);
+        }
+
+        Node withRight(Node child) {
+            return new Node(bitlen, upper, lower, left, child, routes, group);
+        }
+
+        Node withRoute(Route rt) {
+            if (routes.contains(rt))
+                return this;
+            List<Route> newRoutes = new ArrayList<>(routes.size() + 1);
+            newRoutes.addAll(routes);
+            newRoutes.add(rt);
+            return new Node(bitlen, upper, lower, left, right,
+                            Collections.unmodifiableList(newRoutes));
+        }
+
+        Node withoutRoute(Route rt) {
+            if (!routes.contains(rt))
+                return this;
+            if (routes.size() == 1)
+                return new Node(bitlen, upper, lower, left, right, NO_ROUTES);
+            List<Route> newRoutes = new ArrayList<>(routes);
+            newRoutes.remove(rt);
+            return new Node(bitlen, upper, lower, left, right,
+                            Collections.unmodifiableList(newRoutes));
+        }
+
+        Node collapse() {
+            if (!routes.isEmpty())
+                return this;
+            if (null == left)
+                return right;
+            if (null == right)
+                return left;
+            return this;
+        }
+
+        boolean matches(long addrUpper, long addrLower) {
+            return prefixMatch(addrUpper, addrLower, upper, lower, bitlen);
+        }
+
+        @Override
+        public String toString() {
+            return "Node [bitlen=" + bitlen + ", addr=" +
+                new IPv6Addr(upper, lower) + ", left=" + left +
+                ", right=" + right + ", routes=" + routes + "]";
+        }
+    }
+
+    /**
+     * Whether the first len bits of two addresses are the same.
+     */
+    static boolean prefixMatch(long upper1, long lower1, long upper2,
+                               long lower2, int len) {
+        if (len == 0)
+            return true;
+        if (len <= 64)
+            return ((upper1 ^ upper2) & (~0L << (64 - len))) == 0;
+        return upper1 == upper2 &&
+               ((lower1 ^ lower2) & (~0L << (128 - len))) == 0;
+    }
+
+    /* Whether the bit of an address at a position, from the left, is 0. */
+    private static boolean isZero(long upper, long lower, int pos) {
+        return (pos < 64) ? 0 == (upper & (0x8000000000000000L >>> pos))
+                          : 0 == (lower & (0x8000000000000000L >>> (pos - 64)));
+    }
+
+    /* The position of the first bit in which two addresses differ, or 128
+     * if they are the same. */
+    private static int firstDiff(long upper1, long lower1, long upper2,
+                                 long lower2) {
+        return (upper1 != upper2) ? Long.numberOfLeadingZeros(upper1 ^ upper2)
+            : 64 + Long.numberOfLeadingZeros(lower1 ^ lower2);
+    }
+
+    private static IPv6Subnet dstOf(Route rt) {
+        if (null == rt.dstSubnet6)
+            throw new IllegalArgumentException("Not an IPv6 route: " + rt);
+        return rt.dstSubnet6;
+    }
+
+    @Override
+    public void addRoute(Route rt) {
+        log.debug("addRoute: {}", rt);
+        IPv6Subnet dst = dstOf(rt);
+        Node newRoot = insert(root, rt, dst.getAddress().upperWord(),
+                              dst.getAddress().lowerWord(),
+                              dst.getPrefixLen());
+        if (newRoot != root) {
+            root = newRoot;
+            numRoutes++;
+        }
+    }
+
+    private static Node insert(Node node, Route rt, long upper, long lower,
+                               int len) {
+        if (null != node && len >= node.bitlen && node.matches(upper, lower)) {
+            if (len == node.bitlen)
+                return node.withRoute(rt);
+            if (isZero(upper, lower, node.bitlen)) {
+                Node child = insert(node.left, rt, upper, lower, len);
+                return (child == node.left) ? node : node.withLeft(child);
+            } else {
+                Node child = insert(node.right, rt, upper, lower, len);
+                return (child == node.right) ? node : node.withRight(child);
+            }
+        }
+        Node newNode = new Node(len, upper, lower, null, null,
+                                Collections.singletonList(rt));
+        if (null == node)
+            return newNode;
+
+        // As in RoutesTrie, either both nodes hang from a new parent at the
+        // first bit they differ in, or the new node is the parent.
+        int diff = firstDiff(node.upper, node.lower, upper, lower);
+        if (diff < node.bitlen && diff < len) {
+            return isZero(upper, lower, diff)
+                ? new Node(diff, upper, lower, newNode, node, NO_ROUTES)
+                : new Node(diff, upper, lower, node, newNode, NO_ROUTES);
+        } else {
+            return isZero(node.upper, node.lower, len) ? newNode.withLeft(node)
+                                                       : newNode.withRight(node);
+        }
+    }
+
+    @Override
+    public void deleteRoute(Route rt) {
+        log.debug("deleteRoute: {}", rt);
+        IPv6Subnet dst = dstOf(rt);
+        Node newRoot = remove(root, rt, dst.getAddress().upperWord(),
+                              dst.getAddress().lowerWord(),
+                              dst.getPrefixLen());
+        if (newRoot != root) {
+            root = newRoot;
+            numRoutes--;
+        }
+    }
+
+    private static Node remove(Node node, Route rt, long upper, long lower,
+                               int len) {
+        if (null == node || len < node.bitlen || !node.matches(upper, lower))
+            return node;
+
+        Node newNode;
+        if (len == node.bitlen) {
+            newNode = node.withoutRoute(rt);
+        } else if (isZero(upper, lower, node.bitlen)) {
+            Node child = remove(node.left, rt, upper, lower, len);
+            newNode = (child == node.left) ? node : node.withLeft(child);
+        } else {
+            Node child = remove(node.right, rt, upper, lower, len);
+            newNode = (child == node.right) ? node : node.withRight(child);
+        }
+        return (newNode == node) ? node : newNode.collapse();
+    }
+
+    /**
+     * Returns the routes with the lowest weight among those with the longest
+     * destination prefix that matches dst and a source prefix that matches
+     * src.
+     */
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst) {
+        if (log.isDebugEnabled()) {
+            log.debug("lookup: src {} dst {} in table with {} routes",
+                      src, dst, numRoutes);
+        }
+
+        long upper = dst.upperWord();
+        long lower = dst.lowerWord();
+        Node best = null;
+        Node node = root;
+        while (null != node && node.matches(upper, lower)) {
+            if (!node.routes.isEmpty())
+                best = node;
+            node = isZero(upper, lower, node.bitlen) ? node.left : node.right;
+        }
+
+        List<Route> ret;
+        if (null == best)
+            ret = NO_ROUTES;
+        else if (null != best.group)
+            ret = best.group;
+        else
+            ret = lookupBySource(src, upper, lower);
+
+        log.debug("lookup: return {} for src {} dst {}", ret, src, dst);
+        return ret;
+    }
+
+    private List<Route> lookupBySource(IPv6Addr src, long upper, long lower) {
+        // Each node on the path is at least one bit longer than its parent.
+        Node[] path = new Node[129];
+        int depth = 0;
+        Node node = root;
+        while (null != node && node.matches(upper, lower)) {
+            path[depth++] = node;
+            node = isZero(upper, lower, node.bitlen) ? node.left : node.right;
+        }
+
+        List<Route> ret = new ArrayList<>();
+        while (depth > 0 && ret.isEmpty()) {
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : path[--depth].routes) {
+                if (null != rt.srcSubnet6 && !rt.srcSubnet6.containsAddress(src))
+                    continue;
+                if (rt.weight < minWeight) {
+                    ret.clear();
+                    ret.add(rt);
+                    minWeight = rt.weight;
+                } else if (rt.weight == minWeight) {
+                    ret.add(rt);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a copy of this table that later updates to it don't affect.
+     * The copy shares the routes of this table, so it takes constant time.
+     */
+    public IPv6RoutingTable snapshot() {
+        IPv6RoutingTable copy = new IPv6RoutingTable();
+        copy.root = root;
+        copy.numRoutes = numRoutes;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "IPv6RoutingTable [root=" + root + "]";
+    }
+}
@@ -26,6 +26,7 @@ import org.codehaus.jackson.annotate.JsonPropertyOrder;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.IPv6Subnet;
 
 
 @JsonPropertyOrder(alphabetic=true)
@@ -53,6 +54,12 @@ public class Route implements Serializable {
     public int weight;
     public String attributes;
     public UUID routerId;
+    /* The prefixes of an IPv6 route, which has no IPv4 addresses. They
+     * aren't part of the JSON representation of the route yet. */
+    @JsonIgnore
+    public IPv6Subnet srcSubnet6;
+    @JsonIgnore
+    public IPv6Subnet dstSubnet6;
 
     public Route(int srcNetworkAddr, int srcNetworkLength, int dstNetworkAddr,
             int dstNetworkLength, NextHop nextHop, UUID nextHopPort,
@@ -80,6 +87,15 @@ public class Route implements Serializable {
                 weight, null, routerId);
     }
 
+    public Route(IPv6Subnet srcSubnet, IPv6Subnet dstSubnet,
+                 NextHop nextHop, UUID nextHopPortId, int weight,
+                 UUID routerId) {
+        this(0, 0, 0, 0, nextHop, nextHopPortId, NO_GATEWAY, weight, null,
+             routerId);
+        this.srcSubnet6 = srcSubnet;
+        this.dstSubnet6 = dstSubnet;
+    }
+
     // Default constructor for the Jackson deserialization.
     public Route() {
         super();
@@ -142,7 +158,9 @@ public class Route implements Serializable {
                 && Objects.equal(this.nextHopGateway, rt.nextHopGateway)
                 && Objects.equal(this.weight, rt.weight)
                 && Objects.equal(this.attributes, rt.attributes)
-                && Objects.equal(this.routerId, rt.routerId));
+                && Objects.equal(this.routerId, rt.routerId)
+                && Objects.equal(this.srcSubnet6, rt.srcSubnet6)
+                && Objects.equal(this.dstSubnet6, rt.dstSubnet6));
     }
 
     @Override
@@ -150,7 +168,7 @@ public class Route implements Serializable {
         return Objects.hashCode(srcNetworkAddr, srcNetworkLength,
                                 dstNetworkAddr, dstNetworkLength, nextHop,
                                 nextHopPort, nextHopGateway, weight, attributes,
-                                routerId);
+                                routerId, srcSubnet6, dstSubnet6);
     }
 
     @Override
@@ -172,6 +190,8 @@ public class Route implements Serializable {
             sb.append(attributes);
         if (null != routerId)
             sb.append(routerId);
+        if (null != dstSubnet6)
+            sb.append(",").append(srcSubnet6).append(",").append(dstSubnet6);
         return sb.toString();
     }
 
@@ -16,16 +16,26 @@
 
 package org.midonet.midolman.layer3;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Set;
 
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv4Subnet;
 import org.slf4j.Logger;
 
+/**
+ * A trie of routes indexed by destination prefix.
+ *
+ * The trie is persistent: its nodes are never modified once built, and
+ * adding or deleting a route copies only the nodes on the path to the
+ * route's prefix, sharing the rest with the previous version of the trie.
+ * A copy of the trie, such as the one the RCU Router is given, thus takes
+ * constant time and isn't affected by later updates.
+ */
 public abstract class RoutesTrie {
 
     protected abstract Logger getLog();
@@ -35,21 +45,100 @@ public abstract class RoutesTrie {
 
     public void clear() {
         dstPrefixTrie = null;
+        numRoutes = 0;
     }
 
-    public static class TrieNode {
-        int bitlen;
-        int addr;
-        TrieNode parent;
-        TrieNode left;
-        TrieNode right;
-        Set<Route> routes;
+    /**
+     * Makes this trie share the routes of another one. Later updates to
+     * either trie don't affect the other.
+     */
+    protected void copyFrom(RoutesTrie other) {
+        dstPrefixTrie = other.dstPrefixTrie;
+        numRoutes = other.numRoutes;
+    }
+
+    public static final class TrieNode {
+        final int bitlen;
+        final int addr;
+        final TrieNode left;
+        final TrieNode right;
+        final List<Route> routes;
+        /* The routes with the lowest weight, which are the result of any
+         * lookup ending at this node, or null if some route only applies
+         * to some sources. */
+        final List<Route> group;
 
-        TrieNode(TrieNode parent, int bitlen, int addr) {
-            this.parent = parent;
+        TrieNode(int bitlen, int addr, TrieNode left, TrieNode right,
+                 List<Route> routes) {
+            this(bitlen, addr, left, right, routes, groupOf(routes));
+        }
+
+        private TrieNode(int bitlen, int addr, TrieNode left, TrieNode right,
+                         List<Route> routes, List<Route> group) {
             this.bitlen = bitlen;
             this.addr = addr;
-            routes = new HashSet<Route>();
+            this.left = left;
+            this.right = right;
+            this.routes = routes;
+            this.group = group;
+        }
+
+        private static List<Route> groupOf(List<Route> routes) {
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.srcNetworkLength != 0)
+                    return null;
+                minWeight = Math.min(minWeight, rt.weight);
+            }
+            if (routes.size() <= 1)
+                return routes;
+            List<Route> group = new ArrayList<>(routes.size());
+            for (Route rt : routes) {
+                if (rt.weight == minWeight)
+                    group.add(rt);
+            }
+            return new EqualCostRoutes(group);
+        }
+
+        TrieNode withLeft(TrieNode child) {
+            return new TrieNode(bitlen, addr, child, right, routes, group);
+        }
+
+        TrieNode withRight(TrieNode child) {
+            return new TrieNode(bitlen, addr, left, child, routes, group);
+        }
+
+        TrieNode withRoute(Route rt) {
+            if (routes.contains(rt))
+                return this;
+            List<Route> newRoutes = new ArrayList<>(routes.size() + 1);
+            newRoutes.addAll(routes);
+            newRoutes.add(rt);
+            return new TrieNode(bitlen, addr, left, right,
+                                Collections.unmodifiableList(newRoutes));
+        }
+
+        TrieNode withoutRoute(Route rt) {
+            if (!routes.contains(rt))
+                return this;
+            if (routes.size() == 1)
+                return new TrieNode(bitlen, addr, left, right, NO_ROUTES);
+            List<Route> newRoutes = new ArrayList<>(routes);
+            newRoutes.remove(rt);
+            return new TrieNode(bitlen, addr, left, right,
+                                Collections.unmodifiableList(newRoutes));
+        }
+
+        /* A node without routes and with at most one child can be replaced
+         * by that child. */
+        TrieNode collapse() {
+            if (!routes.isEmpty())
+                return this;
+            if (null == left)
+                return right;
+            if (null == right)
+                return left;
+            return this;
         }
 
         @Override
@@ -58,11 +147,13 @@ public abstract class RoutesTrie {
                 + ", right=" + right + ", routes=" + routes + "]";
         }
 
-        public Set<Route> getRoutes() {
+        public Collection<Route> getRoutes() {
             return routes;
         }
     }
 
+    private static final List<Route> NO_ROUTES = Collections.emptyList();
+
     // This table gives the position of the most significant set bit for each
     // value from 0 to 255.
     static final int[] MSB = new int[256];
@@ -107,141 +198,122 @@ public abstract class RoutesTrie {
 
     public void addRoute(Route rt) {
         getLog().debug("addRoute: {}", rt);
-        numRoutes++;
+        TrieNode root = insert(dstPrefixTrie, rt);
+        if (root != dstPrefixTrie) {
+            dstPrefixTrie = root;
+            numRoutes++;
+        }
+    }
 
-        TrieNode parent = null;
-        boolean inLeftChild = false;
-        TrieNode node = dstPrefixTrie;
+    /* Returns the subtrie rooted at node with the route added, which is
+     * node itself if it already had the route. */
+    private static TrieNode insert(TrieNode node, Route rt) {
         int rt_dst = rt.dstNetworkAddr;
-
-        while (null != node && rt.dstNetworkLength >= node.bitlen
+        TrieNode newNode = null;
+        if (null != node && rt.dstNetworkLength >= node.bitlen
             && IPv4Subnet.addrMatch(rt_dst, node.addr, node.bitlen)) {
             // The addresses match, descend to the children.
             if (rt.dstNetworkLength == node.bitlen) {
                 // Exact match. Add the route to this node's set.
-                node.routes.add(rt);
-                return;
+                return node.withRoute(rt);
             }
             // Use bit at position bitlen to decide on left or right branch.
-            inLeftChild = 0 == (rt_dst & (0x80000000 >>> node.bitlen));
-            parent = node;
-            node = (inLeftChild) ? node.left : node.right;
-        }
-        // We set the new node's parent, but might change it below.
-        TrieNode newNode = new TrieNode(parent, rt.dstNetworkLength, rt_dst);
-        newNode.routes.add(rt);
-        if (null != node) {
-            // Find the first bit in which rt_dst and node.addr differ.
-            // TODO(pino): can start checking bits after parent.bitlen.
-            int diffBit = findMSB(node.addr ^ rt_dst);
-            /*
-             * Only 2 cases to consider: 1) diffBit less than both
-             * newNode.bitlen and node.bitlen 2) newNode.bitlen less than both
-             * bitDiff and node.bitlen The following case is NOT possible here
-             * because of the previous while loop's condition: 3) node.bitlen
-             * less than both newNode.bitlen and diffBit In case 1, create a
-             * parent node for both node and newNode. In case 2, make newNode
-             * the parent of node.
-             */
-            if (diffBit < node.bitlen && diffBit < newNode.bitlen) { // Case 1
-                TrieNode newParent = new TrieNode(parent, diffBit, rt_dst);
-                int bit = rt_dst & (0x80000000 >>> diffBit);
-                newParent.left = (0 == bit) ? newNode : node;
-                newParent.right = (0 == bit) ? node : newNode;
-                node.parent = newParent;
-                newNode.parent = newParent;
-                newNode = newParent;
-            } else { // newNode.bitlen < diffBit && newNode.bitlen < node.bitlen
-                // Should node be the left or right child of newNode?
-                int bit = node.addr & (0x80000000 >>> newNode.bitlen);
-                if (0 == bit)
-                    newNode.left = node;
-                else
-                    newNode.right = node;
-                node.parent = newNode;
+            if (0 == (rt_dst & (0x80000000 >>> node.bitlen))) {
+                newNode = insert(node.left, rt);
+                return (newNode == node.left) ? node : node.withLeft(newNode);
+            } else {
+                newNode = insert(node.right, rt);
+                return (newNode == node.right) ? node : node.withRight(newNode);
             }
         }
-        if (null == parent)
-            dstPrefixTrie = newNode;
-        else if (inLeftChild)
-            parent.left = newNode;
-        else
-            parent.right = newNode;
+        newNode = new TrieNode(rt.dstNetworkLength, rt_dst, null, null,
+                               Collections.singletonList(rt));
+        if (null == node)
+            return newNode;
+
+        // Find the first bit in which rt_dst and node.addr differ.
+        int diffBit = findMSB(node.addr ^ rt_dst);
+        /*
+         * Only 2 cases to consider: 1) diffBit less than both
+         * newNode.bitlen and node.bitlen 2) newNode.bitlen less than both
+         * bitDiff and node.bitlen The following case is NOT possible here
+         * because of the previous condition: 3) node.bitlen less than both
+         * newNode.bitlen and diffBit In case 1, create a parent node for both
+         * node and newNode. In case 2, make newNode the parent of node.
+         */
+        if (diffBit < node.bitlen && diffBit < newNode.bitlen) { // Case 1
+            int bit = rt_dst & (0x80000000 >>> diffBit);
+            return (0 == bit)
+                ? new TrieNode(diffBit, rt_dst, newNode, node, NO_ROUTES)
+                : new TrieNode(diffBit, rt_dst, node, newNode, NO_ROUTES);
+        } else { // newNode.bitlen < diffBit && newNode.bitlen < node.bitlen
+            // Should node be the left or right child of newNode?
+            int bit = node.addr & (0x80000000 >>> newNode.bitlen);
+            return (0 == bit) ? newNode.withLeft(node)
+                              : newNode.withRight(node);
+        }
     }
 
     public void deleteRoute(Route rt) {
         getLog().debug("deleteRoute: {}", rt);
-        numRoutes--;
+        TrieNode root = remove(dstPrefixTrie, rt);
+        if (root != dstPrefixTrie) {
+            dstPrefixTrie = root;
+            numRoutes--;
+        }
+    }
 
-        TrieNode parent = null;
-        boolean inLeftChild = false;
-        TrieNode node = dstPrefixTrie;
+    /* Returns the subtrie rooted at node with the route removed, which is
+     * node itself if it didn't have the route. Nodes left without routes
+     * and with a single child are removed on the way back up. */
+    private static TrieNode remove(TrieNode node, Route rt) {
         int rt_dst = rt.dstNetworkAddr;
+        if (null == node || rt.dstNetworkLength < node.bitlen
+            || !IPv4Subnet.addrMatch(rt_dst, node.addr, node.bitlen))
+            return node;
 
-        while (null != node && rt.dstNetworkLength >= node.bitlen
-            && IPv4Subnet.addrMatch(rt_dst, node.addr, node.bitlen)) {
-            // The addresses match, descend to the children.
-            if (rt.dstNetworkLength == node.bitlen) {
-                // Exact match. Remove the route from this node's set.
-                node.routes.remove(rt);
-                // If the node has no routes and has only one child, we can
-                // remove it. Having done so, we can do the same check on its
-                // parent (and so on up).
-                while (null != node && node.routes.isEmpty()) {
-                    if (null == node.left) {
-                        if (null == parent)
-                            dstPrefixTrie = node.right;
-                        else if (inLeftChild)
-                            parent.left = node.right;
-                        else
-                            parent.right = node.right;
-                    } else if (null == node.right) {
-                        if (null == parent)
-                            dstPrefixTrie = node.left;
-                        else if (inLeftChild)
-                            parent.left = node.left;
-                        else
-                            parent.right = node.left;
-                    } else
-                        return; // We're keeping the node.
-                    node = parent;
-                    parent = (null == node) ? null : node.parent;
-                }
-                return;
-            }
-            // Use bit at position bitlen to decide on left or right branch.
-            inLeftChild = 0 == (rt_dst & (0x80000000 >>> node.bitlen));
-            parent = node;
-            node = (inLeftChild) ? node.left : node.right;
+        TrieNode newNode;
+        if (rt.dstNetworkLength == node.bitlen) {
+            // Exact match. Remove the route from this node's set.
+            newNode = node.withoutRoute(rt);
+        } else if (0 == (rt_dst & (0x80000000 >>> node.bitlen))) {
+            TrieNode child = remove(node.left, rt);
+            newNode = (child == node.left) ? node : node.withLeft(child);
+        } else {
+            TrieNode child = remove(node.right, rt);
+            newNode = (child == node.right) ? node : node.withRight(child);
         }
+        return (newNode == node) ? node : newNode.collapse();
     }
 
-    protected class MyRoutesIterator implements Iterator<Collection<Route>> {
-        TrieNode node;
+    /* Iterates over the route sets of the nodes on a path, from the
+     * deepest one up, skipping the nodes without routes. */
+    protected static class MyRoutesIterator implements Iterator<Collection<Route>> {
+        final TrieNode[] path;
+        int depth;
 
-        MyRoutesIterator(TrieNode node) {
-            this.node = node;
+        MyRoutesIterator(TrieNode[] path, int depth) {
+            this.path = path;
+            this.depth = depth;
+            skipEmpty();
+        }
+
+        private void skipEmpty() {
+            while (depth > 0 && path[depth - 1].routes.isEmpty())
+                depth--;
         }
 
         @Override
         public boolean hasNext() {
-            return (null != node);
+            return depth > 0;
         }
 
         @Override
         public Collection<Route> next() {
-            if (null == node)
+            if (depth == 0)
                 throw new NoSuchElementException("No more routes.");
-            // TODO(pino): should we clone the routes collection?
-            Collection<Route> routes = null;
-            while (null != node) {
-                routes = node.routes;
-                node = node.parent;
-                if (routes.isEmpty())
-                    continue;
-                else
-                    break;
-            }
+            Collection<Route> routes = path[--depth].routes;
+            skipEmpty();
             return routes;
         }
 
@@ -251,18 +323,37 @@ public abstract class RoutesTrie {
         }
     }
 
+    /**
+     * Returns the deepest node with routes whose prefix contains the
+     * address, or null if there is none.
+     */
+    protected TrieNode findLongestMatch(int dst) {
+        TrieNode best = null;
+        TrieNode node = dstPrefixTrie;
+
+        while (null != node && IPv4Subnet.addrMatch(dst, node.addr, node.bitlen)) {
+            if (!node.routes.isEmpty())
+                best = node;
+            boolean goLeft = 0 == (dst & (0x80000000 >>> node.bitlen));
+            node = (goLeft) ? node.left : node.right;
+        }
+        return best;
+    }
+
     protected Iterator<Collection<Route>> findBestMatch(int dst) {
-        TrieNode parent = null;
+        // Each node on the path is at least one bit longer than its parent.
+        TrieNode[] path = new TrieNode[33];
+        int depth = 0;
         TrieNode node = dstPrefixTrie;
 
         while (null != node && IPv4Subnet.addrMatch(dst, node.addr, node.bitlen)) {
             // The addresses match, descend to the children.
             // Use bit at position bitlen to decide on left or right branch.
             boolean goLeft = 0 == (dst & (0x80000000 >>> node.bitlen));
-            parent = node;
+            path[depth++] = node;
             node = (goLeft) ? node.left : node.right;
         }
-        return new MyRoutesIterator(parent);
+        return new MyRoutesIterator(path, depth);
     }
 
 }
@@ -16,10 +16,11 @@
 
 package org.midonet.midolman.layer3;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +38,14 @@ class RoutingTable extends RoutesTrie {
 
     private final static Logger log = LoggerFactory.getLogger(RoutingTable.class);
 
-    Iterable<Route> lookup(int src, int dst) {
+    /**
+     * Returns the routes with the lowest weight among those with the longest
+     * destination prefix that matches dst and a source prefix that matches
+     * src. When all the routes of that destination prefix apply to any
+     * source, the result is a precomputed list and the lookup doesn't
+     * allocate.
+     */
+    List<Route> lookup(int src, int dst) {
         if (log.isDebugEnabled()) {
             log.debug(String.format("lookup: src %s dst %s in table with %d routes",
                                     IPv4Addr.intToString(src),
@@ -45,7 +53,27 @@ class RoutingTable extends RoutesTrie {
                                     numRoutes));
         }
 
-        List<Route> ret = new Vector<>();
+        TrieNode node = findLongestMatch(dst);
+        List<Route> ret;
+        if (null == node)
+            ret = Collections.emptyList();
+        else if (null != node.group)
+            ret = node.group;
+        else
+            ret = lookupBySource(src, dst);
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("lookup: return %s for src %s dst %s",
+                      ret.toString(),
+                      IPv4Addr.intToString(src),
+                      IPv4Addr.intToString(dst)));
+        }
+
+        return ret;
+    }
+
+    private List<Route> lookupBySource(int src, int dst) {
+        List<Route> ret = new ArrayList<>();
         Iterator<Collection<Route>> rtIter = findBestMatch(dst);
         while (rtIter.hasNext()) {
             Collection<Route> routes = rtIter.next();
@@ -66,14 +94,6 @@ class RoutingTable extends RoutesTrie {
             if (!ret.isEmpty())
                 break;
         }
-
-        if (log.isDebugEnabled()) {
-            log.debug(String.format("lookup: return %s for src %s dst %s",
-                      ret.toString(),
-                      IPv4Addr.intToString(src),
-                      IPv4Addr.intToString(dst)));
-        }
-
         return ret;
     }
 
@@ -15,6 +15,8 @@
  */
 package org.midonet.midolman.layer3;
 
+import java.util.List;
+
 import org.midonet.packets.IPAddr;
 
 /**
@@ -38,8 +40,9 @@ public interface RoutingTableIfc<IP extends IPAddr> {
     public void deleteRoute(Route rt);
 
     /**
-     * Returns a route.
+     * Returns the routes to balance the traffic from src to dst over. The
+     * returned list must not be modified.
      */
-    public Iterable<Route> lookup(IP src, IP dst);
+    public List<Route> lookup(IP src, IP dst);
 
 }
@@ -17,7 +17,6 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -26,6 +25,7 @@ import scala.Option;
 import scala.collection.Map;
 
 import org.midonet.midolman.rules.JumpRule;
+import org.midonet.midolman.rules.NatRule;
 import org.midonet.midolman.rules.Rule;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
@@ -37,6 +37,7 @@ public class Chain {
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private final ChainClassifier classifier;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
@@ -45,6 +46,7 @@ public class Chain {
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
+        classifier = ChainClassifier.build(this.rules);
     }
 
     public int hashCode() {
@@ -93,11 +95,23 @@ public class Chain {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
+        // Rules the classifier rules out don't match, so they are skipped
+        // unless evaluating them has side effects on the packet context.
+        ChainClassifier.Candidates candidates =
+            classifier != null ? classifier.classify(context.wcmatch()) : null;
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        int i = 0;
+        while (res.action == Action.CONTINUE) {
 
-            Rule r = iter.next();
+            if (candidates != null) {
+                int next = candidates.next(i);
+                candidates.skip(i, next, context, isPortFilter);
+                i = next;
+            }
+            if (i >= rules.size())
+                break;
+
+            Rule r = rules.get(i++);
             r.process(context, res, ownerId, isPortFilter);
 
             if (res.action == Action.JUMP) {
@@ -120,6 +134,13 @@ public class Chain {
                         res.action = Action.CONTINUE;
                 }
             }
+
+            // NAT rules, here or in a jump chain, may have rewritten the
+            // match the candidates were computed for.
+            if (candidates != null && res.action == Action.CONTINUE &&
+                (r instanceof NatRule || r instanceof JumpRule)) {
+                candidates = classifier.classify(context.wcmatch());
+            }
         }
 
         assert res.action != Action.JUMP;
@@ -208,7 +229,7 @@ public class Chain {
     }
 
     /**
-     * For unit testing.
+     * For unit testing. Chains with a classifier must not be modified.
      */
     public List<Rule> getRules() {
         return rules;
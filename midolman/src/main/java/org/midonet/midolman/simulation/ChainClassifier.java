@@ -0,0 +1,403 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.Rule;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMatch.Field;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPSubnet;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.Unsigned;
+import org.midonet.util.Range;
+
+/**
+ * An index over the rules of a chain that tells which of them a packet may
+ * match, so that applying a long chain doesn't evaluate every condition.
+ *
+ * Rules are indexed on the condition fields that compare the packet against
+ * a value or an interval: ethertype, network protocol, IPv4 source and
+ * destination subnets and transport source and destination ports. For each
+ * of these fields, the bounds of all the rules' intervals split the field's
+ * values into elementary intervals, each of which knows the rules whose
+ * condition accepts it. A rule that doesn't constrain a field, or that
+ * inverts the constraint, accepts any value. The candidates for a packet are
+ * the rules that accept all of its field values, a superset of the rules
+ * that match it; the chain still evaluates their conditions in order.
+ *
+ * Rules left out are known not to match, but Condition.matches() also reads
+ * fields of the match and looks up the connection tracking state. A rule is
+ * only skipped outright when evaluating it couldn't have read a field that
+ * isn't already seen or tracked the connection; otherwise its condition is
+ * evaluated for those side effects, so that the resulting flow has the same
+ * wildcards as when evaluating every rule.
+ *
+ * IP address groups aren't indexed, as they are updated in place.
+ */
+final class ChainClassifier {
+
+    /* Shorter chains are evaluated rule by rule. */
+    static final int MIN_RULES = 16;
+
+    /* A field isn't indexed if its rules span more elementary intervals
+     * than this, on average. */
+    private static final int MAX_SPAN = 32;
+
+    /* The indexed fields, in the order Condition.matches() checks them. */
+    private static final int ETHER_TYPE = 0;
+    private static final int NW_PROTO = 1;
+    private static final int NW_SRC = 2;
+    private static final int NW_DST = 3;
+    private static final int TP_SRC = 4;
+    private static final int TP_DST = 5;
+    private static final int FIELDS = 6;
+
+    /* Values of IP addresses that are not IPv4, below any IPv4 subnet. */
+    private static final long NOT_IPV4 = -1L;
+
+    /* The fields Condition.matches() has read from the match by the time it
+     * checks each of the indexed fields. */
+    private static final long[] READS = new long[FIELDS];
+    static {
+        READS[ETHER_TYPE] = bit(Field.FragmentType) | bit(Field.NetworkSrc)
+                            | bit(Field.NetworkDst) | bit(Field.EtherType);
+        READS[NW_PROTO] = READS[ETHER_TYPE] | bit(Field.EthSrc)
+                          | bit(Field.EthDst) | bit(Field.NetworkTOS)
+                          | bit(Field.NetworkProto);
+        READS[NW_SRC] = READS[NW_PROTO];
+        READS[NW_DST] = READS[NW_PROTO];
+        READS[TP_SRC] = READS[NW_PROTO] | bit(Field.SrcPort);
+        READS[TP_DST] = READS[TP_SRC] | bit(Field.DstPort);
+    }
+
+    private static long bit(Field field) {
+        return 1L << field.ordinal();
+    }
+
+    /* The rules accepting each elementary interval of a field. Interval 0
+     * holds the values below bounds[0], and interval i the values in
+     * [bounds[i - 1], bounds[i]). Intervals constraining many rules keep the
+     * bitset of the rules accepting them, the others the list of rules they
+     * add to the wildcard ones. */
+    private static final class FieldIndex {
+        final long[] bounds;
+        final int[][] constrained;
+        final long[][] accepted;
+        final long[] wildcards;
+
+        FieldIndex(long[] bounds, int[][] constrained, long[] wildcards) {
+            this.bounds = bounds;
+            this.constrained = constrained;
+            this.wildcards = wildcards;
+            accepted = new long[constrained.length][];
+            for (int i = 0; i < constrained.length; ++i) {
+                if (constrained[i].length == 0) {
+                    accepted[i] = wildcards;
+                } else if (constrained[i].length > 2 * wildcards.length) {
+                    accepted[i] = accepting(i);
+                    constrained[i] = null;
+                }
+            }
+        }
+
+        /* The returned bitset must not be modified. */
+        long[] accepting(long value) {
+            int interval = intervalOf(bounds, value);
+            return accepted[interval] != null ? accepted[interval]
+                                              : accepting(interval);
+        }
+
+        private long[] accepting(int interval) {
+            long[] rules = wildcards.clone();
+            for (int rule : constrained[interval]) {
+                rules[rule >>> 6] |= 1L << rule;
+            }
+            return rules;
+        }
+    }
+
+    private final Condition[] conditions;
+    private final FieldIndex[] fields = new FieldIndex[FIELDS];
+    private final int words;
+    private final long[] directional;
+
+    private ChainClassifier(List<Rule> rules) {
+        conditions = new Condition[rules.size()];
+        words = (conditions.length + 63) >>> 6;
+        directional = new long[words];
+        for (int i = 0; i < conditions.length; ++i) {
+            conditions[i] = rules.get(i).getCondition();
+            if (conditions[i].matchForwardFlow || conditions[i].matchReturnFlow)
+                directional[i >>> 6] |= 1L << i;
+        }
+
+        long[] lo = new long[conditions.length];
+        long[] hi = new long[conditions.length];
+        boolean[] wild = new boolean[conditions.length];
+        for (int field = 0; field < FIELDS; ++field) {
+            for (int i = 0; i < conditions.length; ++i) {
+                wild[i] = !bounds(conditions[i], field, lo, hi, i);
+            }
+            fields[field] = index(lo, hi, wild);
+        }
+    }
+
+    /**
+     * Builds the classifier for the rules of a chain, or returns null if
+     * the chain is better evaluated rule by rule.
+     */
+    static ChainClassifier build(List<Rule> rules) {
+        if (rules.size() < MIN_RULES)
+            return null;
+        ChainClassifier classifier = new ChainClassifier(rules);
+        for (FieldIndex field : classifier.fields) {
+            if (field != null)
+                return classifier;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the candidate rules for the current match of the packet.
+     */
+    Candidates classify(FlowMatch match) {
+        match.doNotTrackSeenFields();
+        long[][] accepted = new long[FIELDS][];
+        accept(accepted, ETHER_TYPE, Unsigned.unsign(match.getEtherType()));
+        accept(accepted, NW_PROTO, match.getNetworkProto());
+        accept(accepted, NW_SRC, valueOf(match.getNetworkSrcIP()));
+        accept(accepted, NW_DST, valueOf(match.getNetworkDstIP()));
+        accept(accepted, TP_SRC, match.getSrcPort());
+        accept(accepted, TP_DST, match.getDstPort());
+        match.doTrackSeenFields();
+        return new Candidates(accepted);
+    }
+
+    private void accept(long[][] accepted, int field, long value) {
+        if (fields[field] != null)
+            accepted[field] = fields[field].accepting(value);
+    }
+
+    /**
+     * The rules a packet may match, as of the match it was classified with.
+     */
+    final class Candidates {
+        private final long[][] accepted;
+        private final long[] rules = new long[words];
+
+        private Candidates(long[][] accepted) {
+            this.accepted = accepted;
+            Arrays.fill(rules, -1L);
+            for (long[] field : accepted) {
+                if (field == null)
+                    continue;
+                for (int i = 0; i < words; ++i) {
+                    rules[i] &= field[i];
+                }
+            }
+        }
+
+        /**
+         * Returns the first candidate rule from the given one, or the number
+         * of rules if there are none left.
+         */
+        int next(int rule) {
+            if (rule >= conditions.length)
+                return conditions.length;
+            int word = rule >>> 6;
+            long bits = rules[word] & (-1L << rule);
+            while (bits == 0) {
+                if (++word == words)
+                    return conditions.length;
+                bits = rules[word];
+            }
+            return Math.min((word << 6) + Long.numberOfTrailingZeros(bits),
+                            conditions.length);
+        }
+
+        /**
+         * Skips the rules in [from, to), which can't match, evaluating their
+         * conditions anyway if that would read fields not yet seen or track
+         * the connection.
+         */
+        void skip(int from, int to, PacketContext context,
+                  boolean isPortFilter) {
+            int rule = from;
+            while ((rule = nextToEvaluate(rule, to, context)) < to) {
+                conditions[rule].matches(context, isPortFilter);
+                rule++;
+            }
+        }
+
+        /* Returns the first rule in [from, to) that isn't a candidate but
+         * whose condition must be evaluated, or to if there are none. Such a
+         * rule either tracks the connection, or is excluded by a field that
+         * Condition.matches() checks after reading a field not yet seen. */
+        private int nextToEvaluate(int from, int to, PacketContext context) {
+            long seen = context.wcmatch().getSeenFields();
+            int level = 0;
+            while (level < FIELDS && (seen & READS[level]) == READS[level])
+                level++;
+            boolean untracked = !context.isConnectionTracked();
+            if (level == FIELDS && !untracked)
+                return to;
+
+            for (int word = from >>> 6; (word << 6) < to; ++word) {
+                long bits = 0L;
+                if (level < FIELDS) {
+                    bits = ~rules[word];
+                    for (int field = 0; field < level; ++field) {
+                        if (accepted[field] != null)
+                            bits &= accepted[field][word];
+                    }
+                }
+                if (untracked)
+                    bits |= directional[word] & ~rules[word];
+                if (word == from >>> 6)
+                    bits &= -1L << from;
+                if (bits != 0)
+                    return Math.min((word << 6) + Long.numberOfTrailingZeros(bits),
+                                    to);
+            }
+            return to;
+        }
+    }
+
+    /* Stores in lo[i] and hi[i] the inclusive interval of values the
+     * condition accepts for the field, returning false if the condition
+     * accepts any value or can't be indexed on the field. */
+    private static boolean bounds(Condition cond, int field,
+                                  long[] lo, long[] hi, int i) {
+        if (cond.conjunctionInv)
+            return false;
+        switch (field) {
+            case ETHER_TYPE:
+                if (cond.etherType == null || cond.invDlType)
+                    return false;
+                lo[i] = hi[i] = cond.etherType;
+                return true;
+            case NW_PROTO:
+                if (cond.nwProto == null || cond.nwProtoInv)
+                    return false;
+                lo[i] = hi[i] = cond.nwProto;
+                return true;
+            case NW_SRC:
+                return !cond.nwSrcInv && subnetBounds(cond.nwSrcIp, lo, hi, i);
+            case NW_DST:
+                return !cond.nwDstInv && subnetBounds(cond.nwDstIp, lo, hi, i);
+            case TP_SRC:
+                return !cond.tpSrcInv && rangeBounds(cond.tpSrc, lo, hi, i);
+            case TP_DST:
+                return !cond.tpDstInv && rangeBounds(cond.tpDst, lo, hi, i);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean subnetBounds(IPSubnet<?> subnet,
+                                        long[] lo, long[] hi, int i) {
+        if (!(subnet instanceof IPv4Subnet))
+            return false;
+        int prefixLen = subnet.getPrefixLen();
+        if (prefixLen < 0 || prefixLen > 32)
+            return false;
+        long mask = prefixLen == 0 ? 0L : (0xFFFFFFFFL << (32 - prefixLen))
+                                          & 0xFFFFFFFFL;
+        long addr = ((IPv4Subnet) subnet).getIntAddress() & 0xFFFFFFFFL;
+        lo[i] = addr & mask;
+        hi[i] = lo[i] | (~mask & 0xFFFFFFFFL);
+        return true;
+    }
+
+    private static boolean rangeBounds(Range<Integer> range,
+                                       long[] lo, long[] hi, int i) {
+        if (range == null || (range.start() == null && range.end() == null))
+            return false;
+        lo[i] = range.start() == null ? Long.MIN_VALUE : range.start();
+        hi[i] = range.end() == null ? Long.MAX_VALUE : range.end();
+        return true;
+    }
+
+    private static long valueOf(IPAddr addr) {
+        return addr instanceof IPv4Addr ? ((IPv4Addr) addr).toInt() & 0xFFFFFFFFL
+                                        : NOT_IPV4;
+    }
+
+    private FieldIndex index(long[] lo, long[] hi, boolean[] wild) {
+        long[] wildcards = new long[words];
+        long[] points = new long[2 * conditions.length];
+        int npoints = 0;
+        for (int i = 0; i < conditions.length; ++i) {
+            if (wild[i]) {
+                wildcards[i >>> 6] |= 1L << i;
+                continue;
+            }
+            points[npoints++] = lo[i];
+            if (hi[i] != Long.MAX_VALUE)
+                points[npoints++] = hi[i] + 1;
+        }
+        if (npoints == 0)
+            return null;
+
+        Arrays.sort(points, 0, npoints);
+        int nbounds = 1;
+        for (int i = 1; i < npoints; ++i) {
+            if (points[i] != points[nbounds - 1])
+                points[nbounds++] = points[i];
+        }
+        long[] bounds = Arrays.copyOf(points, nbounds);
+
+        int[] counts = new int[nbounds + 1];
+        long span = 0;
+        for (int i = 0; i < conditions.length; ++i) {
+            if (wild[i])
+                continue;
+            int to = intervalOf(bounds, hi[i]);
+            for (int j = intervalOf(bounds, lo[i]); j <= to; ++j) {
+                counts[j]++;
+            }
+            span += to - intervalOf(bounds, lo[i]) + 1;
+            if (span > (long) MAX_SPAN * conditions.length)
+                return null;
+        }
+
+        int[][] constrained = new int[nbounds + 1][];
+        for (int j = 0; j <= nbounds; ++j) {
+            constrained[j] = new int[counts[j]];
+            counts[j] = 0;
+        }
+        for (int i = 0; i < conditions.length; ++i) {
+            if (wild[i])
+                continue;
+            int to = intervalOf(bounds, hi[i]);
+            for (int j = intervalOf(bounds, lo[i]); j <= to; ++j) {
+                constrained[j][counts[j]++] = i;
+            }
+        }
+        return new FieldIndex(bounds, constrained, wildcards);
+    }
+
+    /* The number of bounds that are not greater than the value. */
+    private static int intervalOf(long[] bounds, long value) {
+        int i = Arrays.binarySearch(bounds, value);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.midonet.midolman.state;
 
+import java.util.List;
+
 import org.midonet.util.functors.Callback;
 
 /**
@@ -35,6 +37,16 @@ public interface NatBlockAllocator {
     void allocateBlockInRange(NatRange natRange,
                               Callback<NatBlock, Exception> callback);
 
+    /**
+     * Asynchronously allocates up to count blocks from the specified range,
+     * claiming all of them at once.
+     *
+     * @param callback Used to return the NatBlocks that were assigned, which
+     *                 may be fewer than requested or none.
+     */
+    void allocateBlocksInRange(NatRange natRange, int count,
+                               Callback<List<NatBlock>, Exception> callback);
+
     /**
      * Asynchronously frees the specified block.
      */
@@ -17,7 +17,11 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 
 import com.google.inject.Inject;
@@ -27,6 +31,9 @@ import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -34,6 +41,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.guice.zookeeper.ZkConnectionProvider;
+import org.midonet.packets.IPv4Addr;
 import org.midonet.util.eventloop.Reactor;
 import org.midonet.util.functors.Callback;
 
@@ -44,18 +52,42 @@ import org.midonet.util.functors.Callback;
  *  - NAT blocks are scoped by device and associated with a given IP;
  *  - A block is randomly chosen from the set of unused NAT blocks;
  *  - If there are no unused blocks, we choose the least recently used free one
- *    (having been freed either explicitly or because its owner host went down).
+ *    (having been freed either explicitly or because its owner host went down);
+ *  - Several blocks can be claimed at once with a single multi operation.
  *
  *  Refer to the documentation for details on the algorithm.
+ *
+ *  The state of the blocks of each device and IP is cached: a block is read
+ *  the first time it falls in a requested range, leaving a watch that keeps
+ *  its cached state current. Blocks are claimed optimistically, without
+ *  reading them again; a block found to be taken by another host is marked
+ *  as such and the next candidate is tried. Only when the cache knows of no
+ *  free block in a range are the blocks taken by other hosts read again.
  */
 public class ZkNatBlockAllocator implements NatBlockAllocator {
     private static final List<ACL> acl = Ids.OPEN_ACL_UNSAFE;
 
+    private static final Comparator<long[]> LRU_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+        }
+    };
+
     protected static final Logger log = LoggerFactory
             .getLogger(ZkNatBlockAllocator.class);
 
+    /* The states of a block in the cache */
+    private static final byte UNKNOWN = 0;
+    private static final byte VIRGIN = 1;
+    private static final byte FREED = 2;
+    private static final byte TAKEN = 3;
+    private static final byte CLAIMED = 4;
+
     private final ZkConnection zk;
     private final PathBuilder paths;
+    private final ConcurrentHashMap<String, BlockCache> caches =
+        new ConcurrentHashMap<>();
     // TODO: Until ZK 3.5, which supports async multi operations
     private final Reactor reactor;
 
@@ -82,7 +114,42 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
                         // Retry, but allow the reactor to process other work
                         allocateBlockInRange(natRange, callback);
                     } else if (e.code() == KeeperException.Code.NONODE) {
-                        ensureDevicePath(natRange, callback);
+                        ensureDevicePath(natRange, new Runnable() {
+                            @Override
+                            public void run() {
+                                allocateBlockInRange(natRange, callback);
+                            }
+                        }, callback);
+                    } else {
+                        callback.onError(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void allocateBlocksInRange(final NatRange natRange, final int count,
+                                      final Callback<List<NatBlock>, Exception> callback) {
+        log.debug("Trying to allocate {} suitable blocks for {}", count, natRange);
+        reactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    allocateBlocks(natRange, count, callback);
+                } catch (InterruptedException ignored) {
+                } catch (KeeperException e) {
+                    if (e.code() == KeeperException.Code.NODEEXISTS) {
+                        // Another host claimed one of the blocks; as the
+                        // multi is atomic none of them is ours, so retry.
+                        allocateBlocksInRange(natRange, count, callback);
+                    } else if (e.code() == KeeperException.Code.NONODE) {
+                        ensureDevicePath(natRange, new Runnable() {
+                            @Override
+                            public void run() {
+                                allocateBlocksInRange(natRange, count, callback);
+                            }
+                        }, callback);
                     } else {
                         callback.onError(e);
                     }
@@ -91,49 +158,104 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
         });
     }
 
-    // TODO: Use support for multi-get in ZK 3.5
     private void allocateBlock(NatRange natRange,
                                Callback<NatBlock, Exception> callback)
             throws KeeperException, InterruptedException {
-        int lruBlock = -1;
-        long lruBlockZxid = Long.MAX_VALUE;
-        ArrayList<Integer> virginBlocks = new ArrayList<>();
-        int startBlock = natRange.tpPortStart / NatBlock.BLOCK_SIZE;
-        int endBlock = natRange.tpPortEnd / NatBlock.BLOCK_SIZE;
-        Stat stat = new Stat();
-        for (int i = startBlock; i <= endBlock; ++i) {
-            String path = paths.getNatBlockPath(natRange.deviceId, natRange.ip, i);
-            zk.getZooKeeper().getData(path, false, stat);
-            if (stat.getNumChildren() == 0) {
-                // Pzxid is the (undocumented) zxid of the last modified child
-                long pzxid = stat.getPzxid();
-                if (pzxid == stat.getCzxid()) {
-                    virginBlocks.add(i);
-                } else if (pzxid < lruBlockZxid) {
-                    lruBlockZxid = pzxid;
-                    lruBlock = i;
+        BlockCache cache = cacheFor(natRange);
+        List<Integer> candidates = findFreeBlocks(cache, natRange, 1);
+        if (candidates.size() > 0) {
+            claimBlock(cache, candidates.get(0), natRange, callback);
+        } else {
+            callback.onSuccess(NatBlock.NO_BLOCK);
+        }
+    }
+
+    private void allocateBlocks(NatRange natRange, int count,
+                                Callback<List<NatBlock>, Exception> callback)
+            throws KeeperException, InterruptedException {
+        BlockCache cache = cacheFor(natRange);
+        List<Integer> candidates = findFreeBlocks(cache, natRange, count);
+        List<NatBlock> blocks = new ArrayList<>(candidates.size());
+        if (candidates.size() > 0) {
+            List<Op> claims = new ArrayList<>(candidates.size());
+            for (int block : candidates) {
+                log.debug("Trying to claim block {} for {}", block, natRange);
+                String path = paths.getNatBlockOwnershipPath(
+                    natRange.deviceId, natRange.ip, block);
+                claims.add(Op.create(path, null, acl, CreateMode.EPHEMERAL));
+                blocks.add(new NatBlock(natRange.deviceId, natRange.ip, block));
+            }
+            try {
+                zk.getZooKeeper().multi(claims);
+            } catch (KeeperException e) {
+                List<OpResult> results = e.getResults();
+                for (int i = 0; results != null && i < results.size(); ++i) {
+                    OpResult result = results.get(i);
+                    if (result instanceof OpResult.ErrorResult &&
+                        ((OpResult.ErrorResult) result).getErr() ==
+                            KeeperException.Code.NODEEXISTS.intValue())
+                        cache.taken(candidates.get(i));
                 }
+                throw e;
             }
+            for (int block : candidates)
+                cache.claimed(block);
         }
+        callback.onSuccess(blocks);
+    }
 
-        if (virginBlocks.size() > 0) {
-            int block = ThreadLocalRandom.current().nextInt(0, virginBlocks.size());
-            claimBlock(virginBlocks.get(block), natRange, callback);
-        } else if (lruBlock >= 0) {
-            claimBlock(lruBlock, natRange, callback);
-        } else {
-            callback.onSuccess(NatBlock.NO_BLOCK);
+    private BlockCache cacheFor(NatRange natRange) {
+        String path = paths.getNatIpPath(natRange.deviceId, natRange.ip);
+        BlockCache cache = caches.get(path);
+        if (cache == null) {
+            cache = new BlockCache(natRange);
+            BlockCache current = caches.putIfAbsent(path, cache);
+            if (current != null)
+                cache = current;
+        }
+        return cache;
+    }
+
+    /*
+     * Returns up to count blocks of the range that are not owned, in order of
+     * preference: unused blocks come first, in random order, followed by the
+     * freed blocks from the least recently used one. The blocks are chosen
+     * from the cache, which is only refreshed from ZooKeeper when it knows of
+     * no free block in the range.
+     */
+    // TODO: Use support for multi-get in ZK 3.5
+    private List<Integer> findFreeBlocks(BlockCache cache, NatRange natRange,
+                                         int count)
+            throws KeeperException, InterruptedException {
+        int startBlock = natRange.tpPortStart / NatBlock.BLOCK_SIZE;
+        int endBlock = natRange.tpPortEnd / NatBlock.BLOCK_SIZE;
+        for (int block : cache.blocksIn(startBlock, endBlock, UNKNOWN))
+            cache.load(block);
+
+        List<Integer> blocks = cache.freeBlocks(startBlock, endBlock, count);
+        if (blocks.isEmpty()) {
+            for (int block : cache.blocksIn(startBlock, endBlock, TAKEN))
+                cache.load(block);
+            blocks = cache.freeBlocks(startBlock, endBlock, count);
         }
+        return blocks;
     }
 
-    private void claimBlock(final int block,
+    private void claimBlock(final BlockCache cache,
+                            final int block,
                             final NatRange natRange,
                             final Callback<NatBlock, Exception> callback)
             throws KeeperException, InterruptedException {
         log.debug("Trying to claim block {} for {}", block, natRange);
         String path = paths.getNatBlockOwnershipPath(
             natRange.deviceId, natRange.ip, block);
-        zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL);
+        try {
+            zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NodeExistsException e) {
+            cache.taken(block);
+            throw e;
+        }
+        cache.claimed(block);
         callback.onSuccess(new NatBlock(natRange.deviceId, natRange.ip, block));
     }
 
@@ -149,6 +271,10 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
         zk.getZooKeeper().delete(path, -1, new AsyncCallback.VoidCallback() {
             @Override
             public void processResult(int rc, String path, Object ctx) {
+                BlockCache cache = caches.get(
+                    paths.getNatIpPath(natBlock.deviceId, natBlock.ip));
+                if (cache != null)
+                    cache.released(natBlock.blockIndex);
                 if (rc != KeeperException.Code.OK.intValue() &&
                     rc != KeeperException.Code.NONODE.intValue()) {
                     log.debug("Failed to free {}", natBlock);
@@ -160,7 +286,8 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
     }
 
     private void ensureDevicePath(final NatRange natRange,
-                                  final Callback<NatBlock, Exception> callback) {
+                                  final Runnable retry,
+                                  final Callback<?, Exception> callback) {
         zk.getZooKeeper().create(paths.getNatDevicePath(natRange.deviceId), null,
                                  acl, CreateMode.PERSISTENT,
                                  new AsyncCallback.StringCallback() {
@@ -168,7 +295,7 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
             public void processResult(int rc, String path, Object ctx, String name) {
                 if (rc == KeeperException.Code.OK.intValue() ||
                     rc == KeeperException.Code.NODEEXISTS.intValue()) {
-                    ensureIpPath(natRange, callback);
+                    ensureIpPath(natRange, retry, callback);
                 } else {
                     callback.onError(KeeperException.create(
                         KeeperException.Code.get(rc), path));
@@ -178,7 +305,8 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
     }
 
     private void ensureIpPath(final NatRange natRange,
-                              final Callback<NatBlock, Exception> callback) {
+                              final Runnable retry,
+                              final Callback<?, Exception> callback) {
         String path = paths.getNatIpPath(natRange.deviceId, natRange.ip);
         final List<Op> dirs = new ArrayList<>(NatBlock.TOTAL_BLOCKS + 1);
         dirs.add(Op.create(path, null, acl, CreateMode.PERSISTENT));
@@ -188,12 +316,12 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
             public void run() {
                 try {
                     zk.getZooKeeper().multi(dirs);
-                    allocateBlockInRange(natRange, callback);
+                    retry.run();
                 } catch (InterruptedException ignored) {
                 } catch (KeeperException e) {
                     int error = e.getResults().get(0).getType();
                     if (error == KeeperException.Code.NODEEXISTS.intValue()) {
-                        allocateBlockInRange(natRange, callback);
+                        retry.run();
                     } else {
                         callback.onError(e);
                     }
@@ -208,4 +336,153 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
             blockDirs.add(Op.create(path, null, acl, CreateMode.PERSISTENT));
         }
     }
+
+    /*
+     * The last known state of the blocks of a device and IP, kept up to date
+     * by a watch on the ownership of each block that was read.
+     */
+    private final class BlockCache {
+        private final UUID deviceId;
+        private final IPv4Addr ip;
+        private final byte[] states = new byte[NatBlock.TOTAL_BLOCKS];
+        private final int[] versions = new int[NatBlock.TOTAL_BLOCKS];
+        private final long[] freedAt = new long[NatBlock.TOTAL_BLOCKS];
+        // A single watcher per block, so that reading a block again doesn't
+        // leave another watch behind
+        private final BlockWatcher[] watchers =
+            new BlockWatcher[NatBlock.TOTAL_BLOCKS];
+
+        BlockCache(NatRange natRange) {
+            this.deviceId = natRange.deviceId;
+            this.ip = natRange.ip;
+        }
+
+        void load(int block) throws KeeperException, InterruptedException {
+            Stat stat = new Stat();
+            zk.getZooKeeper().getChildren(
+                paths.getNatBlockPath(deviceId, ip, block),
+                watcher(block), stat);
+            update(block, stat);
+        }
+
+        void reload(final int block) {
+            zk.getZooKeeper().getChildren(
+                paths.getNatBlockPath(deviceId, ip, block),
+                watcher(block),
+                new AsyncCallback.Children2Callback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx,
+                                              List<String> children, Stat stat) {
+                        if (rc == KeeperException.Code.OK.intValue())
+                            update(block, stat);
+                        else
+                            forget(block);
+                    }
+                }, null);
+        }
+
+        synchronized BlockWatcher watcher(int block) {
+            if (watchers[block] == null)
+                watchers[block] = new BlockWatcher(this, block);
+            return watchers[block];
+        }
+
+        synchronized void update(int block, Stat stat) {
+            // The child version tells apart a stale read from a newer one
+            if (states[block] != UNKNOWN && stat.getCversion() < versions[block])
+                return;
+            versions[block] = stat.getCversion();
+            if (stat.getNumChildren() > 0) {
+                if (states[block] != CLAIMED)
+                    states[block] = TAKEN;
+            } else if (stat.getPzxid() == stat.getCzxid()) {
+                states[block] = VIRGIN;
+            } else {
+                // Pzxid is the (undocumented) zxid of the last modified child
+                states[block] = FREED;
+                freedAt[block] = stat.getPzxid();
+            }
+        }
+
+        synchronized void claimed(int block) {
+            states[block] = CLAIMED;
+        }
+
+        synchronized void taken(int block) {
+            states[block] = TAKEN;
+        }
+
+        synchronized void released(int block) {
+            if (states[block] == CLAIMED)
+                states[block] = UNKNOWN;
+        }
+
+        synchronized void forget(int block) {
+            states[block] = UNKNOWN;
+        }
+
+        synchronized List<Integer> blocksIn(int startBlock, int endBlock,
+                                            byte state) {
+            List<Integer> blocks = new ArrayList<>();
+            for (int i = startBlock; i <= endBlock; ++i) {
+                if (states[i] == state)
+                    blocks.add(i);
+            }
+            return blocks;
+        }
+
+        synchronized List<Integer> freeBlocks(int startBlock, int endBlock,
+                                              int count) {
+            ArrayList<Integer> virginBlocks = new ArrayList<>();
+            ArrayList<long[]> freedBlocks = new ArrayList<>();
+            for (int i = startBlock; i <= endBlock; ++i) {
+                if (states[i] == VIRGIN)
+                    virginBlocks.add(i);
+                else if (states[i] == FREED)
+                    freedBlocks.add(new long[] { freedAt[i], i });
+            }
+
+            Collections.shuffle(virginBlocks, ThreadLocalRandom.current());
+            // The sort is stable, so the blocks freed by the same transaction
+            // are kept in port order
+            Collections.sort(freedBlocks, LRU_ORDER);
+            List<Integer> blocks = new ArrayList<>(count);
+            for (int i = 0; i < virginBlocks.size() && blocks.size() < count; ++i) {
+                blocks.add(virginBlocks.get(i));
+            }
+            for (int i = 0; i < freedBlocks.size() && blocks.size() < count; ++i) {
+                blocks.add((int) freedBlocks.get(i)[1]);
+            }
+            return blocks;
+        }
+    }
+
+    private final class BlockWatcher implements Watcher {
+        private final BlockCache cache;
+        private final int block;
+
+        BlockWatcher(BlockCache cache, int block) {
+            this.cache = cache;
+            this.block = block;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            switch (event.getType()) {
+                case NodeChildrenChanged:
+                    cache.reload(block);
+                    break;
+                case NodeDeleted:
+                    cache.forget(block);
+                    break;
+                case None:
+                    // The watches don't survive the session
+                    if (event.getState() == Watcher.Event.KeeperState.Expired)
+                        caches.clear();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
 }
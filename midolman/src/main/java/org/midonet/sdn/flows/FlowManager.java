@@ -16,12 +16,15 @@
 
 package org.midonet.sdn.flows;
 
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +32,12 @@ import org.slf4j.LoggerFactory;
 import org.midonet.midolman.flows.WildcardTablesProvider;
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
+import org.midonet.odp.flows.FlowKey;
+import org.midonet.odp.flows.FlowKeyICMP;
+import org.midonet.odp.flows.FlowKeys;
+import org.midonet.util.collection.TimingWheel;
+import org.midonet.util.concurrent.NanoClock;
+import org.midonet.util.concurrent.NanoClock$;
 import org.midonet.util.functors.Callback1;
 
 // not thread-safe
@@ -44,13 +53,16 @@ import org.midonet.util.functors.Callback1;
  * Idle Time-out
  * This class guarantees that every wildcard flow that has an idle time-out set
  * will be evicted after idle time-out + delta.
- * We have two priority queues, one for hard time-out expiration and the other
- * for idle time-out expiration. They are ordered according to the time that
- * each flow has remaining.
- * For idle time-out before deleting a wildcard flow, we get from the datapath
- * connection the lastUsedTime of each microflow until we find one whose
- * lastUsedTime < now - timeout. If that's the case, we extend the life of the
- * wildcard flow, otherwise we delete it.
+ * We have two timing wheels, one for hard time-out expiration and the other
+ * for idle time-out expiration, where each flow is scheduled at the time it
+ * is due to expire. A flow whose idle deadline was pushed forward while it
+ * was waiting in the wheel is scheduled again when its old deadline passes.
+ * For idle time-out before deleting a wildcard flow, we need the lastUsedTime
+ * of its microflows from the datapath. Rather than asking for each microflow,
+ * the wildcard flows whose idle time-out passed wait for the next sweep: a
+ * single dump of the datapath flows, which refreshes the lastUsedTime of every
+ * wildcard flow at once. When the dump is over, we extend the life of the
+ * wildcard flows that were used in the meantime and delete the others.
  *
  * Idle Time-out expiration is an expensive operation. We won't accept
  * idle time-out < 5 s.
@@ -69,18 +81,30 @@ public class FlowManager {
     private long maxWildcardFlows;
     //TODO(ross) is this a reasonable value? Take it from conf file?
     private int dpFlowRemoveBatchSize = 512;
-    private int flowRequestsInFlight = 0;
     private long idleFlowToleranceInterval;
+    private final NanoClock clock;
 
     public FlowManager(
             FlowManagerHelper flowManagerHelper,
             WildcardTablesProvider wildcardTables,
             long maxDpFlows, long maxWildcardFlows, long idleFlowToleranceInterval) {
+        this(flowManagerHelper, wildcardTables, maxDpFlows, maxWildcardFlows,
+             idleFlowToleranceInterval, NanoClock$.MODULE$.DEFAULT());
+    }
+
+    public FlowManager(
+            FlowManagerHelper flowManagerHelper,
+            WildcardTablesProvider wildcardTables,
+            long maxDpFlows, long maxWildcardFlows, long idleFlowToleranceInterval,
+            NanoClock clock) {
         this.maxDpFlows = maxDpFlows;
         this.wildcardTables = wildcardTables;
         this.maxWildcardFlows = maxWildcardFlows;
         this.idleFlowToleranceInterval = idleFlowToleranceInterval;
         this.flowManagerHelper = flowManagerHelper;
+        this.clock = clock;
+        this.hardTimeOutQueue = new TimingWheel<>(currentTimeMillis());
+        this.idleTimeOutQueue = new TimingWheel<>(currentTimeMillis());
         if (dpFlowRemoveBatchSize > maxDpFlows)
             dpFlowRemoveBatchSize = 1;
     }
@@ -110,15 +134,45 @@ public class FlowManager {
     public LinkedHashMap<FlowMatch, ManagedWildcardFlow> dpFlowTable =
         new LinkedHashMap<>((int)maxDpFlows);
 
-    //TODO(ross) size for the priority queue?
-    final int priorityQueueSize = 10000;
-    /* Priority queue to evict flows based on hard time-out */
-    private PriorityQueue<ManagedWildcardFlow> hardTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowHardTimeComparator());
+    /* Timing wheel to evict flows based on hard time-out */
+    private TimingWheel<ManagedWildcardFlow> hardTimeOutQueue;
+
+    /* Timing wheel to evict flows based on idle time-out */
+    private TimingWheel<ManagedWildcardFlow> idleTimeOutQueue;
+
+    private long now;
+
+    /* Wildcard flows whose idle time-out passed, waiting for the next dump of
+     * the datapath flows, and those waiting for the dump in progress. */
+    private ArrayList<ManagedWildcardFlow> idleFlowsToSweep = new ArrayList<>();
+    private ArrayList<ManagedWildcardFlow> idleFlowsSwept = new ArrayList<>();
+    private boolean sweepInProgress = false;
+
+    /* The datapath flows installed when the dump in progress started, which
+     * it didn't report yet. Those left when the dump is over are gone from
+     * the datapath. */
+    private HashSet<FlowMatch> undumpedDpFlows = new HashSet<>();
+
+    /* The datapath doesn't know about the userspace only fields, so the flows
+     * it dumps carry a match that doesn't contain them. This maps those
+     * matches back to the ones in the dpFlowTable. */
+    private HashMap<FlowMatch, FlowMatch> userspaceMatches = new HashMap<>();
+
+    private final Callback1<ManagedWildcardFlow> hardTimeOutExpired =
+        new Callback1<ManagedWildcardFlow>() {
+            @Override
+            public void call(ManagedWildcardFlow flow) {
+                expireHardTimeOut(flow);
+            }
+        };
 
-    /* Priority queue to evict flows based on idle time-out */
-    private PriorityQueue<ManagedWildcardFlow> idleTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowIdleTimeComparator());
+    private final Callback1<ManagedWildcardFlow> idleTimeOutExpired =
+        new Callback1<ManagedWildcardFlow>() {
+            @Override
+            public void call(ManagedWildcardFlow flow) {
+                expireIdleTimeOut(flow);
+            }
+        };
 
     private int numWildcardFlows = 0;
 
@@ -186,16 +240,16 @@ public class FlowManager {
             // FlowManager's ref
             wildFlow.ref();
             numWildcardFlows++;
-            wildFlow.setCreationTimeMillis(System.currentTimeMillis());
-            wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+            wildFlow.setCreationTimeMillis(currentTimeMillis());
+            wildFlow.setLastUsedTimeMillis(currentTimeMillis());
             if (wildFlow.getHardExpirationMillis() > 0) {
                 // timeout queue ref
                 wildFlow.ref();
-                hardTimeOutQueue.add(wildFlow);
+                hardTimeOutQueue.add(wildFlow, hardExpirationDate(wildFlow));
             } else if (wildFlow.getIdleExpirationMillis() > 0){
                 // timeout queue ref
                 wildFlow.ref();
-                idleTimeOutQueue.add(wildFlow);
+                idleTimeOutQueue.add(wildFlow, idleExpirationDate(wildFlow));
             }
             return true;
         }
@@ -223,6 +277,10 @@ public class FlowManager {
 
         wildFlow.dpFlows().add(match);
         dpFlowTable.put(match, wildFlow);
+        if (sweepInProgress)
+            undumpedDpFlows.remove(match);
+        if (match.hasUserspaceOnlyFields())
+            userspaceMatches.put(kernelMatch(match), match);
 
         log.debug("Added flow with match {} that matches wildcard flow {}",
                   flow.getMatch(), wildFlow.getMatch());
@@ -231,7 +289,7 @@ public class FlowManager {
             // TODO(pino): check with Rossella. Newly created flows will
             // TODO: always have a null lastUsedTime.
             if (null == flow.getLastUsedTime())
-                wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+                wildFlow.setLastUsedTimeMillis(currentTimeMillis());
             else if (flow.getLastUsedTime() > wildFlow.getLastUsedTimeMillis())
                 wildFlow.setLastUsedTimeMillis(flow.getLastUsedTime());
         }
@@ -254,6 +312,7 @@ public class FlowManager {
             /* the flow may have been evicted already, leaving for lazy
              * clean up of the wildcard flow reference */
             if (dpFlowTable.remove(flowMatch) != null) {
+                forgetUserspaceMatch(flowMatch);
                 flowManagerHelper.removeFlow(flowMatch);
                 removed++;
             }
@@ -296,89 +355,190 @@ public class FlowManager {
             return false;
     }
 
+    private static long hardExpirationDate(ManagedWildcardFlow flow) {
+        return flow.getCreationTimeMillis() + flow.getHardExpirationMillis();
+    }
+
+    private static long idleExpirationDate(ManagedWildcardFlow flow) {
+        return flow.getLastUsedTimeMillis() + flow.getIdleExpirationMillis();
+    }
+
     private void checkHardTimeOutExpiration() {
-        ManagedWildcardFlow flowToExpire;
-        while ((flowToExpire = hardTimeOutQueue.peek()) != null) {
-            // since we remove the element lazily let's check if this el
-            // has already been removed
-            if(!isAlive(flowToExpire)) {
-                hardTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
-            }
-            long timeLived = System.currentTimeMillis() - flowToExpire.getCreationTimeMillis();
-            if (timeLived >= flowToExpire.getHardExpirationMillis()) {
-                hardTimeOutQueue.poll();
+        hardTimeOutQueue.advance(now, hardTimeOutExpired);
+    }
+
+    private void expireHardTimeOut(ManagedWildcardFlow flowToExpire) {
+        // since we remove the element lazily let's check if this el
+        // has already been removed
+        if (!isAlive(flowToExpire)) {
+            // timeout queue ref
+            flowToExpire.unref();
+            return;
+        }
+        long timeLived = now - flowToExpire.getCreationTimeMillis();
+        if (timeLived >= flowToExpire.getHardExpirationMillis()) {
+            flowManagerHelper.removeWildcardFlow(flowToExpire);
+            log.debug("Removing flow {} for hard expiration, expired {} ms ago",
+                      flowToExpire.getMatch(),
+                      timeLived - flowToExpire.getHardExpirationMillis());
+            // timeout queue ref
+            flowToExpire.unref();
+        } else {
+            // the deadline was beyond the wheel's horizon
+            hardTimeOutQueue.add(flowToExpire, hardExpirationDate(flowToExpire));
+        }
+    }
+
+    private boolean hasDpFlows(ManagedWildcardFlow wildFlow) {
+        Iterator<FlowMatch> it = wildFlow.dpFlows().iterator();
+        while (it.hasNext()) {
+            // clean lazily the deleted kernel flows
+            if (!dpFlowTable.containsKey(it.next()))
+                it.remove();
+        }
+        return !wildFlow.dpFlows().isEmpty();
+    }
+
+    private void checkIdleTimeExpiration() {
+        idleTimeOutQueue.advance(now, idleTimeOutExpired);
+
+        if (!idleFlowsToSweep.isEmpty() && !sweepInProgress) {
+            ArrayList<ManagedWildcardFlow> swept = idleFlowsSwept;
+            idleFlowsSwept = idleFlowsToSweep;
+            idleFlowsToSweep = swept;
+            sweepInProgress = true;
+            undumpedDpFlows.addAll(dpFlowTable.keySet());
+            log.debug("Dumping the datapath flows to check {} idle flows",
+                      idleFlowsSwept.size());
+            flowManagerHelper.dumpFlows();
+        }
+    }
+
+    private void expireIdleTimeOut(ManagedWildcardFlow flowToExpire) {
+        // since we remove the element lazily let's check if this element
+        // has already been removed
+        if (!isAlive(flowToExpire)) {
+            // timeout queue ref
+            flowToExpire.unref();
+            return;
+        }
+        long expirationDate = idleExpirationDate(flowToExpire);
+        // if the flow expired we don't delete it immediately, first we wait
+        // for the kernel to give us the updated lastUsedTime
+        if (now >= expirationDate) {
+            if (hasDpFlows(flowToExpire)) {
+                // the timeout queue ref is kept while the flow waits
+                idleFlowsToSweep.add(flowToExpire);
+            } else {
                 flowManagerHelper.removeWildcardFlow(flowToExpire);
-                log.debug("Removing flow {} for hard expiration, expired {} ms ago",
-                          flowToExpire.getMatch(),
-                          timeLived - flowToExpire.getHardExpirationMillis());
                 // timeout queue ref
                 flowToExpire.unref();
-            } else {
-                return;
             }
+        } else {
+            // the flow was used since it was scheduled
+            idleTimeOutQueue.add(flowToExpire, expirationDate);
         }
     }
 
-    private void getKernelFlowsLastUsedTime(ManagedWildcardFlow flowToExpire) {
-        // check from the kernel the last time the flows of this wildcard flows
-        // were used. This is totally asynchronous, a callback will update
-        // the flows
-        Set<FlowMatch> flowMatches = flowToExpire.dpFlows();
-        UpdateLastUsedTimeCallback callback =
-            new UpdateLastUsedTimeCallback(flowToExpire, flowMatches.size());
-        boolean dead = true;
-        for (FlowMatch match: flowMatches) {
-            if (dpFlowTable.containsKey(match)) {
-                // getFlow callback ref
-                flowToExpire.ref();
-                flowManagerHelper.getFlow(match, callback);
-                flowRequestsInFlight++;
-                dead = false;
-            } else {
-                // clean lazily the deleted kernel flows
-                flowMatches.remove(match);
-                // adjust the updates to wait
-                callback.nMissingFlowUpdates--;
-            }
+    /**
+     * Refreshes the lastUsedTime of the wildcard flow a datapath flow
+     * belongs to with the one reported by the datapath.
+     *
+     * @return the match of the datapath flow as it is known to the
+     *         FlowManager, or null if the datapath flow is unknown.
+     */
+    public FlowMatch flowDumped(Flow flowGotFromKernel) {
+        FlowMatch match = flowGotFromKernel.getMatch();
+        FlowMatch userspaceMatch = userspaceMatches.get(match);
+        if (userspaceMatch != null)
+            match = userspaceMatch;
+        ManagedWildcardFlow wildFlow = dpFlowTable.get(match);
+        if (wildFlow == null)
+            return null;
+        undumpedDpFlows.remove(match);
+
+        Long lastUsedTime = flowGotFromKernel.getLastUsedTime();
+        if (lastUsedTime != null &&
+                lastUsedTime > wildFlow.getLastUsedTimeMillis()) {
+            wildFlow.setLastUsedTimeMillis(lastUsedTime);
+            log.trace("update lastUsedTime {}", lastUsedTime);
         }
-
-        if (dead)
-            flowManagerHelper.removeWildcardFlow(flowToExpire);
+        return match;
     }
 
-    private void checkIdleTimeExpiration() {
-        while (idleTimeOutQueue.peek() != null) {
-            ManagedWildcardFlow flowToExpire = idleTimeOutQueue.peek();
-            //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
-            // since we remove the element lazily let's check if this element
-            // has already been removed
-            if (!isAlive(flowToExpire)) {
-                idleTimeOutQueue.poll();
+    /**
+     * Expires the idle wildcard flows that were waiting for a dump of the
+     * datapath flows, unless the dump showed they were used in the meantime.
+     * Must be called when the dump is over, also when it failed.
+     *
+     * @param dumpedAll whether the dump reported all the datapath flows, in
+     *                  which case the flows it missed are gone from the
+     *                  datapath and are forgotten.
+     */
+    public void dumpCompleted(boolean dumpedAll) {
+        sweepInProgress = false;
+        if (dumpedAll)
+            forgetUndumpedDpFlows();
+        undumpedDpFlows.clear();
+        long now = currentTimeMillis();
+        for (int i = 0; i < idleFlowsSwept.size(); ++i) {
+            ManagedWildcardFlow wcFlow = idleFlowsSwept.get(i);
+            if (!isAlive(wcFlow)) {
                 // timeout queue ref
-                flowToExpire.unref();
+                wcFlow.unref();
                 continue;
             }
-            long expirationDate = flowToExpire.getLastUsedTimeMillis() +
-                flowToExpire.getIdleExpirationMillis();
-            // if the flow expired we don't delete it immediately, first we query
-            // the kernel to get the updated lastUsedTime
-            if (System.currentTimeMillis() >= expirationDate) {
-                // remove it from the queue so we won't query it again
-                idleTimeOutQueue.poll();
-                getKernelFlowsLastUsedTime(flowToExpire);
+            long expirationDate = idleExpirationDate(wcFlow);
+            if (expirationDate - now > idleFlowToleranceInterval) {
+                // add it back to the queue, with the timeout queue ref
+                idleTimeOutQueue.add(wcFlow, expirationDate);
+            } else {
+                // we can expire it
+                flowManagerHelper.removeWildcardFlow(wcFlow);
+                log.debug(
+                    "Removing flow {} for idle expiration, expired {} ms ago",
+                    wcFlow.getMatch(), now - expirationDate);
                 // timeout queue ref
-                flowToExpire.unref();
-            }else
-                break;
+                wcFlow.unref();
+            }
+        }
+        idleFlowsSwept.clear();
+    }
+
+    /* Drops the datapath flows missing from a dump. They are removed through
+     * the FlowManagerHelper all the same, which completes the books kept for
+     * them, and deletes them should they still be in the datapath. */
+    private void forgetUndumpedDpFlows() {
+        for (FlowMatch match : undumpedDpFlows) {
+            ManagedWildcardFlow wildFlow = dpFlowTable.remove(match);
+            if (wildFlow != null) {
+                log.debug("Datapath flow {} is missing from the dump", match);
+                wildFlow.dpFlows().remove(match);
+                forgetUserspaceMatch(match);
+                flowManagerHelper.removeFlow(match);
+            }
         }
+    }
+
+    private void forgetUserspaceMatch(FlowMatch match) {
+        if (match.hasUserspaceOnlyFields())
+            userspaceMatches.remove(kernelMatch(match));
+    }
 
-        if (flowRequestsInFlight > 0) {
-            log.debug("Number of getFlow requests in flight {}",
-                      flowRequestsInFlight);
+    /* Strips the userspace only fields from a match, leaving the match of the
+     * flow as the datapath knows it. */
+    private static FlowMatch kernelMatch(FlowMatch match) {
+        List<FlowKey> keys = match.getKeys();
+        FlowMatch kernelMatch = new FlowMatch();
+        for (int i = 0; i < keys.size(); ++i) {
+            FlowKey key = keys.get(i);
+            if (key instanceof FlowKeyICMP) {
+                FlowKeyICMP icmp = (FlowKeyICMP) key;
+                key = FlowKeys.icmp(icmp.icmp_type, icmp.icmp_code);
+            }
+            kernelMatch.addKey(key);
         }
+        return kernelMatch;
     }
 
     private void manageDPFlowTableSpace() {
@@ -397,6 +557,7 @@ public class FlowManager {
             flowManagerHelper.removeFlow(match);
             wflow.dpFlows().remove(match);
             it.remove();
+            forgetUserspaceMatch(match);
         }
     }
 
@@ -404,7 +565,14 @@ public class FlowManager {
         return (getNumDpFlows() - (maxDpFlows - dpFlowRemoveBatchSize));
     }
 
+    /* Flow times are taken from the clock the flow manager was given, in
+     * milliseconds, so that tests can drive the expiration of flows. */
+    private long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.tick());
+    }
+
     public void checkFlowsExpiration() {
+        now = currentTimeMillis();
         checkHardTimeOutExpiration();
         //updateWildcardLastUsedTime();
         checkIdleTimeExpiration();
@@ -417,43 +585,6 @@ public class FlowManager {
         return idleTimeOutQueue.peek();
     }
 
-    public void flowMissing(FlowMatch flowMatch) {
-        ManagedWildcardFlow wildcardFlow = dpFlowTable.remove(flowMatch);
-        if (wildcardFlow != null) {
-            wildcardFlow.dpFlows().remove(flowMatch);
-            log.warn("DP flow was lost, forgetting: {}", flowMatch);
-        }
-    }
-
-    private abstract class WildcardFlowComparator implements Comparator<ManagedWildcardFlow> {
-
-        @Override
-        public int compare(ManagedWildcardFlow wildcardFlow,
-                           ManagedWildcardFlow wildcardFlow1) {
-            long now = System.currentTimeMillis();
-            long expirationTime1 = getExpirationTime(wildcardFlow, now);
-            long expirationTime2 = getExpirationTime(wildcardFlow1, now);
-
-            return (int) (expirationTime1-expirationTime2);
-        }
-
-        protected abstract long getExpirationTime(ManagedWildcardFlow flow, long now);
-    }
-
-    private class WildcardFlowHardTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getCreationTimeMillis() + flow.getHardExpirationMillis();
-        }
-    }
-
-    private class WildcardFlowIdleTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getLastUsedTimeMillis() + flow.getIdleExpirationMillis();
-        }
-    }
-
     Map<Long, Map<FlowMatch, ManagedWildcardFlow>> getWildcardTables() {
         return wildcardTables.tables();
     }
@@ -463,67 +594,4 @@ public class FlowManager {
                 wildcardTables.tables().get(wMatch.getUsedFields());
         return (wcMap != null) ? wcMap.get(wMatch) : null;
     }
-
-    /**
-     * This callback is passed to flowsGet(). When flowsGet() returns with the
-     * updated lastUsedTime we take a decision regarding the expiration of the
-     * wcflow
-     */
-    class UpdateLastUsedTimeCallback implements Callback1<Flow> {
-
-        ManagedWildcardFlow wcFlow;
-        protected int nMissingFlowUpdates = 0;
-
-        UpdateLastUsedTimeCallback(ManagedWildcardFlow wcFlow, int nFlowsToGet) {
-            this.wcFlow = wcFlow;
-            nMissingFlowUpdates = nFlowsToGet;
-        }
-
-        @Override
-        public void call(Flow flowGotFromKernel) {
-            // the wildcard flow was deleted
-
-            if (!isAlive(wcFlow)) {
-                // getFlow callback ref
-                wcFlow.unref();
-                return;
-            }
-
-            flowRequestsInFlight--;
-            nMissingFlowUpdates--;
-
-            if (flowGotFromKernel != null && flowGotFromKernel.getLastUsedTime() != null) {
-                // update the lastUsedTime
-                if (flowGotFromKernel.getLastUsedTime() > wcFlow.getLastUsedTimeMillis()) {
-                    wcFlow.setLastUsedTimeMillis(flowGotFromKernel.getLastUsedTime());
-                    log.trace("update lastUsedTime {}", flowGotFromKernel.getLastUsedTime());
-                }
-            }
-
-            // is this the last kernel flow update that we are waiting?
-            if (nMissingFlowUpdates == 0) {
-                long expirationDate = wcFlow.getLastUsedTimeMillis() +
-                    wcFlow.getIdleExpirationMillis();
-                if (expirationDate - System.currentTimeMillis()
-                    > idleFlowToleranceInterval) {
-                    // add it back to the queue
-                    // timeout queue ref
-                    wcFlow.ref();
-                    idleTimeOutQueue.add(wcFlow);
-
-                } else {
-                    // we can expire it
-                    flowManagerHelper.removeWildcardFlow(wcFlow);
-                    log.debug(
-                        "Removing flow {} for idle expiration, expired {} ms ago",
-                        wcFlow.getMatch(),
-                        System.currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
-                            + wcFlow.getIdleExpirationMillis()));
-                }
-            }
-
-            // getFlow callback ref
-            wcFlow.unref();
-        }
-    }
 }
@@ -16,13 +16,17 @@
 
 package org.midonet.sdn.flows;
 
-import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
-import org.midonet.util.functors.Callback1;
 
 public interface FlowManagerHelper {
 
-    public void getFlow(FlowMatch flowMatch, Callback1<Flow> getFlowCb);
+    /**
+     * Dumps the flows installed in the datapath, handing each of them to
+     * FlowManager.flowDumped() and then calling FlowManager.dumpCompleted(),
+     * also when the dump fails, telling whether all the flows were dumped. Both must be called from the thread that
+     * owns the FlowManager.
+     */
+    public void dumpFlows();
 
     public void removeFlow(FlowMatch flowMatch);
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag;
+import org.midonet.util.collection.IntHashSet;
+
+// not thread-safe
+/**
+ * Indexes wildcard flows by the tags they were simulated with, so that they
+ * can be invalidated when a tag is.
+ *
+ * Tags are interned to dense int ids while some indexed flow carries them,
+ * and so are the indexed flows, to the slot they occupy in the index. Each
+ * tag id keeps the set of slots of its flows in an IntHashSet, and each slot
+ * keeps the ids of the tags of its flow. Indexing a flow thus costs a lookup
+ * of the id of each of its tags, with no allocation once the index reached
+ * its working size, and the flows of a tag are read out of a flat int array.
+ *
+ * Ids and slots are recycled when no flow uses them any more, so the index
+ * doesn't retain the tags of flows that are gone.
+ */
+public final class FlowTagIndexer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final HashMap<FlowTag, Integer> tagIds = new HashMap<>();
+    private FlowTag[] tags = new FlowTag[INITIAL_CAPACITY];
+    private IntHashSet[] flowsOfTag = new IntHashSet[INITIAL_CAPACITY];
+    private int[] freeTagIds = new int[INITIAL_CAPACITY];
+    private int numFreeTagIds = 0;
+    private int nextTagId = 0;
+
+    private ManagedWildcardFlow[] flows =
+        new ManagedWildcardFlow[INITIAL_CAPACITY];
+    private int[][] tagsOfFlow = new int[INITIAL_CAPACITY][];
+    private int[] numTagsOfFlow = new int[INITIAL_CAPACITY];
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int numFreeSlots = 0;
+    private int nextSlot = 0;
+
+    private int[] scratch = new int[INITIAL_CAPACITY];
+
+    public int numTags() {
+        return tagIds.size();
+    }
+
+    /**
+     * Indexes a flow by the tags it carries. Flows that are already indexed
+     * are left untouched.
+     */
+    public void index(ManagedWildcardFlow flow) {
+        FlowTag[] flowTags = flow.tags();
+        if (flow.tagIndexSlot() >= 0 || flowTags == null || flowTags.length == 0)
+            return;
+
+        int slot = allocateSlot();
+        flow.tagIndexSlot_$eq(slot);
+        flows[slot] = flow;
+        int[] ids = tagsOfFlow[slot];
+        if (ids == null || ids.length < flowTags.length)
+            ids = tagsOfFlow[slot] = new int[Math.max(flowTags.length, 4)];
+
+        int n = 0;
+        for (FlowTag tag : flowTags) {
+            int id = intern(tag);
+            if (flowsOfTag[id].add(slot))
+                ids[n++] = id;
+        }
+        numTagsOfFlow[slot] = n;
+    }
+
+    /**
+     * Removes a flow from the index, releasing the ids of the tags that no
+     * other flow carries.
+     */
+    public void unindex(ManagedWildcardFlow flow) {
+        int slot = flow.tagIndexSlot();
+        if (slot < 0)
+            return;
+
+        int[] ids = tagsOfFlow[slot];
+        for (int i = 0; i < numTagsOfFlow[slot]; ++i) {
+            IntHashSet tagFlows = flowsOfTag[ids[i]];
+            tagFlows.remove(slot);
+            if (tagFlows.isEmpty())
+                releaseTagId(ids[i]);
+        }
+        numTagsOfFlow[slot] = 0;
+        flows[slot] = null;
+        flow.tagIndexSlot_$eq(-1);
+        freeSlots = push(freeSlots, numFreeSlots++, slot);
+    }
+
+    /**
+     * Adds the flows tagged with the given tag to the list, which is
+     * returned. The index is not modified.
+     */
+    public <T extends List<ManagedWildcardFlow>> T flowsOf(FlowTag tag,
+                                                          T dst) {
+        Integer id = tagIds.get(tag);
+        if (id != null) {
+            IntHashSet tagFlows = flowsOfTag[id];
+            int n = tagFlows.size();
+            scratch = tagFlows.toArray(scratch);
+            for (int i = 0; i < n; ++i)
+                dst.add(flows[scratch[i]]);
+        }
+        return dst;
+    }
+
+    public int numFlowsOf(FlowTag tag) {
+        Integer id = tagIds.get(tag);
+        return (id == null) ? 0 : flowsOfTag[id].size();
+    }
+
+    public boolean isTagged(ManagedWildcardFlow flow, FlowTag tag) {
+        Integer id = tagIds.get(tag);
+        int slot = flow.tagIndexSlot();
+        return id != null && slot >= 0 && flows[slot] == flow
+               && flowsOfTag[id].contains(slot);
+    }
+
+    private int intern(FlowTag tag) {
+        Integer id = tagIds.get(tag);
+        if (id != null)
+            return id;
+
+        int newId = (numFreeTagIds > 0) ? freeTagIds[--numFreeTagIds]
+                                        : nextTagId++;
+        if (newId == tags.length) {
+            tags = Arrays.copyOf(tags, newId * 2);
+            flowsOfTag = Arrays.copyOf(flowsOfTag, newId * 2);
+        }
+        if (flowsOfTag[newId] == null)
+            flowsOfTag[newId] = new IntHashSet();
+        tags[newId] = tag;
+        tagIds.put(tag, newId);
+        return newId;
+    }
+
+    private void releaseTagId(int id) {
+        tagIds.remove(tags[id]);
+        tags[id] = null;
+        freeTagIds = push(freeTagIds, numFreeTagIds++, id);
+    }
+
+    private int allocateSlot() {
+        if (numFreeSlots > 0)
+            return freeSlots[--numFreeSlots];
+
+        int slot = nextSlot++;
+        if (slot == flows.length) {
+            flows = Arrays.copyOf(flows, slot * 2);
+            tagsOfFlow = Arrays.copyOf(tagsOfFlow, slot * 2);
+            numTagsOfFlow = Arrays.copyOf(numTagsOfFlow, slot * 2);
+        }
+        return slot;
+    }
+
+    private static int[] push(int[] stack, int size, int value) {
+        if (size == stack.length)
+            stack = Arrays.copyOf(stack, size * 2);
+        stack[size] = value;
+        return stack;
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import sun.misc.Unsafe;
+
+import org.midonet.Util;
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.NanoClock;
+
+/**
+ * A FlowStateTable that keeps its entries off the Java heap, as fixed width
+ * binary records in an open addressing hash table with linear probing.
+ *
+ * Each record holds the reference count and expiration time of the entry,
+ * and the idle expiration of the key it was last referenced with, which
+ * caps the idle expiration of the key it is finally released with. These are
+ * followed by its key and value, which a RecordCodec writes to and reads from
+ * native memory. There are no Java objects per entry: keys and values are
+ * only materialized when they are read back, as views of the records, for
+ * get(), fold() and expiration. Entries whose reference count drops to zero
+ * are queued for expiration in primitive arrays, with a queue for each idle
+ * expiration so that each queue is ordered by expiration time.
+ *
+ * THREADING SEMANTICS: the table has a single writer, the thread that owns
+ * it, which is the only one that may call the FlowStateTable methods. Other
+ * threads may only call sharedGet(). Readers validate each record they read
+ * against its version, which the writer bumps before and after modifying it.
+ * Removed records are tombstoned rather than moved, so that readers never
+ * miss a record that is being probed for. When the table is rehashed, the
+ * memory of the old table is only released once the readers that may still
+ * be probing it are done. Readers register in one of two counters, chosen by
+ * the parity of an epoch. The writer moves to the next epoch when the readers
+ * of the previous one have left, and frees the tables retired two epochs ago.
+ */
+public final class OffHeapFlowStateTable<K extends IdleExpiration, V>
+        implements FlowStateTable<K, V> {
+
+    /**
+     * Translates keys and values to and from the fixed width records of an
+     * OffHeapFlowStateTable.
+     */
+    public interface RecordCodec<K, V> {
+        /** The number of bytes taken by a key. */
+        int keyWidth();
+
+        /** The number of bytes taken by a value. */
+        int valueWidth();
+
+        int hash(K key);
+
+        void writeKey(K key, long address);
+
+        boolean keyEquals(K key, long address);
+
+        K readKey(long address);
+
+        void writeValue(V value, long address);
+
+        V readValue(long address);
+    }
+
+    private static final Unsafe UNSAFE = Util.getUnsafe();
+
+    private static final int FREE = 0;
+    private static final int USED = 1;
+    private static final int DELETED = 2;
+
+    private static final int STATE = 0;
+    private static final int VERSION = 4;
+    private static final int HASH = 8;
+    private static final int REF_COUNT = 12;
+    private static final int EXPIRATION = 16;
+    private static final int IDLE = 24;
+    private static final int KEY = 32;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    private static final class Region {
+        final long address;
+        final int capacity;
+        final int mask;
+
+        Region(int capacity, int recordSize) {
+            long bytes = (long) capacity * recordSize;
+            this.address = UNSAFE.allocateMemory(bytes);
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            UNSAFE.setMemory(address, bytes, (byte) 0);
+        }
+    }
+
+    /* Records waiting for expiration after the same idle time, in the order
+     * they were unref'ed */
+    private static final class ExpiringQueue {
+        final long idle;
+        int[] slots = new int[MIN_CAPACITY];
+        long[] times = new long[MIN_CAPACITY];
+        int head = 0;
+        int size = 0;
+
+        ExpiringQueue(long idle) {
+            this.idle = idle;
+        }
+
+        void offer(int slot, long expiration) {
+            if (size == slots.length) {
+                int[] newSlots = new int[size * 2];
+                long[] newTimes = new long[size * 2];
+                for (int i = 0; i < size; ++i) {
+                    int j = (head + i) % size;
+                    newSlots[i] = slots[j];
+                    newTimes[i] = times[j];
+                }
+                slots = newSlots;
+                times = newTimes;
+                head = 0;
+            }
+            int tail = (head + size) % slots.length;
+            slots[tail] = slot;
+            times[tail] = expiration;
+            size++;
+        }
+
+        int poll() {
+            int slot = slots[head];
+            head = (head + 1) % slots.length;
+            size--;
+            return slot;
+        }
+    }
+
+    private final RecordCodec<K, V> codec;
+    private final NanoClock clock;
+    private final int recordSize;
+    private final int valueOffset;
+
+    private volatile Region region;
+    private volatile int epoch = 0;
+    private final AtomicIntegerArray readers = new AtomicIntegerArray(2);
+    /* Tables replaced during the current epoch, and during the previous one */
+    private ArrayList<Region> retiring = new ArrayList<>();
+    private ArrayList<Region> retired = new ArrayList<>();
+    private int size = 0;
+    private int deleted = 0;
+
+    private final ArrayList<ExpiringQueue> expiring = new ArrayList<>();
+
+    public OffHeapFlowStateTable(RecordCodec<K, V> codec, int initialCapacity,
+                                 NanoClock clock) {
+        this.codec = codec;
+        this.clock = clock;
+        this.valueOffset = KEY + align(codec.keyWidth());
+        this.recordSize = valueOffset + align(codec.valueWidth());
+        this.region = new Region(capacityFor(initialCapacity), recordSize);
+    }
+
+    private static int align(int width) {
+        return (width + 7) & ~7;
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while ((long) capacity * MAX_LOAD_PERCENT / 100 < entries)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private long record(Region r, int slot) {
+        return r.address + (long) slot * recordSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The native memory taken by the table, in bytes. */
+    public long memoryUsage() {
+        long bytes = (long) region.capacity * recordSize;
+        for (Region r : retiring)
+            bytes += (long) r.capacity * recordSize;
+        for (Region r : retired)
+            bytes += (long) r.capacity * recordSize;
+        return bytes;
+    }
+
+    /**
+     * Releases the native memory of the table, which can't be used after.
+     */
+    public void close() {
+        free(retiring);
+        free(retired);
+        UNSAFE.freeMemory(region.address);
+        region = null;
+    }
+
+    /* Looks up the slot of a key. Only for the writer. */
+    private int find(Region r, K key, int hash) {
+        int slot = spread(hash) & r.mask;
+        for (int i = 0; i < r.capacity; ++i) {
+            long rec = record(r, slot);
+            int state = UNSAFE.getInt(rec + STATE);
+            if (state == FREE)
+                return -1;
+            if (state == USED && UNSAFE.getInt(rec + HASH) == hash &&
+                codec.keyEquals(key, rec + KEY))
+                return slot;
+            slot = (slot + 1) & r.mask;
+        }
+        return -1;
+    }
+
+    private void beginWrite(long rec) {
+        UNSAFE.putIntVolatile(null, rec + VERSION,
+                              UNSAFE.getInt(rec + VERSION) + 1);
+    }
+
+    private void endWrite(long rec) {
+        UNSAFE.putIntVolatile(null, rec + VERSION,
+                              UNSAFE.getInt(rec + VERSION) + 1);
+    }
+
+    @Override
+    public V get(K key) {
+        Region r = region;
+        int slot = find(r, key, codec.hash(key));
+        return (slot < 0) ? null : codec.readValue(record(r, slot) + valueOffset);
+    }
+
+    /**
+     * Gets the current value for a key. Unlike the other methods, it may be
+     * called by threads other than the owner of the table.
+     */
+    public V sharedGet(K key) {
+        int e;
+        do {
+            e = epoch;
+            readers.incrementAndGet(e & 1);
+            if (e == epoch)
+                break;
+            readers.decrementAndGet(e & 1);
+        } while (true);
+        try {
+            return sharedGet(region, key);
+        } finally {
+            readers.decrementAndGet(e & 1);
+        }
+    }
+
+    private V sharedGet(Region r, K key) {
+        int hash = codec.hash(key);
+        int slot = spread(hash) & r.mask;
+        for (int i = 0; i < r.capacity; ++i) {
+            long rec = record(r, slot);
+            int version;
+            int state;
+            V value;
+            do {
+                version = UNSAFE.getIntVolatile(null, rec + VERSION);
+                state = UNSAFE.getInt(rec + STATE);
+                value = null;
+                if (state == USED && UNSAFE.getInt(rec + HASH) == hash &&
+                    codec.keyEquals(key, rec + KEY)) {
+                    value = codec.readValue(rec + valueOffset);
+                }
+                UNSAFE.loadFence();
+            } while ((version & 1) != 0 ||
+                     version != UNSAFE.getIntVolatile(null, rec + VERSION));
+
+            if (state == FREE)
+                return null;
+            if (value != null)
+                return value;
+            slot = (slot + 1) & r.mask;
+        }
+        return null;
+    }
+
+    @Override
+    public V putAndRef(K key, V value) {
+        int hash = codec.hash(key);
+        Region r = region;
+        int slot = find(r, key, hash);
+        if (slot >= 0) {
+            long rec = record(r, slot);
+            V oldValue = codec.readValue(rec + valueOffset);
+            beginWrite(rec);
+            codec.writeValue(value, rec + valueOffset);
+            UNSAFE.putInt(rec + REF_COUNT, UNSAFE.getInt(rec + REF_COUNT) + 1);
+            UNSAFE.putLong(rec + IDLE, key.expiresAfter().toMillis());
+            endWrite(rec);
+            return oldValue;
+        }
+
+        if ((size + deleted + 1) * 100L > (long) r.capacity * MAX_LOAD_PERCENT)
+            r = rehash();
+
+        slot = spread(hash) & r.mask;
+        long rec;
+        while (UNSAFE.getInt((rec = record(r, slot)) + STATE) == USED)
+            slot = (slot + 1) & r.mask;
+        if (UNSAFE.getInt(rec + STATE) == DELETED)
+            deleted--;
+
+        beginWrite(rec);
+        UNSAFE.putInt(rec + HASH, hash);
+        UNSAFE.putInt(rec + REF_COUNT, 1);
+        UNSAFE.putLong(rec + EXPIRATION, Long.MAX_VALUE);
+        UNSAFE.putLong(rec + IDLE, key.expiresAfter().toMillis());
+        codec.writeKey(key, rec + KEY);
+        codec.writeValue(value, rec + valueOffset);
+        UNSAFE.putInt(rec + STATE, USED);
+        endWrite(rec);
+        size++;
+        return null;
+    }
+
+    @Override
+    public void touch(K key, V value) {
+        putAndRef(key, value);
+        unref(key);
+    }
+
+    @Override
+    public V ref(K key) {
+        Region r = region;
+        int slot = find(r, key, codec.hash(key));
+        if (slot < 0)
+            return null;
+        long rec = record(r, slot);
+        UNSAFE.putInt(rec + REF_COUNT, UNSAFE.getInt(rec + REF_COUNT) + 1);
+        UNSAFE.putLong(rec + IDLE, key.expiresAfter().toMillis());
+        return codec.readValue(rec + valueOffset);
+    }
+
+    @Override
+    public void unref(K key) {
+        Region r = region;
+        int slot = find(r, key, codec.hash(key));
+        if (slot < 0)
+            return;
+        long rec = record(r, slot);
+        int count = UNSAFE.getInt(rec + REF_COUNT);
+        if (count <= 0)
+            return;
+        UNSAFE.putInt(rec + REF_COUNT, --count);
+        if (count == 0) {
+            long idle = Math.min(key.expiresAfter().toMillis(),
+                                 UNSAFE.getLong(rec + IDLE));
+            long expiration = nowMillis() + idle;
+            UNSAFE.putLong(rec + EXPIRATION, expiration);
+            expiringQueue(idle).offer(slot, expiration);
+        }
+    }
+
+    @Override
+    public int getRefCount(K key) {
+        Region r = region;
+        int slot = find(r, key, codec.hash(key));
+        return (slot < 0) ? 0 : UNSAFE.getInt(record(r, slot) + REF_COUNT);
+    }
+
+    @Override
+    public <U> U fold(U seed, Reducer<K, V, U> func) {
+        Region r = region;
+        for (int slot = 0; slot < r.capacity; ++slot) {
+            long rec = record(r, slot);
+            if (UNSAFE.getInt(rec + STATE) == USED) {
+                seed = func.apply(seed, codec.readKey(rec + KEY),
+                                  codec.readValue(rec + valueOffset));
+            }
+        }
+        return seed;
+    }
+
+    @Override
+    public void expireIdleEntries() {
+        expireIdleEntries(null, null);
+    }
+
+    @Override
+    public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+        long now = nowMillis();
+        for (int i = 0; i < expiring.size(); ++i)
+            seed = expireIdleEntries(expiring.get(i), now, seed, func);
+        reclaim();
+        return seed;
+    }
+
+    private <U> U expireIdleEntries(ExpiringQueue queue, long now, U seed,
+                                    Reducer<K, V, U> func) {
+        Region r = region;
+        while (queue.size > 0 && queue.times[queue.head] <= now) {
+            int slot = queue.poll();
+            if (slot < 0)
+                continue;
+
+            long rec = record(r, slot);
+            if (UNSAFE.getInt(rec + STATE) == USED &&
+                UNSAFE.getInt(rec + REF_COUNT) == 0 &&
+                UNSAFE.getLong(rec + EXPIRATION) <= now) {
+                if (func != null) {
+                    seed = func.apply(seed, codec.readKey(rec + KEY),
+                                      codec.readValue(rec + valueOffset));
+                }
+                beginWrite(rec);
+                UNSAFE.putInt(rec + STATE, DELETED);
+                endWrite(rec);
+                size--;
+                deleted++;
+            }
+        }
+        return seed;
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.tick());
+    }
+
+    private ExpiringQueue expiringQueue(long idle) {
+        for (int i = 0; i < expiring.size(); ++i) {
+            if (expiring.get(i).idle == idle)
+                return expiring.get(i);
+        }
+        ExpiringQueue queue = new ExpiringQueue(idle);
+        expiring.add(queue);
+        return queue;
+    }
+
+    /* Moves the records to a new table, large enough for twice the entries,
+     * dropping the tombstones, and remaps the slots waiting for expiration. */
+    private Region rehash() {
+        Region old = region;
+        Region r = new Region(capacityFor(Math.max(size * 2, MIN_CAPACITY)),
+                              recordSize);
+        int[] moved = new int[old.capacity];
+        Arrays.fill(moved, -1);
+        for (int slot = 0; slot < old.capacity; ++slot) {
+            long from = record(old, slot);
+            if (UNSAFE.getInt(from + STATE) != USED)
+                continue;
+            int to = spread(UNSAFE.getInt(from + HASH)) & r.mask;
+            while (UNSAFE.getInt(record(r, to) + STATE) == USED)
+                to = (to + 1) & r.mask;
+            UNSAFE.copyMemory(from, record(r, to), recordSize);
+            UNSAFE.putInt(record(r, to) + VERSION, 0);
+            moved[slot] = to;
+        }
+        for (ExpiringQueue queue : expiring) {
+            for (int i = 0; i < queue.size; ++i) {
+                int j = (queue.head + i) % queue.slots.length;
+                int slot = queue.slots[j];
+                // records that were expired since are left as dead entries
+                queue.slots[j] = (slot < 0) ? -1 : moved[slot];
+            }
+        }
+        deleted = 0;
+        retiring.add(old);
+        region = r;
+        reclaim();
+        return r;
+    }
+
+    /* Once no reader remains from the previous epoch, frees the tables
+     * retired before it began, and starts a new epoch if tables were retired
+     * during the current one. A reader that entered an epoch only sees the
+     * tables that weren't retired before it. */
+    private void reclaim() {
+        if (readers.get((epoch + 1) & 1) != 0)
+            return;
+        free(retired);
+        if (!retiring.isEmpty()) {
+            ArrayList<Region> empty = retired;
+            retired = retiring;
+            retiring = empty;
+            epoch++;
+        }
+    }
+
+    private static void free(ArrayList<Region> regions) {
+        for (Region r : regions)
+            UNSAFE.freeMemory(r.address);
+        regions.clear();
+    }
+}
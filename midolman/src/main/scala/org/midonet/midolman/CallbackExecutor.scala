@@ -51,9 +51,12 @@ sealed class CallbackExecutor(capacity: Int, alert: ActorRef)
             }
             i += 1
         }
-        alert ! CheckBackchannels
+        if (alert ne null)
+            alert ! CheckBackchannels
     }
 
+    def hasPendingCallbacks: Boolean = !queue.isEmpty
+
     def run(): Unit = {
         var cb: Callback0 = null
         while ({ cb = queue.poll(); cb } ne null) {
@@ -16,15 +16,18 @@
 
 package org.midonet.midolman
 
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.{HashMap => JHashMap, UUID}
 
 import scala.collection.mutable
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import akka.actor._
 
+import com.lmax.disruptor.{EventFactory, EventPoller, RingBuffer}
 import org.slf4j.MDC
 
 import org.jctools.queues.MpscArrayQueue
@@ -44,15 +47,32 @@ import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state._
 import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateStorage, NatLeaser}
 import org.midonet.odp.{FlowMatches, FlowMatch, Packet}
-import org.midonet.packets.Ethernet
+import org.midonet.packets.{Ethernet, MalformedPacketException}
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
-import org.midonet.util.collection.Reducer
+import org.midonet.util.collection.{ArrayObjectPool, Reducer}
 import org.midonet.util.concurrent._
 
 object DeduplicationActor {
     case class HandlePackets(packet: Array[Packet])
     case class DiscardPacket(cookie: Int)
     case class RestartWorkflow(pktCtx: PacketContext)
+
+    val PACKET_CONTEXT_POOL_SIZE = 1024
+    val PACKET_BATCH_SIZE = 16
+    /* The number of flow state keys fetched from storage that are imported
+     * between two batches of packets */
+    val FLOW_STATE_IMPORT_SLICE = 1024
+
+    /* A slot of the ring through which the upcall threads hand packets over
+     * to a worker running on its own thread. */
+    sealed class PacketSlot(var packet: Packet)
+
+    object PacketSlotFactory extends EventFactory[PacketSlot] {
+        override def newInstance(): PacketSlot = new PacketSlot(null)
+    }
+
+    /* How a worker reading packets from a ring waits for them */
+    val WAIT_STRATEGIES = Set("park", "yield", "busy_spin")
 }
 
 class CookieGenerator(val start: Int, val increment: Int) {
@@ -75,7 +95,8 @@ class DeduplicationActor(
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val packetRing: RingBuffer[DeduplicationActor.PacketSlot] = null)
             extends Actor with ActorLogWithoutPath {
 
     import DatapathController.DatapathReady
@@ -96,8 +117,23 @@ class DeduplicationActor(
     private val waitingRoom = new WaitingRoom[PacketContext](
                                         (simulationExpireMillis millis).toNanos)
 
-    private val cbExecutor = new CallbackExecutor(2048, self)
-    private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
+    // Contexts are returned to the pool when their workflow completes or is
+    // dropped in this thread; the pool is allowed to run dry, in which case
+    // we fall back to allocating new contexts.
+    private val contextPool = new ArrayObjectPool[PacketContext](
+        PACKET_CONTEXT_POOL_SIZE, _ => new PacketContext(0, null, new FlowMatch()))
+
+    // When packets are read from a ring, the worker thread polls the
+    // backchannel and there's no need to alert the actor.
+    private val backchannelAlert = if (packetRing eq null) self else null
+    private val cbExecutor = new CallbackExecutor(2048, backchannelAlert)
+    private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512),
+                                                     backchannelAlert)
+
+    // Messages sent to this actor, relayed to the worker thread that reads
+    // from the ring.
+    private val controlMessages = new ConcurrentLinkedQueue[Any]()
+    private var ringProcessor: BackchannelEventProcessor[PacketSlot] = _
 
     protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
     protected val natTx = new FlowStateTransaction(natStateTable)
@@ -106,6 +142,7 @@ class DeduplicationActor(
     protected var workflow: PacketHandler = _
 
     private var pendingFlowStateBatches = List[FlowStateBatch]()
+    private var importScheduled = false
 
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
@@ -122,7 +159,26 @@ class DeduplicationActor(
             }
         }
 
-    override def receive = {
+    override def preStart(): Unit = {
+        super.preStart()
+        if (packetRing ne null)
+            startRingProcessor()
+    }
+
+    override def postStop(): Unit = {
+        if (ringProcessor ne null)
+            ringProcessor.halt()
+        super.postStop()
+    }
+
+    override def receive =
+        if (packetRing eq null) {
+            handleMessage
+        } else {
+            case m => controlMessages.offer(m)
+        }
+
+    private val handleMessage: Receive = {
 
         case DatapathReady(dp, state) if null == dpState =>
             dpState = state
@@ -131,35 +187,25 @@ class DeduplicationActor(
                                                  storage,
                                                  dpState,
                                                  FlowController ! _,
-                                                 config.getControlPacketsTos.toByte)
+                                                 config.getControlPacketsTos.toByte,
+                                                 metrics)
             pendingFlowStateBatches foreach (self ! _)
             workflow = new PacketWorkflow(dpState, dp, clusterDataClient,
                                           dpChannel, replicator, config)
 
         case m: FlowStateBatch =>
-            if (replicator ne null)
-                replicator.importFromStorage(m)
-            else
+            if (replicator ne null) {
+                replicator.queueImport(m)
+                importState()
+            } else
                 pendingFlowStateBatches ::= m
 
         case HandlePackets(packets) =>
-
-            connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
-            natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
-            natLeaser.obliterateUnusedBlocks()
-
-            var i = 0
-            while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
-                i += 1
-            }
-
-            cbExecutor.run()
-            genPacketEmitter.process(runGeneratedPacket)
+            handlePackets(packets)
 
         case CheckBackchannels =>
-            cbExecutor.run()
-            genPacketEmitter.process(runGeneratedPacket)
+            importScheduled = false
+            processBackchannels()
 
         case RestartWorkflow(pktCtx) =>
             if (pktCtx.idle) {
@@ -168,10 +214,129 @@ class DeduplicationActor(
                 MDC.put("cookie", pktCtx.cookieStr)
                 runWorkflow(pktCtx)
                 MDC.remove("cookie")
+                pushState()
             }
             // Else the packet may have already been expired and dropped
     }
 
+    private def handlePackets(packets: Array[Packet]): Unit = {
+        connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
+        natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
+        natLeaser.obliterateUnusedBlocks()
+
+        var i = 0
+        while (i < packets.length && packets(i) != null) {
+            handlePacket(packets(i))
+            i += 1
+        }
+
+        processBackchannels()
+    }
+
+    private def processBackchannels(): Unit = {
+        cbExecutor.run()
+        genPacketEmitter.process(runGeneratedPacket)
+        pushState()
+        importState()
+    }
+
+    /* State fetched from storage is imported a slice at a time, between
+     * batches of packets. When packets are not read from a ring, the actor
+     * reminds itself to import the next slice after the packets that are
+     * already waiting in its mailbox. */
+    private def importState(): Unit =
+        if ((replicator ne null) && replicator.hasPendingImports) {
+            replicator.importSlice(FLOW_STATE_IMPORT_SLICE)
+            if (replicator.hasPendingImports && (packetRing eq null) &&
+                !importScheduled) {
+                importScheduled = true
+                self ! CheckBackchannels
+            }
+        }
+
+    /* The state of the packets simulated since the last push is replicated
+     * once, coalesced per peer. */
+    private def pushState(): Unit =
+        if (replicator ne null)
+            replicator.pushState(dpChannel)
+
+    private def processControlMessages(): Unit = {
+        var m: Any = null
+        while ({ m = controlMessages.poll(); m } != null) {
+            handleMessage.applyOrElse(m, (_: Any) => ())
+        }
+    }
+
+    /**
+     * Starts the thread that reads packets from the ring, processing them in
+     * batches. The same thread processes the messages relayed by the actor
+     * and the backchannel, so that the state of this worker remains confined
+     * to a single thread.
+     */
+    private def startRingProcessor(): Unit = {
+        val handler = new EventPoller.Handler[PacketSlot] {
+            private val batch = new Array[Packet](PACKET_BATCH_SIZE)
+            private var n = 0
+
+            override def onEvent(slot: PacketSlot, sequence: Long,
+                                 endOfBatch: Boolean): Boolean = {
+                batch(n) = slot.packet
+                slot.packet = null
+                n += 1
+                if (n == batch.length || endOfBatch) {
+                    try {
+                        processControlMessages()
+                        handlePackets(batch)
+                    } catch { case NonFatal(e) =>
+                        log.error("Failed to handle packets", e)
+                    } finally {
+                        while (n > 0) {
+                            n -= 1
+                            batch(n) = null
+                        }
+                    }
+                }
+                true
+            }
+        }
+
+        val backchannel = new Backchannel {
+            override def shouldProcess(): Boolean =
+                !controlMessages.isEmpty || cbExecutor.hasPendingCallbacks ||
+                genPacketEmitter.pendingPackets > 0 ||
+                ((replicator ne null) && replicator.hasPendingImports)
+
+            override def process(): Unit =
+                try {
+                    processControlMessages()
+                    processBackchannels()
+                } catch { case NonFatal(e) =>
+                    log.error("Failed to process the backchannel", e)
+                }
+        }
+
+        ringProcessor = config.getSimulationWaitStrategy match {
+            case "busy_spin" =>
+                new BackchannelEventProcessor(packetRing, handler, backchannel) {
+                    override def idle(retries: Int) = retries
+                }
+            case "yield" =>
+                new BackchannelEventProcessor(packetRing, handler, backchannel) {
+                    override def idle(retries: Int) = {
+                        Thread.`yield`()
+                        retries
+                    }
+                }
+            case "park" =>
+                new BackchannelEventProcessor(packetRing, handler, backchannel)
+        }
+        packetRing.addGatingSequences(ringProcessor.getSequence)
+
+        val t = new Thread(ringProcessor, s"packet-worker-${self.path.name}")
+        t.setDaemon(true)
+        t.start()
+    }
+
     // We return collection.Set so we can return an empty immutable set
     // and a non-empty mutable set.
     private def removeSuspendedPackets(flowMatch: FlowMatch): collection.Set[Packet] = {
@@ -195,8 +360,14 @@ class DeduplicationActor(
 
     private def initialize(packet: Packet, fmatch: FlowMatch, egressPort: UUID) = {
         val cookie = cookieGen.next
-        log.debug(s"Creating new PacketContext for cookie $cookie")
-        val context = new PacketContext(cookie, packet, fmatch, egressPort)
+        var context = contextPool.take
+        if (context ne null) {
+            context.reset(cookie, packet, fmatch, egressPort)
+        } else {
+            log.debug(s"Creating new PacketContext for cookie $cookie")
+            context = new PacketContext(cookie, packet, fmatch, egressPort)
+            metrics.packetContextsAllocated.mark()
+        }
         context.reset(cbExecutor, genPacketEmitter)
         context.initialize(connTrackTx, natTx, natLeaser)
         context.log = PacketTracing.loggerFor(fmatch)
@@ -262,8 +433,18 @@ class DeduplicationActor(
                 case _ => metrics.packetSimulated(latency.toInt)
             }
         }
+        recycle(pktCtx)
     }
 
+    /**
+     * Returns a PacketContext to the pool once its workflow is over. Only
+     * contexts that ran once are recycled: those that were postponed may
+     * still be referenced by the WaitingRoom or by a pending future.
+     */
+    private def recycle(pktCtx: PacketContext): Unit =
+        if (pktCtx.runs == 1)
+            contextPool.offer(pktCtx)
+
     private def applyFlow(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
         val flowMatch = pktCtx.packet.getMatch
         val suspendedPackets = removeSuspendedPackets(flowMatch)
@@ -328,9 +509,29 @@ class DeduplicationActor(
             case NotYetException(f, msg) =>
                 pktCtx.log.debug(s"Postponing simulation because: $msg")
                 postponeOn(pktCtx, f)
-            case ex: Throwable => handleErrorOn(pktCtx, ex)
+            case ex: IllegalStateException
+                    if ex.getCause.isInstanceOf[MalformedPacketException] =>
+                dropMalformed(pktCtx, ex.getCause)
+                recycle(pktCtx)
+            case ex: Throwable =>
+                handleErrorOn(pktCtx, ex)
+                recycle(pktCtx)
         }
 
+    /**
+     * Discards a packet whose frame, parsed lazily by the simulation, turned
+     * out to be malformed. No drop flow is installed: the packets that share
+     * its kernel match are well formed as far as the datapath can tell, so
+     * the ones suspended on it are simulated on their own.
+     */
+    private def dropMalformed(pktCtx: PacketContext, ex: Throwable): Unit = {
+        pktCtx.log.warn(s"Dropping malformed packet: ${ex.getMessage}")
+        if (pktCtx.runs > 1)
+            waitingRoom leave pktCtx
+        metrics.packetsDropped.mark()
+        removeSuspendedPackets(pktCtx.packet.getMatch) foreach processPacket
+    }
+
     private def handlePacket(packet: Packet): Unit = {
         val flowMatch = packet.getMatch
         if (FlowStatePackets.isStateMessage(flowMatch)) {
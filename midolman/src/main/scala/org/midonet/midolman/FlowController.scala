@@ -18,14 +18,12 @@ package org.midonet.midolman
 
 import java.lang.{Long => JLong}
 import java.nio.ByteBuffer
-import java.util.concurrent.{TimeUnit, ConcurrentHashMap => ConcHashMap}
-import java.util.{ArrayList, Map => JMap}
+import java.util.concurrent.{CopyOnWriteArrayList, TimeUnit, ConcurrentHashMap => ConcHashMap}
+import java.util.{ArrayList, List => JList, Map => JMap}
 import javax.inject.Inject
 
-import scala.annotation.tailrec
 import scala.collection.JavaConversions._
-import scala.collection.mutable.{HashMap, MultiMap}
-import scala.collection.{mutable, Set => ROSet}
+import scala.collection.{Set => ROSet}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
@@ -54,6 +52,7 @@ import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows._
 import org.midonet.util.collection.EventHistory._
 import org.midonet.util.collection.{EventHistory, ArrayObjectPool, ObjectPool}
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.concurrent.WakerUpper.Parkable
 import org.midonet.util.functors.{Callback0, Callback1}
 
@@ -81,13 +80,24 @@ object FlowController extends Referenceable {
 
     case object CheckFlowExpiration_
 
-    case class FlowMissing_(flowMatch: FlowMatch, flowCallback: Callback1[Flow])
+    /** A chunk of the flows read by a dump of the datapath flows. Those are
+      * handed to the FlowManager, which knows the matches, including the
+      * 'userspace' keys lost in the trip to the kernel, under which we keep
+      * their books, in particular those of the MetricsRegistry. */
+    case class FlowsDumped_(flows: ArrayList[Flow])
 
-    /** NOTE(guillermo): we include an 'origMatch' here because 'userspace' keys
-      * are lost in the trip to the kernel, and that plays badly with out book
-      * keeping, in particular with that of the MetricsRegistry. */
-    case class GetFlowSucceeded_(flow: Flow, origMatch: FlowMatch, flowCallback: Callback1[Flow])
-    case class GetFlowFailed_(flowCallback: Callback1[Flow])
+    /** Follows the last chunk of a dump of the datapath flows. */
+    case class FlowsDumpCompleted_(dumpedAll: Boolean)
+
+    /* The flows of a dump are handed to each shard in chunks of this size as
+     * they are read, rather than all at once when the dump is over. */
+    val FLOWS_DUMP_CHUNK_SIZE = 1024
+
+    /** Asks the first shard, which dumps the datapath flows on behalf of
+      * all the shards, for a dump of the flows of the given shard. */
+    case class DumpFlows_(shard: Int)
+
+    case object FlowsDumpOver_
 
     case object CheckCompletedRequests
 
@@ -99,34 +109,65 @@ object FlowController extends Referenceable {
     private val WILD_FLOW_TABLE_INITIAL_CAPACITY = 65536
     private val WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY = 256
 
-    private val wildcardTables = new ConcHashMap[JLong, JMap[FlowMatch, ManagedWildcardFlow]](
+    /* Flow management is split in shards, as many as packet processing
+     * workers, and flows are assigned to them by the connection hash of their
+     * match, like packets are to the workers. Each shard owns its wildcard
+     * flow tables, datapath flows, expiration and eviction budget, so that
+     * the flows simulated by a worker are managed by a single shard. The
+     * FlowController actor is the first shard: it starts the others, hands
+     * them the requests for the flows they own and broadcasts invalidations.
+     */
+    val MAX_SHARDS = 16
+
+    def numShards(config: MidolmanConfig): Int =
+        Math.min(Math.max(config.getSimulationThreads, 1), MAX_SHARDS)
+
+    def shardIndex(flowMatch: FlowMatch, numShards: Int): Int =
+        Math.abs(flowMatch.connectionHash % numShards)
+
+    @volatile private var shards = Array.empty[ActorRef]
+
+    /** The shard that owns the flows with the given match. */
+    def shardFor(flowMatch: FlowMatch)(implicit system: ActorSystem): ActorRef = {
+        val refs = shards
+        if (refs.length == 0) getRef()
+        else refs(shardIndex(flowMatch, refs.length))
+    }
+
+    private val wildcardTables = Array.fill(MAX_SHARDS) {
+        new ConcHashMap[JLong, JMap[FlowMatch, ManagedWildcardFlow]](
             WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY,
             WILD_FLOW_TABLE_LOAD_FACTOR,
             WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
+    }
 
-    private val wildcardTablesProvider: WildcardTablesProvider =
-        new WildcardTablesProvider {
-            override def tables = wildcardTables
+    private class ShardWildcardTables(shard: Int, numShards: Int)
+            extends WildcardTablesProvider {
+        override def tables = wildcardTables(shard)
 
-            override def addTable(pattern: JLong) = {
-                var table = wildcardTables.get(pattern)
-                if (table == null) {
-                    table = new ConcHashMap[FlowMatch, ManagedWildcardFlow](
-                                    WILD_FLOW_TABLE_INITIAL_CAPACITY,
-                                    WILD_FLOW_TABLE_LOAD_FACTOR,
-                                    WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
+        override def addTable(pattern: JLong) = {
+            var table = tables.get(pattern)
+            if (table == null) {
+                table = new ConcHashMap[FlowMatch, ManagedWildcardFlow](
+                                WILD_FLOW_TABLE_INITIAL_CAPACITY / numShards,
+                                WILD_FLOW_TABLE_LOAD_FACTOR,
+                                WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
 
-                    wildcardTables.put(pattern, table)
-                }
-                table
+                tables.put(pattern, table)
             }
+            table
         }
+    }
 
     def queryWildcardFlowTable(wildMatch: FlowMatch)
     : Option[ManagedWildcardFlow] = {
         var wildFlow: ManagedWildcardFlow = null
+        val refs = shards
+        val tables =
+            if (refs.length > 1) wildcardTables(shardIndex(wildMatch, refs.length))
+            else wildcardTables(0)
         wildMatch.doNotTrackSeenFields()
-        for (entry <- wildcardTables.entrySet()) {
+        for (entry <- tables.entrySet()) {
             val table = entry.getValue
             val pattern = entry.getKey
             val projectedFlowMatch = ProjectedFlowMatch.project(wildMatch, pattern)
@@ -156,8 +197,8 @@ object FlowController extends Referenceable {
 
     def lastInvalidationEvent = invalidationHistory.latest
 
-    sealed abstract class FlowOvsCommand[T](completedRequests: SpscArrayQueue[T])
-                                           (implicit actorSystem: ActorSystem)
+    sealed abstract class FlowOvsCommand[T](completedRequests: SpscArrayQueue[T],
+                                            owner: ActorRef)
         extends Observer[ByteBuffer] { self: T =>
 
         var failure: Throwable = _
@@ -177,7 +218,7 @@ object FlowController extends Referenceable {
 
         final override def onCompleted(): Unit = {
             completedRequests.offer(this)
-            FlowController ! FlowController.CheckCompletedRequests
+            owner ! FlowController.CheckCompletedRequests
         }
 
         final override def onError(e: Throwable): Unit = {
@@ -187,9 +228,9 @@ object FlowController extends Referenceable {
     }
 
     sealed class FlowRemoveCommand(pool: ObjectPool[FlowRemoveCommand],
-                                   completedRequests: SpscArrayQueue[FlowRemoveCommand])
-                                  (implicit actorSystem: ActorSystem)
-        extends FlowOvsCommand[FlowRemoveCommand](completedRequests) {
+                                   completedRequests: SpscArrayQueue[FlowRemoveCommand],
+                                   owner: ActorRef)
+        extends FlowOvsCommand[FlowRemoveCommand](completedRequests, owner) {
 
         private val buf = BytesUtil.instance.allocateDirect(8*1024)
         val flow = new Flow()
@@ -216,13 +257,33 @@ object FlowController extends Referenceable {
         override def onNext(t: ByteBuffer): Unit =
             flow.deserialize(t)
     }
+
+    private def shardProps(index: Int,
+                           shardsMetrics: JList[FlowController#FlowTablesMetrics],
+                           config: MidolmanConfig,
+                           connPool: DatapathConnectionPool,
+                           flowEjector: FlowEjector,
+                           registry: MetricRegistry,
+                           nanoClock: NanoClock) = Props {
+        val shard = new FlowController(index, shardsMetrics)
+        shard.midolmanConfig = config
+        shard.datapathConnPool = connPool
+        shard.ejector = flowEjector
+        shard.metricsRegistry = registry
+        shard.clock = nanoClock
+        shard
+    }
 }
 
-class FlowController extends Actor with ActorLogWithoutPath
+class FlowController(val shardIndex: Int,
+                     shardsMetrics: JList[FlowController#FlowTablesMetrics])
+        extends Actor with ActorLogWithoutPath
         with DatapathReadySubscriberActor {
     import DatapathController.DatapathReady
     import FlowController._
 
+    def this() = this(0, new CopyOnWriteArrayList[FlowController#FlowTablesMetrics]())
+
     override def logSource = "org.midonet.flow-management"
 
     implicit val system = this.context.system
@@ -246,14 +307,16 @@ class FlowController extends Actor with ActorLogWithoutPath
     @Inject
     var metricsRegistry: MetricRegistry = null
 
+    @Inject
+    var clock: NanoClock = null
+
     var meters: MeterRegistry = null
 
     var flowManager: FlowManager = null
     var flowManagerHelper: FlowManagerHelper = null
 
-    val tagToFlows: MultiMap[FlowTag, ManagedWildcardFlow] =
-        new HashMap[FlowTag, mutable.Set[ManagedWildcardFlow]]
-            with MultiMap[FlowTag, ManagedWildcardFlow]
+    val tagToFlows = new FlowTagIndexer()
+    private val invalidatedFlows = new ArrayList[ManagedWildcardFlow]()
 
     var flowExpirationCheckInterval: FiniteDuration = null
 
@@ -261,18 +324,27 @@ class FlowController extends Actor with ActorLogWithoutPath
 
     var metrics: FlowTablesMetrics = null
 
+    /* The dump of the datapath flows the first shard is running, if any, and
+     * the shards that asked for one since it started. */
+    private var flowsDumpInProgress = false
+    private var pendingFlowsDumps = Set.empty[Int]
+
     private[this] implicit def executor: ExecutionContext = context.dispatcher
 
     override def preStart() {
         super.preStart()
-        FlowController.wildcardTables.clear()
-        meters = new MeterRegistry(midolmanConfig.getDatapathMaxFlowCount)
-        Metering.registerAsMXBean(meters)
-        val maxDpFlows = midolmanConfig.getDatapathMaxFlowCount
-        val maxWildcardFlows = midolmanConfig.getDatapathMaxWildcardFlowCount match {
+        val numShards = FlowController.numShards(midolmanConfig)
+        FlowController.wildcardTables(shardIndex).clear()
+        val maxDpFlows = midolmanConfig.getDatapathMaxFlowCount / numShards
+        meters = new MeterRegistry(maxDpFlows)
+        if (shardIndex == 0)
+            Metering.registerAsMXBean(meters)
+        else
+            Metering.addMeters(meters)
+        val maxWildcardFlows = (midolmanConfig.getDatapathMaxWildcardFlowCount match {
             case x if x < MIN_WILDCARD_FLOW_CAPACITY => MIN_WILDCARD_FLOW_CAPACITY
             case y => y
-        }
+        }) / numShards
         val idleFlowToleranceInterval = midolmanConfig.getIdleFlowToleranceInterval
         flowExpirationCheckInterval = Duration(midolmanConfig.getFlowExpirationInterval,
             TimeUnit.MILLISECONDS)
@@ -280,19 +352,65 @@ class FlowController extends Actor with ActorLogWithoutPath
 
         flowManagerHelper = new FlowManagerInfoImpl()
         flowManager = new FlowManager(flowManagerHelper,
-            FlowController.wildcardTablesProvider ,maxDpFlows, maxWildcardFlows,
-            idleFlowToleranceInterval)
+            new ShardWildcardTables(shardIndex, numShards), maxDpFlows,
+            maxWildcardFlows, idleFlowToleranceInterval, clock)
 
         wildFlowPool = new ArrayObjectPool(maxWildcardFlows, new ManagedWildcardFlow(_))
 
         metrics = new FlowTablesMetrics(flowManager)
 
-        completedFlowDeleteCommands = new SpscArrayQueue(ejector.maxPendingRequests)
-        pooledFlowDeleteCommands = new ArrayObjectPool(ejector.maxPendingRequests,
-                                                       new FlowRemoveCommand(_, completedFlowDeleteCommands))
+        val maxPendingRequests = Math.max(ejector.maxPendingRequests / numShards, 1)
+        completedFlowDeleteCommands = new SpscArrayQueue(maxPendingRequests)
+        pooledFlowDeleteCommands = new ArrayObjectPool(maxPendingRequests,
+            new FlowRemoveCommand(_, completedFlowDeleteCommands, self))
+
+        if (shardIndex == 0)
+            startShards(numShards)
     }
 
+    /* A restarted shard creates its meters and metrics again, so those of
+     * the previous incarnation are dropped here. */
+    override def postStop() {
+        if (shardIndex == 0)
+            FlowController.shards = Array.empty
+        if (metrics ne null)
+            metrics.unregister()
+        if (meters ne null)
+            Metering.removeMeters(meters)
+        super.postStop()
+    }
+
+    private def startShards(numShards: Int): Unit = {
+        val refs = new Array[ActorRef](numShards)
+        refs(0) = self
+        for (i <- 1 until numShards) {
+            refs(i) = context.actorOf(
+                shardProps(i, shardsMetrics, midolmanConfig, datapathConnPool,
+                           ejector, metricsRegistry, clock),
+                s"FlowController-$i")
+        }
+        FlowController.shards = refs
+    }
+
+    /* Whether this shard owns the flows with the given match. */
+    private def owns(flowMatch: FlowMatch): Boolean = {
+        val numShards = FlowController.shards.length
+        numShards <= 1 || FlowController.shardIndex(flowMatch, numShards) == shardIndex
+    }
+
+    private def toOwner(flowMatch: FlowMatch, msg: Any): Unit =
+        FlowController.shardFor(flowMatch) forward msg
+
     def receive = LoggingReceive {
+        case msg: AddWildcardFlow if !owns(msg.wildFlow.getMatch) =>
+            toOwner(msg.wildFlow.getMatch, msg)
+
+        case msg: FlowAdded if !owns(msg.wcMatch) =>
+            toOwner(msg.wcMatch, msg)
+
+        case msg: RemoveWildcardFlow if !owns(msg.wMatch) =>
+            toOwner(msg.wMatch, msg)
+
         case DatapathReady(dp, dpState) =>
             if (null == datapath) {
                 datapath = dp
@@ -347,21 +465,31 @@ class FlowController extends Actor with ActorLogWithoutPath
             handleFlowAddedForExistingWildcard(dpFlow, wcMatch)
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
-        case InvalidateFlowsByTag(tag) =>
-            tagToFlows.remove(tag) match {
-                case None =>
-                    log.debug(s"There are no flows to invalidate for tag $tag")
-                case Some(flowSet) =>
-                    log.debug(s"There are ${flowSet.size} flows to invalidate for tag $tag")
-                    for (wildFlow <- flowSet)
-                        removeWildcardFlow(wildFlow)
+        case msg@InvalidateFlowsByTag(tag) =>
+            if (shardIndex == 0) {
+                // recorded before any shard drops its flows, so that those
+                // simulated with the stale tag are not added afterwards
+                invalidationHistory.put(tag)
+                val refs = FlowController.shards
+                var i = 1
+                while (i < refs.length) {
+                    refs(i) forward msg
+                    i += 1
+                }
+            }
+            val flows = tagToFlows.flowsOf(tag, invalidatedFlows)
+            log.debug(s"There are ${flows.size} flows to invalidate for tag $tag")
+            var i = 0
+            while (i < flows.size) {
+                removeWildcardFlow(flows.get(i))
+                i += 1
             }
-            invalidationHistory.put(tag)
+            flows.clear()
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
         case RemoveWildcardFlow(wmatch) =>
             log.debug("Removing wcflow for match {}", wmatch)
-            wildcardTables.get(wmatch.getUsedFields) match {
+            wildcardTables(shardIndex).get(wmatch.getUsedFields) match {
                 case null =>
                 case table => table.get(wmatch) match {
                     case null =>
@@ -374,37 +502,39 @@ class FlowController extends Actor with ActorLogWithoutPath
             flowManager.checkFlowsExpiration()
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
-        case GetFlowSucceeded_(flow, origMatch, callback) =>
-            log.debug("Retrieved flow from datapath: {}", flow.getMatch)
-            context.system.eventStream.publish(FlowUpdateCompleted(flow))
-            callback.call(flow)
-            if (flow.getStats ne null)
-                meters.updateFlow(origMatch, flow.getStats)
-
-        case GetFlowFailed_(callback) =>
-            callback.call(null)
+        case DumpFlows_(shard) =>
+            requestFlowsDump(shard)
+
+        case FlowsDumpOver_ =>
+            flowsDumpInProgress = false
+            if (pendingFlowsDumps.nonEmpty)
+                startFlowsDump()
+
+        case FlowsDumped_(flows) =>
+            log.debug(s"Retrieved ${flows.size} flows from datapath")
+            var i = 0
+            while (i < flows.size) {
+                val flow = flows.get(i)
+                val flowMatch = flowManager.flowDumped(flow)
+                if (flowMatch ne null) {
+                    context.system.eventStream.publish(FlowUpdateCompleted(flow))
+                    if (flow.getStats ne null)
+                        meters.updateFlow(flowMatch, flow.getStats)
+                }
+                i += 1
+            }
 
-        case FlowMissing_(flowMatch, callback) =>
-            callback.call(null)
-            flowManager.flowMissing(flowMatch)
+        case FlowsDumpCompleted_(dumpedAll) =>
+            flowManager.dumpCompleted(dumpedAll)
             metrics.currentDpFlows = flowManager.getNumDpFlows
-            meters.forgetFlow(flowMatch)
 
         case CheckCompletedRequests =>
             processRemovedFlows()
     }
 
     private def removeWildcardFlow(wildFlow: ManagedWildcardFlow) {
-        @tailrec
-        def tagsCleanup(tags: Array[FlowTag], i: Int = 0) {
-            if (tags != null && tags.length > i) {
-                tagToFlows.removeBinding(tags(i), wildFlow)
-                tagsCleanup(tags, i+1)
-            }
-        }
-
         if (flowManager.remove(wildFlow)) {
-            tagsCleanup(wildFlow.tags)
+            tagToFlows.unindex(wildFlow)
             wildFlow.unref() // tags ref
             wildFlow.cbExecutor.schedule(wildFlow.callbacks)
             context.system.eventStream.publish(WildcardFlowRemoved(wildFlow.immutable))
@@ -448,9 +578,7 @@ class FlowController extends Actor with ActorLogWithoutPath
         wildFlow.ref() // tags ref
         if (null != tags) {
             wildFlow.tags = tags.toArray
-            for (tag <- tags) {
-                tagToFlows.addBinding(tag, wildFlow)
-            }
+            tagToFlows.index(wildFlow)
         }
 
         if (dpFlow != null) {
@@ -550,47 +678,113 @@ class FlowController extends Actor with ActorLogWithoutPath
             FlowController.this.removeWildcardFlow(flow)
         }
 
-        def getFlow(flowMatch: FlowMatch, flowCallback: Callback1[Flow]): Unit = {
-            log.debug("requesting flow for flow match: {}", flowMatch)
-            val cb = new Callback[Flow] {
-                def onError(ex: NetlinkException) {
-                    ex.getErrorCodeEnum match {
-                        case ErrorCode.ENOENT =>
-                            self ! FlowMissing_(flowMatch, flowCallback)
-                        case other =>
-                            log.error("Got exception when trying to " +
-                                      "flowsGet() for " + flowMatch, ex)
-                            self ! GetFlowFailed_(flowCallback)
-                    }
-                }
-                def onSuccess(data: Flow) {
-                    val msg = if (data != null) {
-                        GetFlowSucceeded_(data, flowMatch, flowCallback)
-                    } else {
-                        log.warn("getFlow() returned a null flow")
-                        FlowMissing_(flowMatch, flowCallback)
-                    }
-                    self ! msg
+        def dumpFlows(): Unit =
+            if (shardIndex == 0)
+                requestFlowsDump(shardIndex)
+            else
+                FlowController.getRef() ! DumpFlows_(shardIndex)
+    }
+
+    /* A single dump of the datapath flows serves all the shards that asked
+     * for one before it started, those that ask while it runs wait for the
+     * next one. */
+    private def requestFlowsDump(shard: Int): Unit = {
+        pendingFlowsDumps += shard
+        if (!flowsDumpInProgress)
+            startFlowsDump()
+    }
+
+    private def startFlowsDump(): Unit = {
+        log.debug(s"dumping the datapath flows for shards $pendingFlowsDumps")
+        val refs = if (FlowController.shards.isEmpty) Array(self)
+                   else FlowController.shards
+        val dump = new FlowsDump(refs, pendingFlowsDumps)
+        flowsDumpInProgress = true
+        pendingFlowsDumps = Set.empty
+        datapathConnPool.get(0).flowsDump(datapath, dump, dump,
+                                          flowExpirationCheckInterval.toMillis)
+    }
+
+    /* Hands the flows of a dump to the shards that asked for it, each getting
+     * the flows it owns in chunks as they are read. Runs on the thread of the
+     * datapath connection. */
+    private class FlowsDump(refs: Array[ActorRef], requesters: Set[Int])
+            extends Callback1[Flow] with Callback[Integer] {
+
+        private val coordinator = self
+        private val flows = new Array[ArrayList[Flow]](refs.length)
+        requesters foreach { flows(_) = newChunk() }
+
+        private def newChunk() = new ArrayList[Flow](FLOWS_DUMP_CHUNK_SIZE)
+
+        override def call(flow: Flow): Unit = {
+            val shard = FlowController.shardIndex(flow.getMatch, refs.length)
+            val chunk = flows(shard)
+            if (chunk ne null) {
+                chunk.add(flow)
+                if (chunk.size == FLOWS_DUMP_CHUNK_SIZE) {
+                    refs(shard) ! FlowsDumped_(chunk)
+                    flows(shard) = newChunk()
                 }
             }
-            datapathConnection(flowMatch).flowsGet(datapath, flowMatch, cb)
+        }
+
+        override def onSuccess(count: Integer): Unit =
+            completed(dumpedAll = true)
+
+        override def onError(ex: NetlinkException): Unit = {
+            log.error("Got exception when trying to dump the datapath flows", ex)
+            completed(dumpedAll = false)
+        }
+
+        private def completed(dumpedAll: Boolean): Unit = {
+            requesters foreach { shard =>
+                if (!flows(shard).isEmpty)
+                    refs(shard) ! FlowsDumped_(flows(shard))
+                refs(shard) ! FlowsDumpCompleted_(dumpedAll)
+            }
+            coordinator ! FlowsDumpOver_
         }
     }
 
+    /* The gauges add up the flows of all the shards. They are registered by
+     * the first shard, before it starts the others. */
     class FlowTablesMetrics(val flowManager: FlowManager) {
         @volatile var currentDpFlows: Long = 0L
 
-        val currentWildFlowsMetric = metricsRegistry.register(name(
-                classOf[FlowTablesGauge], "currentWildcardFlows"),
-                new Gauge[Long]{
-                    override def getValue = flowManager.getNumWildcardFlows
-                })
+        private val gaugeNames = Seq("currentWildcardFlows",
+                                     "currentDatapathFlows") map {
+            name(classOf[FlowTablesGauge], _)
+        }
+
+        shardsMetrics.add(this)
+
+        val currentWildFlowsMetric = gauge("currentWildcardFlows") {
+            _.flowManager.getNumWildcardFlows
+        }
 
-        val currentDpFlowsMetric = metricsRegistry.register(name(
-                classOf[FlowTablesGauge], "currentDatapathFlows"),
-                new Gauge[Long]{
-                    override def getValue = currentDpFlows
+        val currentDpFlowsMetric = gauge("currentDatapathFlows") {
+            _.currentDpFlows
+        }
+
+        private def gauge(gaugeName: String)
+                         (value: FlowController#FlowTablesMetrics => Long)
+        : Gauge[Long] = {
+            val metricName = name(classOf[FlowTablesGauge], gaugeName)
+            if (shardIndex == 0) {
+                metricsRegistry.register(metricName, new Gauge[Long] {
+                    override def getValue = {
+                        var sum = 0L
+                        val it = shardsMetrics.iterator()
+                        while (it.hasNext)
+                            sum += value(it.next())
+                        sum
+                    }
                 })
+            } else {
+                metricsRegistry.getGauges.get(metricName).asInstanceOf[Gauge[Long]]
+            }
+        }
 
         val wildFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "wildcardFlowsCreated",
@@ -599,5 +793,11 @@ class FlowController extends Actor with ActorLogWithoutPath
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
+
+        def unregister(): Unit = {
+            shardsMetrics.remove(this)
+            if (shardIndex == 0)
+                gaugeNames foreach metricsRegistry.remove
+        }
     }
 }
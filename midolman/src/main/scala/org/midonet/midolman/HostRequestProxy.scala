@@ -37,15 +37,7 @@ object HostRequestProxy {
     case class FlowStateBatch(strongConnTrack: JSet[ConnTrackKey],
                               weakConnTrack: JSet[ConnTrackKey],
                               strongNat: JMap[NatKey, NatBinding],
-                              weakNat: JMap[NatKey, NatBinding]) {
-        def merge(other: FlowStateBatch): FlowStateBatch = {
-            strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
-            strongNat.putAll(other.strongNat)
-            weakNat.putAll(other.weakNat)
-            this
-        }
-    }
+                              weakNat: JMap[NatKey, NatBinding])
 
     def EmptyFlowStateBatch() = FlowStateBatch(new JHashSet[ConnTrackKey](),
                                                new JHashSet[ConnTrackKey](),
@@ -58,7 +50,9 @@ object HostRequestProxy {
   * This actor creates a host subscription in the VTPM on behalf of another
   * subscriber. It will proxy requests making sure per-flow state for the
   * host's ports is fetched from Cassandra before the subscriber receives
-  * the host object.
+  * the host object. The state is streamed to the packet workers a page at
+  * a time, as it is read, and they import it in slices between batches of
+  * packets.
   */
 class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
                        val subscriber: ActorRef, config: MidolmanConfig)
@@ -80,21 +74,10 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
-        }
-    }
-
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    private def stateForPorts(ports: Iterable[UUID]): Future[Iterable[Unit]] =
+        Future.sequence(ports map { port =>
+            storage.fetchState(port) { batch => PacketsEntryPoint ! batch }
+        })
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -139,9 +122,8 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
                 val ps = h.portToInterface.keySet -- lastPorts
                 val resolved = resolvePorts(h)
                 stateForPorts(ps).andThen {
-                        case Success(stateBatch) =>
+                        case Success(_) =>
                             lastPorts = ps
-                            PacketsEntryPoint ! stateBatch
                         case Failure(e) =>
                             log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
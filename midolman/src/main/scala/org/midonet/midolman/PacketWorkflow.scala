@@ -47,10 +47,13 @@ trait PacketHandler {
 object PacketWorkflow {
     case class PacketIn(wMatch: FlowMatch,
                         inputPort: UUID,
-                        eth: Ethernet,
+                        packet: Packet,
                         dpMatch: FlowMatch,
                         reason: Packet.Reason,
-                        cookie: Int)
+                        cookie: Int) {
+        /* Deserialized only if a subscriber looks at the frame */
+        def eth: Ethernet = packet.getEthernet
+    }
 
     val TEMPORARY_DROP_MILLIS = 5 * 1000
     val IDLE_EXPIRATION_MILLIS = 60 * 1000
@@ -163,12 +166,13 @@ class PacketWorkflow(protected val dpState: DatapathState,
         context.log.debug("Successfully created flow")
         newWildFlow match {
             case None =>
-                FlowController ! FlowAdded(flow, context.origMatch)
+                FlowController.shardFor(context.origMatch) ! FlowAdded(flow, context.origMatch)
             case Some(wf) =>
-                FlowController ! AddWildcardFlow(wf, flow,
+                FlowController.shardFor(context.origMatch) ! AddWildcardFlow(wf, flow,
                                 context.flowRemovedCallbacks,
                                 context.flowTags, context.lastInvalidation,
                                 context.origMatch)
+                context.handOverFlowTagsAndCallbacks()
         }
     }
 
@@ -233,7 +237,6 @@ class PacketWorkflow(protected val dpState: DatapathState,
                                          context.outPorts,
                                          context.flowTags,
                                          context.flowRemovedCallbacks)
-            replicator.pushState(dpChannel)
             context.conntrackTx.commit()
             context.natTx.commit()
     }
@@ -356,7 +359,7 @@ class PacketWorkflow(protected val dpState: DatapathState,
         val packet = context.packet
         system.eventStream.publish(
             PacketIn(context.origMatch.clone(), context.inputPort,
-                     packet.getEthernet,
+                     packet,
                      packet.getMatch, packet.getReason,
                      context.cookie))
 
@@ -22,16 +22,18 @@ import akka.actor._
 import akka.event.LoggingReceive
 import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
+import com.lmax.disruptor.RingBuffer
 import com.typesafe.scalalogging.Logger
 import org.midonet.cluster.DataClient
+import org.midonet.midolman.DeduplicationActor.{PacketSlot, PacketSlotFactory}
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackRecordCodec, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatRecordCodec}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
@@ -41,9 +43,17 @@ import org.slf4j.LoggerFactory
 object PacketsEntryPoint extends Referenceable {
     override val Name = "PacketsEntryPoint"
 
+    /* The initial number of entries of off-heap flow state shards */
+    val OFF_HEAP_SHARD_CAPACITY = 64 * 1024
+
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /**
+     * The packet processing workers. When packets are handed over through
+     * rings, rings(i) is the input of the worker list(i).
+     */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       rings: IndexedSeq[RingBuffer[PacketSlot]] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
@@ -85,6 +95,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var rings = immutable.IndexedSeq[RingBuffer[PacketSlot]]()
     private var rrIndex = 0
 
     @Inject
@@ -116,6 +127,17 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
             val clock = PacketsEntryPoint.this.clock
         }
 
+        if (config.getSimulationInput == "ring") {
+            val waitStrategy = config.getSimulationWaitStrategy
+            if (!DeduplicationActor.WAIT_STRATEGIES.contains(waitStrategy))
+                throw new IllegalArgumentException(
+                    s"Unknown value for simulation_wait_strategy: $waitStrategy")
+            rings = (0 until NUM_WORKERS) map { _ =>
+                RingBuffer.createMultiProducer(PacketSlotFactory,
+                                               config.getSimulationInputRingSize)
+            }
+        }
+
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
         }
@@ -133,17 +155,30 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         context.actorOf(props, s"PacketProcessor-$index")
     }
 
+    private def connTrackShard() =
+        if (config.getOffHeapFlowState)
+            connTrackStateTable.addOffHeapShard(ConnTrackRecordCodec,
+                                                OFF_HEAP_SHARD_CAPACITY)
+        else
+            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable))
+
+    private def natShard() =
+        if (config.getOffHeapFlowState)
+            natStateTable.addOffHeapShard(NatRecordCodec, OFF_HEAP_SHARD_CAPACITY)
+        else
+            natStateTable.addShard(log = shardLogger(natStateTable))
+
     protected def propsForWorker(index: Int) = {
         val cookieGen = new CookieGenerator(index, NUM_WORKERS)
         Props(
             classOf[DeduplicationActor],
             config, cookieGen, dpChannel, clusterDataClient,
-            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
-            natStateTable.addShard(log = shardLogger(natStateTable)),
+            connTrackShard(), natShard(),
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int),
+            if (rings.isEmpty) null else rings(index))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -163,6 +198,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, rings)
     }
 }
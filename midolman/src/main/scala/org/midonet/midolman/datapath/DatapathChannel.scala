@@ -38,6 +38,9 @@ object DisruptorDatapathChannel {
     val PACKET_EXECUTION: Byte = 0
     val FLOW_CREATE: Byte = 1
 
+    /* Maximum number of messages handed to the kernel in one system call */
+    val WRITE_BATCH_SIZE = 64
+
     sealed class DatapathEvent(var bb: ByteBuffer, var op: Byte)
 
     object Factory extends EventFactory[DatapathEvent] {
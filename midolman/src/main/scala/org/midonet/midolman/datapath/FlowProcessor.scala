@@ -60,21 +60,42 @@ sealed class FlowProcessor(flowEjector: FlowEjector,
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    /* Flows to create, written out at the end of each batch. A flow can only
+     * be deleted once lastSequence covers it, that is, once it is written. */
+    private val pending = new Array[ByteBuffer](WRITE_BATCH_SIZE)
+    private var numPending = 0
+    private var pendingSequence = Sequencer.INITIAL_CURSOR_VALUE
+
     override def onEvent(event: DatapathEvent, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         if (event.op == FLOW_CREATE) {
-            try {
-                event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
-                writer.write(event.bb)
-                log.debug(s"Created flow #$sequence")
-            } catch { case t: Throwable =>
-                log.error(s"Failed to create flow #$sequence", t)
-            }
-            lastSequence = sequence
+            event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
+            pending(numPending) = event.bb
+            numPending += 1
+            pendingSequence = sequence
+        }
+        if (numPending > 0 && (endOfBatch || numPending == pending.length)) {
+            flush()
         }
         true
     }
 
+    private def flush(): Unit = {
+        try {
+            writer.writeMessages(pending, numPending)
+            log.debug(s"Created $numPending flows up to #$pendingSequence")
+        } catch { case t: Throwable =>
+            log.error(s"Failed to create some of $numPending flows up to #$pendingSequence", t)
+        }
+        var i = 0
+        while (i < numPending) {
+            pending(i) = null
+            i += 1
+        }
+        numPending = 0
+        lastSequence = pendingSequence
+    }
+
     override def shouldProcess(): Boolean = {
         val flowDelete = flowEjector.peek()
         (flowDelete ne null) && flowDelete.flowMatch.getSequence <= lastSequence
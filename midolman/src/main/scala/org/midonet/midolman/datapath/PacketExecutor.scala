@@ -16,6 +16,8 @@
 
 package org.midonet.midolman.datapath
 
+import java.nio.ByteBuffer
+
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
@@ -43,17 +45,36 @@ sealed class PacketExecutor(numHandlers: Int, index: Int,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    /* Packets to execute, written out at the end of each batch. The ring
+     * buffer entries are not reclaimed by producers until then. */
+    private val pending = new Array[ByteBuffer](WRITE_BATCH_SIZE)
+    private var numPending = 0
+
     override def onEvent(event: DatapathEvent, sequence: Long,
                          endOfBatch: Boolean): Unit = {
         if (event.op == PACKET_EXECUTION && sequence % numHandlers == index) {
-            try {
-                event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
-                writer.write(event.bb)
-                log.debug(s"Executed packet #$sequence")
-            } catch { case t: Throwable =>
-                log.error(s"Failed to execute packet #$sequence", t)
-            }
+            event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
+            pending(numPending) = event.bb
+            numPending += 1
+        }
+        if (numPending > 0 && (endOfBatch || numPending == pending.length)) {
+            flush(sequence)
+        }
+    }
+
+    private def flush(sequence: Long): Unit = {
+        try {
+            writer.writeMessages(pending, numPending)
+            log.debug(s"Executed $numPending packets up to #$sequence")
+        } catch { case t: Throwable =>
+            log.error(s"Failed to execute some of $numPending packets up to #$sequence", t)
+        }
+        var i = 0
+        while (i < numPending) {
+            pending(i) = null
+            i += 1
         }
+        numPending = 0
     }
 
     private def processError(): Unit =
@@ -20,7 +20,7 @@ import org.jctools.queues.spec.ConcurrentQueueSpec._
 import org.midonet.midolman.FlowController.FlowRemoveCommand
 
 class FlowEjector(val maxPendingRequests: Int) {
-    private val queue = QueueFactory.newQueue[FlowRemoveCommand](createBoundedSpsc(maxPendingRequests))
+    private val queue = QueueFactory.newQueue[FlowRemoveCommand](createBoundedMpsc(maxPendingRequests))
 
     def size: Int = queue.size()
 
@@ -171,12 +171,32 @@ abstract class UpcallDatapathConnectionManagerBase(
 
             def endBatch(worker: Int) {
                 if (cursors(worker) > 0) {
-                    workers.list(worker) ! DeduplicationActor.HandlePackets(packets(worker))
+                    if (workers.rings.isEmpty) {
+                        workers.list(worker) ! DeduplicationActor.HandlePackets(packets(worker))
+                        packets(worker) = new Array[Packet](BATCH_SIZE)
+                    } else {
+                        publish(worker)
+                    }
                     cursors(worker) = 0
-                    packets(worker) = new Array[Packet](BATCH_SIZE)
                 }
             }
 
+            /* Hands the batch over to the worker's ring, claiming all the
+             * slots at once. Blocks while the ring is full. */
+            private def publish(worker: Int) {
+                val ring = workers.rings(worker)
+                val batch = packets(worker)
+                val hi = ring.next(cursors(worker))
+                val lo = hi - cursors(worker) + 1
+                var i = 0
+                while (i < cursors(worker)) {
+                    ring.get(lo + i).packet = batch(i)
+                    batch(i) = null
+                    i += 1
+                }
+                ring.publish(lo, hi)
+            }
+
             override def endBatch() {
                 var i = 0
                 while (i < NUM_WORKERS) {
@@ -16,7 +16,7 @@
 package org.midonet.midolman.management
 
 import java.lang.management._
-import java.util.Collections
+import java.util.{Collections, HashSet}
 import javax.management._
 
 import com.typesafe.scalalogging.Logger
@@ -28,20 +28,24 @@ import org.midonet.odp.flows.FlowStats
 object Metering extends MeteringMXBean {
     val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
 
-    private val ZERO = new FlowStats
-    private var registry: MeterRegistry = null
+    /* one registry per flow controller shard, meters are added up */
+    @volatile private var registries = List.empty[MeterRegistry]
 
     override def listMeters = {
-        val keys = Collections.list(registry.meters.keys)
+        val keys = new HashSet[String]()
+        for (registry <- registries)
+            keys.addAll(Collections.list(registry.meters.keys))
         keys.toArray(new Array[String](keys.size()))
     }
 
     override def getMeter(name: String) = {
-        val meter = registry.meters.get(name)
-        if (meter ne null)
-            meter
-        else
-            ZERO
+        val stats = new FlowStats
+        for (registry <- registries) {
+            val meter = registry.meters.get(name)
+            if (meter ne null)
+                stats.add(meter)
+        }
+        stats
     }
 
     /* this flag prevents multiple registrations on the same jvm. this would
@@ -50,7 +54,7 @@ object Metering extends MeteringMXBean {
 
     def registerAsMXBean(meters: MeterRegistry) = this.synchronized {
         try {
-            registry = meters
+            registries = if (meters ne null) List(meters) else Nil
             if ((meters ne null) && !registered) {
                 ManagementFactory.getPlatformMBeanServer.registerMBean(this,
                     new ObjectName(MeteringMXBean.NAME))
@@ -61,4 +65,12 @@ object Metering extends MeteringMXBean {
                 log.error("Failed to register metering JMX bean", e)
         }
     }
+
+    def addMeters(meters: MeterRegistry) = this.synchronized {
+        registries = meters :: registries
+    }
+
+    def removeMeters(meters: MeterRegistry) = this.synchronized {
+        registries = registries filterNot (_ eq meters)
+    }
 }
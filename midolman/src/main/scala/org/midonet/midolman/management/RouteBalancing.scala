@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.lang.management._
+import java.lang.{Long => JLong}
+import java.util.{HashMap, List => JList, Map => JMap, UUID}
+import java.util.concurrent.ConcurrentHashMap
+import javax.management._
+
+import com.codahale.metrics.Counter
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.layer3.{EqualCostRoutes, Route}
+import org.midonet.packets.{IPv4Addr, IPv6Subnet}
+
+object RouteBalancing extends RouteBalancingMXBean {
+    val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
+
+    /* The routes with the same destination prefix in a router */
+    private case class RouteGroup(routerId: UUID, dstAddr: Int, dstLength: Int,
+                                  dst6: IPv6Subnet) {
+        override def toString = {
+            val dst = if (dst6 ne null) dst6.toString
+                      else s"${IPv4Addr.intToString(dstAddr)}/$dstLength"
+            s"$routerId $dst"
+        }
+    }
+
+    /* Counters are striped, so that worker threads don't contend on them.
+     * The groups precomputed by the routing tables cache theirs, and the
+     * counter of a group is dropped when one of its routes is removed. */
+    private val hits = new ConcurrentHashMap[RouteGroup, Counter]()
+
+    private def groupOf(route: Route) =
+        RouteGroup(route.routerId, route.dstNetworkAddr,
+                   route.dstNetworkLength, route.dstSubnet6)
+
+    /** Counts a lookup balanced over a group of routes, to the given one. */
+    def hit(routes: JList[Route], route: Route): Unit = routes match {
+        case group: EqualCostRoutes =>
+            var counter = group.hits
+            if (counter eq null) {
+                counter = counterOf(route)
+                group.hits = counter
+            }
+            counter.inc()
+        case _ =>
+            counterOf(route).inc()
+    }
+
+    /** Forgets the lookups balanced over the group of a removed route. */
+    def routeRemoved(route: Route): Unit =
+        hits.remove(groupOf(route))
+
+    private def counterOf(route: Route): Counter = {
+        val group = groupOf(route)
+        var counter = hits.get(group)
+        if (counter eq null) {
+            val newCounter = new Counter()
+            counter = hits.putIfAbsent(group, newCounter)
+            if (counter eq null)
+                counter = newCounter
+        }
+        counter
+    }
+
+    override def getRouteGroupHits: JMap[String, JLong] = {
+        val result = new HashMap[String, JLong]()
+        val it = hits.entrySet().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            result.put(entry.getKey.toString, entry.getValue.getCount)
+        }
+        result
+    }
+
+    /* The counters are reset rather than dropped, since the groups of the
+     * routing tables keep using theirs. */
+    override def resetRouteGroupHits(): Unit = {
+        val it = hits.values().iterator()
+        while (it.hasNext) {
+            val counter = it.next()
+            counter.dec(counter.getCount)
+        }
+    }
+
+    /* this flag prevents multiple registrations on the same jvm. this would
+     * happen on unit tests */
+    private var registered = false
+
+    def registerAsMXBean() = this.synchronized {
+        try {
+            if (!registered) {
+                ManagementFactory.getPlatformMBeanServer.registerMBean(this,
+                    new ObjectName(RouteBalancingMXBean.NAME))
+                registered = true
+            }
+        } catch {
+            case e: Exception =>
+                log.error("Failed to register route balancing JMX bean", e)
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+/**
+ * Counters of the flow state writes to Cassandra, shared by all the
+ * FlowStateStorage instances created from the same registry.
+ */
+class FlowStateStorageMetrics(val registry: MetricRegistry) {
+
+    val writesQueued = registry.counter(name(
+        classOf[PacketPipelineCounter], "flowStateWritesQueued"))
+
+    val writesSent = registry.counter(name(
+        classOf[PacketPipelineCounter], "flowStateWritesSent"))
+
+    val writesDropped = registry.counter(name(
+        classOf[PacketPipelineCounter], "flowStateWritesDropped"))
+
+    val writesFailed = registry.counter(name(
+        classOf[PacketPipelineCounter], "flowStateWritesFailed"))
+}
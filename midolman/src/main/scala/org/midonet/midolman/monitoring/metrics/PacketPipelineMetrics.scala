@@ -42,10 +42,22 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
+    val packetContextsAllocated = registry.meter(name(
+        classOf[PacketPipelineMeter], "packetContextsAllocated", "contexts"))
+
     val liveSimulations = registry.register(name(
         classOf[PacketPipelineGauge], "liveSimulations"),
         new Gauge[Long]{ override def getValue = 0 })
 
+    val statesReplicated = registry.meter(name(
+        classOf[PacketPipelineMeter], "statesReplicated", "states"))
+
+    val statePacketsSent = registry.meter(name(
+        classOf[PacketPipelineMeter], "statePacketsSent", "packets"))
+
+    val stateBytesSent = registry.meter(name(
+        classOf[PacketPipelineMeter], "stateBytesSent", "bytes"))
+
     val wildcardTableHitLatency = registry.histogram(name(
         classOf[PacketPipelineHistogram], "wildcardTableHitLatency"))
 
@@ -72,6 +84,14 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    /* The packets and bytes sent per replicated connection state can be
+     * derived from these meters. */
+    def stateReplicated(states: Int, packets: Int, bytes: Int) {
+        statesReplicated.mark(states)
+        statePacketsSent.mark(packets)
+        stateBytesSent.mark(bytes)
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
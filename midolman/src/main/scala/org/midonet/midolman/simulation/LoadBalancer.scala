@@ -21,12 +21,57 @@ import akka.actor.ActorSystem
 
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.topology.VirtualTopologyActor.tryAsk
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPAddr, IPv4Addr, TCP}
 import org.midonet.sdn.flows.FlowTagger
 
 object LoadBalancer {
     val simpleAcceptRuleResult = new RuleResult(RuleResult.Action.ACCEPT, null)
     val simpleContinueRuleResult = new RuleResult(RuleResult.Action.CONTINUE, null)
     val simpleDropRuleResult = new RuleResult(RuleResult.Action.DROP, null)
+
+    /* A read-only, open addressed map from longs to VIPs, with linear
+     * probing. The first VIP added for a key is kept. */
+    private final class VipIndex(entries: Seq[(Long, VIP)]) {
+        private val capacity = {
+            var c = 2
+            while (c < entries.size * 2) c <<= 1
+            c
+        }
+        private val mask = capacity - 1
+        private val keys = new Array[Long](capacity)
+        private val values = new Array[VIP](capacity)
+
+        for ((key, vip) <- entries) {
+            var i = slot(key)
+            while ((values(i) ne null) && keys(i) != key)
+                i = (i + 1) & mask
+            if (values(i) eq null) {
+                keys(i) = key
+                values(i) = vip
+            }
+        }
+
+        private def slot(key: Long): Int = {
+            val h = key * 0x9e3779b97f4a7c15L
+            (h ^ (h >>> 32)).toInt & mask
+        }
+
+        def get(key: Long): VIP = {
+            var i = slot(key)
+            while (values(i) ne null) {
+                if (keys(i) == key)
+                    return values(i)
+                i = (i + 1) & mask
+            }
+            null
+        }
+    }
+
+    private def addressKey(address: Int): Long = address & 0xffffffffL
+
+    private def serviceKey(address: Int, port: Int): Long =
+        (address.toLong << 32) | (port & 0xffffffffL)
 }
 
 class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
@@ -39,6 +84,19 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
     val hasStickyVips: Boolean = vips.exists(_.isStickySourceIP)
     val hasNonStickyVips: Boolean = vips.exists(!_.isStickySourceIP)
 
+    /* The VIPs that packets can match, indexed by address and by address
+     * and port. Inbound packets are looked up by destination and return
+     * packets, which were reverse DNATed to the VIP, by source. */
+    private val activeVips = vips filter { vip =>
+        vip.adminStateUp && (vip.address ne null)
+    }
+    private val vipsByAddress = new VipIndex(activeVips map { vip =>
+        (addressKey(vip.address.toInt), vip)
+    })
+    private val vipsByService = new VipIndex(activeVips map { vip =>
+        (serviceKey(vip.address.toInt, vip.protocolPort), vip)
+    })
+
     def processInbound(context: PacketContext)(implicit actorSystem: ActorSystem)
     : RuleResult = {
 
@@ -116,23 +174,34 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
         }
     }
 
-    private def findVip(context: PacketContext): VIP = {
-        var i = 0
-        while (i < vips.size) {
-            if (vips(i).matches(context))
-                return vips(i)
-            i += 1
-        }
-        null
+    /* The lookups read the fields of the match as VIP.matches and
+     * VIP.matchesReturn would when tried on every VIP in order, so that the
+     * resulting flows are as wild. */
+    private[midolman] def findVip(context: PacketContext): VIP = {
+        val pktMatch = context.wcmatch
+        if (activeVips.isEmpty)
+            null
+        else
+            find(pktMatch, pktMatch.getNetworkDstIP, isReturn = false)
     }
 
-    private def findVipReturn(context: PacketContext): VIP = {
-        var i = 0
-        while (i < vips.size) {
-            if (vips(i).matchesReturn(context))
-                return vips(i)
-            i += 1
-        }
-        null
+    private[midolman] def findVipReturn(context: PacketContext): VIP = {
+        val pktMatch = context.wcmatch
+        if (activeVips.isEmpty)
+            null
+        else
+            find(pktMatch, pktMatch.getNetworkSrcIP, isReturn = true)
     }
+
+    private def find(pktMatch: FlowMatch, ip: IPAddr, isReturn: Boolean): VIP =
+        ip match {
+            case addr: IPv4Addr if vipsByAddress.get(addressKey(addr.toInt)) ne null =>
+                val port = if (isReturn) pktMatch.getSrcPort
+                           else pktMatch.getDstPort
+                val vip = vipsByService.get(serviceKey(addr.toInt, port))
+                if ((vip ne null) &&
+                    pktMatch.getNetworkProto == TCP.PROTOCOL_NUMBER) vip
+                else null
+            case _ => null
+        }
 }
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.simulation
 
-import java.util.{Arrays, ArrayList, Set => JSet, UUID}
+import java.util.{ArrayList, Set => JSet, UUID}
 import scala.collection.JavaConversions._
 import scala.collection.mutable
 
@@ -55,7 +55,9 @@ trait FlowContext extends Clearable { this: PacketContext =>
     val flowActions = new ArrayList[FlowAction]()
     // This Set stores the tags by which the flow may be indexed.
     // The index can be used to remove flows associated with the given tag.
-    val flowTags = mutable.Set[FlowTag]()
+    // It is handed over to the FlowController along with the wildcard flow,
+    // so it is replaced rather than cleared when the context is recycled.
+    var flowTags = mutable.Set[FlowTag]()
     var hardExpirationMillis = 0
     var idleExpirationMillis = PacketContext.DEFAULT_IDLE_EXPIRATION_MILLIS
 
@@ -64,6 +66,7 @@ trait FlowContext extends Clearable { this: PacketContext =>
     override def clear(): Unit = {
         virtualFlowActions.clear()
         flowActions.clear()
+        releaseFlowTagsAndCallbacks()
         flowTags.clear()
         hardExpirationMillis = 0
         idleExpirationMillis = PacketContext.DEFAULT_IDLE_EXPIRATION_MILLIS
@@ -153,9 +156,8 @@ trait FlowContext extends Clearable { this: PacketContext =>
         }
 
     private def diffIcmp(): Unit = {
-        val icmpData = wcmatch.getIcmpData
-        if ((icmpData ne null) &&
-            !Arrays.equals(icmpData, origMatch.getIcmpData)) {
+        val icmpData = wcmatch.getIcmpDataView
+        if ((icmpData ne null) && icmpData != origMatch.getIcmpDataView) {
 
             val icmpType = wcmatch.getSrcPort
             if (icmpType == ICMP.TYPE_PARAMETER_PROBLEM ||
@@ -197,10 +199,15 @@ trait FlowContext extends Clearable { this: PacketContext =>
  * used to pass state between different simulation stages, or between virtual
  * devices.
  */
-class PacketContext(val cookie: Int,
-                    val packet: Packet,
-                    val origMatch: FlowMatch,
-                    val egressPort: UUID = null) extends Clearable with FlowContext with StateContext {
+class PacketContext(private var _cookie: Int,
+                    private var _packet: Packet,
+                    private var _origMatch: FlowMatch,
+                    private var _egressPort: UUID = null) extends Clearable with FlowContext with StateContext {
+    def cookie = _cookie
+    def packet = _packet
+    def origMatch = _origMatch
+    def egressPort = _egressPort
+
     var tracing: Boolean = false
     var log = PacketContext.defaultLog
 
@@ -225,7 +232,11 @@ class PacketContext(val cookie: Int,
     var packetEmitter: PacketEmitter = _
 
     // Stores the callback to call when this flow is removed.
-    val flowRemovedCallbacks = new ArrayList[Callback0]()
+    var flowRemovedCallbacks = new ArrayList[Callback0]()
+
+    // Whether the flow tags and the flow removed callbacks were handed over
+    // to the FlowController, and thus can't be reused for another packet.
+    private var flowTagsAndCallbacksInUse = false
     def addFlowRemovedCallback(cb: Callback0): Unit = {
         flowRemovedCallbacks.add(cb)
     }
@@ -253,6 +264,48 @@ class PacketContext(val cookie: Int,
         this.packetEmitter = packetEmitter
     }
 
+    /**
+     * Re-initializes this PacketContext so that it can be reused to process
+     * another packet, leaving it in the same state as a newly created one.
+     */
+    def reset(cookie: Int, packet: Packet, origMatch: FlowMatch,
+              egressPort: UUID): Unit = {
+        clear()
+        flowRemovedCallbacks.clear()
+        _cookie = cookie
+        _packet = packet
+        _origMatch = origMatch
+        _egressPort = egressPort
+        wcmatch.reset(origMatch)
+        tracing = false
+        log = PacketContext.defaultLog
+        portGroups = null
+        lastInvalidation = 0
+        idle = true
+        runs = 0
+        inPortId = null
+        outPortId = null
+        outPorts.clear()
+        inputPort = null
+        flowDirection = null
+    }
+
+    /**
+     * Marks the flow tags and the flow removed callbacks as being owned by
+     * the FlowController, which keeps them for the lifetime of the flow.
+     */
+    def handOverFlowTagsAndCallbacks(): Unit =
+        flowTagsAndCallbacksInUse = true
+
+    /* Gives this context new flow tags and flow removed callbacks if the
+     * FlowController holds the current ones, which must not be cleared. */
+    private[simulation] def releaseFlowTagsAndCallbacks(): Unit =
+        if (flowTagsAndCallbacksInUse) {
+            flowTags = mutable.Set[FlowTag]()
+            flowRemovedCallbacks = new ArrayList[Callback0]()
+            flowTagsAndCallbacksInUse = false
+        }
+
     def prepareForSimulation(lastInvalidationSeen: Long) {
         idle = false
         runs += 1
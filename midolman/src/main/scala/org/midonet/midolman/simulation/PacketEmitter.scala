@@ -35,7 +35,8 @@ class PacketEmitter(queue: Queue[PacketEmitter.GeneratedPacket],
 
     def schedule(genPacket: GeneratedPacket): Boolean =
         if (queue.offer(genPacket)) {
-            alert ! CheckBackchannels
+            if (alert ne null)
+                alert ! CheckBackchannels
             true
         } else {
             false
@@ -16,33 +16,75 @@
 
 package org.midonet.midolman.simulation
 
-import java.util.concurrent.atomic.AtomicLong
+import java.util.{List => JList}
 
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.layer3.Route
+import org.midonet.midolman.management.RouteBalancing
 import org.midonet.midolman.topology.RoutingTableWrapper
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.IPAddr
 
+object RouteBalancer {
+
+    /**
+     * Chooses one of the routes for a connection with rendezvous hashing:
+     * each route scores the connection by hashing it together with its next
+     * hop, and the route with the highest score wins. The choice doesn't
+     * depend on the order of the routes, and adding or removing a route only
+     * moves the connections that route wins or had won.
+     */
+    def choose(routes: JList[Route], connectionHash: Int): Route = {
+        var best: Route = null
+        var bestScore = 0
+        var i = 0
+        while (i < routes.size) {
+            val rt = routes.get(i)
+            val score = mix(connectionHash ^ mix(nextHopHash(rt)))
+            if ((best eq null) || score > bestScore) {
+                best = rt
+                bestScore = score
+            }
+            i += 1
+        }
+        best
+    }
+
+    private def nextHopHash(rt: Route): Int = {
+        val port = if (rt.nextHopPort ne null) rt.nextHopPort.hashCode else 0
+        31 * port + rt.nextHopGateway
+    }
+
+    /* The finalizer of MurmurHash3 */
+    private def mix(hash: Int): Int = {
+        var h = hash
+        h ^= h >>> 16
+        h *= 0x85ebca6b
+        h ^= h >>> 13
+        h *= 0xc2b2ae35
+        h ^ (h >>> 16)
+    }
+}
+
 /**
  * Handles lookups on the routing table. If multiple routes match, chooses
- * one in a pseudo-random way, to provide basic balancing.
+ * one by hashing the connection of the packet, so that the packets of a
+ * connection take the same route, also after its flows are invalidated.
  */
 class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
-    val lookups: AtomicLong = new AtomicLong()
 
     def lookup(mmatch: FlowMatch, logger: Logger): Route = {
         val routes = rTable.lookup(mmatch)
         routes.size match {
             case 0 => null
             case 1 =>
-                logger.debug("routing to {}", routes.head)
-                routes.head
-            case size =>
-                val pos = (lookups.getAndIncrement % size).toInt
-                val ret = routes.slice(pos, pos+1).head
-                logger.debug("got multiple routes: {}, round robin to {}",
+                logger.debug("routing to {}", routes.get(0))
+                routes.get(0)
+            case _ =>
+                val ret = RouteBalancer.choose(routes, mmatch.seenConnectionHash())
+                RouteBalancing.hit(routes, ret)
+                logger.debug("got multiple routes: {}, hashed to {}",
                              routes, ret)
                 ret
         }
@@ -20,13 +20,14 @@ import java.util.UUID
 
 import akka.actor.ActorSystem
 
+import org.midonet.Util
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateTransaction, OffHeapFlowStateTable}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -55,6 +56,96 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * Lays out ConnTrackKeys as 64 byte records for an OffHeapFlowStateTable:
+     * the address family and protocol, the ports, the two addresses, padded
+     * to the width of an IPv6 address, and the device id.
+     */
+    object ConnTrackRecordCodec
+            extends OffHeapFlowStateTable.RecordCodec[ConnTrackKey, ConnTrackValue] {
+        private val unsafe = Util.getUnsafe
+
+        private final val FAMILY = 0
+        private final val PROTO = 1
+        private final val SRC_PORT = 4
+        private final val DST_PORT = 8
+        private final val SRC = 16
+        private final val DST = 32
+        private final val DEVICE = 48
+
+        override def keyWidth = 64
+
+        override def valueWidth = 1
+
+        override def hash(key: ConnTrackKey) = key.hashCode()
+
+        override def writeKey(key: ConnTrackKey, address: Long): Unit = {
+            unsafe.putByte(address + FAMILY, family(key.networkSrc))
+            unsafe.putByte(address + PROTO, key.networkProtocol)
+            unsafe.putInt(address + SRC_PORT, key.icmpIdOrTransportSrc)
+            unsafe.putInt(address + DST_PORT, key.icmpIdOrTransportDst)
+            writeAddr(key.networkSrc, address + SRC)
+            writeAddr(key.networkDst, address + DST)
+            unsafe.putLong(address + DEVICE, key.deviceId.getMostSignificantBits)
+            unsafe.putLong(address + DEVICE + 8, key.deviceId.getLeastSignificantBits)
+        }
+
+        override def keyEquals(key: ConnTrackKey, address: Long): Boolean =
+            unsafe.getInt(address + SRC_PORT) == key.icmpIdOrTransportSrc &&
+            unsafe.getInt(address + DST_PORT) == key.icmpIdOrTransportDst &&
+            unsafe.getByte(address + PROTO) == key.networkProtocol &&
+            unsafe.getByte(address + FAMILY) == family(key.networkSrc) &&
+            addrEquals(key.networkSrc, address + SRC) &&
+            addrEquals(key.networkDst, address + DST) &&
+            unsafe.getLong(address + DEVICE) == key.deviceId.getMostSignificantBits &&
+            unsafe.getLong(address + DEVICE + 8) == key.deviceId.getLeastSignificantBits
+
+        override def readKey(address: Long): ConnTrackKey = {
+            val v6 = unsafe.getByte(address + FAMILY) == 6
+            ConnTrackKey(readAddr(v6, address + SRC),
+                         unsafe.getInt(address + SRC_PORT),
+                         readAddr(v6, address + DST),
+                         unsafe.getInt(address + DST_PORT),
+                         unsafe.getByte(address + PROTO),
+                         new UUID(unsafe.getLong(address + DEVICE),
+                                  unsafe.getLong(address + DEVICE + 8)))
+        }
+
+        override def writeValue(value: ConnTrackValue, address: Long): Unit =
+            unsafe.putByte(address, if (value.booleanValue()) 1 else 0)
+
+        override def readValue(address: Long): ConnTrackValue =
+            if (unsafe.getByte(address) != 0) FORWARD_FLOW else RETURN_FLOW
+
+        private def family(ip: IPAddr): Byte = ip match {
+            case _: IPv6Addr => 6
+            case _ => 4
+        }
+
+        private def writeAddr(ip: IPAddr, address: Long): Unit = ip match {
+            case ip6: IPv6Addr =>
+                unsafe.putLong(address, ip6.upperWord)
+                unsafe.putLong(address + 8, ip6.lowerWord)
+            case ip4: IPv4Addr =>
+                unsafe.putLong(address, ip4.addr & 0xffffffffL)
+                unsafe.putLong(address + 8, 0L)
+        }
+
+        private def addrEquals(ip: IPAddr, address: Long): Boolean = ip match {
+            case ip6: IPv6Addr =>
+                unsafe.getLong(address) == ip6.upperWord &&
+                unsafe.getLong(address + 8) == ip6.lowerWord
+            case ip4: IPv4Addr =>
+                unsafe.getLong(address) == (ip4.addr & 0xffffffffL)
+        }
+
+        private def readAddr(v6: Boolean, address: Long): IPAddr =
+            if (v6)
+                new IPv6Addr(unsafe.getLong(address), unsafe.getLong(address + 8))
+            else
+                new IPv4Addr(unsafe.getLong(address).toInt)
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
@@ -91,6 +182,11 @@ object ConnTrackState {
  * when it ingressed. The return flow key, however, is built using the modified
  * flow match, which, the source fields swapped with the destination fields,
  * translates to the original flow match when the return flow ingresses.
+ *
+ * A forward packet that closes a TCP connection references the keys with a
+ * short expiration, so that they are forgotten soon after the connection's
+ * flows are gone. Return packets only read the state, so it is the FIN or
+ * RST of the forward direction that shortens it.
  */
 trait ConnTrackState extends FlowState { this: PacketContext =>
     import ConnTrackState._
@@ -131,6 +227,10 @@ trait ConnTrackState extends FlowState { this: PacketContext =>
         if (isConnectionTracked && (flowDirection ne RETURN_FLOW)) {
             val returnKey = EgressConnTrackKey(wcmatch, egressDeviceId)
             addFlowTag(returnKey)
+            if (isClosingConnection) {
+                connKey.expiresAfter = FlowState.CLOSED_EXPIRATION
+                returnKey.expiresAfter = FlowState.CLOSED_EXPIRATION
+            }
             if (flowDirection eq null) { // A new forward flow
                 conntrackTx.putAndRef(connKey, FORWARD_FLOW)
                 conntrackTx.putAndRef(returnKey, RETURN_FLOW)
@@ -21,6 +21,8 @@ import scala.concurrent.duration._
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.flows.FlowKeyTCPFlags
+import org.midonet.packets.TCP
 import org.midonet.sdn.flows.FlowTagger.FlowStateTag
 import org.midonet.sdn.state.IdleExpiration
 import org.midonet.util.Clearable
@@ -28,6 +30,11 @@ import org.midonet.util.Clearable
 object FlowState {
     val DEFAULT_EXPIRATION = 60 seconds
 
+    /* The expiration of the state of a TCP connection once it is closed */
+    val CLOSED_EXPIRATION = 5 seconds
+
+    private val CLOSING_FLAGS = TCP.Flag.Fin.bit | TCP.Flag.Rst.bit
+
     trait FlowStateKey extends FlowStateTag with IdleExpiration {
         var expiresAfter: Duration = DEFAULT_EXPIRATION
     }
@@ -36,4 +43,27 @@ object FlowState {
  * Base trait for flow state management during a simulation. Implementers of
  * this trait must ensure it is stackable with other state traits.
  */
-trait FlowState extends Clearable { this: PacketContext => }
+trait FlowState extends Clearable { this: PacketContext =>
+    import FlowState._
+
+    /**
+     * Whether the packet closes its TCP connection with a FIN or a RST. The
+     * datapath matches the TCP flags exactly, so such a packet misses the
+     * flows of the connection and is always simulated. The state it refers
+     * to is then expired soon after it is released, instead of lingering for
+     * the idle expiration of an open connection.
+     */
+    def isClosingConnection: Boolean = {
+        val keys = origMatch.getKeys
+        var i = 0
+        while (i < keys.size()) {
+            keys.get(i) match {
+                case flags: FlowKeyTCPFlags =>
+                    return (flags.flags & CLOSING_FLAGS) != 0
+                case _ =>
+            }
+            i += 1
+        }
+        false
+    }
+}
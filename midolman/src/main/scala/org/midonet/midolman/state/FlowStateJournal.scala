@@ -0,0 +1,548 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel.MapMode
+import java.util.{Collection, HashMap => JHashMap, Iterator => JIterator,
+                  Map => JMap, UUID}
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory,
+                             Future => JFuture}
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
+
+import akka.actor.ActorSystem
+import org.slf4j.{Logger, LoggerFactory}
+import sun.nio.ch.DirectBuffer
+
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowState.FlowStateKey
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr}
+
+object FlowStateJournal {
+    private[state] val log: Logger = LoggerFactory.getLogger(classOf[FlowStateJournal])
+
+    val MAGIC = 0x4d4e4653
+    val VERSION = 1
+
+    /* The header holds the magic, the version and the offset at which the
+     * committed records end. */
+    val HEADER_SIZE = 64
+    private[state] val COMMITTED = 8
+
+    /* Records have a fixed width, so that appending one has a fixed cost */
+    val RECORD_SIZE = 96
+    private[state] val KIND = 0
+    private[state] val REF = 1
+    private[state] val PROTO = 2
+    private[state] val FAMILY_OR_TYPE = 3
+    private[state] val SRC_PORT = 4
+    private[state] val DST_PORT = 8
+    private[state] val TRANSLATE_PORT = 12
+    private[state] val EXPIRES_AT = 16
+    private[state] val PORT = 24
+    private[state] val DEVICE = 40
+    private[state] val SRC = 56
+    private[state] val DST = 72
+    private[state] val TRANSLATE_IP = 88
+
+    val CONNTRACK: Byte = 1
+    val NAT: Byte = 2
+
+    val STRONG: Byte = 0
+    val WEAK: Byte = 1
+
+    val SUFFIX = ".journal"
+    val BASE = "flow_state.base"
+
+    /* Compacts the full segments of all the journals, one at a time */
+    private[state] lazy val compactor = Executors.newSingleThreadExecutor(
+        new ThreadFactory {
+            override def newThread(r: Runnable): Thread = {
+                val t = new Thread(r, "flow-state-journal-compactor")
+                t.setDaemon(true)
+                t
+            }
+        })
+
+    private[state] val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+        FWD_STICKY_DNAT, REV_SNAT, REV_DNAT, REV_STICKY_DNAT)
+
+    /**
+     * A live entry read out of a journal.
+     */
+    case class Entry(ref: Byte, port: UUID, key: FlowStateKey,
+                     binding: NatBinding, expiresAt: Long)
+
+    /**
+     * Reads the live entries of all the journals in a directory and merges
+     * them into a single base journal, which replaces them. Returns the
+     * entries, keeping the latest expiration of duplicated ones.
+     */
+    def compactDirectory(dir: File, size: Int, now: Long): Collection[Entry] = {
+        if (!dir.isDirectory && !dir.mkdirs())
+            throw new IOException(s"Cannot create flow state directory $dir")
+
+        val files = dir.listFiles() filter (_.getName.endsWith(SUFFIX))
+        val entries = new JHashMap[(Byte, UUID, FlowStateKey), Entry]()
+        for (file <- files) {
+            try {
+                val segment = new JournalSegment(file, 0)
+                segment.readInto(entries, now)
+                segment.unmap()
+            } catch {
+                case e: IOException =>
+                    log.warn(s"Ignoring unreadable flow state journal $file", e)
+            }
+        }
+
+        val tmp = new File(dir, BASE + ".tmp")
+        tmp.delete()
+        val base = new JournalSegment(
+            tmp, Math.max(size, HEADER_SIZE + entries.size * RECORD_SIZE))
+        base.appendAll(entries.values())
+        base.close()
+        base.unmap()
+        // the rename atomically replaces the previous base, the journals are
+        // only deleted once their entries are safe in the new one
+        val baseFile = new File(dir, BASE + SUFFIX)
+        if (!tmp.renameTo(baseFile))
+            throw new IOException(s"Cannot rename flow state journal $tmp")
+        for (file <- files if file != baseFile)
+            file.delete()
+
+        log.info(s"Loaded ${entries.size} flow state entries from $dir")
+        entries.values()
+    }
+
+    /**
+     * Groups entries by port, the way FlowStateStorage fetches them.
+     */
+    def byPort(entries: Collection[Entry]): JMap[UUID, FlowStateBatch] = {
+        val ports = new ConcurrentHashMap[UUID, FlowStateBatch]()
+        val it = entries.iterator()
+        while (it.hasNext) {
+            val e = it.next()
+            var batch = ports.get(e.port)
+            if (batch eq null) {
+                batch = EmptyFlowStateBatch()
+                ports.put(e.port, batch)
+            }
+            (e.key, e.ref) match {
+                case (k: ConnTrackKey, STRONG) => batch.strongConnTrack.add(k)
+                case (k: ConnTrackKey, _) => batch.weakConnTrack.add(k)
+                case (k: NatKey, STRONG) => batch.strongNat.put(k, e.binding)
+                case (k: NatKey, _) => batch.weakNat.put(k, e.binding)
+            }
+        }
+        ports
+    }
+
+    /**
+     * The time at which the last of the given entries expires.
+     */
+    def expiration(entries: Collection[Entry]): Long = {
+        var latest = 0L
+        val it = entries.iterator()
+        while (it.hasNext)
+            latest = Math.max(latest, it.next().expiresAt)
+        latest
+    }
+
+    private[state] def ordinal(keyType: KeyType): Byte = keyType match {
+        case FWD_SNAT => 0
+        case FWD_DNAT => 1
+        case FWD_STICKY_DNAT => 2
+        case REV_SNAT => 3
+        case REV_DNAT => 4
+        case REV_STICKY_DNAT => 5
+    }
+}
+
+/**
+ * A memory-mapped file of fixed width flow state records, whose header tells
+ * where the committed records end.
+ *
+ * This class is *NOT* thread safe.
+ */
+private[state] class JournalSegment(val file: File, minSize: Int) {
+    import FlowStateJournal._
+
+    private var capacity = 0
+    private var buffer: MappedByteBuffer = _
+    private[state] var position = HEADER_SIZE
+
+    {
+        val raf = new RandomAccessFile(file, "rw")
+        try {
+            val fileSize = Math.max(raf.length(),
+                                    Math.max(minSize, HEADER_SIZE + RECORD_SIZE)).toInt
+            buffer = raf.getChannel.map(MapMode.READ_WRITE, 0, fileSize)
+            capacity = fileSize - (fileSize - HEADER_SIZE) % RECORD_SIZE
+        } finally {
+            raf.close()
+        }
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+            position = buffer.getLong(COMMITTED).toInt
+            if (position < HEADER_SIZE || position > capacity)
+                throw new IOException(s"Corrupted flow state journal $file")
+        } else {
+            buffer.putInt(0, MAGIC)
+            buffer.putInt(4, VERSION)
+            position = HEADER_SIZE
+            buffer.putLong(COMMITTED, position)
+        }
+    }
+
+    def committedRecords: Int =
+        (buffer.getLong(COMMITTED).toInt - HEADER_SIZE) / RECORD_SIZE
+
+    def isFull: Boolean = position + RECORD_SIZE > capacity
+
+    def commit(): Unit =
+        buffer.putLong(COMMITTED, position)
+
+    def close(): Unit = {
+        commit()
+        buffer.force()
+    }
+
+    /* Releases the mapping of the file, the segment can't be used after. */
+    def unmap(): Unit = {
+        buffer match {
+            case b: DirectBuffer if b.cleaner ne null => b.cleaner.clean()
+            case _ =>
+        }
+        buffer = null
+    }
+
+    private def reserve(): Int = {
+        if (isFull)
+            throw new IOException(s"Flow state journal $file is full")
+        val offset = position
+        position += RECORD_SIZE
+        offset
+    }
+
+    def append(ref: Byte, port: UUID, k: ConnTrackKey, expiresAt: Long): Unit = {
+        val offset = reserve()
+        buffer.put(offset + KIND, CONNTRACK)
+        buffer.put(offset + REF, ref)
+        buffer.put(offset + PROTO, k.networkProtocol)
+        buffer.putInt(offset + SRC_PORT, k.icmpIdOrTransportSrc)
+        buffer.putInt(offset + DST_PORT, k.icmpIdOrTransportDst)
+        buffer.put(offset + FAMILY_OR_TYPE,
+                   if (k.networkSrc.isInstanceOf[IPv6Addr]) 6 else 4)
+        putAddr(offset + SRC, k.networkSrc)
+        putAddr(offset + DST, k.networkDst)
+        putHeader(offset, port, k.deviceId, expiresAt)
+    }
+
+    def append(ref: Byte, port: UUID, k: NatKey, v: NatBinding,
+               expiresAt: Long): Unit = {
+        val offset = reserve()
+        buffer.put(offset + KIND, NAT)
+        buffer.put(offset + REF, ref)
+        buffer.put(offset + PROTO, k.networkProtocol)
+        buffer.put(offset + FAMILY_OR_TYPE, ordinal(k.keyType))
+        buffer.putInt(offset + SRC_PORT, k.transportSrc)
+        buffer.putInt(offset + DST_PORT, k.transportDst)
+        buffer.putInt(offset + TRANSLATE_PORT, v.transportPort)
+        putAddr(offset + SRC, k.networkSrc)
+        putAddr(offset + DST, k.networkDst)
+        buffer.putInt(offset + TRANSLATE_IP, v.networkAddress.addr)
+        putHeader(offset, port, k.deviceId, expiresAt)
+    }
+
+    private def putHeader(offset: Int, port: UUID, device: UUID,
+                          expiresAt: Long): Unit = {
+        buffer.putLong(offset + EXPIRES_AT, expiresAt)
+        buffer.putLong(offset + PORT, port.getMostSignificantBits)
+        buffer.putLong(offset + PORT + 8, port.getLeastSignificantBits)
+        buffer.putLong(offset + DEVICE, device.getMostSignificantBits)
+        buffer.putLong(offset + DEVICE + 8, device.getLeastSignificantBits)
+    }
+
+    private def putAddr(offset: Int, ip: IPAddr): Unit = ip match {
+        case ip6: IPv6Addr =>
+            buffer.putLong(offset, ip6.upperWord)
+            buffer.putLong(offset + 8, ip6.lowerWord)
+        case ip4: IPv4Addr =>
+            buffer.putLong(offset, ip4.addr & 0xffffffffL)
+            buffer.putLong(offset + 8, 0L)
+    }
+
+    private def getAddr(offset: Int, v6: Boolean): IPAddr =
+        if (v6)
+            new IPv6Addr(buffer.getLong(offset), buffer.getLong(offset + 8))
+        else
+            new IPv4Addr(buffer.getLong(offset).toInt)
+
+    private def uuidAt(offset: Int) =
+        new UUID(buffer.getLong(offset), buffer.getLong(offset + 8))
+
+    private def read(offset: Int): Entry = {
+        val port = uuidAt(offset + PORT)
+        val device = uuidAt(offset + DEVICE)
+        val expiresAt = buffer.getLong(offset + EXPIRES_AT)
+        val ref = buffer.get(offset + REF)
+        buffer.get(offset + KIND) match {
+            case CONNTRACK =>
+                val v6 = buffer.get(offset + FAMILY_OR_TYPE) == 6
+                Entry(ref, port,
+                      ConnTrackKey(getAddr(offset + SRC, v6),
+                                   buffer.getInt(offset + SRC_PORT),
+                                   getAddr(offset + DST, v6),
+                                   buffer.getInt(offset + DST_PORT),
+                                   buffer.get(offset + PROTO), device),
+                      null, expiresAt)
+            case NAT =>
+                Entry(ref, port,
+                      NatKey(keyTypes(buffer.get(offset + FAMILY_OR_TYPE)),
+                             getAddr(offset + SRC, false).asInstanceOf[IPv4Addr],
+                             buffer.getInt(offset + SRC_PORT),
+                             getAddr(offset + DST, false).asInstanceOf[IPv4Addr],
+                             buffer.getInt(offset + DST_PORT),
+                             buffer.get(offset + PROTO), device),
+                      NatBinding(new IPv4Addr(buffer.getInt(offset + TRANSLATE_IP)),
+                                 buffer.getInt(offset + TRANSLATE_PORT)),
+                      expiresAt)
+            case kind =>
+                throw new IOException(s"Unknown flow state record type $kind")
+        }
+    }
+
+    /**
+     * Adds the committed entries of this segment that didn't expire to the
+     * given map, replacing the entries of the same key that expire earlier.
+     */
+    def readInto(entries: JMap[(Byte, UUID, FlowStateKey), Entry],
+                 now: Long): Unit = {
+        val limit = buffer.getLong(COMMITTED).toInt
+        var offset = HEADER_SIZE
+        while (offset < limit) {
+            val e = read(offset)
+            if (e.expiresAt > now) {
+                val id = (e.ref, e.port, e.key)
+                val old = entries.get(id)
+                if ((old eq null) || old.expiresAt <= e.expiresAt)
+                    entries.put(id, e)
+            }
+            offset += RECORD_SIZE
+        }
+    }
+
+    def appendAll(entries: Collection[Entry]): Unit = {
+        val it = entries.iterator()
+        while (it.hasNext) {
+            it.next() match {
+                case Entry(ref, port, k: ConnTrackKey, _, expiresAt) =>
+                    append(ref, port, k, expiresAt)
+                case Entry(ref, port, k: NatKey, v, expiresAt) =>
+                    append(ref, port, k, v, expiresAt)
+            }
+        }
+    }
+}
+
+/**
+ * An append-only journal of flow state keys, kept in memory-mapped files.
+ *
+ * Each touched key is appended as a fixed width record, tagged with the
+ * port that references it and its expiration time, and commit() publishes
+ * the records appended since the last commit by updating the header. Since
+ * the files are memory-mapped, committed records survive the agent process
+ * going away, without any system call on the write path.
+ *
+ * When the segment of the journal being appended to is full, appends move
+ * on to a new segment, and the full one is compacted on a background thread.
+ * Its live records are merged with those of the previous compactions into a
+ * new file, which replaces the compacted file of the journal before the
+ * segment is deleted. At any point, the files of the journal thus hold all
+ * its live records, possibly more than once.
+ *
+ * This class is *NOT* thread safe.
+ */
+class FlowStateJournal(val file: File, size: Int, now: () => Long) {
+    import FlowStateJournal._
+
+    private val prefix = file.getName.stripSuffix(SUFFIX)
+    private val compactedFile =
+        new File(file.getParentFile, prefix + ".compacted" + SUFFIX)
+    private var segments = 0
+    private var segment = new JournalSegment(file, size)
+    private var compaction: JFuture[_] = null
+
+    def committedRecords: Int = segment.committedRecords
+
+    /**
+     * Publishes the records appended since the last commit.
+     */
+    def commit(): Unit = segment.commit()
+
+    def close(): Unit = segment.close()
+
+    private def active: JournalSegment = {
+        if (segment.isFull) {
+            val full = segment
+            full.commit()
+            segments += 1
+            segment = new JournalSegment(
+                new File(file.getParentFile, s"$prefix.$segments$SUFFIX"), size)
+            compaction = compactor.submit(new Runnable {
+                override def run(): Unit = compact(full)
+            })
+        }
+        segment
+    }
+
+    def append(ref: Byte, port: UUID, k: ConnTrackKey, expiresAt: Long): Unit =
+        active.append(ref, port, k, expiresAt)
+
+    def append(ref: Byte, port: UUID, k: NatKey, v: NatBinding,
+               expiresAt: Long): Unit =
+        active.append(ref, port, k, v, expiresAt)
+
+    /* Waits for the compactions started so far to be over. */
+    private[state] def awaitCompaction(): Unit =
+        if (compaction ne null)
+            compaction.get()
+
+    /* Merges the live records of a full segment into the compacted file,
+     * replacing it, and deletes the segment. */
+    private def compact(full: JournalSegment): Unit = try {
+        val entries = new JHashMap[(Byte, UUID, FlowStateKey), Entry]()
+        val time = now()
+        if (compactedFile.exists()) {
+            val compacted = new JournalSegment(compactedFile, 0)
+            compacted.readInto(entries, time)
+            compacted.unmap()
+        }
+        full.readInto(entries, time)
+
+        val tmp = new File(compactedFile.getPath + ".tmp")
+        tmp.delete()
+        val compacted = new JournalSegment(
+            tmp, HEADER_SIZE + entries.size * RECORD_SIZE)
+        compacted.appendAll(entries.values())
+        compacted.close()
+        compacted.unmap()
+        if (!tmp.renameTo(compactedFile))
+            throw new IOException(s"Cannot rename flow state journal $tmp")
+
+        full.unmap()
+        full.file.delete()
+        log.debug(s"Compacted flow state journal ${full.file} into " +
+                  s"$compactedFile, holding ${entries.size} entries")
+    } catch {
+        case NonFatal(e) =>
+            log.warn(s"Failed to compact flow state journal ${full.file}", e)
+    }
+}
+
+/**
+ * FlowStateStorage: store flow state keys in a local, memory-mapped journal
+ * and fetch them from the journals of the previous run of the agent.
+ *
+ * Each instance appends to its own journal, and like the Cassandra backed
+ * storage is *NOT* thread safe. submit() only publishes the records
+ * appended since the last call, so its cost doesn't depend on the batch.
+ *
+ * The keys of the previous run are loaded when the factory is created, at
+ * startup, and are handed out when the ports that reference them are bound,
+ * before packets for them are processed. They are dropped once they have
+ * all expired, at storedUntil.
+ */
+class JournalFlowStateStorage(private[state] val journal: FlowStateJournal,
+                              stored: JMap[UUID, FlowStateBatch],
+                              now: () => Long = () => System.currentTimeMillis,
+                              storedUntil: Long = Long.MaxValue)
+        extends FlowStateStorage {
+    import FlowStateJournal._
+
+    private def stateOf(port: UUID) = {
+        if (now() >= storedUntil && !stored.isEmpty)
+            stored.clear()
+        val batch = stored.get(port)
+        if (batch eq null) EmptyFlowStateBatch() else batch
+    }
+
+    override def fetchStrongConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(stateOf(port).strongConnTrack)
+
+    override def fetchWeakConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(stateOf(port).weakConnTrack)
+
+    override def fetchStrongNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(stateOf(port).strongNat)
+
+    override def fetchWeakNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(stateOf(port).weakNat)
+
+    override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                                   weakRefs: JIterator[UUID]): Unit = {
+        val expiresAt = now() + k.expiresAfter.toMillis
+        if (strongRef ne null)
+            journal.append(STRONG, strongRef, k, expiresAt)
+        while (weakRefs.hasNext)
+            journal.append(WEAK, weakRefs.next(), k, expiresAt)
+    }
+
+    override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                             weakRefs: JIterator[UUID]): Unit = {
+        val expiresAt = now() + k.expiresAfter.toMillis
+        if (strongRef ne null)
+            journal.append(STRONG, strongRef, k, v, expiresAt)
+        while (weakRefs.hasNext)
+            journal.append(WEAK, weakRefs.next(), k, v, expiresAt)
+    }
+
+    override def submit(): Unit = journal.commit()
+}
+
+/**
+ * Creates JournalFlowStateStorage instances, each one writing to its own
+ * journal in the given directory. Creating the factory merges the journals
+ * left in the directory by the previous run of the agent.
+ */
+class JournalFlowStateStorageFactory(dir: File, journalSize: Int)
+        extends FlowStateStorageFactory {
+
+    private val entries = FlowStateJournal.compactDirectory(
+        dir, journalSize, System.currentTimeMillis)
+    private val stored = FlowStateJournal.byPort(entries)
+    private val storedUntil = FlowStateJournal.expiration(entries)
+    private val journals = new AtomicInteger(0)
+
+    override def create(): FlowStateStorage = {
+        val file = new File(dir, s"flow_state.${journals.getAndIncrement}" +
+                                 FlowStateJournal.SUFFIX)
+        file.delete()
+        new JournalFlowStateStorage(
+            new FlowStateJournal(file, journalSize, () => System.currentTimeMillis),
+            stored, storedUntil = storedUntil)
+    }
+}
@@ -16,17 +16,18 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.util.{ArrayDeque, ArrayList, HashMap => JHashMap, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
 
 import scala.collection.mutable
 
 import akka.actor.ActorSystem
-import com.google.protobuf.{CodedOutputStream, MessageLite}
+import com.google.protobuf.CodedOutputStream
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.FlowState.FlowStateKey
@@ -52,18 +53,20 @@ import org.midonet.util.functors.Callback0
  * Sample usage:
  *
  * <code>
- * replicator.accumulateNewKeys(natTx, conntrackTx, ingressPort, egressPort, null)
- * replicator.pushState()
- * natTx.commit()
- * conntrackTx.commit()
- *
- * natTable.expireIdleEntries(interval, replicator.natRemover)
- * conntrackTable.expireIdleEntries(interval, replicator.conntrackRemover)
+ * for each packet in a batch:
+ *     replicator.accumulateNewKeys(natTx, conntrackTx, ingressPort, egressPort, null)
+ *     natTx.commit()
+ *     conntrackTx.commit()
  * replicator.pushState()
  *
  * replicator.accept(packet)
  * </code>
  *
+ * The state accumulated for a batch of packets is coalesced per set of peer
+ * hosts: pushState() packs it into as few MTU sized messages as possible,
+ * splitting the states that wouldn't fit in a single message, and each key is
+ * sent at most once to the same peers within a batch.
+ *
  *          NOTES ON THREAD SAFETY
  *          **********************
  *
@@ -112,8 +115,21 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
+    /* The state accumulated since the last push, by set of peer hosts */
+    private class PeerBatch(val peers: JSet[UUID]) {
+        val states = new ArrayList[Proto.FlowState]()
+        val keys = new JHashSet[FlowStateKey]()
+    }
+    private[this] val peerBatches = new JHashMap[JSet[UUID], PeerBatch]()
+    private[this] val txKeys = new ArrayList[FlowStateKey]()
+    private[this] val txNatEntries = new ArrayList[Proto.NatEntry]()
+
     private[this] val hostId = uuidToProto(underlay.host.id)
+    private[this] var emptyMessageSize = 0
+    private[this] var currentMessageSize = 0
+    private[this] var statesPushed = 0
+    private[this] var packetsPushed = 0
+    private[this] var bytesPushed = 0
 
     /* Used for packet building
      * FIXME(guillermo) - use MTU
@@ -130,7 +146,7 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                            v: ConnTrackValue): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                txKeys.add(k)
             }
             log.debug("touch conntrack key: {}", k)
             storage.touchConnTrackKey(k, txIngressPort, txPorts.iterator())
@@ -149,7 +165,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                 log.debug("push nat key: {}", k)
                 txNatEntry.clear()
                 txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                txNatEntries.add(txNatEntry.build())
+                txKeys.add(k)
             }
             log.debug("touch nat key: {}", k)
             storage.touchNatKey(k, v, txIngressPort, txPorts.iterator())
@@ -168,31 +185,85 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
 
         /* We don't expect ACKs, seq is unused for now */
         currentMessage.setSeq(0x1)
+        emptyMessageSize = currentMessage.build().getSerializedSize
+        currentMessageSize = emptyMessageSize
     }
 
+    /* The batches of state fetched from storage that are being imported */
+    private class StateImport(batch: FlowStateBatch) {
+        private val strongConnTrack = batch.strongConnTrack.iterator()
+        private val weakConnTrack = batch.weakConnTrack.iterator()
+        private val strongNat = batch.strongNat.entrySet().iterator()
+        private val weakNat = batch.weakNat.entrySet().iterator()
+
+        def done: Boolean =
+            !strongConnTrack.hasNext && !weakConnTrack.hasNext &&
+            !strongNat.hasNext && !weakNat.hasNext
+
+        def run(maxKeys: Int): Int = {
+            var n = importConnTrack(strongConnTrack, ConnTrackState.FORWARD_FLOW, maxKeys)
+            n += importConnTrack(weakConnTrack, ConnTrackState.RETURN_FLOW, maxKeys - n)
+            n += importNat(strongNat, maxKeys - n)
+            n += importNat(weakNat, maxKeys - n)
+            n
+        }
+    }
+    private[this] val pendingImports = new ArrayDeque[StateImport]()
+
     def importFromStorage(batch: FlowStateBatch) {
-        importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.FORWARD_FLOW)
-        importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importNat(batch.strongNat.entrySet().iterator())
-        importNat(batch.weakNat.entrySet().iterator())
+        new StateImport(batch).run(Int.MaxValue)
     }
 
-    private def importConnTrack(keys: JIterator[ConnTrackKey], v: ConnTrackState.ConnTrackValue) {
-        while (keys.hasNext) {
+    /**
+     * Queues a batch of state fetched from storage, to be imported by
+     * successive calls to importSlice(), so that importing a large batch
+     * doesn't hold up the processing of packets.
+     */
+    def queueImport(batch: FlowStateBatch): Unit =
+        pendingImports.add(new StateImport(batch))
+
+    def hasPendingImports: Boolean = !pendingImports.isEmpty
+
+    /**
+     * Imports up to maxKeys of the queued state keys, returning the number
+     * of keys imported.
+     */
+    def importSlice(maxKeys: Int): Int = {
+        var n = 0
+        while (n < maxKeys && !pendingImports.isEmpty) {
+            val stateImport = pendingImports.peek()
+            n += stateImport.run(maxKeys - n)
+            if (stateImport.done)
+                pendingImports.poll()
+        }
+        n
+    }
+
+    private def importConnTrack(keys: JIterator[ConnTrackKey],
+                                v: ConnTrackState.ConnTrackValue,
+                                maxKeys: Int): Int = {
+        var n = 0
+        while (n < maxKeys && keys.hasNext) {
             val k = keys.next()
             log.debug("importing state key from storage: {}", k)
             conntrackTable.putAndRef(k, v)
             conntrackTable.unref(k)
+            n += 1
         }
+        n
     }
 
-    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]]) {
-        while (entries.hasNext) {
+    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]],
+                          maxKeys: Int): Int = {
+        var n = 0
+        while (n < maxKeys && entries.hasNext) {
             val e = entries.next()
             log.debug("importing state key from storage: {}", e.getKey)
             natTable.putAndRef(e.getKey, e.getValue)
             natTable.unref(e.getKey)
+            n += 1
         }
+        n
     }
 
     /**
@@ -233,8 +304,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         val hasPeers = !txPeers.isEmpty
 
         if (hasPeers) {
-            txState.clear()
-            resetCurrentMessage()
+            txKeys.clear()
+            txNatEntries.clear()
         }
 
         txIngressPort = ingressPort
@@ -245,11 +316,34 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
             buildMessage(ingressPort)
     }
 
+    /* Adds to the batch of the peers the state of the keys accumulated for a
+     * packet that the batch doesn't hold already. */
     def buildMessage(ingressPort: UUID): Unit =
-        if (txState.hasConntrackKey || txState.getNatEntriesCount > 0) {
-            txState.setIngressPort(uuidToProto(ingressPort))
-            currentMessage.addNewState(txState.build())
-            pendingMessages.add((txPeers, currentMessage.build()))
+        if (!txKeys.isEmpty) {
+            var batch = peerBatches.get(txPeers)
+            if (batch eq null) {
+                batch = new PeerBatch(new JHashSet[UUID](txPeers))
+                peerBatches.put(batch.peers, batch)
+            }
+            txState.clear()
+            var natEntry = 0
+            var i = 0
+            while (i < txKeys.size) {
+                txKeys.get(i) match {
+                    case k: ConnTrackKey =>
+                        if (batch.keys.add(k))
+                            txState.setConntrackKey(connTrackKeyToProto(k))
+                    case k: NatKey =>
+                        if (batch.keys.add(k))
+                            txState.addNatEntries(txNatEntries.get(natEntry))
+                        natEntry += 1
+                }
+                i += 1
+            }
+            if (txState.hasConntrackKey || txState.getNatEntriesCount > 0) {
+                txState.setIngressPort(uuidToProto(ingressPort))
+                batch.states.add(txState.build())
+            }
         }
 
     private def hostsToActions(hosts: JSet[UUID]): JList[FlowAction] = {
@@ -270,9 +364,9 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     }
 
     /**
-     * Pushes all of the messages that were previously prepared by natRemover,
-     * conntrackRemover and accumulateNewKeys() to their destinations, using the
-     * given datapath connection.
+     * Pushes all of the state that was previously accumulated by
+     * accumulateNewKeys() to their destinations, using the given datapath
+     * connection. It is meant to be called once per batch of packets.
      *
      * Packets will be tunneled to their destinations using the usual TunnelZone
      * information and with tunnel key FlowStatePackets.TUNNEL_KEY
@@ -281,29 +375,109 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      * this replicator.
      */
     def pushState(dpChannel: DatapathChannel) {
-        var i = pendingMessages.size() - 1
-        while (i >= 0) {
-            val (hosts, message) = pendingMessages.remove(i)
-            val messageSizeVariantLength: Int =
-                CodedOutputStream.computeRawVarint32Size(
-                    message.getSerializedSize)
-            val messageLength: Int =
-                message.getSerializedSize + messageSizeVariantLength
-            if (messageLength <= buffer.length) {
-                stream.reset()
-                message.writeDelimitedTo(stream)
-                udpShell.setElasticDataLength(messageLength)
-                dpChannel.executePacket(packet, hostsToActions(hosts))
-            } else {
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state message, too large: $message")
+        if (!peerBatches.isEmpty) {
+            statesPushed = 0
+            packetsPushed = 0
+            bytesPushed = 0
+            val batches = peerBatches.values.iterator
+            while (batches.hasNext) {
+                pushBatch(batches.next(), dpChannel)
             }
-            i -= 1
+            peerBatches.clear()
+            statePushed(statesPushed, packetsPushed, bytesPushed)
         }
 
         storage.submit()
     }
 
+    /**
+     * Called after each push with the number of flow states that were pushed,
+     * and the number of packets and bytes it took.
+     */
+    protected def statePushed(states: Int, packets: Int, bytes: Int): Unit = { }
+
+    private def pushBatch(batch: PeerBatch, dpChannel: DatapathChannel): Unit = {
+        val actions = hostsToActions(batch.peers)
+        if (actions.isEmpty)
+            return
+
+        resetCurrentMessage()
+        var i = 0
+        while (i < batch.states.size) {
+            addState(batch.states.get(i), actions, dpChannel)
+            i += 1
+        }
+        if (currentMessage.getNewStateCount > 0)
+            send(actions, dpChannel)
+        statesPushed += batch.states.size
+    }
+
+    private def addState(state: Proto.FlowState, actions: JList[FlowAction],
+                         dpChannel: DatapathChannel): Unit = {
+        val stateSize = stateFieldSize(state.getSerializedSize)
+        if (!fits(emptyMessageSize + stateSize)) {
+            val pieces = split(state)
+            var i = 0
+            while (i < pieces.size) {
+                addState(pieces.get(i), actions, dpChannel)
+                i += 1
+            }
+        } else {
+            if (currentMessage.getNewStateCount > 0 &&
+                !fits(currentMessageSize + stateSize)) {
+                send(actions, dpChannel)
+                resetCurrentMessage()
+            }
+            currentMessage.addNewState(state)
+            currentMessageSize += stateSize
+        }
+    }
+
+    private def fits(messageSize: Int): Boolean =
+        messageSize + CodedOutputStream.computeRawVarint32Size(messageSize) <=
+            buffer.length
+
+    private def stateFieldSize(stateSize: Int): Int =
+        CodedOutputStream.computeTagSize(Proto.StateMessage.NEW_STATE_FIELD_NUMBER) +
+        CodedOutputStream.computeRawVarint32Size(stateSize) + stateSize
+
+    /* Splits a state too large for a single message into states carrying
+     * as many of its nat entries as fit in one. */
+    private def split(state: Proto.FlowState): ArrayList[Proto.FlowState] = {
+        val pieces = new ArrayList[Proto.FlowState]()
+        var piece = state.toBuilder.clearNatEntries()
+        var pieceSize = piece.build().getSerializedSize
+        var i = 0
+        while (i < state.getNatEntriesCount) {
+            val entry = state.getNatEntries(i)
+            val entrySize = CodedOutputStream.computeMessageSize(
+                Proto.FlowState.NAT_ENTRIES_FIELD_NUMBER, entry)
+            if (piece.getNatEntriesCount > 0 &&
+                !fits(emptyMessageSize + stateFieldSize(pieceSize + entrySize))) {
+                pieces.add(piece.build())
+                piece = state.toBuilder.clearNatEntries().clearConntrackKey()
+                pieceSize = piece.build().getSerializedSize
+            }
+            piece.addNatEntries(entry)
+            pieceSize += entrySize
+            i += 1
+        }
+        pieces.add(piece.build())
+        pieces
+    }
+
+    private def send(actions: JList[FlowAction], dpChannel: DatapathChannel): Unit = {
+        val message = currentMessage.build()
+        val messageLength = message.getSerializedSize +
+            CodedOutputStream.computeRawVarint32Size(message.getSerializedSize)
+        stream.reset()
+        message.writeDelimitedTo(stream)
+        udpShell.setElasticDataLength(messageLength)
+        dpChannel.executePacket(packet, actions)
+        packetsPushed += 1
+        bytesPushed += messageLength
+    }
+
     private def acceptNewState(msg: Proto.StateMessage) {
         val newStates = msg.getNewStateList.iterator
         while (newStates.hasNext) {
@@ -406,12 +580,16 @@ class FlowStateReplicator(
         storage: FlowStateStorage,
         underlay: UnderlayResolver,
         invalidateFlowsFor: (FlowStateKey) => Unit,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        metrics: PacketPipelineMetrics)(implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, storage, underlay,
                                         invalidateFlowsFor, tso) {
 
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
+    override protected def statePushed(states: Int, packets: Int, bytes: Int): Unit =
+        metrics.stateReplicated(states, packets, bytes)
+
     @throws(classOf[NotYetException])
     override def getPort(id: UUID) = VTA.tryAsk[Port](id)
 
@@ -18,17 +18,22 @@ package org.midonet.midolman.state
 
 import java.lang.{Integer => JInt}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
-import java.util.concurrent.{TimeoutException, TimeUnit}
+import java.util.{Collections, UUID, Set => JSet, Map => JMap,
+                  HashMap => JHashMap, HashSet => JHashSet,
+                  Iterator => JIterator}
+import java.util.concurrent.{ConcurrentLinkedDeque, TimeoutException, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
 import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
@@ -37,6 +42,16 @@ import org.midonet.util.collection.Bimap
 object FlowStateStorage {
     val KEYSPACE_NAME = "MidonetFlowState"
 
+    /* The number of writes in a batch sent to Cassandra */
+    val MAX_BATCH_SIZE = 128
+    /* The number of batches sent to Cassandra and not yet acknowledged */
+    val MAX_IN_FLIGHT_BATCHES = 8
+    /* The number of batches waiting to be sent, past which the oldest ones
+     * are dropped */
+    val MAX_PENDING_BATCHES = 64
+    /* The number of rows read at a time when fetching the state of a port */
+    val FETCH_PAGE_SIZE = 1000
+
     val CONNTRACK_BY_INGRESS_TABLE = "conntrack_by_ingress_port"
     val CONNTRACK_BY_EGRESS_TABLE = "conntrack_by_egress_port"
     val NAT_BY_INGRESS_TABLE = "nat_by_ingress_port"
@@ -122,7 +137,12 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    def apply(client: CassandraClient): FlowStateStorage =
+        new FlowStateStorageImpl(client,
+                                 new FlowStateStorageMetrics(new MetricRegistry))
+
+    def apply(client: CassandraClient, metrics: FlowStateStorageMetrics): FlowStateStorage =
+        new FlowStateStorageImpl(client, metrics)
 }
 
 trait FlowStateStorage {
@@ -138,6 +158,23 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Fetches all the state keys referenced by a port, handing them to
+     * onPage in one or more batches as they are read. The returned future
+     * completes after the last batch has been handed over.
+     */
+    def fetchState(portId: UUID)(onPage: FlowStateBatch => Unit)
+                  (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit] = {
+        val scf = fetchStrongConnTrackRefs(portId)
+        val wcf = fetchWeakConnTrackRefs(portId)
+        val snf = fetchStrongNatRefs(portId)
+        val wnf = fetchWeakNatRefs(portId)
+
+        ((scf zip wcf) zip (snf zip wnf)) map {
+            case ((sc, wc), (sn, wn)) => onPage(FlowStateBatch(sc, wc, sn, wn))
+        }
+    }
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
@@ -156,13 +193,38 @@ trait FlowStateStorage {
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
+ *
+ * Writes are grouped in unlogged batches of up to maxBatchSize statements.
+ * Every row is a partition of its own, so there's no partition to group
+ * them by, but unlogged batches skip the batch log and take a single round
+ * trip. At most maxInFlight batches are outstanding at any time: when
+ * Cassandra is slow, the batches that are ready wait in a queue and are sent
+ * as earlier ones complete. Past maxPending batches, the oldest ones are
+ * dropped, since the keys they touch are also refreshed by newer writes.
+ *
+ * The state of a port is read in pages of fetchPageSize rows, so that a port
+ * referenced by many keys doesn't need its whole result set in memory.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
+class FlowStateStorageImpl(val client: CassandraClient,
+                           metrics: FlowStateStorageMetrics,
+                           maxBatchSize: Int = FlowStateStorage.MAX_BATCH_SIZE,
+                           maxInFlight: Int = FlowStateStorage.MAX_IN_FLIGHT_BATCHES,
+                           maxPending: Int = FlowStateStorage.MAX_PENDING_BATCHES,
+                           fetchPageSize: Int = FlowStateStorage.FETCH_PAGE_SIZE)
+        extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
+    private class Batch {
+        val statement = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        var size = 0
+    }
+
+    private var batch = new Batch()
+    private val pending = new ConcurrentLinkedDeque[Batch]()
+    private val numPending = new AtomicInteger(0)
+    private val inFlight = new AtomicInteger(0)
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     class Prepared(query: String) {
@@ -236,9 +298,9 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
+                queue(bind(touchIngressConnTrack(s), strongRef, k))
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
+                queue(bind(touchEgressConnTrack(s), weakRefs.next(), k))
             }
     }
 
@@ -254,10 +316,49 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
+                queue(bind(touchIngressNat(s), strongRef, k, v))
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
+                queue(bind(touchEgressNat(s), weakRefs.next(), k, v))
+            }
+    }
+
+    private def queue(statement: Statement): Unit = {
+        batch.statement.add(statement)
+        batch.size += 1
+        metrics.writesQueued.inc()
+        if (batch.size >= maxBatchSize)
+            seal()
+    }
+
+    private def seal(): Unit = {
+        pending.offer(batch)
+        numPending.incrementAndGet()
+        batch = new Batch()
+        while (numPending.get > maxPending) {
+            val dropped = pending.poll()
+            if (dropped ne null) {
+                numPending.decrementAndGet()
+                metrics.writesDropped.inc(dropped.size)
+            }
+        }
+    }
+
+    /* Sends pending batches while there's room in the in-flight window. It
+     * runs both on the thread that owns the storage and on the Cassandra
+     * driver threads, as batches complete. */
+    private def send(s: Session): Unit = {
+        while (inFlight.incrementAndGet() <= maxInFlight) {
+            val b = pending.poll()
+            if (b eq null) {
+                inFlight.decrementAndGet()
+                return
             }
+            numPending.decrementAndGet()
+            metrics.writesSent.inc(b.size)
+            Futures.addCallback(s.executeAsync(b.statement),
+                                new BatchCallback(s, b.size))
+        }
+        inFlight.decrementAndGet()
     }
 
     /**
@@ -266,9 +367,9 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
      */
     override def submit(): Unit = withSession {
         s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
+            if (batch.size > 0)
+                seal()
+            send(s)
     }
 
     /**
@@ -295,6 +396,47 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    /**
+     * Streams the state of a port a page at a time: each page read from
+     * Cassandra is handed to onPage before the next one is requested.
+     */
+    override def fetchState(port: UUID)(onPage: FlowStateBatch => Unit)
+                           (implicit ec: ExecutionContext, as: ActorSystem) = {
+        val noKeys = Collections.emptySet[ConnTrackKey]()
+        val noBindings = Collections.emptyMap[NatKey, NatBinding]()
+        val fetches = List(
+            fetchPages(fetchIngressConnTrack, port, rs => onPage(
+                FlowStateBatch(connTrackPage(rs), noKeys, noBindings, noBindings))),
+            fetchPages(fetchEgressConnTrack, port, rs => onPage(
+                FlowStateBatch(noKeys, connTrackPage(rs), noBindings, noBindings))),
+            fetchPages(fetchIngressNat, port, rs => onPage(
+                FlowStateBatch(noKeys, noKeys, natPage(rs), noBindings))),
+            fetchPages(fetchEgressNat, port, rs => onPage(
+                FlowStateBatch(noKeys, noKeys, noBindings, natPage(rs)))))
+        Future.sequence(fetches) map (_ => ())
+    }
+
+    private def connTrackPage(rs: ResultSet): JSet[ConnTrackKey] = {
+        var n = rs.getAvailableWithoutFetching
+        val keys = new JHashSet[ConnTrackKey](n * 2)
+        while (n > 0) {
+            keys.add(rowToConnTrack(rs.one()))
+            n -= 1
+        }
+        keys
+    }
+
+    private def natPage(rs: ResultSet): JMap[NatKey, NatBinding] = {
+        var n = rs.getAvailableWithoutFetching
+        val bindings = new JHashMap[NatKey, NatBinding](n * 2)
+        while (n > 0) {
+            val row = rs.one()
+            bindings.put(rowToNatKey(row), rowToNatBinding(row))
+            n -= 1
+        }
+        bindings
+    }
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -327,23 +469,51 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
+    private def fetchPages(statement: Prepared, portId: UUID,
+                           page: (ResultSet) => Unit)
+                          (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit] = {
+        peelResult (withSession { s =>
+            val bound = statement(s).bind(portId)
+            bound.setFetchSize(fetchPageSize)
+            toScalaFuture(s.executeAsync(bound)) flatMap { rs => nextPage(rs, page) }
+        })
+    }
+
+    /* Consumes the rows fetched so far, without blocking on the next page,
+     * and then asks for the next one. */
+    private def nextPage(rs: ResultSet, page: (ResultSet) => Unit)
+                        (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit] = {
+        if (rs.getAvailableWithoutFetching > 0)
+            page(rs)
+        if (rs.isFullyFetched)
+            Future.successful(())
+        else
+            toScalaFuture(rs.fetchMoreResults()) flatMap { _ => nextPage(rs, page) }
+    }
+
+    private class BatchCallback(s: Session, size: Int)
+            extends FutureCallback[ResultSet] {
         override def onSuccess(result: ResultSet): Unit = {
             log.debug("key touch success: {}", result)
+            inFlight.decrementAndGet()
+            send(s)
         }
 
         override def onFailure(t: Throwable): Unit = {
             log.warn("failed to touch keys", t)
+            metrics.writesFailed.inc(size)
+            inFlight.decrementAndGet()
+            send(s)
         }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 p.success(result)
             }
 
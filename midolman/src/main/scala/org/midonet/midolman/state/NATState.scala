@@ -22,13 +22,14 @@ import java.util.concurrent.ThreadLocalRandom
 
 import scala.concurrent.duration._
 
+import org.midonet.Util
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateTransaction, OffHeapFlowStateTable}
 
 object NatState {
     private val WILDCARD_PORT = 0
@@ -83,10 +84,10 @@ object NatState {
                     natKey.transportSrc = port
                     natKey.transportDst = port
                 case ICMP.TYPE_PARAMETER_PROBLEM | ICMP.TYPE_UNREACH |
-                     ICMP.TYPE_TIME_EXCEEDED if wcMatch.getIcmpData ne null =>
+                     ICMP.TYPE_TIME_EXCEEDED if wcMatch.getIcmpDataView ne null =>
                     // The nat mapping lookup should be done based on the
                     // contents of the ICMP data field.
-                    val bb = ByteBuffer.wrap(wcMatch.getIcmpData)
+                    val bb = wcMatch.getIcmpDataView
                     val ipv4 = new IPv4
                     ipv4.deserializeHeader(bb)
                     natKey.networkProtocol = ipv4.getProtocol
@@ -160,6 +161,81 @@ object NatState {
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
 
+    /**
+     * Lays out NatKeys and NatBindings as fixed width records for an
+     * OffHeapFlowStateTable.
+     */
+    object NatRecordCodec
+            extends OffHeapFlowStateTable.RecordCodec[NatKey, NatBinding] {
+        private val unsafe = Util.getUnsafe
+
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+            FWD_STICKY_DNAT, REV_SNAT, REV_DNAT, REV_STICKY_DNAT)
+
+        private final val TYPE = 0
+        private final val PROTO = 1
+        private final val SRC = 4
+        private final val SRC_PORT = 8
+        private final val DST = 12
+        private final val DST_PORT = 16
+        private final val DEVICE = 24
+
+        override def keyWidth = 40
+
+        override def valueWidth = 8
+
+        override def hash(key: NatKey) = key.hashCode()
+
+        override def writeKey(key: NatKey, address: Long): Unit = {
+            unsafe.putByte(address + TYPE, ordinal(key.keyType))
+            unsafe.putByte(address + PROTO, key.networkProtocol)
+            unsafe.putInt(address + SRC, key.networkSrc.addr)
+            unsafe.putInt(address + SRC_PORT, key.transportSrc)
+            unsafe.putInt(address + DST, key.networkDst.addr)
+            unsafe.putInt(address + DST_PORT, key.transportDst)
+            unsafe.putLong(address + DEVICE, key.deviceId.getMostSignificantBits)
+            unsafe.putLong(address + DEVICE + 8, key.deviceId.getLeastSignificantBits)
+        }
+
+        override def keyEquals(key: NatKey, address: Long): Boolean =
+            unsafe.getInt(address + SRC_PORT) == key.transportSrc &&
+            unsafe.getInt(address + DST_PORT) == key.transportDst &&
+            unsafe.getInt(address + SRC) == key.networkSrc.addr &&
+            unsafe.getInt(address + DST) == key.networkDst.addr &&
+            unsafe.getByte(address + PROTO) == key.networkProtocol &&
+            (keyTypes(unsafe.getByte(address + TYPE)) eq key.keyType) &&
+            unsafe.getLong(address + DEVICE) == key.deviceId.getMostSignificantBits &&
+            unsafe.getLong(address + DEVICE + 8) == key.deviceId.getLeastSignificantBits
+
+        override def readKey(address: Long): NatKey =
+            NatKey(keyTypes(unsafe.getByte(address + TYPE)),
+                   new IPv4Addr(unsafe.getInt(address + SRC)),
+                   unsafe.getInt(address + SRC_PORT),
+                   new IPv4Addr(unsafe.getInt(address + DST)),
+                   unsafe.getInt(address + DST_PORT),
+                   unsafe.getByte(address + PROTO),
+                   new UUID(unsafe.getLong(address + DEVICE),
+                            unsafe.getLong(address + DEVICE + 8)))
+
+        private def ordinal(keyType: KeyType): Byte = keyType match {
+            case FWD_SNAT => 0
+            case FWD_DNAT => 1
+            case FWD_STICKY_DNAT => 2
+            case REV_SNAT => 3
+            case REV_DNAT => 4
+            case REV_STICKY_DNAT => 5
+        }
+
+        override def writeValue(value: NatBinding, address: Long): Unit = {
+            unsafe.putInt(address, value.networkAddress.addr)
+            unsafe.putInt(address + 4, value.transportPort)
+        }
+
+        override def readValue(address: Long): NatBinding =
+            NatBinding(new IPv4Addr(unsafe.getInt(address)),
+                       unsafe.getInt(address + 4))
+    }
+
     def releaseBinding(key: NatKey, binding: NatBinding, natLeaser: NatLeaser): Unit =
         if ((key.keyType eq NatState.FWD_SNAT) &&
             key.networkProtocol != ICMP.PROTOCOL_NUMBER) {
@@ -328,10 +404,9 @@ trait NatState extends FlowState { this: PacketContext =>
                     wcmatch.setNetworkSrc(binding.networkAddress)
                 true
             case ICMP.TYPE_PARAMETER_PROBLEM | ICMP.TYPE_TIME_EXCEEDED |
-                 ICMP.TYPE_UNREACH if wcmatch.getIcmpData ne null =>
-                val data = wcmatch.getIcmpData
-                val dataSize = data.length
-                val bb = ByteBuffer.wrap(data)
+                 ICMP.TYPE_UNREACH if wcmatch.getIcmpDataView ne null =>
+                val bb = wcmatch.getIcmpDataView
+                val dataSize = bb.remaining
                 val header = new IPv4
                 header.deserializeHeader(bb)
                 if (isSnat) {
@@ -352,7 +427,7 @@ trait NatState extends FlowState { this: PacketContext =>
                     else
                         tpDst = binding.transportPort.toShort
                 }
-                val natBB = ByteBuffer.allocate(data.length)
+                val natBB = ByteBuffer.allocate(dataSize)
                 natBB.put(header.serialize, 0, ipHeadSize)
                 natBB.putShort(tpSrc)
                 natBB.putShort(tpDst)
@@ -368,11 +443,13 @@ trait NatState extends FlowState { this: PacketContext =>
         var binding = natTx.get(natKey)
         if (binding eq null) {
             binding = tryAllocateNatBinding(natKey, natTargets)
+            expireSoonerIfClosing(natKey)
             natTx.putAndRef(natKey, binding)
             log.debug("Obtained NAT key {}->{}", natKey, binding)
 
             val returnKey = natKey.returnKey(binding)
             val inverseBinding = natKey.returnBinding
+            expireSoonerIfClosing(returnKey)
             natTx.putAndRef(returnKey, inverseBinding)
             log.debug("With reverse NAT key {}->{}", returnKey, inverseBinding)
 
@@ -386,13 +463,24 @@ trait NatState extends FlowState { this: PacketContext =>
     }
 
     private def refKey(natKey: NatKey, binding: NatBinding): Unit = {
+        expireSoonerIfClosing(natKey)
         natTx.ref(natKey)
         addFlowTag(natKey)
         val returnKey = natKey.returnKey(binding)
+        expireSoonerIfClosing(returnKey)
         natTx.ref(returnKey)
         addFlowTag(returnKey)
     }
 
+    /* The bindings of a closed TCP connection expire soon after its flows
+     * are gone, which for SNAT gives the port back to the NatLeaser. Sticky
+     * DNAT bindings outlive connections, so they are left alone. */
+    private def expireSoonerIfClosing(natKey: NatKey): Unit =
+        if ((natKey.keyType ne FWD_STICKY_DNAT) &&
+            (natKey.keyType ne REV_STICKY_DNAT) && isClosingConnection) {
+            natKey.expiresAfter = FlowState.CLOSED_EXPIRATION
+        }
+
     private def tryAllocateNatBinding(key: NatKey,
                                       nats: Array[NatTarget]): NatBinding =
         if (isIcmp) {
@@ -17,8 +17,9 @@
 package org.midonet.midolman.state
 
 import java.lang.{Integer => JInt, Long => JLong}
-import java.util.UUID
-import java.util.concurrent.{TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
+import java.util.{List => JList, UUID}
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
 
 import scala.concurrent.{Promise, Future}
 import scala.concurrent.duration._
@@ -40,6 +41,15 @@ object NatLeaser {
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
 
+    /* When fewer ports than this are free in the blocks leased for a device
+     * and IP, more blocks are leased in the background. */
+    val LOW_WATERMARK = BLOCK_SIZE / 2
+    /* The number of blocks leased at once in the background */
+    val PREFETCH_BLOCKS = 2
+    /* The time to wait before trying to lease more blocks for a device and
+     * IP after there were none left to lease */
+    private val PREFETCH_BACKOFF = (5 seconds).toNanos
+
     private def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
 
@@ -53,10 +63,14 @@ object NatLeaser {
      * the leasedPorts array, can be oversubscribed based on a unique number,
      * a combination of the destination IP and port.
      * It also holds a port index to enable round-robin allocation
-     * of the ports in the block.
+     * of the ports in the block, and a bitmap of the ports that are bound to
+     * at least one destination, one bit per port. A prefetched block is held,
+     * referenced by its lease, until one of its ports is bound.
      */
-    sealed class LeasedBlock(val block: NatBlock) {
+    sealed class LeasedBlock(val block: NatBlock, val lease: IpLease) {
         val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        val usedPorts = new AtomicLong()
+        val held = new AtomicBoolean()
         var portIndex = ThreadLocalRandom.current().nextLong()
 
         {
@@ -66,6 +80,38 @@ object NatLeaser {
                 i += 1
             }
         }
+
+        def freePorts: Int = BLOCK_SIZE - JLong.bitCount(usedPorts.get)
+
+        /* Marks a port as used after binding it. */
+        def portBound(portOffset: Int): Unit = {
+            val bit = 1L << portOffset
+            var used = usedPorts.get
+            while ((used & bit) == 0) {
+                if (usedPorts.compareAndSet(used, used | bit)) {
+                    lease.freePorts.decrementAndGet()
+                    return
+                }
+                used = usedPorts.get
+            }
+        }
+
+        /* Marks a port as free if its last binding was released. A binding
+         * racing with the release marks the port as used again. */
+        def portReleased(portOffset: Int): Unit =
+            if (leasedPorts(portOffset).isEmpty) {
+                val bit = 1L << portOffset
+                var used = usedPorts.get
+                while ((used & bit) != 0) {
+                    if (usedPorts.compareAndSet(used, used & ~bit)) {
+                        lease.freePorts.incrementAndGet()
+                        if (!leasedPorts(portOffset).isEmpty)
+                            portBound(portOffset)
+                        return
+                    }
+                    used = usedPorts.get
+                }
+            }
     }
 
     /**
@@ -80,12 +126,25 @@ object NatLeaser {
     }
     type LeasedBlocks = TimedExpirationMap[JInt, LeasedBlock]
 
+    /**
+     * The port blocks leased for a NatTarget IP address, along with the
+     * number of their ports that are free, which tells when to lease more
+     * blocks ahead of time, and the prefetched blocks that are held.
+     */
+    sealed class IpLease(log: Logger) {
+        val blocks = LeasedBlocks(log)
+        val freePorts = new AtomicInteger()
+        val held = new ConcurrentLinkedQueue[LeasedBlock]()
+        val prefetching = new AtomicBoolean()
+        @volatile var nextPrefetch = 0L
+    }
+
     /**
      * This type is a map a NatTarget IP addresses to leased port blocks of
      * BLOCK_SIZE each. Each IP address can have at most 1024 port blocks
      * leased, for a BLOCK_SIZE of 64.
      */
-    type IpLeases = ConcurrentHashMap[IPAddr, LeasedBlocks]
+    type IpLeases = ConcurrentHashMap[IPAddr, IpLease]
 
     /**
      * This type is a map of device IDs to leased port blocks scoped by IP.
@@ -101,6 +160,14 @@ object NatLeaser {
  * Allocates a particular NatBinding for an SNAT operation. NatBindings are
  * scoped by device and by NatTarget IP and they are oversubscribed based on
  * both destination IP and destination port.
+ *
+ * When the ports left free in the blocks leased for a device and IP fall
+ * below LOW_WATERMARK, PREFETCH_BLOCKS more blocks are leased in the
+ * background, so that running out of blocks, which makes the packet wait
+ * for the allocator, is the exception rather than the rule. The prefetched
+ * blocks don't expire while they are unused and the other blocks of the
+ * device and IP would be below the watermark without them, lest they are
+ * released and leased again over and over.
  */
 trait NatLeaser {
     import NatLeaser._
@@ -128,10 +195,12 @@ trait NatLeaser {
             val target = natTargets(i)
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
-                val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
+                val lease = getIpLease(deviceId, ip)
+                val binding = allocateInPortRange(lease.blocks, uniquefier, ip,
                                                   target.tpStart, target.tpEnd)
                 if (binding ne null) {
+                    if (lease.freePorts.get < LOW_WATERMARK)
+                        prefetchBlocks(lease, deviceId, ip, target)
                     return binding
                 }
                 ip = ip.next
@@ -156,15 +225,16 @@ trait NatLeaser {
         if (ipLeases eq null)
             return
 
-        val leasedBlocks = ipLeases.get(binding.networkAddress)
-        if (leasedBlocks eq null)
+        val lease = ipLeases.get(binding.networkAddress)
+        if (lease eq null)
             return
 
-        val leasedBlock = leasedBlocks.unref(blockOf(binding.transportPort), clock.tick)
+        val leasedBlock = lease.blocks.unref(blockOf(binding.transportPort), clock.tick)
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
             leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            leasedBlock.portReleased(portOffset)
         }
     }
 
@@ -173,6 +243,7 @@ trait NatLeaser {
                            value: LeasedBlock): NatBlockAllocator = {
             val block = value.block
             log.debug("Releasing NAT block {}", block)
+            value.lease.freePorts.addAndGet(-value.freePorts)
             acc.freeBlock(block)
             acc
         }
@@ -189,7 +260,9 @@ trait NatLeaser {
             while (itDevs.hasNext) {
                 val itIps = itDevs.next().values().iterator()
                 while (itIps.hasNext) {
-                    itIps.next().obliterateIdleEntries(clock.tick, allocator,
+                    val lease = itIps.next()
+                    releaseSpareBlocks(lease)
+                    lease.blocks.obliterateIdleEntries(clock.tick, allocator,
                                                        blockObliterator)
                 }
             }
@@ -233,6 +306,9 @@ trait NatLeaser {
             if (port >= tpStart && port <= tpEnd) {
                 val sharedBinding = lease.leasedPorts(portOffset)
                 if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
+                    lease.portBound(portOffset)
+                    if (lease.held.get)
+                        release(lease)
                     lease.portIndex += i + 31
                     return NatBinding(ip, port)
                 }
@@ -280,15 +356,86 @@ trait NatLeaser {
         })
     }
 
-    private def registerNewBlock(block: NatBlock): Unit = {
+    /* Leases more blocks for a device and IP, in the background. A single
+     * request is in flight for each of them at any time, and after there
+     * were no blocks left to lease, no request is made for PREFETCH_BACKOFF. */
+    private def prefetchBlocks(lease: IpLease, deviceId: UUID, ip: IPv4Addr,
+                               target: NatTarget): Unit = {
+        if (clock.tick < lease.nextPrefetch ||
+            !lease.prefetching.compareAndSet(false, true))
+            return
+
+        log.debug(s"Prefetching NAT blocks for $ip in device $deviceId")
+        val range = new NatRange(deviceId, ip, target.tpStart, target.tpEnd)
+        allocator.allocateBlocksInRange(range, PREFETCH_BLOCKS,
+                                        new Callback[JList[NatBlock], Exception]() {
+            override def onSuccess(blocks: JList[NatBlock]): Unit = {
+                if (blocks.isEmpty)
+                    lease.nextPrefetch = clock.tick + PREFETCH_BACKOFF
+                var i = 0
+                while (i < blocks.size()) {
+                    registerNewBlock(blocks.get(i), hold = true)
+                    i += 1
+                }
+                lease.prefetching.set(false)
+            }
+
+            override def onError(e: Exception): Unit = {
+                log.warn(s"Failed to prefetch NAT blocks for $ip in device " +
+                         s"$deviceId", e)
+                lease.nextPrefetch = clock.tick + PREFETCH_BACKOFF
+                lease.prefetching.set(false)
+            }
+
+            override def onTimeout(): Unit = {
+                lease.nextPrefetch = clock.tick + PREFETCH_BACKOFF
+                lease.prefetching.set(false)
+            }
+        })
+    }
+
+    /* Registers a leased block. A held block keeps the reference taken here
+     * until it is released. */
+    private def registerNewBlock(block: NatBlock, hold: Boolean = false): Unit = {
         log.debug("Acquiring NAT block {}", block)
-        val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
-        val leasedBlock = new LeasedBlock(block)
-        leasedBlocks.putAndRef(block.blockIndex, leasedBlock)
-        leasedBlocks.unref(block.blockIndex, clock.tick)
+        val lease = getIpLease(block.deviceId, block.ip)
+        val leasedBlock = new LeasedBlock(block, lease)
+        if (hold) {
+            leasedBlock.held.set(true)
+            lease.held.add(leasedBlock)
+        }
+        if (lease.blocks.putIfAbsentAndRef(block.blockIndex, leasedBlock) eq null) {
+            lease.freePorts.addAndGet(BLOCK_SIZE)
+            if (hold)
+                return
+        } else if (hold) {
+            leasedBlock.held.set(false)
+            lease.held.remove(leasedBlock)
+        }
+        lease.blocks.unref(block.blockIndex, clock.tick)
+    }
+
+    /* Drops the reference a held block keeps, after which it expires like
+     * any other block. */
+    private def release(leasedBlock: LeasedBlock): Unit =
+        if (leasedBlock.held.compareAndSet(true, false)) {
+            leasedBlock.lease.held.remove(leasedBlock)
+            leasedBlock.lease.blocks.unref(leasedBlock.block.blockIndex,
+                                           clock.tick)
+        }
+
+    /* Releases the held blocks of a lease whose other blocks have enough
+     * free ports on their own. */
+    private def releaseSpareBlocks(lease: IpLease): Unit = {
+        var held = lease.held.peek()
+        while ((held ne null) &&
+               lease.freePorts.get - lease.held.size * BLOCK_SIZE >= LOW_WATERMARK) {
+            release(held)
+            held = lease.held.peek()
+        }
     }
 
-    private def getLeasedBlocks(deviceId: UUID, targetIp: IPAddr): LeasedBlocks = {
+    private def getIpLease(deviceId: UUID, targetIp: IPAddr): IpLease = {
         val ipLeases = getOrCreateDeviceLeases(deviceId)
         getOrCreateIpLeases(ipLeases, targetIp)
     }
@@ -307,7 +454,7 @@ trait NatLeaser {
     private def getOrCreateIpLeases(ipLeases: IpLeases, targetIp: IPAddr) = {
         var value = ipLeases.get(targetIp)
         if (value eq null) {
-            value = LeasedBlocks(log)
+            value = new IpLease(log)
             val cur = ipLeases.putIfAbsent(targetIp, value)
             if (cur ne null)
                 value = cur
@@ -17,31 +17,38 @@ package org.midonet.midolman.topology
 
 import collection.{Set => ROSet, mutable, Iterable}
 import collection.JavaConversions._
-import java.util.UUID
+import java.util.{List => JList, UUID}
 
 import org.midonet.cluster.Client
 import org.midonet.cluster.client.ArpCache
 import org.midonet.midolman.FlowController
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.layer3.{RoutingTableIfc, InvalidationTrie, Route}
+import org.midonet.midolman.layer3.{IPv6RoutingTable, RoutingTableIfc, InvalidationTrie, Route}
 import org.midonet.midolman.simulation.{ArpTable, ArpTableImpl, Router}
 import org.midonet.midolman.topology.RouterManager._
 import org.midonet.midolman.topology.builders.RouterBuilderImpl
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{IPAddr, IPv4Addr, MAC}
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.functors.Callback0
 
-class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP]) {
-
-    import collection.JavaConversions._
-
-    def lookup(wmatch: FlowMatch): Iterable[Route] =
-    // TODO (ipv6) de facto implementation for ipv4, that explains
-    // the casts at this point.
-        rTable.lookup(wmatch.getNetworkSrcIP.asInstanceOf[IP],
-                      wmatch.getNetworkDstIP.asInstanceOf[IP])
+/* The routes of a router: those of its own address family, and its IPv6
+ * routes, if any, which are looked up for IPv6 destinations. */
+class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP],
+                                        val rTable6: IPv6RoutingTable) {
+
+    def this(rTable: RoutingTableIfc[IP]) = this(rTable, null)
+
+    def lookup(wmatch: FlowMatch): JList[Route] =
+        wmatch.getNetworkDstIP match {
+            case dst: IPv6Addr if rTable6 ne null =>
+                rTable6.lookup(wmatch.getNetworkSrcIP.asInstanceOf[IPv6Addr],
+                               dst)
+            case dst =>
+                rTable.lookup(wmatch.getNetworkSrcIP.asInstanceOf[IP],
+                              dst.asInstanceOf[IP])
+        }
 }
 
 object RouterManager {
@@ -158,7 +165,8 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
                 FlowController ! FlowController.InvalidateFlowsByTag(
                     FlowTagger.tagForRoute(route))
             }
-            for (route <- addedRoutes) {
+            // the invalidation trie only holds IPv4 destinations
+            for (route <- addedRoutes if route.dstSubnet6 eq null) {
                 log.debug("Projecting added route {}", route)
                 val subTree = dstIpTagTrie.projectRouteAndGetSubTree(route)
                 val ipToInvalidate = InvalidationTrie.getAllDescendantsIpDestination(subTree)
@@ -19,7 +19,8 @@ package org.midonet.midolman.topology.builders
 import java.util.UUID
 import org.midonet.cluster.client.{ArpCache, RouterBuilder}
 import akka.actor.ActorRef
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{IPv4RoutingTable, IPv6RoutingTable, Route}
+import org.midonet.midolman.management.RouteBalancing
 import org.midonet.midolman.topology.RouterManager.{InvalidateFlows, TriggerUpdate}
 import org.midonet.midolman.topology.{RoutingTableWrapper, RouterConfig}
 
@@ -28,7 +29,8 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     private var cfg: RouterConfig = new RouterConfig
     private var arpCache: ArpCache = null
-    private val routes = new scala.collection.mutable.HashSet[Route]()
+    private val table = new IPv4RoutingTable()
+    private val table6 = new IPv6RoutingTable()
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
 
@@ -40,12 +42,13 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def addRoute(rt: Route) {
-        routes.add(rt)
+        if (rt.dstSubnet6 ne null) table6.addRoute(rt) else table.addRoute(rt)
         routesToAdd.add(rt)
     }
 
     def removeRoute(rt: Route) {
-        routes.remove(rt)
+        if (rt.dstSubnet6 ne null) table6.deleteRoute(rt) else table.deleteRoute(rt)
+        RouteBalancing.routeRemoved(rt)
         routesToRemove.add(rt)
     }
 
@@ -69,11 +72,6 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def build() {
-        // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
-            table.addRoute(rt)
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
             val deleted = routesToRemove.clone()
@@ -81,7 +79,11 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
         }
         routesToAdd.clear()
         routesToRemove.clear()
-        routerManager ! TriggerUpdate(cfg, arpCache, new RoutingTableWrapper(table))
+        // we always pass a snapshot of the RoutingTable since this is accessed
+        // by the RCU Router; it shares all the routes with the table
+        routerManager ! TriggerUpdate(cfg, arpCache,
+                                      new RoutingTableWrapper(table.snapshot(),
+                                                              table6.snapshot()))
     }
 
     def start() = null
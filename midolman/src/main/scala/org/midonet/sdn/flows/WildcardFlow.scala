@@ -169,6 +169,8 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
     var lastUsedTimeMillis: Long = 0L
     var callbacks: ArrayList[Callback0] = null
     var tags: Array[FlowTag] = null
+    /* the slot of this flow in the FlowTagIndexer, -1 when not indexed */
+    var tagIndexSlot: Int = -1
     val dpFlows = new java.util.HashSet[FlowMatch](4)
 
     val wcmatch = new FlowMatch()
@@ -198,6 +200,7 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
         this.actions = Nil
         this.callbacks = null
         this.tags = null
+        this.tagIndexSlot = -1
         this.dpFlows.clear()
         cachedHashCode = INVALID_HASH_CODE
     }
@@ -16,8 +16,10 @@
 
 package org.midonet.sdn.state
 
+import java.lang.{Long => JLong}
 import java.util.ArrayList
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLongArray
 
 import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
@@ -31,6 +33,14 @@ object ShardedFlowStateTable {
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    /* The number of buckets of the owner index, a power of two */
+    val OWNER_BUCKETS = 1 << 19
+
+    /* A bucket of the owner index packs a 4 bit counter per shard */
+    private val COUNTER_BITS = 4
+    private val COUNTER_MASK = (1L << COUNTER_BITS) - 1
+    private val MAX_SHARDS = 64 / COUNTER_BITS
 }
 
 /**
@@ -48,22 +58,52 @@ object ShardedFlowStateTable {
  * distribute shards among threads in a way that results in no keyspace overlap.
  *
  * Gets, on the other hand, will fall back to the parent and the other shards
- * if a key is not found locally.
+ * if a key is not found locally. The parent keeps an index of the keys held
+ * by the shards, as a fixed array of buckets chosen by the hash of the keys.
+ * Each bucket counts, for every shard, the keys of that shard that fall in
+ * it, so that a lookup only probes the shards that hold keys of its bucket.
+ * A counter that reaches its maximum sticks to it: the shard is then always
+ * probed for that bucket, which costs a probe but never misses a key. The
+ * parent's ref(),
+ * unref() and getRefCount() go to the shard that holds the key, and its
+ * touch() to the shard picked by the hash of the key if none does.
  *
  * unref() calls may require coordination, but they are meant to happen in an
  * external thread or pool, not a shard-owning thread.
+ *
+ * Shards added with addOffHeapShard() keep their entries in an
+ * OffHeapFlowStateTable, and only accept writes, including unref() calls,
+ * from the thread that owns them.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock, ownerBuckets: Int) extends FlowStateTable[K, V] {
+    import ShardedFlowStateTable._
+
+    require(Integer.bitCount(ownerBuckets) == 1)
+
+    def this(clock: NanoClock) = this(clock, ShardedFlowStateTable.OWNER_BUCKETS)
+
+    def this() = this(NanoClock.DEFAULT)
 
     private val shards = new ArrayList[FlowStateShard]()
+    private val owners = new AtomicLongArray(ownerBuckets)
     private val SHARD_NONE: Int = -1
 
     private val defaultLogger =
         Logger(LoggerFactory.getLogger("org.midonet.state.table"))
 
-    def addShard(log: Logger = defaultLogger) = {
-        val s: FlowStateShard = new FlowStateShard(shards.size, log)
+    def addShard(log: Logger = defaultLogger): FlowStateShard = {
+        require(shards.size < MAX_SHARDS)
+        val s: FlowStateShard = new HeapFlowStateShard(shards.size, log)
+        shards.add(s)
+        s
+    }
+
+    def addOffHeapShard(codec: OffHeapFlowStateTable.RecordCodec[K, V],
+                        initialCapacity: Int): FlowStateShard = {
+        require(shards.size < MAX_SHARDS)
+        val s: FlowStateShard =
+            new OffHeapFlowStateShard(shards.size, codec, initialCapacity)
         shards.add(s)
         s
     }
@@ -76,59 +116,87 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         assert(shardToSkip == SHARD_NONE ||
                 (shardToSkip >= 0 && shardToSkip < shards.size))
 
-        var i = 0
-        while (i < shards.size) {
+        var owning = owners.get(bucketOf(key))
+        while (owning != 0L) {
+            val i = JLong.numberOfTrailingZeros(owning) / COUNTER_BITS
             if (i != shardToSkip) {
-                val v: V = shards.get(i).shallowGet(key)
+                val v = shards.get(i).shallowGet(key)
                 if (v != null)
                     return v
             }
-            i += 1
+            owning &= ~(COUNTER_MASK << (i * COUNTER_BITS))
         }
         null
     }
 
+    /**
+     * The shard that holds a key, or null if no shard does.
+     */
+    def ownerOf(key: K): FlowStateShard = {
+        var owning = owners.get(bucketOf(key))
+        while (owning != 0L) {
+            val i = JLong.numberOfTrailingZeros(owning) / COUNTER_BITS
+            val shard = shards.get(i)
+            if (shard.shallowGet(key) != null)
+                return shard
+            owning &= ~(COUNTER_MASK << (i * COUNTER_BITS))
+        }
+        null
+    }
+
+    private def bucketOf(key: K): Int = {
+        val h = key.hashCode * 0x9E3779B9
+        (h ^ (h >>> 16)) & (owners.length - 1)
+    }
+
+    private def added(key: K, shard: FlowStateShard): Unit = {
+        val i = bucketOf(key)
+        val shift = shard.workerId * COUNTER_BITS
+        var bucket = 0L
+        do {
+            bucket = owners.get(i)
+        } while (((bucket >>> shift) & COUNTER_MASK) != COUNTER_MASK &&
+                 !owners.compareAndSet(i, bucket, bucket + (1L << shift)))
+    }
+
+    private def removed(key: K, shard: FlowStateShard): Unit = {
+        val i = bucketOf(key)
+        val shift = shard.workerId * COUNTER_BITS
+        var bucket = 0L
+        var count = 0L
+        do {
+            bucket = owners.get(i)
+            count = (bucket >>> shift) & COUNTER_MASK
+        } while (count != 0L && count != COUNTER_MASK &&
+                 !owners.compareAndSet(i, bucket, bucket - (1L << shift)))
+    }
+
     override def putAndRef(key: K, value: V): V = throw new IllegalArgumentException
 
     override def get(key: K): V = get(key, SHARD_NONE)
 
     override def ref(key: K): V = {
-        var i = 0
-        while (i < shards.size) {
-            val v = shards.get(i).ref(key)
-            if (v != null)
-                return v
-            i += 1
-        }
-        null
+        val owner = ownerOf(key)
+        if (owner eq null) null else owner.ref(key)
     }
 
     override def touch(key: K, value: V) {
-        var i: Int = 0
-        while (i < shards.size) {
-            shards.get(i).touch(key, value)
-            i += 1
-        }
+        val owner = ownerOf(key)
+        if (owner ne null)
+            owner.touch(key, value)
+        else if (!shards.isEmpty)
+            shards.get(Math.abs(key.hashCode % shards.size)).touch(key, value)
     }
 
     override def getRefCount(key: K): Int = {
-        var count = 0
-        var i = 0
-        while (i < shards.size) {
-            count += shards.get(i).getRefCount(key)
-            i += 1
-        }
-        count
+        val owner = ownerOf(key)
+        if (owner eq null) 0 else owner.getRefCount(key)
     }
 
     override def unref(key: K) {
-        var i: Int = 0
-        while (i < shards.size) {
-            val v: V = shards.get(i).shallowGet(key)
-            if (v != null)
-                shards.get(i).unref(key)
-            i += 1
-        }
+        val owner = ownerOf(key)
+        if (owner ne null)
+            owner.unref(key)
     }
 
     override def fold[U](acc: U, func: Reducer[K, V, U]): U = {
@@ -165,21 +233,69 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
      * It stores entries locally but forwards queries to the parent table for
      * aggregation. Reference counting is also delegated on the parent.
      */
-    class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+    abstract class FlowStateShard(val workerId: Int) extends FlowStateTable[K, V] {
 
-        override def putAndRef(key: K, value: V): V =
-            map.putAndRef(key, value)
+        private val forgetOwner = new Reducer[K, V, Unit] {
+            override def apply(acc: Unit, key: K, value: V): Unit =
+                removed(key, FlowStateShard.this)
+        }
+
+        /**
+         * Gets the value of a key in this shard only. It may be called by
+         * threads other than the owner of the shard.
+         */
+        def shallowGet(key: K): V
+
+        protected def localGet(key: K): V
+
+        protected def localPutAndRef(key: K, value: V): V
+
+        protected def localExpireIdleEntries[U](seed: U,
+                                                func: Reducer[K, V, U]): U
+
+        override def putAndRef(key: K, value: V): V = {
+            val oldValue = localPutAndRef(key, value)
+            if (oldValue == null)
+                added(key, this)
+            oldValue
+        }
+
+        override def expireIdleEntries(): Unit =
+            localExpireIdleEntries((), forgetOwner)
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+            localExpireIdleEntries(seed, new Reducer[K, V, U] {
+                override def apply(acc: U, key: K, value: V): U = {
+                    removed(key, FlowStateShard.this)
+                    func(acc, key, value)
+                }
+            })
 
         override def get(key: K) = {
-            val v = map.get(key)
+            val v = localGet(key)
             if (v != null)
                 v
             else
                 ShardedFlowStateTable.this.get(key, workerId)
         }
 
-        def shallowGet(key: K): V =
+        override def touch(key: K, value: V): Unit = {
+            putAndRef(key, value)
+            unref(key)
+        }
+    }
+
+    private class HeapFlowStateShard(workerId: Int, log: Logger)
+            extends FlowStateShard(workerId) {
+        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+
+        override protected def localPutAndRef(key: K, value: V): V =
+            map.putAndRef(key, value)
+
+        override protected def localGet(key: K): V =
+            map.get(key)
+
+        override def shallowGet(key: K): V =
             map.get(key)
 
         override def ref(key: K): V =
@@ -188,11 +304,6 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         override def getRefCount(key: K): Int =
             map.getRefCount(key)
 
-        override def touch(key: K, value: V): Unit = {
-            putAndRef(key, value)
-            unref(key)
-        }
-
         private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
 
         override def unref(key: K) =
@@ -201,10 +312,41 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         override def fold[U](seed: U, func: Reducer[K, V, U]): U =
             map.fold(seed, func)
 
-        override def expireIdleEntries() =
-            map.obliterateIdleEntries(tickMillis)
-
-        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+        override protected def localExpireIdleEntries[U](
+                seed: U, func: Reducer[K, V, U]): U =
             map.obliterateIdleEntries(tickMillis, seed, func)
     }
+
+    private class OffHeapFlowStateShard(workerId: Int,
+                                        codec: OffHeapFlowStateTable.RecordCodec[K, V],
+                                        initialCapacity: Int)
+            extends FlowStateShard(workerId) {
+        private val table =
+            new OffHeapFlowStateTable[K, V](codec, initialCapacity, clock)
+
+        override protected def localPutAndRef(key: K, value: V): V =
+            table.putAndRef(key, value)
+
+        override protected def localGet(key: K): V =
+            table.get(key)
+
+        override def shallowGet(key: K): V =
+            table.sharedGet(key)
+
+        override def ref(key: K): V =
+            table.ref(key)
+
+        override def getRefCount(key: K): Int =
+            table.getRefCount(key)
+
+        override def unref(key: K) =
+            table.unref(key)
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            table.fold(seed, func)
+
+        override protected def localExpireIdleEntries[U](
+                seed: U, func: Reducer[K, V, U]): U =
+            table.expireIdleEntries(seed, func)
+    }
 }
@@ -22,22 +22,25 @@ import java.util.concurrent.TimeUnit
 import scala.collection.mutable
 import scala.collection.JavaConverters._
 
-import org.openjdk.jmh.annotations.{Setup => JmhSetup, Level, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Level, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode, Param}
 import org.openjdk.jmh.infra.Blackhole
 
+import com.codahale.metrics.MetricRegistry
+
 import org.midonet.cluster.data.ports.BridgePort
 import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.rules.{RuleResult, Condition}
 import org.midonet.midolman.simulation.Bridge
 import org.midonet.midolman.state.{MockStateStorage, FlowStateReplicator}
 import org.midonet.midolman.state.ConnTrackState._
-import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
+import org.midonet.midolman.state.NatState.{NatKey, NatBinding, NatRecordCodec}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.odp.flows.FlowActionOutput
-import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC, UDP}
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.sdn.state.{FlowStateTable, ShardedFlowStateTable, FlowStateTransaction}
 
 object ConnTrackBenchmark {
     val leftMac = MAC.random
@@ -78,14 +81,59 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
         override def vtepTunnellingOutputAction: FlowActionOutput = null
     }
-    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
-    val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
-    implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
-    implicit val natTx = new FlowStateTransaction(natTable)
+
+    /* Whether the conntrack and NAT tables are kept on or off the heap */
+    @Param(Array("heap", "offheap"))
+    var tables: String = _
+
+    /* The number of connections preloaded in the conntrack table */
+    @Param(Array("1000000", "10000000"))
+    var connections: Int = _
+
+    val conntrackStateTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]
+    val natStateTable = new ShardedFlowStateTable[NatKey, NatBinding]
+    var conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natTable: FlowStateTable[NatKey, NatBinding] = _
+    implicit var conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue] = _
+    implicit var natTx: FlowStateTransaction[NatKey, NatBinding] = _
     var replicator: FlowStateReplicator = _
 
+    private def usedHeap(): Long = {
+        val rt = Runtime.getRuntime
+        System.gc()
+        rt.totalMemory() - rt.freeMemory()
+    }
+
+    private def preloadConnections(): Unit = {
+        val heapBefore = usedHeap()
+        val deviceId = UUID.randomUUID()
+        var i = 0
+        while (i < connections) {
+            val k = ConnTrackKey(new IPv4Addr(0x0a000000 | (i >>> 16)), i & 0xffff,
+                                 new IPv4Addr(0xc0a80001), 53,
+                                 UDP.PROTOCOL_NUMBER, deviceId)
+            conntrackTable.touch(k, FORWARD_FLOW)
+            i += 1
+        }
+        val heap = (usedHeap() - heapBefore) / (1024 * 1024)
+        println(s"\n$tables conntrack table with $connections entries " +
+                s"takes $heap MB of heap")
+    }
+
     @JmhSetup
     def setup(): Unit = {
+        if (tables == "offheap") {
+            conntrackTable = conntrackStateTable.addOffHeapShard(
+                ConnTrackRecordCodec, connections)
+            natTable = natStateTable.addOffHeapShard(NatRecordCodec, 1024)
+        } else {
+            conntrackTable = conntrackStateTable.addShard()
+            natTable = natStateTable.addShard()
+        }
+        conntrackTx = new FlowStateTransaction(conntrackTable)
+        natTx = new FlowStateTransaction(natTable)
+        preloadConnections()
+
         newHost("myself", hostId)
         val clusterBridge = newBridge("bridge")
         leftPort = newBridgePort(clusterBridge)
@@ -105,7 +153,8 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         macTable.add(rightMac, rightPort.getId)
         replicator = new FlowStateReplicator(conntrackTable, natTable,
                                              new MockStateStorage,
-                                             underlayResolver, _ => { }, 0)
+                                             underlayResolver, _ => { }, 0,
+                                             new PacketPipelineMetrics(new MetricRegistry))
     }
 
     @Benchmark
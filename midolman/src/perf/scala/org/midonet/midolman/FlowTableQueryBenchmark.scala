@@ -16,18 +16,23 @@
 
 package org.midonet.midolman
 
+import java.lang.{Long => JLong}
 import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
-import java.util.{ArrayList, Random}
+import java.util.{ArrayList, HashMap => JHashMap, Map => JMap, Random}
 
 import org.midonet.midolman.FlowController.AddWildcardFlow
+import org.midonet.midolman.flows.WildcardTablesProvider
 import org.midonet.midolman.util.mock.MessageAccumulator
+import org.midonet.odp.flows.FlowKeys
 import org.midonet.odp.{Flow, FlowMatch, FlowMatches}
-import org.midonet.sdn.flows.WildcardFlow
+import org.midonet.sdn.flows.{FlowManager, FlowManagerHelper, ManagedWildcardFlow, WildcardFlow}
 import org.midonet.util.functors.Callback0
 import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
 
 object FlowTableQueryBenchmark {
     val numFlows = 10000
+    val numResidentFlows = 1000000
+    val oneHour = 60 * 60 * 1000
 
     @State(Scope.Thread)
     sealed class ThreadIndex {
@@ -39,6 +44,51 @@ object FlowTableQueryBenchmark {
             (res % numFlows).asInstanceOf[Int]
         }
     }
+
+    /* A FlowManager holding a million wildcard flows that expire at random
+     * moments during the next hour. */
+    @State(Scope.Thread)
+    class ResidentFlows extends FlowManagerHelper with WildcardTablesProvider {
+        val wildcardTables = new JHashMap[JLong, JMap[FlowMatch, ManagedWildcardFlow]]()
+        val flowManager = new FlowManager(this, this, numResidentFlows, 0, 0)
+        var tunnelKey = 0L
+
+        @JmhSetup
+        def setup(): Unit = {
+            val rand = new Random()
+            for (i <- 0 until numResidentFlows)
+                addFlow(rand.nextInt(oneHour) + 1)
+        }
+
+        def addFlow(hardExpirationMillis: Int): Unit = {
+            tunnelKey += 1
+            val wcMatch = new FlowMatch()
+                .addKey(FlowKeys.tunnel(tunnelKey, 100, 200, 0.toByte))
+            flowManager.add(ManagedWildcardFlow.create(
+                WildcardFlow(wcMatch, hardExpirationMillis = hardExpirationMillis)))
+        }
+
+        override def addTable(pattern: JLong) = {
+            var table = wildcardTables.get(pattern)
+            if (table eq null) {
+                table = new JHashMap[FlowMatch, ManagedWildcardFlow]()
+                wildcardTables.put(pattern, table)
+            }
+            table
+        }
+
+        override def tables() = wildcardTables
+
+        override def dumpFlows() {
+            flowManager.dumpCompleted(false)
+        }
+
+        override def removeFlow(flowMatch: FlowMatch) {}
+
+        override def removeWildcardFlow(flow: ManagedWildcardFlow) {
+            flowManager.remove(flow)
+        }
+    }
 }
 
 @BenchmarkMode(Array(Mode.AverageTime))
@@ -74,4 +124,20 @@ class FlowTableQueryBenchmark extends MidolmanBenchmark {
     @Benchmark
     def queryFlowTable(index: ThreadIndex) =
         FlowController.queryWildcardFlowTable(wcMatches(index.getAndIncrement()))
+
+    /* Insertion and eviction of the oldest flow, keeping a steady table */
+    @Benchmark
+    @Threads(1)
+    def addAndEvictFlow(flows: ResidentFlows): Unit = {
+        flows.flowManager.evictOneFlow()
+        flows.addFlow(oneHour)
+    }
+
+    /* Insertion of short lived flows, expired by the periodic check */
+    @Benchmark
+    @Threads(1)
+    def addAndExpireFlow(flows: ResidentFlows): Unit = {
+        flows.addFlow(1)
+        flows.flowManager.checkFlowsExpiration()
+    }
 }
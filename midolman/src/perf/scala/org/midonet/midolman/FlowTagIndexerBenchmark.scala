@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.FlowMatch
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+import org.midonet.sdn.flows.{FlowTagIndexer, FlowTagger, ManagedWildcardFlow, WildcardFlow}
+
+object FlowTagIndexerBenchmark {
+    val numTagsPerFlow = 20
+    val numDeviceFlows = 100000
+
+    def flowWith(tags: Array[FlowTag]): ManagedWildcardFlow = {
+        val flow = ManagedWildcardFlow.create(WildcardFlow(new FlowMatch()))
+        flow.tags = tags
+        flow
+    }
+}
+
+/* Indexing and unindexing a flow carrying twenty tags, and invalidating a
+ * device tag shared by a hundred thousand flows. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class FlowTagIndexerBenchmark {
+    import FlowTagIndexerBenchmark._
+
+    val indexer = new FlowTagIndexer()
+    val deviceTag = FlowTagger.tagForDevice(UUID.randomUUID())
+    val invalidated = new ArrayList[ManagedWildcardFlow]()
+    var flow: ManagedWildcardFlow = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val tags = new Array[FlowTag](numTagsPerFlow)
+        for (i <- 0 until numTagsPerFlow)
+            tags(i) = FlowTagger.tagForDevice(UUID.randomUUID())
+        flow = flowWith(tags)
+
+        val deviceTags = Array(deviceTag)
+        for (i <- 0 until numDeviceFlows)
+            indexer.index(flowWith(deviceTags))
+    }
+
+    @Benchmark
+    def indexFlow(): Unit = {
+        indexer.index(flow)
+        indexer.unindex(flow)
+    }
+
+    @Benchmark
+    def flowsOfDeviceTag(): Int = {
+        invalidated.clear()
+        indexer.flowsOf(deviceTag, invalidated).size
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.layer3.{IPv6RoutingTable, Route}
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.{IPv6Addr, IPv6Subnet}
+
+object IPv6RoutingTableBenchmark {
+    /* Most routes in an IPv6 Internet routing table are /48s inside
+     * 2000::/3, most of the rest are between /29 and /47. */
+    def randomRoute(random: Random): Route = {
+        val length = random.nextInt(10) match {
+            case n if n < 5 => 48
+            case 5 | 6 | 7 => 29 + random.nextInt(19)
+            case 8 => 19 + random.nextInt(10)
+            case 9 => 49 + random.nextInt(16)
+        }
+        val prefix = new IPv6Addr(0x2000000000000000L |
+                                  (random.nextLong() >>> 3), 0)
+        new Route(null, new IPv6Subnet(prefix, length), NextHop.PORT,
+                  UUID.randomUUID(), 100, null)
+    }
+
+    val destinations = 4096
+}
+
+/* The IPv6 counterpart of RoutingTableBenchmark: a route flapping in a
+ * table of many routes, and looking up destinations in that table. The
+ * destinations fall in the prefixes of random routes, as few random IPv6
+ * addresses would match any route but the default one. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class IPv6RoutingTableBenchmark {
+    import IPv6RoutingTableBenchmark._
+
+    @Param(Array("10000", "100000", "500000"))
+    var routes: Int = _
+
+    val table = new IPv6RoutingTable()
+    val src = IPv6Addr.random
+    var dsts: Array[IPv6Addr] = _
+    var flapping: Route = _
+    var next = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(routes)
+        table.addRoute(new Route(null, new IPv6Subnet("::", 0), NextHop.PORT,
+                                 UUID.randomUUID(), 100, null))
+        val added = Array.fill(routes)(randomRoute(random))
+        added foreach table.addRoute
+        dsts = Array.fill(destinations) {
+            val prefix = added(random.nextInt(routes)).dstSubnet6.getAddress
+            new IPv6Addr(prefix.upperWord, random.nextLong())
+        }
+        flapping = randomRoute(random)
+    }
+
+    @Benchmark
+    def flap(): IPv6RoutingTable = {
+        table.addRoute(flapping)
+        table.snapshot()
+        table.deleteRoute(flapping)
+        table.snapshot()
+    }
+
+    @Benchmark
+    def lookup(): java.lang.Iterable[Route] = {
+        next = (next + 1) & (destinations - 1)
+        table.lookup(src, dsts(next))
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.simulation.{LoadBalancer, PacketContext, VIP}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, TCP}
+
+/* Finding the VIP of a new connection to the last VIP of a load balancer,
+ * through the load balancer's index and by trying every VIP in order. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class LoadBalancerBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var vips: Int = _
+
+    val base = IPv4Addr.fromString("10.0.0.0").toInt
+    var lb: LoadBalancer = _
+    var pktMatch: FlowMatch = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val list = Array.tabulate(vips) { i =>
+            new VIP(UUID.randomUUID(), true, UUID.randomUUID(),
+                    new IPv4Addr(base + i / 2), 80 + i % 2, false)
+        }
+        lb = new LoadBalancer(UUID.randomUUID(), true, UUID.randomUUID(), list)
+
+        pktMatch = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.random)
+            .setNetworkDst(new IPv4Addr(base + (vips - 1) / 2))
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(50000)
+            .setDstPort(80 + (vips - 1) % 2)
+    }
+
+    @Benchmark
+    def indexed(): VIP =
+        lb.findVip(new PacketContext(1, null, pktMatch))
+
+    @Benchmark
+    def linear(): VIP = {
+        val context = new PacketContext(1, null, pktMatch)
+        var i = 0
+        while (i < lb.vips.length) {
+            if (lb.vips(i).matches(context))
+                return lb.vips(i)
+            i += 1
+        }
+        null
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{CountDownLatch, ThreadLocalRandom, TimeUnit}
+
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.ZooDefs.Ids
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.state._
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.eventloop.CallingThreadReactor
+import org.midonet.util.functors.Callback
+
+object NatBlockAllocatorBenchmark {
+
+    /* An agent with its own ZooKeeper session and allocator */
+    class Agent(server: TestingServer, paths: PathBuilder) {
+        val zk = new ZkConnection(server.getConnectString, Integer.MAX_VALUE, null)
+        zk.open()
+        val allocator = new ZkNatBlockAllocator(zk, paths, new CallingThreadReactor)
+
+        def allocate(range: NatRange): NatBlock = {
+            val latch = new CountDownLatch(1)
+            var block: NatBlock = null
+            allocator.allocateBlockInRange(range, new Callback[NatBlock, Exception] {
+                override def onSuccess(data: NatBlock): Unit = {
+                    block = data
+                    latch.countDown()
+                }
+                override def onError(e: Exception): Unit = latch.countDown()
+                override def onTimeout(): Unit = latch.countDown()
+            })
+            latch.await()
+            block
+        }
+    }
+}
+
+/* Many agents leasing and releasing blocks of the same SNAT IP, most of which
+ * are already leased. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+class NatBlockAllocatorBenchmark {
+    import NatBlockAllocatorBenchmark._
+
+    @Param(Array("128"))
+    var agents: Int = _
+
+    /* The blocks each agent holds while contending for the remaining ones */
+    @Param(Array("4", "7"))
+    var blocksPerAgent: Int = _
+
+    val paths = new PathBuilder("/midolman")
+    val range = new NatRange(UUID.randomUUID(), IPv4Addr.random, 0, 0xFFFF)
+    var server: TestingServer = _
+    var contenders: Array[Agent] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer(true)
+        contenders = Array.fill(agents)(new Agent(server, paths))
+        val zk = contenders(0).zk.getZooKeeper
+        zk.create(paths.getBasePath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+        zk.create(paths.getNatPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+        for (agent <- contenders; i <- 0 until blocksPerAgent)
+            agent.allocate(range)
+    }
+
+    @TearDown
+    def teardown(): Unit = {
+        contenders foreach (_.zk.close())
+        server.close()
+    }
+
+    @Benchmark
+    def allocateAndFree(): NatBlock = {
+        val agent = contenders(ThreadLocalRandom.current().nextInt(agents))
+        val block = agent.allocate(range)
+        if ((block ne null) && (block ne NatBlock.NO_BLOCK))
+            agent.allocator.freeBlock(block)
+        block
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+import java.util.{ArrayList, List => JList, UUID}
+
+import akka.actor.Props
+import akka.testkit.TestActorRef
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+import org.slf4j.helpers.NOPLogger
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.{Bridge => ClusterBridge, Router => ClusterRouter}
+import org.midonet.cluster.data.ports.{BridgePort, RouterPort}
+import org.midonet.midolman.DatapathController.DatapathReady
+import org.midonet.midolman.PacketsEntryPoint.Workers
+import org.midonet.midolman.UnderlayResolver.{Route => UnderlayRoute}
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.FlowEjector
+import org.midonet.midolman.host.interfaces.InterfaceDescription
+import org.midonet.midolman.io.UpcallDatapathConnectionManager
+import org.midonet.midolman.layer3.{Route => L3Route}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.rules.{Condition, NatTarget, RuleResult}
+import org.midonet.midolman.simulation.{Bridge, Router}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.{MockNatBlockAllocator, MockStateStorage, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.rcu.ResolvedHost
+import org.midonet.midolman.util.mock.{MockFlowEjector, MockUpcallDatapathConnectionManager}
+import org.midonet.odp.flows.{FlowAction, FlowActionOutput}
+import org.midonet.odp.protos.MockOvsDatapathConnection
+import org.midonet.odp.{Datapath, DpPort, Flow, FlowMatches, Packet}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, IPv4Subnet, MAC, TCP}
+import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.util.concurrent.NanoClock
+
+object PacketPipelineBenchmark {
+    // Same as the upcall BatchCollector in UpcallDatapathConnectionManager
+    val BatchSize = 16
+
+    val statsLog = Logger(LoggerFactory.getLogger(classOf[PacketPipelineBenchmark]))
+
+    val LeftDpPort = 1
+    val RightDpPort = 2
+    val UplinkDpPort = 3
+
+    val vmNetwork = new IPv4Subnet("10.0.0.0", 24)
+    val leftIp = IPv4Addr("10.0.0.10")
+    val rightIp = IPv4Addr("10.0.0.11")
+    val routerIp = new IPv4Subnet("10.0.0.1", 24)
+    val uplinkIp = new IPv4Subnet("192.168.100.2", 24)
+    val uplinkGwIp = IPv4Addr("192.168.100.1")
+
+    val leftMac = MAC.random()
+    val rightMac = MAC.random()
+    val routerMac = MAC.random()
+    val uplinkMac = MAC.random()
+    val uplinkGwMac = MAC.random()
+
+    /* Generates TCP SYNs with random ports, so that every packet misses the
+     * wildcard flow table and goes through a full simulation. */
+    def synFrame(srcMac: MAC, dstMac: MAC, srcIp: IPv4Addr,
+                 dstIp: IPv4Addr): Ethernet = {
+        val rand = ThreadLocalRandom.current()
+        val src = (1024 + rand.nextInt(Short.MaxValue - 1024)).toShort
+        val dst = (1 + rand.nextInt(Short.MaxValue - 1)).toShort
+        val frame: Ethernet = { eth addr srcMac -> dstMac } <<
+            { ip4 addr srcIp --> dstIp } <<
+                { tcp ports src ---> dst flags TCP.Flag.Syn.bit.toShort }
+        frame
+    }
+
+    def packetFor(frame: Ethernet, inPortNo: Int): Packet = {
+        val fmatch = FlowMatches.fromEthernetPacket(frame)
+        fmatch.setInputPortNumber(inPortNo)
+        new Packet(frame, fmatch).setReason(Packet.Reason.FlowTableMiss)
+    }
+}
+
+/**
+ * Measures the packet processing pipeline end to end: packets are injected as
+ * upcalls through a MockOvsDatapathConnection, batched by the upcall
+ * BatchCollector into HandlePackets messages and run by a DeduplicationActor
+ * through the PacketWorkflow, the Coordinator and the virtual devices.
+ *
+ * The virtual topology consists of a bridge with two VM ports, protected
+ * by security-group style chains that track connections, and a router that
+ * SNATs the traffic leaving through its uplink port:
+ *
+ *   left VM --+
+ *             +-- bridge -- router (SNAT) -- uplink
+ *   right VM -+
+ *
+ * The throughput benchmarks report packets/sec; the sample time benchmarks
+ * report the simulation latency distribution, including the p50 and p99.
+ * At the end of each iteration we log the upcall to flow latency
+ * percentiles as recorded by the PacketPipelineMetrics, along with the
+ * number of bytes allocated per packet.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(5)
+@State(Scope.Benchmark)
+abstract class PacketPipelineBenchmark extends MidolmanBenchmark {
+    import PacketPipelineBenchmark._
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor),
+                   FlowController -> (() => new FlowController))
+
+    private val threadMxBean = ManagementFactory.getThreadMXBean
+                                   .asInstanceOf[com.sun.management.ThreadMXBean]
+
+    var clusterBridge: ClusterBridge = _
+    var clusterRouter: ClusterRouter = _
+    var leftPort: BridgePort = _
+    var rightPort: BridgePort = _
+    var uplinkPort: RouterPort = _
+
+    var metrics: PacketPipelineMetrics = _
+    var ddaRef: TestActorRef[DeduplicationActor] = _
+    var dpConn: MockOvsDatapathConnection = _
+    var packets: JList[Packet] = _
+
+    var packetsIn = 0L
+    var bytesAllocated = 0L
+
+    /** The packet the workload injects next */
+    protected def nextPacket(): Packet
+
+    val dpChannel = new DatapathChannel {
+        override def executePacket(packet: Packet,
+                                   actions: JList[FlowAction]): Unit = { }
+        override def createFlow(flow: Flow): Unit = { }
+        override def start(datapath: Datapath): Unit = { }
+        override def stop(): Unit = { }
+    }
+
+    val natLeaser = new NatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val allocator: NatBlockAllocator = new MockNatBlockAllocator
+        override val clock = NanoClock.DEFAULT
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        buildTopology()
+
+        // Every packet creates a new flow, so the FlowController will be
+        // evicting flows once the tables fill up.
+        injector.getInstance(classOf[FlowEjector])
+            .asInstanceOf[MockFlowEjector].completeRequests = true
+
+        metrics = new PacketPipelineMetrics(new MetricRegistry)
+        ddaRef = TestActorRef(Props(new DeduplicationActor(
+            injector.getInstance(classOf[MidolmanConfig]),
+            new CookieGenerator(1, 1), dpChannel, clusterDataClient,
+            new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard(),
+            new ShardedFlowStateTable[NatKey, NatBinding]().addShard(),
+            new MockStateStorage, natLeaser, metrics, _ => { })))(actorSystem)
+
+        val connManager = injector.getInstance(
+                classOf[UpcallDatapathConnectionManager])
+            .asInstanceOf[MockUpcallDatapathConnectionManager]
+        connManager.initialize(Workers(IndexedSeq(ddaRef)))
+        dpConn = connManager.conn.getConnection
+                     .asInstanceOf[MockOvsDatapathConnection]
+
+        val datapath = dpConn.futures.datapathsCreate("midonet").get()
+        ddaRef ! DatapathReady(datapath, datapathState)
+        FlowController ! DatapathReady(datapath, datapathState)
+
+        packets = new ArrayList[Packet](BatchSize)
+    }
+
+    private def buildTopology(): Unit = {
+        newHost("myself", hostId)
+        clusterBridge = newBridge("bridge")
+        clusterRouter = newRouter("router")
+
+        leftPort = newBridgePort(clusterBridge)
+        rightPort = newBridgePort(clusterBridge)
+        val bridgeInteriorPort = newBridgePort(clusterBridge)
+        val routerInteriorPort = newRouterPort(clusterRouter, routerMac,
+                                               routerIp)
+        uplinkPort = newRouterPort(clusterRouter, uplinkMac, uplinkIp)
+        linkPorts(bridgeInteriorPort, routerInteriorPort)
+
+        materializePort(leftPort, hostId, "left")
+        materializePort(rightPort, hostId, "right")
+        materializePort(uplinkPort, hostId, "uplink")
+
+        newRoute(clusterRouter, "0.0.0.0", 0, "0.0.0.0", 0,
+                 L3Route.NextHop.PORT, uplinkPort.getId,
+                 uplinkGwIp.toString, 1)
+        newRoute(clusterRouter, "0.0.0.0", 0,
+                 vmNetwork.getAddress.toString, vmNetwork.getPrefixLen,
+                 L3Route.NextHop.PORT, routerInteriorPort.getId,
+                 new IPv4Addr(L3Route.NO_GATEWAY).toString, 10)
+
+        // Security groups: anti-spoofing on the way out of the left VM,
+        // connection tracking and an address group on the way into the
+        // right VM.
+        val antiSpoof = newInboundChainOnPort("left-in", leftPort)
+        val spoofCond = new Condition()
+        spoofCond.nwSrcIp = new IPv4Subnet(leftIp, 32)
+        spoofCond.nwSrcInv = true
+        newLiteralRuleOnChain(antiSpoof, 1, spoofCond, RuleResult.Action.DROP)
+        newLiteralRuleOnChain(antiSpoof, 2, new Condition(),
+                              RuleResult.Action.ACCEPT)
+
+        val ipAddrGroup = createIpAddrGroup()
+        addIpAddrToIpAddrGroup(ipAddrGroup.getId, leftIp.toString)
+        val secGroup = newOutboundChainOnPort("right-out", rightPort)
+        val returnCond = new Condition()
+        returnCond.matchReturnFlow = true
+        newLiteralRuleOnChain(secGroup, 1, returnCond, RuleResult.Action.ACCEPT)
+        newIpAddrGroupRuleOnChain(secGroup, 2, RuleResult.Action.ACCEPT,
+                                  None, Some(ipAddrGroup.getId))
+        newLiteralRuleOnChain(secGroup, 3, new Condition(),
+                              RuleResult.Action.DROP)
+
+        // SNAT for traffic leaving through the uplink
+        val rtrIn = newInboundChainOnRouter("router-in", clusterRouter)
+        val rtrOut = newOutboundChainOnRouter("router-out", clusterRouter)
+        newReverseNatRuleOnChain(rtrIn, 1, new Condition(),
+                                 RuleResult.Action.CONTINUE, isDnat = false)
+        val snatCond = new Condition()
+        snatCond.nwSrcIp = vmNetwork
+        snatCond.outPortIds = new java.util.HashSet[UUID]()
+        snatCond.outPortIds.add(uplinkPort.getId)
+        newForwardNatRuleOnChain(rtrOut, 1, snatCond,
+            RuleResult.Action.ACCEPT,
+            Set(new NatTarget(uplinkIp.getAddress, uplinkIp.getAddress,
+                              1024, 65535)),
+            isDnat = false)
+
+        val topology = fetchTopology(clusterBridge, clusterRouter, leftPort,
+                                     rightPort, bridgeInteriorPort,
+                                     routerInteriorPort, uplinkPort,
+                                     antiSpoof, secGroup, rtrIn, rtrOut,
+                                     ipAddrGroup)
+
+        topology collectFirst { case r: Router => r } foreach {
+            feedArpTable(_, uplinkGwIp, uplinkGwMac)
+        }
+        topology collectFirst { case b: Bridge => b } foreach { b =>
+            val macTable = b.vlanMacTableMap(ClusterBridge.UNTAGGED_VLAN_ID)
+            macTable.add(leftMac, leftPort.getId)
+            macTable.add(rightMac, rightPort.getId)
+        }
+    }
+
+    private def datapathState = new DatapathState {
+        val dpPortToVport = Map(LeftDpPort -> leftPort.getId,
+                                RightDpPort -> rightPort.getId,
+                                UplinkDpPort -> uplinkPort.getId)
+        val vportToDpPort = dpPortToVport map (_.swap)
+
+        override def host = new ResolvedHost(hostId, true, "midonet",
+                                             Map(), Map())
+        override def peerTunnelInfo(peer: UUID): Option[UnderlayRoute] = None
+        override def isVtepTunnellingPort(portNumber: Integer) = false
+        override def isOverlayTunnellingPort(portNumber: Integer) = false
+        override def vtepTunnellingOutputAction: FlowActionOutput = null
+        override def getDescForInterface(itfName: String)
+        : Option[InterfaceDescription] = None
+        override def getDpPortForInterface(itfName: String): Option[DpPort] =
+            None
+        override def getVportForDpPortNumber(portNum: Integer): Option[UUID] =
+            dpPortToVport.get(portNum)
+        override def dpPortNumberForTunnelKey(tunnelKey: Long): Option[DpPort] =
+            None
+        override def getDpPortNumberForVport(vportId: UUID): Option[Integer] =
+            vportToDpPort.get(vportId) map Int.box
+        override def getDpPortName(num: Integer): Option[String] = None
+    }
+
+    @JmhSetup(Level.Invocation)
+    def generatePackets(): Unit = {
+        packets.clear()
+        var i = 0
+        while (i < BatchSize) {
+            packets.add(nextPacket())
+            i += 1
+        }
+    }
+
+    @JmhSetup(Level.Iteration)
+    def resetCounters(): Unit = {
+        packetsIn = 0
+        bytesAllocated = 0
+    }
+
+    @TearDown(Level.Iteration)
+    def logPipelineStats(): Unit = {
+        val latency = metrics.simulationLatency.getSnapshot
+        statsLog.info(f"simulation latency p50 ${latency.getMedian / 1000}%.1f us, " +
+                      f"p99 ${latency.get99thPercentile / 1000}%.1f us; " +
+                      f"${bytesAllocated.toDouble / Math.max(1, packetsIn)}%.0f " +
+                      "bytes allocated per packet")
+    }
+
+    /**
+     * Injects a batch of packets as upcalls and runs them through the
+     * pipeline in the calling thread.
+     */
+    protected def injectPackets(pkts: JList[Packet]): Unit = {
+        val tid = Thread.currentThread().getId
+        val allocatedBefore = threadMxBean.getThreadAllocatedBytes(tid)
+        dpConn.triggerPacketsIn(pkts)
+        bytesAllocated += threadMxBean.getThreadAllocatedBytes(tid) - allocatedBefore
+        packetsIn += pkts.size
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(16)
+    def packetBatch(): Unit =
+        injectPackets(packets)
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.SampleTime))
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    def singlePacket(): Unit =
+        injectPackets(packets.subList(0, 1))
+}
+
+/**
+ * VM to VM traffic on the same bridge. Exercises the bridge, the port chains
+ * and connection tracking.
+ */
+class BridgedPacketPipeline extends PacketPipelineBenchmark {
+    import PacketPipelineBenchmark._
+
+    override protected def nextPacket(): Packet =
+        packetFor(synFrame(leftMac, rightMac, leftIp, rightIp), LeftDpPort)
+}
+
+/**
+ * VM to external traffic. Exercises the bridge, the router's routing table
+ * and ARP cache, and SNAT through the NatLeaser.
+ */
+class RoutedPacketPipeline extends PacketPipelineBenchmark {
+    import PacketPipelineBenchmark._
+
+    override protected def nextPacket(): Packet = {
+        val dst = IPv4Addr(0x08000000 | ThreadLocalRandom.current().nextInt(0xffffff))
+        packetFor(synFrame(leftMac, routerMac, leftIp, dst), LeftDpPort)
+    }
+}
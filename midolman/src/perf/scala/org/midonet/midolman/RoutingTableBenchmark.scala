@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.IPv4Addr
+
+object RoutingTableBenchmark {
+    /* Most routes in an Internet routing table are /24s, most of the rest
+     * are between /16 and /23. */
+    def randomRoute(random: Random): Route = {
+        val length = random.nextInt(10) match {
+            case n if n < 6 => 24
+            case 6 => 8 + random.nextInt(8)
+            case 7 | 8 => 16 + random.nextInt(8)
+            case 9 => 25 + random.nextInt(8)
+        }
+        new Route(0, 0, random.nextInt(), length, NextHop.PORT,
+                  UUID.randomUUID(), 0, 100, null, null)
+    }
+
+    val destinations = 4096
+}
+
+/* A route flapping in a table of many routes, such as those learned over
+ * BGP: each change to the table is followed by a snapshot for the RCU
+ * Router. And looking up random destinations in that table, which also
+ * has a default route. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class RoutingTableBenchmark {
+    import RoutingTableBenchmark._
+
+    @Param(Array("10000", "100000", "500000"))
+    var routes: Int = _
+
+    val table = new IPv4RoutingTable()
+    val src = IPv4Addr.random
+    val dsts = Array.fill(destinations)(IPv4Addr.random)
+    var flapping: Route = _
+    var next = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(routes)
+        table.addRoute(new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(),
+                                 0, 100, null, null))
+        for (i <- 0 until routes)
+            table.addRoute(randomRoute(random))
+        flapping = randomRoute(random)
+    }
+
+    @Benchmark
+    def flap(): IPv4RoutingTable = {
+        table.addRoute(flapping)
+        table.snapshot()
+        table.deleteRoute(flapping)
+        table.snapshot()
+    }
+
+    @Benchmark
+    def lookup(): java.lang.Iterable[Route] = {
+        next = (next + 1) & (destinations - 1)
+        table.lookup(src, dsts(next))
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.IPFragmentType
+import org.midonet.packets.{IPv4, IPv4Addr, IPv4Subnet, MAC, TCP}
+import org.midonet.util.Range
+
+/* Applying a security group like chain, where each rule accepts TCP traffic
+ * from one address to one port, to the first packet of a flow matched by
+ * the last rule. The chain is applied through its classifier and by
+ * evaluating every rule in order. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class RuleChainBenchmark {
+
+    @Param(Array("10", "100", "1000", "10000"))
+    var rules: Int = _
+
+    val ownerId = UUID.randomUUID()
+    val base = IPv4Addr.fromString("10.0.0.0").toInt
+    var chain: Chain = _
+    var pktMatch: FlowMatch = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val list = (0 until rules) map { i =>
+            val cond = new Condition()
+            cond.etherType = IPv4.ETHERTYPE.toInt
+            cond.nwProto = TCP.PROTOCOL_NUMBER
+            cond.nwSrcIp = new IPv4Subnet(base + i, 32)
+            cond.tpDst = new Range[Integer](1024 + i % 1000)
+            new LiteralRule(cond, Action.ACCEPT): Rule
+        }
+        chain = new Chain(UUID.randomUUID(), list.asJava,
+                          Map.empty[UUID, Chain], "sg")
+
+        pktMatch = new FlowMatch()
+            .setEthSrc(MAC.random())
+            .setEthDst(MAC.random())
+            .setEtherType(IPv4.ETHERTYPE)
+            .setNetworkSrc(new IPv4Addr(base + rules - 1))
+            .setNetworkDst(IPv4Addr.random)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setIpFragmentType(IPFragmentType.None)
+            .setSrcPort(50000)
+            .setDstPort(1024 + (rules - 1) % 1000)
+    }
+
+    @Benchmark
+    def classified(): RuleResult =
+        Chain.apply(chain, new PacketContext(1, null, pktMatch), ownerId, false)
+
+    @Benchmark
+    def linear(): RuleResult = {
+        val context = new PacketContext(1, null, pktMatch)
+        val res = new RuleResult(Action.CONTINUE, null)
+        val it = chain.getRules.iterator()
+        while (it.hasNext && res.action == Action.CONTINUE)
+            it.next().process(context, res, ownerId, false)
+        res
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.packets.{IPv4Addr, TCP}
+import org.midonet.sdn.state.ShardedFlowStateTable
+
+object ShardedFlowStateTableBenchmark {
+    val keysPerShard = 10000
+}
+
+/* Return flow lookups that miss the local shard of a worker, because the
+ * forward flow was handled by another one, and lookups of unknown keys. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class ShardedFlowStateTableBenchmark {
+    import ShardedFlowStateTableBenchmark._
+
+    @Param(Array("8", "16", "32"))
+    var shards: Int = _
+
+    val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]()
+    var localShard: table.FlowStateShard = _
+    var keys: Array[ConnTrackKey] = _
+    var unknownKey: ConnTrackKey = _
+    var i = 0
+
+    private def key(n: Int) =
+        ConnTrackKey(new IPv4Addr(n), n & 0xffff, IPv4Addr.random, 80,
+                     TCP.PROTOCOL_NUMBER, UUID.randomUUID())
+
+    @JmhSetup
+    def setup(): Unit = {
+        val tableShards = Array.fill(shards)(table.addShard())
+        localShard = tableShards(0)
+        keys = new Array[ConnTrackKey](keysPerShard * (shards - 1))
+        for (n <- 0 until keys.length) {
+            keys(n) = key(n)
+            tableShards(1 + n % (shards - 1)).putAndRef(keys(n), FORWARD_FLOW)
+        }
+        unknownKey = key(-1)
+    }
+
+    @Benchmark
+    def remoteShardGet(): ConnTrackValue = {
+        i = (i + 1) % keys.length
+        localShard.get(keys(i))
+    }
+
+    @Benchmark
+    def missingKeyGet(): ConnTrackValue =
+        localShard.get(unknownKey)
+}
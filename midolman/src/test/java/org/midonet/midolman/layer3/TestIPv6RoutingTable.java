@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.midolman.topology.RoutingTableWrapper;
+import org.midonet.odp.FlowMatch;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+public class TestIPv6RoutingTable {
+
+    private static final IPv6Subnet ANY = new IPv6Subnet("::", 0);
+
+    private static Route route(IPv6Subnet src, String dst, int weight) {
+        return new Route(src, IPv6Subnet.fromString(dst), NextHop.PORT,
+                         UUID.randomUUID(), weight, null);
+    }
+
+    private static IPv6Addr addr(String s) {
+        return IPv6Addr.fromString(s);
+    }
+
+    private static Set<Route> setOf(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Assert.assertTrue(table.lookup(addr("2001:db8::1"),
+                                       addr("2001:db8::2")).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        Route all = route(ANY, "::/0", 100);
+        Route doc = route(ANY, "2001:db8::/32", 100);
+        Route site = route(ANY, "2001:db8:1::/48", 100);
+        Route subnet = route(ANY, "2001:db8:1:2::/64", 100);
+        Route lower = route(ANY, "2001:db8:1:2::ff00:0/104", 100);
+        Route host = route(ANY, "2001:db8:1:2::ff00:1/128", 100);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        for (Route rt : new Route[] {host, subnet, all, lower, site, doc})
+            table.addRoute(rt);
+
+        IPv6Addr src = addr("2001:db8:ffff::1");
+        Assert.assertEquals(setOf(all),
+            new HashSet<>(table.lookup(src, addr("fe80::1"))));
+        Assert.assertEquals(setOf(doc),
+            new HashSet<>(table.lookup(src, addr("2001:db8:2::1"))));
+        Assert.assertEquals(setOf(site),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:3::1"))));
+        Assert.assertEquals(setOf(subnet),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:2::1"))));
+        Assert.assertEquals(setOf(lower),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:2::ff00:2"))));
+        Assert.assertEquals(setOf(host),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:2::ff00:1"))));
+
+        table.deleteRoute(lower);
+        table.deleteRoute(site);
+        Assert.assertEquals(setOf(subnet),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:2::ff00:2"))));
+        Assert.assertEquals(setOf(doc),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:3::1"))));
+        Assert.assertEquals(setOf(host),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1:2::ff00:1"))));
+    }
+
+    @Test
+    public void testEqualCostGroupIsPrecomputed() {
+        Route rt1 = route(ANY, "2001:db8::/32", 100);
+        Route rt2 = route(null, "2001:db8::/32", 100);
+        Route rt3 = route(ANY, "2001:db8::/32", 200);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.addRoute(rt3);
+
+        List<Route> routes = table.lookup(addr("::1"), addr("2001:db8::1"));
+        Assert.assertEquals(setOf(rt1, rt2), new HashSet<>(routes));
+        Assert.assertSame(routes,
+                          table.lookup(addr("::2"), addr("2001:db8::2")));
+    }
+
+    @Test
+    public void testSourcePrefixes() {
+        Route any = route(ANY, "2001:db8::/32", 100);
+        Route fromSite = route(IPv6Subnet.fromString("2001:db8:5::/48"),
+                               "2001:db8::/32", 100);
+        Route cheaper = route(IPv6Subnet.fromString("2001:db8:6::/48"),
+                              "2001:db8::/32", 50);
+        Route elsewhere = route(IPv6Subnet.fromString("2001:db8:7::/48"),
+                                "2001:db8:1::/48", 100);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        for (Route rt : new Route[] {any, fromSite, cheaper, elsewhere})
+            table.addRoute(rt);
+
+        IPv6Addr dst = addr("2001:db8:1::1");
+        Assert.assertEquals(setOf(any),
+            new HashSet<>(table.lookup(addr("2001:db8:4::1"), dst)));
+        Assert.assertEquals(setOf(any, fromSite),
+            new HashSet<>(table.lookup(addr("2001:db8:5::1"), dst)));
+        Assert.assertEquals(setOf(cheaper),
+            new HashSet<>(table.lookup(addr("2001:db8:6::1"), dst)));
+        Assert.assertEquals(setOf(elsewhere),
+            new HashSet<>(table.lookup(addr("2001:db8:7::1"), dst)));
+    }
+
+    @Test
+    public void testWrapperLooksUpIPv6DestinationsInTheIPv6Table() {
+        Route rt4 = new Route(0, 0, 0x0a000000, 8, NextHop.PORT,
+                              UUID.randomUUID(), 0, 100, null, null);
+        Route rt6 = route(ANY, "2001:db8::/32", 100);
+        IPv4RoutingTable table4 = new IPv4RoutingTable();
+        table4.addRoute(rt4);
+        IPv6RoutingTable table6 = new IPv6RoutingTable();
+        table6.addRoute(rt6);
+        RoutingTableWrapper<IPv4Addr> wrapper =
+            new RoutingTableWrapper<>(table4, table6);
+
+        FlowMatch match6 = new FlowMatch()
+            .setNetworkSrc(addr("2001:db8:1::1"))
+            .setNetworkDst(addr("2001:db8:2::1"));
+        Assert.assertEquals(setOf(rt6), new HashSet<>(wrapper.lookup(match6)));
+
+        FlowMatch match4 = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString("192.168.0.1"))
+            .setNetworkDst(IPv4Addr.fromString("10.0.0.1"));
+        Assert.assertEquals(setOf(rt4), new HashSet<>(wrapper.lookup(match4)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIPv4RoutesAreRejected() {
+        new IPv6RoutingTable().addRoute(
+            new Route(0, 0, 0x0a000000, 8, NextHop.PORT, UUID.randomUUID(),
+                      0, 100, null, null));
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByUpdates() {
+        Route rt1 = route(ANY, "2001:db8::/32", 100);
+        Route rt2 = route(ANY, "2001:db8:1::/48", 100);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        table.addRoute(rt1);
+        IPv6RoutingTable snapshot = table.snapshot();
+        table.addRoute(rt2);
+        table.deleteRoute(rt1);
+
+        IPv6Addr src = addr("::1");
+        Assert.assertEquals(setOf(rt1),
+            new HashSet<>(snapshot.lookup(src, addr("2001:db8:1::1"))));
+        Assert.assertEquals(setOf(rt2),
+            new HashSet<>(table.lookup(src, addr("2001:db8:1::1"))));
+        Assert.assertTrue(table.lookup(src, addr("2001:db8:2::1")).isEmpty());
+    }
+
+    /* Compares lookups against a scan of every route, on random prefixes
+     * that share most of their bits so that they nest. */
+    @Test
+    public void testLookupMatchesLinearScan() {
+        Random random = new Random(42);
+        long upper = 0x20010db800000000L;
+        List<Route> routes = new ArrayList<>();
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        for (int i = 0; i < 2000; i++) {
+            IPv6Addr prefix = new IPv6Addr(upper | random.nextInt(16),
+                                           random.nextInt(16));
+            Route rt = new Route(ANY, new IPv6Subnet(prefix,
+                                                     random.nextInt(129)),
+                                 NextHop.PORT, UUID.randomUUID(),
+                                 100 + random.nextInt(2), null);
+            routes.add(rt);
+            table.addRoute(rt);
+        }
+        for (int i = 0; i < 1000; i++)
+            table.deleteRoute(routes.remove(random.nextInt(routes.size())));
+
+        for (int i = 0; i < 1000; i++) {
+            IPv6Addr dst = new IPv6Addr(upper | random.nextInt(16),
+                                        random.nextInt(16));
+            int longest = -1;
+            int minWeight = Integer.MAX_VALUE;
+            Set<Route> expected = new HashSet<>();
+            for (Route rt : routes) {
+                int len = rt.dstSubnet6.getPrefixLen();
+                if (!rt.dstSubnet6.containsAddress(dst) || len < longest)
+                    continue;
+                if (len > longest || rt.weight < minWeight) {
+                    expected.clear();
+                    longest = len;
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    expected.add(rt);
+            }
+            Assert.assertEquals(expected,
+                new HashSet<>(table.lookup(addr("::1"), dst)));
+        }
+    }
+}
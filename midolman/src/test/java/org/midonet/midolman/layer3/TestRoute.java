@@ -1,25 +1,18 @@
-/*
- * Copyright 2014 Midokura SARL
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
 package org.midonet.midolman.layer3;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+
 import org.junit.Assert;
 
 import org.junit.Test;
 
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv6Subnet;
+
 public class TestRoute {
 
     @Test
@@ -27,4 +20,24 @@ public class TestRoute {
         //fail("Not yet implemented");
     }
 
+    @Test
+    public void testIPv6RouteIsSerializable() throws Exception {
+        Route rt = new Route(IPv6Subnet.fromString("2001:db8:1::/48"),
+                             IPv6Subnet.fromString("2001:db8::/32"),
+                             NextHop.PORT, UUID.randomUUID(), 100,
+                             UUID.randomUUID());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(rt);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        Route copy = (Route) in.readObject();
+
+        Assert.assertEquals(rt, copy);
+        Assert.assertEquals(rt.dstSubnet6, copy.dstSubnet6);
+        Assert.assertEquals(rt.srcSubnet6, copy.srcSubnet6);
+    }
+
 }
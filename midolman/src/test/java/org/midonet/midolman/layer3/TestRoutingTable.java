@@ -19,6 +19,7 @@ package org.midonet.midolman.layer3;
 import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Vector;
@@ -27,6 +28,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Addr;
 
 public class TestRoutingTable {
 
@@ -213,6 +215,65 @@ public class TestRoutingTable {
             table.addRoute(rt);
     }
     
+    @Test
+    public void testSnapshotIsNotAffectedByUpdates() {
+        Route rt1 = new Route(0, 0, 0x0a140000, 16, NextHop.PORT,
+                              new UUID(40L, 50L), 0, 100, null, null);
+        Route rt2 = new Route(0, 0, 0x0a140100, 24, NextHop.PORT,
+                              new UUID(40L, 60L), 0, 100, null, null);
+        Route rt3 = new Route(0, 0, 0x0a140180, 25, NextHop.PORT,
+                              new UUID(40L, 70L), 0, 100, null, null);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        IPv4RoutingTable snapshot = table.snapshot();
+
+        table.addRoute(rt3);
+        table.deleteRoute(rt2);
+        IPv4Addr src = IPv4Addr.fromInt(0x12345678);
+        IPv4Addr dst = IPv4Addr.fromInt(0x0a140181);
+        Set<Route> matches = generateSet(snapshot.lookup(src, dst));
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt2));
+        matches = generateSet(table.lookup(src, dst));
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt3));
+
+        dst = IPv4Addr.fromInt(0x0a140101);
+        matches = generateSet(snapshot.lookup(src, dst));
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt2));
+        matches = generateSet(table.lookup(src, dst));
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt1));
+    }
+
+    @Test
+    public void testEqualCostGroupIsPrecomputed() {
+        Route rt1 = new Route(0, 0, 0x0a140000, 16, NextHop.PORT,
+                              new UUID(40L, 50L), 0, 100, null, null);
+        Route rt2 = new Route(0, 0, 0x0a140000, 16, NextHop.PORT,
+                              new UUID(40L, 60L), 0, 100, null, null);
+        Route rt3 = new Route(0, 0, 0x0a140000, 16, NextHop.PORT,
+                              new UUID(40L, 70L), 0, 200, null, null);
+        RoutingTable table = new RoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.addRoute(rt3);
+
+        List<Route> group = table.lookup(0x12345678, 0x0a140101);
+        Assert.assertEquals(2, group.size());
+        Assert.assertTrue(group.contains(rt1));
+        Assert.assertTrue(group.contains(rt2));
+        Assert.assertSame(group, table.lookup(0x01020304, 0x0a14ffff));
+
+        table.deleteRoute(rt1);
+        table.deleteRoute(rt2);
+        group = table.lookup(0x12345678, 0x0a140101);
+        Assert.assertEquals(1, group.size());
+        Assert.assertTrue(group.contains(rt3));
+    }
+
     private Set<Route> generateSet(Iterable<Route> iterable){
         Set<Route> set = new HashSet<Route>();
         for(Iterator<Route> it = iterable.iterator(); it.hasNext();){
@@ -16,7 +16,10 @@
 
 package org.midonet.midolman.state;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -72,12 +75,12 @@ public class ZkNatBlockAllocatorTest {
         server.close();
     }
 
-    static class NatBlockResult implements Callback<NatBlock, Exception> {
-        private NatBlock result;
+    static class AllocationResult<T> implements Callback<T, Exception> {
+        private T result;
         private Exception exception;
         private CountDownLatch latch = new CountDownLatch(1);
 
-        public NatBlock getResult() throws Exception {
+        public T getResult() throws Exception {
             if (exception != null)
                 throw exception;
             return result;
@@ -88,7 +91,7 @@ public class ZkNatBlockAllocatorTest {
         }
 
         @Override
-        public void onSuccess(NatBlock data) {
+        public void onSuccess(T data) {
             result = data;
             latch.countDown();
         }
@@ -107,7 +110,7 @@ public class ZkNatBlockAllocatorTest {
     public void testPathsAreCreatedCorrectly() throws Exception {
         IPv4Addr ip = IPv4Addr.random();
         UUID device = UUID.randomUUID();
-        NatBlockResult res = new NatBlockResult();
+        AllocationResult<NatBlock> res = new AllocationResult<>();
         allocator.allocateBlockInRange(new NatRange(device, ip, 0, 0xFFFF), res);
         res.await();
 
@@ -135,6 +138,116 @@ public class ZkNatBlockAllocatorTest {
         assertThat(owned, is(1));
     }
 
+    @Test
+    public void testAllocateSeveralBlocks() throws Exception {
+        IPv4Addr ip = IPv4Addr.random();
+        UUID device = UUID.randomUUID();
+
+        List<NatBlock> blocks = allocateBlocks(
+            new NatRange(device, ip, 0, 0xFFFF), 3);
+        assertThat(blocks.size(), is(3));
+        assertThat(new HashSet<>(blocks).size(), is(3));
+        int owned = 0;
+        for (int i = 0; i < NatBlock.TOTAL_BLOCKS; ++i) {
+            String ownershipPath = paths.getNatBlockOwnershipPath(device, ip, i);
+            if (zk.getZooKeeper().exists(ownershipPath, false) != null) {
+                assertThat(blocks.contains(new NatBlock(device, ip, i)), is(true));
+                owned += 1;
+            }
+        }
+        assertThat(owned, is(3));
+
+        // 0 to 191 spans 3 blocks, some of which are already owned
+        NatRange request = new NatRange(device, ip, 0, 191);
+        Set<NatBlock> results = new HashSet<>();
+        for (int i = 0; i < 2; ++i) {
+            for (NatBlock block : allocateBlocks(request, 3)) {
+                assertThat(blocks.contains(block), is(false));
+                assertThat(block.blockIndex, lessThanOrEqualTo(2));
+                results.add(block);
+            }
+        }
+
+        int free = 0;
+        for (int i = 0; i <= 2; ++i) {
+            if (!blocks.contains(new NatBlock(device, ip, i)))
+                free += 1;
+        }
+        assertThat(results.size(), is(free));
+        assertThat(allocateBlocks(request, 3).size(), is(0));
+    }
+
+    @Test
+    public void testStaleCacheDoesNotGrantOwnedBlocks() throws Exception {
+        IPv4Addr ip = IPv4Addr.random();
+        UUID device = UUID.randomUUID();
+        NatRange request = new NatRange(device, ip, 0, 127);
+
+        ZkConnection otherZk = new ZkConnection(
+                        server.getConnectString(), Integer.MAX_VALUE, null);
+        otherZk.open();
+        ZkNatBlockAllocator otherAllocator = new ZkNatBlockAllocator(
+                        otherZk, paths, new CallingThreadReactor());
+
+        // Both blocks of the range are cached as free by this allocator
+        NatBlock ours = allocateBlock(request);
+        NatBlock theirs = allocateBlock(request, otherAllocator);
+        assertThat(theirs.blockIndex, is(1 - ours.blockIndex));
+
+        assertThat(allocateBlock(request), is(NatBlock.NO_BLOCK));
+        assertThat(allocateBlocks(request, 2).size(), is(0));
+
+        // The cache learns about the block freed by the other allocator
+        freeBlock(theirs);
+        assertThat(allocateBlock(request), is(theirs));
+        otherZk.close();
+    }
+
+    @Test
+    public void testContendingAllocators() throws Exception {
+        final IPv4Addr ip = IPv4Addr.random();
+        final UUID device = UUID.randomUUID();
+        // 10 blocks, claimed by more allocators than there are blocks
+        final NatRange request = new NatRange(device, ip, 0, 639);
+        freeBlock(allocateBlock(request));
+
+        int agents = 16;
+        final List<NatBlock> granted =
+            Collections.synchronizedList(new ArrayList<NatBlock>());
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[agents];
+        ZkConnection[] conns = new ZkConnection[agents];
+        for (int i = 0; i < agents; ++i) {
+            conns[i] = new ZkConnection(
+                server.getConnectString(), Integer.MAX_VALUE, null);
+            conns[i].open();
+            final ZkNatBlockAllocator agent = new ZkNatBlockAllocator(
+                conns[i], paths, new CallingThreadReactor());
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        NatBlock block = allocateBlock(request, agent);
+                        if (block != NatBlock.NO_BLOCK)
+                            granted.add(block);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertThat(granted.size(), is(10));
+        assertThat(new HashSet<>(granted).size(), is(10));
+        for (ZkConnection conn : conns)
+            conn.close();
+    }
+
     // Utility functions that synchronize the test thread with the operations
     // on the embedded Zookeeper.
     private NatBlock allocateBlock(NatRange natRange) throws Exception {
@@ -143,12 +256,20 @@ public class ZkNatBlockAllocatorTest {
 
     private NatBlock allocateBlock(NatRange natRange,
                                    NatBlockAllocator allocator) throws Exception {
-        NatBlockResult res = new NatBlockResult();
+        AllocationResult<NatBlock> res = new AllocationResult<>();
         allocator.allocateBlockInRange(natRange, res);
         res.await();
         return res.getResult();
     }
 
+    private List<NatBlock> allocateBlocks(NatRange natRange,
+                                          int count) throws Exception {
+        AllocationResult<List<NatBlock>> res = new AllocationResult<>();
+        allocator.allocateBlocksInRange(natRange, count, res);
+        res.await();
+        return res.getResult();
+    }
+
     private void freeBlock(NatBlock natBlock) throws Exception {
         String path = paths.getNatBlockOwnershipPath(
             natBlock.deviceId, natBlock.ip, natBlock.blockIndex);
@@ -22,6 +22,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,7 +37,6 @@ import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
 import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKeys;
-import org.midonet.util.functors.Callback1;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -179,8 +179,8 @@ public class FlowManagerTest {
         // the flow should be expired since lastUsedTime > timeOut
         flowManager.checkFlowsExpiration();
 
-        // checkFlowsExpiration calls getFlow that runs on another thread, getFlow
-        // must complete before checking the status of the maps. I hate sleeps
+        // checkFlowsExpiration calls dumpFlows that runs on another thread, the
+        // dump must complete before checking the status of the maps. I hate sleeps
         // but didn't want to make the code more complex, this is quick and dirty
         Thread.sleep(10);
         assertThat("Flow was not deleted",
@@ -253,8 +253,8 @@ public class FlowManagerTest {
         Thread.sleep(timeOut);
 
         flowManager.checkFlowsExpiration();
-        // checkFlowsExpiration calls getFlow that runs on another thread, getFlow
-        // must complete before checking the status of the maps. I hate sleeps
+        // checkFlowsExpiration calls dumpFlows that runs on another thread, the
+        // dump must complete before checking the status of the maps. I hate sleeps
         // but didn't want to make the code more complex, this is quick and dirty
         Thread.sleep(10);
 
@@ -293,8 +293,8 @@ public class FlowManagerTest {
         flowManagerHelper.setLastUsedTimeToNow(flowMatch);
 
         // checkFlowsExpiration will iterate through the priority queue for idle
-        // expiration. For the expired flow it will do a FlowManagerHelper.getFlow
-        // and pass a callback. The callback will modify the priority queue.
+        // expiration. For the expired flow it will do a FlowManagerHelper.dumpFlows
+        // whose results will modify the priority queue.
         // In this test if we use just one thread we get a ConcurrentModificationException
         // because the queue is modified while iterating. That's why the callback
         // runs in another thread and we need to synchronize
@@ -339,6 +339,74 @@ public class FlowManagerTest {
                    !wflow.dpFlows().contains(flowMatch));
     }
 
+    @Test
+    public void testDumpedFlowWithoutUserspaceKeys() {
+        FlowMatch flowMatch = new FlowMatch()
+            .addKey(FlowKeys.tunnel(10L, 100, 200, (byte)0))
+            .addKey(FlowKeys.icmpEcho((byte) 8, (byte) 0, (short) 42));
+
+        WildcardFlow wildcardFlow =
+            WildcardFlowFactory.createIdleExpiration(flowMatch, timeOut);
+        ManagedWildcardFlow wflow = ManagedWildcardFlow.create(wildcardFlow);
+        flowManager.add(wflow);
+        flowManager.add(new Flow(flowMatch, actionsAsJava(wildcardFlow)), wflow);
+
+        // the datapath doesn't know about the icmp id
+        Flow dumped = new Flow(new FlowMatch()
+            .addKey(FlowKeys.tunnel(10L, 100, 200, (byte)0))
+            .addKey(FlowKeys.icmp((byte) 8, (byte) 0)));
+        dumped.setLastUsedTime(wflow.getLastUsedTimeMillis() + 1000);
+
+        assertThat("Dumped flow was not matched to the installed flow",
+                   flowManager.flowDumped(dumped), equalTo(flowMatch));
+        assertThat("Wildcard flow LastUsedTime was not updated",
+                   wflow.getLastUsedTimeMillis(),
+                   equalTo(dumped.getLastUsedTime()));
+
+        flowManager.remove(wflow);
+        assertThat("Removed flow was matched",
+                   flowManager.flowDumped(dumped), nullValue());
+    }
+
+    @Test
+    public void testFlowsMissingFromTheDumpAreForgotten()
+            throws InterruptedException {
+        FlowMatch idleMatch = new FlowMatch().addKey(FlowKeys.tunnel(10L, 100, 200, (byte)0));
+        WildcardFlow idleFlow =
+            WildcardFlowFactory.createIdleExpiration(idleMatch, timeOut);
+        ManagedWildcardFlow idleWflow = ManagedWildcardFlow.create(idleFlow);
+        flowManager.add(idleWflow);
+        flowManager.add(new Flow(idleMatch, actionsAsJava(idleFlow)), idleWflow);
+        flowManagerHelper.addFlow(new Flow(idleMatch));
+
+        // the datapath lost this flow, the dump won't report it
+        FlowMatch lostMatch = new FlowMatch().addKey(FlowKeys.tunnel(20L, 100, 200, (byte)0));
+        WildcardFlow lostFlow = WildcardFlowFactory.create(lostMatch);
+        ManagedWildcardFlow lostWflow = ManagedWildcardFlow.create(lostFlow);
+        flowManager.add(lostWflow);
+        flowManager.add(new Flow(lostMatch, actionsAsJava(lostFlow)), lostWflow);
+
+        Thread.sleep(timeOut);
+        // the idle flow makes the flow manager dump the datapath flows
+        flowManager.checkFlowsExpiration();
+
+        boolean forgotten = false;
+        for (int i = 0; i < 200 && !forgotten; i++) {
+            Thread.sleep(10);
+            updateFlowLock.lock();
+            forgotten = !flowManager.dpFlowTable.containsKey(lostMatch);
+            updateFlowLock.unlock();
+        }
+        assertThat("Missing flow was not removed from the DpFlowTable", forgotten);
+        assertThat("Missing flow was not removed from its ManagedWildcardFlow",
+                   !lostWflow.dpFlows().contains(lostMatch));
+        assertThat("The wildcard flow of the missing flow was removed",
+                   flowManager.getWildcardTables().get(
+                       lostWflow.getMatch().getUsedFields())
+                       .get(lostWflow.getMatch()),
+                   equalTo(lostWflow));
+    }
+
     @Test
     public void testFreeSpaceDpTable(){
         int maxAcceptedDpFlows = (int) (maxDpFlowSize - dpFlowRemoveBatchSize);
@@ -451,13 +519,19 @@ public class FlowManagerTest {
         public Map<FlowMatch, Flow> flowsMap = new HashMap<>();
         public Queue<Flow> toRemove;
 
+        /* The datapath reports when flows were last used in milliseconds of
+         * the monotonic clock, as the flow manager keeps its time. */
+        private long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+
         public void addFlow(Flow flow) {
-            flow.setLastUsedTime(System.currentTimeMillis());
+            flow.setLastUsedTime(now());
             flowsMap.put(flow.getMatch(), flow);
         }
 
         public void setLastUsedTimeToNow(FlowMatch match) {
-            flowsMap.get(match).setLastUsedTime(System.currentTimeMillis());
+            flowsMap.get(match).setLastUsedTime(now());
         }
 
         private void doRemoveFlow(Flow flow) {
@@ -483,24 +557,18 @@ public class FlowManagerTest {
         }
 
         @Override
-        public void getFlow(FlowMatch flowMatch, Callback1<Flow> flowCb) {
-            new Thread(new MockFlowUpdatedMessageRunnable(flowMatch, flowCb)).start();
+        public void dumpFlows() {
+            new Thread(new MockFlowsDumpedMessageRunnable()).start();
         }
 
-        class MockFlowUpdatedMessageRunnable implements Runnable {
-            Callback1<Flow> flowCb;
-            FlowMatch flowMatch;
-
-            MockFlowUpdatedMessageRunnable(FlowMatch flowMatch,
-                                           Callback1<Flow> flowCb) {
-                this.flowCb = flowCb;
-                this.flowMatch = flowMatch;
-            }
-
+        class MockFlowsDumpedMessageRunnable implements Runnable {
             @Override
             public void run() {
                 updateFlowLock.lock();
-                flowCb.call(flowsMap.get(flowMatch));
+                for (Flow flow : flowsMap.values()) {
+                    flowManager.flowDumped(flow);
+                }
+                flowManager.dumpCompleted(true);
                 updateFlowLock.unlock();
             }
         }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.sdn.flows.FlowTagger.FlowTag;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FlowTagIndexerTest {
+
+    private final FlowTagIndexer indexer = new FlowTagIndexer();
+
+    private final FlowTag deviceTag = FlowTagger.tagForDevice(UUID.randomUUID());
+    private final FlowTag portTag = FlowTagger.tagForDpPort(1);
+
+    private ManagedWildcardFlow flow(FlowTag... tags) {
+        ManagedWildcardFlow flow = ManagedWildcardFlow.create(
+            WildcardFlowFactory.create(new FlowMatch()));
+        flow.tags_$eq(tags);
+        return flow;
+    }
+
+    @Test
+    public void testIndexesFlowsByTag() {
+        ManagedWildcardFlow f1 = flow(deviceTag, portTag);
+        ManagedWildcardFlow f2 = flow(deviceTag);
+        indexer.index(f1);
+        indexer.index(f2);
+
+        assertThat(indexer.numTags(), is(2));
+        assertThat(indexer.numFlowsOf(deviceTag), is(2));
+        assertThat(indexer.numFlowsOf(portTag), is(1));
+        assertThat(indexer.isTagged(f1, portTag), is(true));
+        assertThat(indexer.isTagged(f2, portTag), is(false));
+
+        List<ManagedWildcardFlow> flows =
+            indexer.flowsOf(deviceTag, new ArrayList<ManagedWildcardFlow>());
+        assertThat(flows.size(), is(2));
+        assertThat(flows, hasItems(f1, f2));
+    }
+
+    @Test
+    public void testEqualTagsShareTheirFlows() {
+        UUID device = UUID.randomUUID();
+        ManagedWildcardFlow f1 = flow(new FlowTagger.DeviceTag(device));
+        ManagedWildcardFlow f2 = flow(new FlowTagger.DeviceTag(device));
+        indexer.index(f1);
+        indexer.index(f2);
+
+        assertThat(indexer.numTags(), is(1));
+        assertThat(indexer.numFlowsOf(FlowTagger.tagForDevice(device)), is(2));
+    }
+
+    @Test
+    public void testUnindexReleasesTags() {
+        ManagedWildcardFlow f1 = flow(deviceTag, portTag);
+        ManagedWildcardFlow f2 = flow(deviceTag);
+        indexer.index(f1);
+        indexer.index(f2);
+
+        indexer.unindex(f1);
+        assertThat(f1.tagIndexSlot(), is(-1));
+        assertThat(indexer.numTags(), is(1));
+        assertThat(indexer.numFlowsOf(portTag), is(0));
+        assertThat(indexer.isTagged(f1, deviceTag), is(false));
+        assertThat(indexer.isTagged(f2, deviceTag), is(true));
+
+        indexer.unindex(f1);
+        indexer.unindex(f2);
+        assertThat(indexer.numTags(), is(0));
+        assertThat(indexer.numFlowsOf(deviceTag), is(0));
+    }
+
+    @Test
+    public void testSlotsAndIdsAreRecycled() {
+        List<ManagedWildcardFlow> flows = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            ManagedWildcardFlow f = flow(deviceTag, FlowTagger.tagForDpPort(i));
+            indexer.index(f);
+            flows.add(f);
+        }
+        assertThat(indexer.numTags(), is(1001));
+        assertThat(indexer.numFlowsOf(deviceTag), is(1000));
+
+        for (ManagedWildcardFlow f : flows)
+            indexer.unindex(f);
+        assertThat(indexer.numTags(), is(0));
+
+        ManagedWildcardFlow f = flow(portTag);
+        indexer.index(f);
+        assertThat(f.tagIndexSlot() < 1000, is(true));
+        assertThat(indexer.isTagged(f, portTag), is(true));
+        assertThat(indexer.flowsOf(portTag,
+                       new ArrayList<ManagedWildcardFlow>()).get(0), is(f));
+    }
+
+    @Test
+    public void testFlowsWithoutTagsAreNotIndexed() {
+        ManagedWildcardFlow f = flow();
+        indexer.index(f);
+        assertThat(f.tagIndexSlot(), is(-1));
+        assertThat(indexer.numTags(), is(0));
+    }
+}
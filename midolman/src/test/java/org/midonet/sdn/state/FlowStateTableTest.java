@@ -300,6 +300,95 @@ public class FlowStateTableTest {
         refCountTest(global);
     }
 
+    @Test
+    public void testOwnerIndex() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+        shards.get(2).touch(keys[1], vals[1]);
+        assertThat(global.ownerOf(keys[0]), sameInstance((Object) shards.get(1)));
+        assertThat(global.ownerOf(keys[1]), sameInstance((Object) shards.get(2)));
+        assertThat(global.ownerOf(keys[2]), nullValue());
+
+        global.ref(keys[1]);
+        assertThat(shards.get(2).getRefCount(keys[1]), equalTo(1));
+        global.unref(keys[1]);
+        global.unref(keys[0]);
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        global.expireIdleEntries();
+        assertThat(global.ownerOf(keys[0]), nullValue());
+        assertThat(global.ownerOf(keys[1]), nullValue());
+        assertThat(shards.get(3).get(keys[0]), nullValue());
+        assertThat(shards.get(3).get(keys[1]), nullValue());
+    }
+
+    /* Counts the lookups of a key: one to find its bucket in the owner index,
+     * then one per shard probed. */
+    static class ProbedKey extends TestKey {
+        int lookups = 0;
+
+        public ProbedKey(String key) {
+            super(key);
+        }
+
+        @Override
+        public int hashCode() {
+            lookups += 1;
+            return super.hashCode();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMissesOnlyProbeTheShardsOfTheirBucket() {
+        // a single bucket, which all the keys fall in
+        ShardedFlowStateTable<TestKey, Integer> table =
+            new ShardedFlowStateTable<>(clock, 1);
+        List<FlowStateTable<TestKey, Integer>> tableShards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            tableShards.add((FlowStateTable)
+                table.addShard(Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER)));
+        }
+        for (int i = 0; i < 10; i++) {
+            tableShards.get(1).putAndRef(key("one" + i), i);
+            tableShards.get(2).putAndRef(key("two" + i), i);
+            tableShards.get(1).unref(key("one" + i));
+        }
+
+        ProbedKey missing = new ProbedKey("missing");
+        assertThat(table.get(missing), nullValue());
+        assertThat(missing.lookups, equalTo(1 + 2));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        tableShards.get(1).expireIdleEntries();
+        missing.lookups = 0;
+        assertThat(table.get(missing), nullValue());
+        assertThat(missing.lookups, equalTo(1 + 1));
+        assertThat(table.get(key("two0")), equalTo(0));
+    }
+
+    @Test
+    public void testKeyHeldByTwoShards() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+        shards.get(2).touch(keys[0], vals[1]);
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        shards.get(2).expireIdleEntries();
+        assertThat(shards.get(3).get(keys[0]), equalTo(vals[0]));
+        assertThat(global.ownerOf(keys[0]), sameInstance((Object) shards.get(1)));
+        assertThat(global.getRefCount(keys[0]), equalTo(1));
+    }
+
+    @Test
+    public void testTouchOfUnknownKeys() {
+        for (int i = 0; i < keys.length; i++) {
+            global.touch(keys[i], vals[i]);
+            int shard = Math.abs(keys[i].hashCode() % SHARDS);
+            assertThat(global.ownerOf(keys[i]),
+                       sameInstance((Object) shards.get(shard)));
+            assertThat(global.get(keys[i]), equalTo(vals[i]));
+        }
+    }
+
     @Test
     public void testTouchExpirationReset() {
         FlowStateTable<TestKey, Integer> table = shards.get(0);
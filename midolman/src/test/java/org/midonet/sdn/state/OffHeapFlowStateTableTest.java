@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sun.misc.Unsafe;
+
+import org.midonet.Util;
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class OffHeapFlowStateTableTest {
+    static final Duration IDLE_EXPIRATION = new FiniteDuration(60, TimeUnit.SECONDS);
+
+    static class TestKey implements IdleExpiration {
+        final int key;
+        final Duration expiresAfter;
+
+        TestKey(int key) {
+            this(key, IDLE_EXPIRATION);
+        }
+
+        TestKey(int key, Duration expiresAfter) {
+            this.key = key;
+            this.expiresAfter = expiresAfter;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return expiresAfter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestKey && ((TestKey) o).key == key;
+        }
+
+        @Override
+        public int hashCode() {
+            // collide often, so that probing is exercised
+            return key % 7;
+        }
+    }
+
+    static class TestCodec
+            implements OffHeapFlowStateTable.RecordCodec<TestKey, Integer> {
+        private final Unsafe unsafe = Util.getUnsafe();
+
+        @Override
+        public int keyWidth() { return 4; }
+
+        @Override
+        public int valueWidth() { return 4; }
+
+        @Override
+        public int hash(TestKey key) { return key.hashCode(); }
+
+        @Override
+        public void writeKey(TestKey key, long address) {
+            unsafe.putInt(address, key.key);
+        }
+
+        @Override
+        public boolean keyEquals(TestKey key, long address) {
+            return unsafe.getInt(address) == key.key;
+        }
+
+        @Override
+        public TestKey readKey(long address) {
+            return new TestKey(unsafe.getInt(address));
+        }
+
+        @Override
+        public void writeValue(Integer value, long address) {
+            unsafe.putInt(address, value);
+        }
+
+        @Override
+        public Integer readValue(long address) {
+            return unsafe.getInt(address);
+        }
+    }
+
+    private static TestKey key(int k) {
+        return new TestKey(k);
+    }
+
+    private final MockClock clock = new MockClock();
+    private OffHeapFlowStateTable<TestKey, Integer> table;
+
+    @Before
+    public void before() {
+        table = new OffHeapFlowStateTable<>(new TestCodec(), 4, clock);
+    }
+
+    @After
+    public void after() {
+        table.close();
+    }
+
+    @Test
+    public void testPutGet() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(table.get(key(i)), nullValue());
+            assertThat(table.putAndRef(key(i), i * 10), nullValue());
+        }
+        assertThat(table.size(), equalTo(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(table.get(key(i)), equalTo(i * 10));
+            assertThat(table.sharedGet(key(i)), equalTo(i * 10));
+        }
+
+        assertThat(table.putAndRef(key(0), 9595), equalTo(0));
+        assertThat(table.get(key(0)), equalTo(9595));
+        assertThat(table.getRefCount(key(0)), equalTo(2));
+        assertThat(table.size(), equalTo(100));
+    }
+
+    @Test
+    public void testRefCount() {
+        table.putAndRef(key(1), 1);
+        assertThat(table.ref(key(1)), equalTo(1));
+        assertThat(table.getRefCount(key(1)), equalTo(2));
+        assertThat(table.ref(key(2)), nullValue());
+        assertThat(table.getRefCount(key(2)), equalTo(0));
+
+        table.unref(key(1));
+        table.unref(key(1));
+        table.unref(key(1));
+        assertThat(table.getRefCount(key(1)), equalTo(0));
+    }
+
+    @Test
+    public void testExpiration() {
+        table.putAndRef(key(1), 1);
+        table.putAndRef(key(2), 2);
+        table.touch(key(3), 3);
+        table.unref(key(1));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        Map<TestKey, Integer> expired = table.expireIdleEntries(
+            new HashMap<TestKey, Integer>(), new MapReducer());
+
+        assertThat(expired.size(), equalTo(2));
+        assertThat(expired.get(key(1)), equalTo(1));
+        assertThat(expired.get(key(3)), equalTo(3));
+        assertThat(table.get(key(1)), nullValue());
+        assertThat(table.get(key(2)), equalTo(2));
+        assertThat(table.get(key(3)), nullValue());
+        assertThat(table.size(), equalTo(1));
+    }
+
+    @Test
+    public void testReferenceShortensExpiration() {
+        Duration shortExpiration = new FiniteDuration(5, TimeUnit.SECONDS);
+        table.putAndRef(key(1), 1);
+        table.ref(new TestKey(1, shortExpiration));
+        table.unref(new TestKey(1, shortExpiration));
+        table.unref(key(1));
+
+        clock.time_$eq(shortExpiration.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), nullValue());
+
+        table.putAndRef(new TestKey(2, shortExpiration), 2);
+        table.ref(key(2));
+        table.unref(key(2));
+        table.unref(key(2));
+
+        clock.time_$eq(clock.time() + shortExpiration.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(key(2)), equalTo(2));
+    }
+
+    @Test
+    public void testShortExpirationAfterLongerOnes() {
+        Duration shortExpiration = new FiniteDuration(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++)
+            table.touch(key(i), i);
+        clock.time_$eq(TimeUnit.SECONDS.toNanos(1));
+        table.touch(new TestKey(10, shortExpiration), 10);
+
+        clock.time_$eq(TimeUnit.SECONDS.toNanos(6) + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(key(10)), nullValue());
+        assertThat(table.size(), equalTo(10));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.size(), equalTo(0));
+    }
+
+    @Test
+    public void testRefBeforeExpiration() {
+        table.touch(key(1), 1);
+        table.touch(key(2), 2);
+        table.ref(key(1));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), equalTo(1));
+        assertThat(table.get(key(2)), nullValue());
+
+        table.unref(key(1));
+        clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() / 2);
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), equalTo(1));
+        clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() / 2 + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), nullValue());
+    }
+
+    @Test
+    public void testExpirationAcrossRehash() {
+        for (int i = 0; i < 10; i++)
+            table.touch(key(i), i);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() / 2);
+        for (int i = 10; i < 1000; i++)
+            table.putAndRef(key(i), i);
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.size(), equalTo(990));
+        for (int i = 0; i < 1000; i++) {
+            if (i < 10)
+                assertThat(table.get(key(i)), nullValue());
+            else
+                assertThat(table.get(key(i)), equalTo(i));
+        }
+    }
+
+    @Test
+    public void testReuseOfExpiredSlots() {
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++)
+                table.touch(key(round * 100 + i), i);
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() + 1);
+            table.expireIdleEntries();
+            assertThat(table.size(), equalTo(0));
+        }
+        table.putAndRef(key(1), 1);
+        assertThat(table.get(key(1)), equalTo(1));
+    }
+
+    @Test
+    public void testMemoryIsReleasedUnderChurn() {
+        long peak = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 1000; i++)
+                table.touch(key(round * 1000 + i), i);
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() + 1);
+            table.expireIdleEntries();
+            assertThat(table.size(), equalTo(0));
+            if (round == 0)
+                peak = table.memoryUsage();
+            assertThat(table.memoryUsage(), lessThanOrEqualTo(peak));
+        }
+    }
+
+    @Test
+    public void testSharedGetDuringChurn() throws Exception {
+        final AtomicReference<Integer> wrong = new AtomicReference<>();
+        final AtomicReference<Boolean> done = new AtomicReference<>(false);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!done.get()) {
+                    Integer v = table.sharedGet(key(i));
+                    if (v != null && v != i)
+                        wrong.set(i);
+                    i = (i + 1) % 100000;
+                }
+            }
+        };
+        reader.start();
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 1000; i++)
+                table.touch(key(round * 1000 + i), round * 1000 + i);
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() + 1);
+            table.expireIdleEntries();
+        }
+        done.set(true);
+        reader.join();
+        assertThat(wrong.get(), nullValue());
+    }
+
+    @Test
+    public void testFold() {
+        for (int i = 0; i < 50; i++)
+            table.putAndRef(key(i), i);
+        Map<TestKey, Integer> all = table.fold(
+            new HashMap<TestKey, Integer>(), new MapReducer());
+        assertThat(all.size(), equalTo(50));
+        for (int i = 0; i < 50; i++)
+            assertThat(all.get(key(i)), equalTo(i));
+    }
+
+    @Test
+    public void testSharedGetFromOtherThread() throws Exception {
+        final AtomicReference<Integer> missing = new AtomicReference<>();
+        final int n = 10000;
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    while (table.sharedGet(key(i)) == null) { }
+                    Integer v = table.sharedGet(key(i));
+                    if (v != i)
+                        missing.set(i);
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < n; i++)
+            table.putAndRef(key(i), i);
+        reader.join();
+        assertThat(missing.get(), nullValue());
+    }
+
+    @Test
+    public void testOffHeapShard() {
+        ShardedFlowStateTable<TestKey, Integer> global =
+            new ShardedFlowStateTable<>(clock);
+        FlowStateTable<TestKey, Integer> shard1 =
+            global.addOffHeapShard(new TestCodec(), 16);
+        FlowStateTable<TestKey, Integer> shard2 =
+            global.addOffHeapShard(new TestCodec(), 16);
+
+        shard1.putAndRef(key(1), 1);
+        shard2.touch(key(2), 2);
+        assertThat(shard2.get(key(1)), equalTo(1));
+        assertThat(shard1.get(key(2)), equalTo(2));
+        assertThat(global.get(key(1)), equalTo(1));
+        assertThat(global.getRefCount(key(1)), equalTo(1));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        global.expireIdleEntries();
+        assertThat(global.get(key(1)), equalTo(1));
+        assertThat(global.get(key(2)), nullValue());
+    }
+
+    class MapReducer extends Reducer<TestKey, Integer, Map<TestKey, Integer>> {
+        @Override
+        public Map<TestKey, Integer> apply(Map<TestKey, Integer> seed,
+                                           TestKey key, Integer value) {
+            seed.put(key, value);
+            return seed;
+        }
+    }
+}
@@ -23,10 +23,12 @@ import scala.concurrent.Promise
 import akka.actor.Props
 import akka.testkit.TestActorRef
 import com.codahale.metrics.{MetricFilter, MetricRegistry}
+import com.lmax.disruptor.RingBuffer
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
 import org.midonet.cluster.DataClient
+import org.midonet.midolman.DeduplicationActor.{PacketSlot, PacketSlotFactory}
 import org.midonet.midolman.PacketWorkflow.{FlowCreated, StateMessage}
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
@@ -48,9 +50,10 @@ import org.midonet.packets.Ethernet
 import org.midonet.packets.util.EthBuilder
 import org.midonet.packets.util.PacketBuilder.{udp, _}
 import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.util.MidonetEventually
 
 @RunWith(classOf[JUnitRunner])
-class DeduplicationActorTest extends MidolmanSpec {
+class DeduplicationActorTest extends MidolmanSpec with MidonetEventually {
     var datapath: Datapath = null
     var packetsSeen = List[(Packet, Int)]()
     var stateMessagesExecuted = 0
@@ -65,7 +68,8 @@ class DeduplicationActorTest extends MidolmanSpec {
         createDda()
     }
 
-    def createDda(simulationExpireMillis: Long = 5000L): Unit = {
+    def createDda(simulationExpireMillis: Long = 5000L,
+                  packetRing: RingBuffer[PacketSlot] = null): Unit = {
         if (ddaRef != null)
             actorSystem.stop(ddaRef)
 
@@ -76,7 +80,8 @@ class DeduplicationActorTest extends MidolmanSpec {
             mockDpChannel, clusterDataClient,
             new PacketPipelineMetrics(metricsReg),
             (x: Int) => { packetsOut += x },
-            simulationExpireMillis)
+            simulationExpireMillis,
+            packetRing)
         }
 
         ddaRef = TestActorRef(ddaProps)(actorSystem)
@@ -95,6 +100,10 @@ class DeduplicationActorTest extends MidolmanSpec {
             override def vtepTunnellingOutputAction: FlowActionOutput = ???
             override def getDescForInterface(itfName: String) = ???
         })
+        if (packetRing ne null) {
+            // The worker thread handles the DatapathReady message
+            eventually { dda.dpState should not be null }
+        }
         dda.hookPacketHandler()
     }
 
@@ -264,6 +273,60 @@ class DeduplicationActorTest extends MidolmanSpec {
             packetsOut should be (3)
         }
 
+        scenario("reads packets from a ring") {
+            Given("a DDA that reads packets from a ring")
+            val ring = RingBuffer.createMultiProducer(PacketSlotFactory, 16)
+            createDda(packetRing = ring)
+
+            When("packets are published to the ring")
+            val pkts = List(makePacket(1), makePacket(1), makePacket(2))
+            val hi = ring.next(pkts.size)
+            val lo = hi - pkts.size + 1
+            for ((pkt, i) <- pkts.zipWithIndex) {
+                ring.get(lo + i).packet = pkt
+            }
+            ring.publish(lo, hi)
+
+            Then("the DDA should execute the workflows in its own thread")
+            eventually {
+                packetsSeen map (_._1) should be (List(pkts(0), pkts(2)))
+                packetsOut should be (3)
+            }
+
+            And("the slots of the ring should be released")
+            for (i <- 0 until pkts.size) {
+                ring.get(lo + i).packet should be (null)
+            }
+        }
+
+        scenario("drops packets whose frame is malformed") {
+            Given("a packet whose frame was truncated")
+            val frame: Ethernet = makeFrame(1)
+            val truncated = new Packet(frame.serialize().take(10),
+                                       FlowMatches.fromEthernetPacket(frame))
+                                .setReason(Packet.Reason.FlowTableMiss)
+            dda.handler.parseFrames = true
+
+            When("it is fed to the DDA and its frame is parsed")
+            ddaRef ! DeduplicationActor.HandlePackets(Array(truncated))
+
+            Then("the packet should be dropped without installing a flow")
+            packetsSeen map (_._1) should be (List(truncated))
+            dda.handler.drops should be (0)
+            dda.suspended(truncated.getMatch) should be (null)
+            metricsReg.getMeters.asScala.collect {
+                case (name, meter) if name contains "packetsDropped" => meter.getCount
+            } should be (List(1))
+
+            When("a well formed packet with the same match follows")
+            dda.handler.parseFrames = false
+            val pkt = makePacket(1)
+            ddaRef ! DeduplicationActor.HandlePackets(Array(pkt))
+
+            Then("it should be simulated")
+            packetsSeen map (_._1) should be (List(truncated, pkt))
+        }
+
         scenario("state messages are not expired") {
             Given("state messages in the waiting room")
             createDda(0)
@@ -292,11 +355,15 @@ class DeduplicationActorTest extends MidolmanSpec {
         var p = Promise[Any]()
         var generatedPacket: GeneratedPacket = _
         var nextActions: List[FlowAction] = _
+        var parseFrames = false
+        var drops = 0
 
         override def start(pktCtx: PacketContext) = {
             pktCtx.runs += 1
             if (pktCtx.runs == 1) {
                 packetsSeen = packetsSeen :+ (pktCtx.packet, pktCtx.cookie)
+                if (parseFrames)
+                    pktCtx.ethernet
                 if (pktCtx.isGenerated) {
                     FlowCreated
                 } else {
@@ -322,6 +389,7 @@ class DeduplicationActorTest extends MidolmanSpec {
         }
 
         override def drop(pktCtx: PacketContext) {
+            drops += 1
         }
 
         def complete(actions: List[FlowAction]): Unit = {
@@ -335,14 +403,15 @@ class DeduplicationActorTest extends MidolmanSpec {
                       clusterDataClient: DataClient,
                       metrics: PacketPipelineMetrics,
                       packetOut: Int => Unit,
-                      override val simulationExpireMillis: Long)
+                      override val simulationExpireMillis: Long,
+                      packetRing: RingBuffer[PacketSlot])
             extends DeduplicationActor(injector.getInstance(classOf[MidolmanConfig]),
                                        cookieGen, dpChannel, clusterDataClient,
                                        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
                                        new ShardedFlowStateTable[NatKey, NatBinding](),
                                        new MockStateStorage(),
                                        HappyGoLuckyLeaser,
-                                       metrics, packetOut)
+                                       metrics, packetOut, packetRing)
             with MessageAccumulator {
 
         implicit override val dispatcher = this.context.dispatcher
@@ -360,6 +429,8 @@ class DeduplicationActorTest extends MidolmanSpec {
             complete(actions)
         }
 
+        def handler = workflow.asInstanceOf[MockPacketHandler]
+
         def hookPacketHandler(): Unit =
             workflow = new MockPacketHandler()
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.ArrayList
+
+import scala.collection.JavaConversions._
+import scala.concurrent.duration._
+import scala.util.Random
+
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.management.Metering
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.midolman.util.mock.MessageAccumulator
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+import org.midonet.sdn.flows.{FlowTagger, WildcardFlowFactory}
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class FlowControllerShardsTest extends MidolmanSpec {
+
+    val numShards = 4
+
+    registerActors(FlowController -> (() => new FlowController
+                                            with MessageAccumulator))
+
+    override def fillConfig(config: HierarchicalConfiguration) = {
+        config.setProperty("midolman.simulation_threads", numShards)
+        super.fillConfig(config)
+    }
+
+    def flowController = FlowController.as[FlowController
+                                           with MessageAccumulator]
+
+    /* A flow match owned by the given shard. */
+    def matchOfShard(shard: Int): FlowMatch = {
+        var fmatch: FlowMatch = null
+        do {
+            fmatch = new FlowMatch().addKey(
+                FlowKeys.tunnel(Random.nextLong(), Random.nextInt(),
+                                Random.nextInt(), 0))
+        } while (FlowController.shardIndex(fmatch, numShards) != shard)
+        fmatch
+    }
+
+    def addFlow(fmatch: FlowMatch, tags: FlowTag*): Unit = {
+        val wcFlow = WildcardFlowFactory.create(fmatch)
+        FlowController ! FlowController.AddWildcardFlow(
+            wcFlow, new Flow(fmatch, wcFlow.actions), new ArrayList[Callback0](),
+            tags.toSet, FlowController.lastInvalidationEvent)
+    }
+
+    def currentWildcardFlows =
+        flowController.metrics.currentWildFlowsMetric.getValue
+
+    feature("Flows are managed by the shard that owns their match") {
+        scenario("Flow matches are routed to their shard") {
+            val refs = (0 until numShards) map { i =>
+                FlowController.shardFor(matchOfShard(i))
+            }
+
+            refs.head should be (FlowController.getRef())
+            refs.toSet should have size numShards
+            for (i <- 0 until numShards)
+                FlowController.shardFor(matchOfShard(i)) should be (refs(i))
+        }
+
+        scenario("The first shard forwards the flows it doesn't own") {
+            val matches = (0 until numShards) map matchOfShard
+            matches foreach (addFlow(_))
+
+            eventually(timeout(3 seconds)) {
+                for (fmatch <- matches)
+                    FlowController.queryWildcardFlowTable(fmatch) should not be None
+            }
+            currentWildcardFlows should be (numShards)
+            flowController.flowManager.getNumWildcardFlows should be (1)
+
+            matches foreach { FlowController ! FlowController.RemoveWildcardFlow(_) }
+            eventually(timeout(3 seconds)) {
+                for (fmatch <- matches)
+                    FlowController.queryWildcardFlowTable(fmatch) should be (None)
+            }
+            currentWildcardFlows should be (0)
+        }
+
+        scenario("Invalidations are broadcast to every shard") {
+            val tag = FlowTagger.tagForUserMeter("shards")
+            val matches = (0 until numShards) map matchOfShard
+            matches foreach (addFlow(_, tag))
+            eventually(timeout(3 seconds)) {
+                currentWildcardFlows should be (numShards)
+            }
+
+            FlowController ! FlowController.InvalidateFlowsByTag(tag)
+
+            eventually(timeout(3 seconds)) {
+                for (fmatch <- matches)
+                    FlowController.queryWildcardFlowTable(fmatch) should be (None)
+            }
+            FlowController.isTagSetStillValid(-1, Set(tag)) should be (false)
+        }
+    }
+
+    feature("The datapath flows are dumped by the first shard") {
+        scenario("A dump hands each shard the flows it owns") {
+            val matches = (0 until numShards) map matchOfShard
+            matches foreach (addFlow(_))
+            eventually(timeout(3 seconds)) {
+                currentWildcardFlows should be (numShards)
+            }
+            val lastUsedTime = 1000000L
+            matches foreach { fmatch =>
+                mockDpConn().flowsTable.put(
+                    fmatch, new Flow(fmatch).setLastUsedTime(lastUsedTime))
+            }
+
+            def lastUsed(fmatch: FlowMatch) =
+                FlowController.queryWildcardFlowTable(fmatch).get
+                              .getLastUsedTimeMillis
+
+            When("the shards 1 and 3 ask for a dump")
+            FlowController ! FlowController.DumpFlows_(1)
+            FlowController ! FlowController.DumpFlows_(3)
+
+            Then("they get their flows and no others")
+            eventually(timeout(3 seconds)) {
+                lastUsed(matches(1)) should be (lastUsedTime)
+                lastUsed(matches(3)) should be (lastUsedTime)
+            }
+            lastUsed(matches(0)) should not be lastUsedTime
+            lastUsed(matches(2)) should not be lastUsedTime
+        }
+
+        scenario("The flows of a dump are handed over in chunks") {
+            val chunkSize = FlowController.FLOWS_DUMP_CHUNK_SIZE
+            for (i <- 0 until 2 * chunkSize + 10) {
+                val fmatch = matchOfShard(0)
+                mockDpConn().flowsTable.put(fmatch, new Flow(fmatch))
+            }
+            flowController.getAndClear()
+
+            FlowController ! FlowController.DumpFlows_(0)
+
+            flowController.getAndClear() collect {
+                case FlowController.FlowsDumped_(flows) => flows.size
+                case msg: FlowController.FlowsDumpCompleted_ => msg
+            } should be (List(chunkSize, chunkSize, 10,
+                              FlowController.FlowsDumpCompleted_(true)))
+        }
+    }
+
+    feature("A restarted shard replaces its metrics") {
+        scenario("A shard fails and is restarted") {
+            val tag = FlowTagger.tagForUserMeter("restarted-shard")
+            val fmatch = matchOfShard(1)
+            val shard = FlowController.shardFor(fmatch)
+            addFlow(fmatch, tag)
+            eventually(timeout(3 seconds)) {
+                currentWildcardFlows should be (1)
+            }
+            Metering.listMeters should contain (tag.meterName)
+
+            // the dumped flows are read without checking, which fails
+            shard ! FlowController.FlowsDumped_(null)
+
+            eventually(timeout(3 seconds)) {
+                currentWildcardFlows should be (0)
+                Metering.listMeters should not contain tag.meterName
+            }
+            FlowController.shardFor(fmatch) should be (shard)
+        }
+    }
+}
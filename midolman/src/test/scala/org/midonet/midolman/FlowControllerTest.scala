@@ -17,6 +17,7 @@
 package org.midonet.midolman
 
 import java.util.ArrayList
+import java.util.concurrent.TimeUnit
 
 import scala.collection.JavaConversions._
 import scala.util.Random
@@ -150,7 +151,7 @@ class FlowControllerTest extends MidolmanSpec {
             val tag = TestableFlow.getTag(4)
 
             Then("The tag should not appear in the tag to flows map.")
-            flowController.tagToFlows.get(tag) should be (None)
+            flowController.tagToFlows.numFlowsOf(tag) should be (0)
 
             When("The flow is invalidated by a tag.")
             FlowController ! FlowController.InvalidateFlowsByTag(tag)
@@ -280,10 +281,8 @@ class FlowControllerTest extends MidolmanSpec {
 
             And("The flow controller should contain the flow tag mapping tags.")
             for (tag <- flow.tagsSet) {
-                flowController.tagToFlows.get(tag) match {
-                    case None =>
-                    case Some(set) => set should contain (mwcFlow)
-                }
+                if (flowController.tagToFlows.numFlowsOf(tag) > 0)
+                    flowController.tagToFlows.isTagged(mwcFlow, tag) should be (true)
             }
 
             And("The flow removal callback method should not have been called.")
@@ -340,8 +339,8 @@ class FlowControllerTest extends MidolmanSpec {
 
         And("The flow controller contains the correct tag mappings.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be (None)
-            flowController.tagToFlows.get(tag).get should contain (mwcFlow)
+            flowController.tagToFlows.numFlowsOf(tag) should not be (0)
+            flowController.tagToFlows.isTagged(mwcFlow, tag) should be (true)
         }
 
         return mwcFlow
@@ -369,10 +368,7 @@ class FlowControllerTest extends MidolmanSpec {
 
         And("The flow controller should not contain the flow tag mapping tags.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) match {
-                case None =>
-                case Some(set) => set should not contain (mwcFlow)
-            }
+            flowController.tagToFlows.isTagged(mwcFlow, tag) should be (false)
         }
 
         And("The flow removal callback method was called.")
@@ -402,20 +398,22 @@ class FlowControllerTest extends MidolmanSpec {
 
         And("The flow controller contains the correct tag mappings.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be (None)
-            flowController.tagToFlows.get(tag).get should contain (mwcFlow)
+            flowController.tagToFlows.numFlowsOf(tag) should not be (0)
+            flowController.tagToFlows.isTagged(mwcFlow, tag) should be (true)
         }
 
         And("The flow removal callback method was not called.")
         flow.isFlowRemoved should be (false)
     }
 
+    /* Flows are scheduled in the flow manager's timing wheels when they are
+     * added, so the clock of the flow controller moves past their deadline. */
     private def expireFlowHard(mwcFlow: ManagedWildcardFlow) {
-        mwcFlow.setCreationTimeMillis(System.currentTimeMillis() - flowTimeout)
+        clock.time += TimeUnit.MILLISECONDS.toNanos(mwcFlow.getHardExpirationMillis)
     }
 
     private def expireFlowIdle(mwcFlow: ManagedWildcardFlow) {
-        mwcFlow.setLastUsedTimeMillis(System.currentTimeMillis() - flowTimeout)
+        clock.time += TimeUnit.MILLISECONDS.toNanos(mwcFlow.getIdleExpirationMillis)
     }
 
     sealed abstract class TestableFlowType
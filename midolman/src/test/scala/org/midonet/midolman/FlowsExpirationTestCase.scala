@@ -37,6 +37,7 @@ import org.midonet.odp._
 import org.midonet.packets.{IPv4Addr, MAC, Packets}
 import org.midonet.sdn.flows.WildcardFlow
 import org.midonet.util.MidonetEventually
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.functors.Callback0
 
 @Category(Array(classOf[SimulationTests]))
@@ -64,6 +65,8 @@ class FlowsExpirationTestCase extends MidolmanTestCase
         IPv4Addr.fromString("10.0.1.11"),
         10, 11, "My UDP packet 2".getBytes)
 
+    override def agentClock = NanoClock.DEFAULT
+
     override def fillConfig(config: HierarchicalConfiguration) = {
         config.setProperty("midolman.midolman_root_key", "/test/v3/midolman")
         config.setProperty("datapath.max_flow_count", 3)
@@ -66,7 +66,7 @@ object PacketWorkflowTest {
     val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
     val natTable = new MockFlowStateTable[NatKey, NatBinding]()
 
-    var statePushed = false
+    var stateAccumulated = false
 
     def forCookie(testKit: ActorRef, pkt: Packet, cookie: Int)
         (implicit system: ActorSystem): (PacketContext, PacketWorkflow) = {
@@ -91,17 +91,17 @@ object PacketWorkflowTest {
             override def vtepTunnellingOutputAction: FlowActionOutput = ???
             override def isVtepTunnellingPort(portNumber: Integer): Boolean = ???
             override def isOverlayTunnellingPort(portNumber: Integer): Boolean = ???
-        }, null, 0) {
-            override def pushState(dpChannel: DatapathChannel): Unit = {
-                 statePushed = true
-            }
+        }, null, 0, null) {
+            override def pushState(dpChannel: DatapathChannel): Unit = { }
 
             override def accumulateNewKeys(
                           conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
                           natTx: FlowStateTransaction[NatKey, NatBinding],
                           ingressPort: UUID, egressPorts: JList[UUID],
                           tags: mutable.Set[FlowTag],
-                          callbacks: ArrayList[Callback0]): Unit = { }
+                          callbacks: ArrayList[Callback0]): Unit = {
+                 stateAccumulated = true
+            }
         }
         val wf = new PacketWorkflow(dpState, null, null, dpChannel,
                                     replicator, config) {
@@ -200,8 +200,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed")
             runChecks(pktCtx, pkfw, checkTranslate, checkExecPacket)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns NoOp") {
@@ -214,8 +214,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             Then("the resulting actions are empty")
             runChecks(pktCtx, pkfw, checkEmptyActions _)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns Drop for userspace only match") {
@@ -228,8 +228,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the packets gets executed (with 0 action)")
             runChecks(pktCtx, pkfw, applyNilActionsWithWildcardFlow)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns Drop") {
@@ -244,8 +244,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed (with 0 actions)")
             runChecks(pktCtx, pkfw, applyNilActionsWithWildcardFlow)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns TemporaryDrop for userspace only match") {
@@ -260,8 +260,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the packets gets executed (with 0 action)")
             runChecks(pktCtx, pkfw, applyNilActionsWithWildcardFlow)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns TemporaryDrop") {
@@ -276,8 +276,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed (with 0 actions)")
             runChecks(pktCtx, pkfw, applyNilActionsWithWildcardFlow)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns AddVirtualWildcardFlow " +
@@ -297,8 +297,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed")
             runChecks(pktCtx, pkfw, checkTranslate _)
 
-            And("state is pushed")
-            statePushed should be (true)
+            And("state is accumulated")
+            stateAccumulated should be (true)
         }
 
         scenario("A Simulation returns AddVirtualWildcardFlow") {
@@ -316,8 +316,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             runChecks(pktCtx, pkfw,
                 checkTranslate _ :: checkAddWildcard _ :: applyOutputActions)
 
-            And("state is pushed")
-            statePushed should be (true)
+            And("state is accumulated")
+            stateAccumulated should be (true)
         }
 
     }
@@ -18,6 +18,8 @@ package org.midonet.midolman
 
 import java.util.{LinkedList, UUID}
 
+import scala.collection.JavaConverters._
+
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
@@ -27,7 +29,9 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.data.{Router => ClusterRouter}
 import org.midonet.cluster.data.ports.RouterPort
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, NoOp, TemporaryDrop, Drop}
+import org.midonet.midolman.layer3.{EqualCostRoutes, Route}
 import org.midonet.midolman.layer3.Route._
+import org.midonet.midolman.management.RouteBalancing
 import org.midonet.midolman.rules.{RuleResult, NatTarget, Condition}
 import org.midonet.midolman.simulation.{Router => SimRouter, RouteBalancer}
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
@@ -113,14 +117,96 @@ class RouterSimulationTest extends MidolmanSpec {
                      NextHop.PORT, uplinkPort.getId, gw, 1)
         }
 
-        val fmatch = new FlowMatch()
+        def connection(srcPort: Int) = new FlowMatch()
             .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
             .setNetworkDst(IPv4Addr.fromString(routeDst))
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(80)
 
         val rb = new RouteBalancer(simRouter.rTable)
-        (0 until gateways.length) map { _ =>
-           rb.lookup(fmatch, Logger(NOPLogger.NOP_LOGGER)).getNextHopGateway
-        } should contain theSameElementsAs gateways
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val chosen = (10000 until 10100) map { port =>
+            rb.lookup(connection(port), log).getNextHopGateway
+        }
+        chosen.toSet should be (gateways.toSet)
+
+        Then("the packets of a connection take the same route")
+        for (port <- 10000 until 10100) {
+            val fmatch = connection(port)
+            rb.lookup(fmatch, log).getNextHopGateway should be (
+                chosen(port - 10000))
+            fmatch.isSeen(FlowMatch.Field.SrcPort) should be (true)
+            fmatch.isSeen(FlowMatch.Field.DstPort) should be (true)
+            fmatch.userspaceFieldsSeen should be (false)
+        }
+    }
+
+    scenario("Removing a route only moves the connections it had") {
+        val routes = (1 to 4) map { i =>
+            new Route(0, 0, 0x15000000, 8, NextHop.PORT, UUID.randomUUID(),
+                      0xb4000100 + i, 1, null, router.getId)
+        }
+        val hashes = 0 until 1000 map (_ * 0x9e3779b9)
+        val before = hashes map { h => RouteBalancer.choose(routes.asJava, h) }
+        routes foreach { rt => before.count(_ eq rt) should be > 150 }
+
+        val remaining = routes filterNot (_ eq routes(2))
+        for ((h, rt) <- hashes zip before) {
+            val after = RouteBalancer.choose(remaining.asJava, h)
+            if (rt ne routes(2))
+                after should be theSameInstanceAs rt
+        }
+    }
+
+    scenario("Balanced lookups are counted on the group of routes") {
+        val routerId = UUID.randomUUID()
+        val routes = (1 to 2) map { i =>
+            new Route(0, 0, 0x16000000, 8, NextHop.PORT, UUID.randomUUID(),
+                      0xb4000100 + i, 1, null, routerId)
+        }
+        val group = new EqualCostRoutes(routes.asJava)
+        val key = s"$routerId 22.0.0.0/8"
+
+        for (i <- 0 until 10)
+            RouteBalancing.hit(group, routes(i % 2))
+        group.hits should not be null
+        RouteBalancing.getRouteGroupHits.get(key) should be (10L)
+
+        Then("another group of the same routes shares the counter")
+        val recomputed = new EqualCostRoutes(routes.asJava)
+        RouteBalancing.hit(recomputed, routes(0))
+        recomputed.hits should be theSameInstanceAs group.hits
+        RouteBalancing.getRouteGroupHits.get(key) should be (11L)
+
+        Then("resetting the hits zeroes the counter the group keeps")
+        RouteBalancing.resetRouteGroupHits()
+        RouteBalancing.getRouteGroupHits.get(key) should be (0L)
+        RouteBalancing.hit(group, routes(1))
+        RouteBalancing.getRouteGroupHits.get(key) should be (1L)
+
+        Then("removing a route of the group drops its counter")
+        RouteBalancing.routeRemoved(routes(0))
+        RouteBalancing.getRouteGroupHits.containsKey(key) should be (false)
+    }
+
+    scenario("Balanced ICMP echoes install flows") {
+        val routeDst = "21.31.41.52"
+        val gateways = List("180.0.1.43", "180.0.1.44")
+        gateways foreach { gw =>
+            newRoute(router, "0.0.0.0", 0, routeDst, 32,
+                     NextHop.PORT, uplinkPort.getId, gw, 1)
+            feedArpTable(simRouter, IPv4Addr.fromString(gw), MAC.random())
+        }
+
+        val pkt = { eth src MAC.random() dst port1.getHwAddr } <<
+                  { ip4 src addressInSegment(port1) dst routeDst } <<
+                  { icmp.echo request }
+        val (simRes, pktCtx) = simulate(packetContextFor(pkt, port1.getId))
+
+        simRes should be (AddVirtualWildcardFlow)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.NetworkDst) should be (true)
+        pktCtx.wcmatch.userspaceFieldsSeen should be (false)
     }
 
     scenario("Drops IPv6") {
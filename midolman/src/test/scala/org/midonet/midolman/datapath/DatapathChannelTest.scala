@@ -25,6 +25,7 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.concurrent.Eventually._
 
+import org.midonet.midolman.FlowController
 import org.midonet.midolman.FlowController.FlowRemoveCommand
 import org.midonet.midolman.flows.FlowEjector
 import org.midonet.midolman.util.MidolmanSpec
@@ -132,7 +133,8 @@ class DatapathChannelTest extends MidolmanSpec {
 
             packet.getMatch.setSequence(1)
             val flowDelete = new FlowRemoveCommand(new ArrayObjectPool(0, _ => null),
-                                                   new SpscArrayQueue[FlowRemoveCommand](16))
+                                                   new SpscArrayQueue[FlowRemoveCommand](16),
+                                                   FlowController.getRef())
             flowDelete.reset(packet.getMatch, 0)
             ejector.eject(flowDelete)
 
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.rules.{Condition, JumpRule, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.IPFragmentType
+import org.midonet.packets._
+import org.midonet.util.Range
+
+/* Compares applying chains through their classifier against evaluating
+ * every rule in order, on random rules and packets. */
+@RunWith(classOf[JUnitRunner])
+class ChainClassifierTest extends FeatureSpec with Matchers {
+
+    val ownerId = UUID.randomUUID()
+
+    class Generator(seed: Long) {
+        val random = new Random(seed)
+
+        val etherTypes = Array[Short](IPv4.ETHERTYPE, ARP.ETHERTYPE,
+                                      IPv6.ETHERTYPE)
+        val protocols = Array[Byte](TCP.PROTOCOL_NUMBER, UDP.PROTOCOL_NUMBER,
+                                    ICMP.PROTOCOL_NUMBER)
+        val macs = Array(MAC.fromString("02:00:00:00:00:01"),
+                         MAC.fromString("02:00:00:00:00:02"))
+
+        def oneOf[T](values: Array[T]): T = values(random.nextInt(values.length))
+
+        def sometimes: Boolean = random.nextInt(4) == 0
+
+        def ipv4: IPv4Addr =
+            IPv4Addr.fromString(s"10.${random.nextInt(2)}.${random.nextInt(4)}." +
+                                random.nextInt(8))
+
+        def address: IPAddr =
+            if (random.nextInt(10) == 0)
+                IPv6Addr.fromString(s"fe80::${random.nextInt(4)}")
+            else
+                ipv4
+
+        def subnet: IPSubnet[_] = random.nextInt(6) match {
+            case 0 => new IPv6Subnet(IPv6Addr.fromString("fe80::"), 64)
+            case 1 => new IPv4Subnet(0, 0)
+            case n => new IPv4Subnet(ipv4, 8 + 8 * (n - 2))
+        }
+
+        def port: Int = random.nextInt(64)
+
+        def range: Range[Integer] = {
+            val start = port
+            val end = start + random.nextInt(16)
+            random.nextInt(4) match {
+                case 0 => new Range[Integer](null, end)
+                case 1 => new Range[Integer](start, null)
+                case _ => new Range[Integer](start, end)
+            }
+        }
+
+        def condition: Condition = {
+            val cond = new Condition()
+            cond.conjunctionInv = random.nextInt(20) == 0
+            if (random.nextBoolean()) {
+                cond.etherType = Unsigned.unsign(oneOf(etherTypes))
+                cond.invDlType = sometimes
+            }
+            if (sometimes) {
+                cond.ethSrc = oneOf(macs)
+                cond.invDlSrc = sometimes
+            }
+            if (random.nextBoolean()) {
+                cond.nwProto = oneOf(protocols)
+                cond.nwProtoInv = sometimes
+            }
+            if (random.nextBoolean()) {
+                cond.nwSrcIp = subnet
+                cond.nwSrcInv = sometimes
+            }
+            if (random.nextBoolean()) {
+                cond.nwDstIp = subnet
+                cond.nwDstInv = sometimes
+            }
+            if (random.nextBoolean()) {
+                cond.tpSrc = range
+                cond.tpSrcInv = sometimes
+            }
+            if (random.nextBoolean()) {
+                cond.tpDst = range
+                cond.tpDstInv = sometimes
+            }
+            cond
+        }
+
+        def literal: Rule =
+            new LiteralRule(condition, oneOf(Array(Action.ACCEPT, Action.DROP,
+                                                   Action.REJECT, Action.RETURN)))
+
+        def chain(size: Int, targets: Seq[Chain] = Nil): Chain = {
+            val rules = List.fill[Rule](size) {
+                if (targets.nonEmpty && random.nextInt(8) == 0) {
+                    val target = targets(random.nextInt(targets.size))
+                    new JumpRule(condition, target.id, target.name, null, 0)
+                } else {
+                    literal
+                }
+            }
+            val id = UUID.randomUUID()
+            new Chain(id, rules.asJava, targets.map(c => (c.id, c)).toMap,
+                      "Chain-" + id)
+        }
+
+        def packet: () => FlowMatch = {
+            val etherType = oneOf(etherTypes)
+            val ethSrc = oneOf(macs)
+            val src = address
+            val dst = address
+            val proto = oneOf(protocols)
+            val tos = random.nextInt(2).toByte
+            val srcPort = port
+            val dstPort = port
+            () => new FlowMatch()
+                      .setEtherType(etherType)
+                      .setEthSrc(ethSrc)
+                      .setEthDst(macs(0))
+                      .setNetworkSrc(src)
+                      .setNetworkDst(dst)
+                      .setNetworkProto(proto)
+                      .setNetworkTOS(tos)
+                      .setIpFragmentType(IPFragmentType.None)
+                      .setSrcPort(srcPort)
+                      .setDstPort(dstPort)
+        }
+    }
+
+    /* Evaluates every rule of the chain in order, as Chain did before it
+     * classified its rules. */
+    def linear(chain: Chain, context: PacketContext, res: RuleResult): Unit = {
+        val rules = chain.getRules.iterator()
+        res.action = Action.CONTINUE
+        while (rules.hasNext && res.action == Action.CONTINUE) {
+            rules.next().process(context, res, ownerId, false)
+            if (res.action == Action.JUMP) {
+                linear(chain.getJumpTarget(res.jumpToChain), context, res)
+                if (res.action == Action.RETURN)
+                    res.action = Action.CONTINUE
+            }
+        }
+    }
+
+    def compare(chain: Chain, packet: () => FlowMatch): Unit = {
+        val expected = new PacketContext(1, null, packet())
+        val res = new RuleResult(Action.CONTINUE, null)
+        linear(chain, expected, res)
+        if (!res.action.isDecisive)
+            res.action = Action.ACCEPT
+
+        val actual = new PacketContext(1, null, packet())
+        Chain.apply(chain, actual, ownerId, false).action should be (res.action)
+        actual.wcmatch.getSeenFields should be (expected.wcmatch.getSeenFields)
+    }
+
+    feature("A classified chain behaves as evaluating every rule") {
+        for (size <- Seq(16, 50, 200, 1000)) {
+            scenario(s"Chains of $size rules") {
+                val gen = new Generator(size)
+                for (i <- 0 until 20) {
+                    val chain = gen.chain(size)
+                    for (j <- 0 until 50)
+                        compare(chain, gen.packet)
+                }
+            }
+        }
+
+        scenario("Chains jumping to other classified chains") {
+            val gen = new Generator(42)
+            for (i <- 0 until 20) {
+                val targets = Seq.fill(3)(gen.chain(32))
+                val chain = gen.chain(100, targets)
+                for (j <- 0 until 50)
+                    compare(chain, gen.packet)
+            }
+        }
+
+        scenario("Chains whose rules match on few fields") {
+            val gen = new Generator(7)
+            for (i <- 0 until 20) {
+                val rules = List.fill[Rule](100) {
+                    val cond = new Condition()
+                    cond.tpDst = new Range[Integer](gen.port)
+                    new LiteralRule(cond, Action.ACCEPT)
+                }
+                val chain = new Chain(UUID.randomUUID(), rules.asJava,
+                                      Map.empty[UUID, Chain], "ports")
+                for (j <- 0 until 50)
+                    compare(chain, gen.packet)
+            }
+        }
+    }
+}
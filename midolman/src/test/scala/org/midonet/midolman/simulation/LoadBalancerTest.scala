@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv6Addr, TCP, UDP}
+
+/* Compares the indexed VIP lookups of the load balancer against trying
+ * every VIP in order, on random VIPs and packets. */
+@RunWith(classOf[JUnitRunner])
+class LoadBalancerTest extends FeatureSpec with Matchers {
+
+    val random = new Random(42)
+
+    def address = IPv4Addr.fromString(s"10.0.0.${random.nextInt(8)}")
+
+    def port = 80 + random.nextInt(4)
+
+    def vips(n: Int) = Array.fill(n) {
+        new VIP(UUID.randomUUID(), random.nextInt(4) != 0, UUID.randomUUID(),
+                address, port, random.nextBoolean())
+    }
+
+    def packet: () => FlowMatch = {
+        val src = if (random.nextInt(10) == 0) IPv6Addr.random else address
+        val dst = if (random.nextInt(10) == 0) IPv6Addr.random else address
+        val proto = if (random.nextInt(4) == 0) UDP.PROTOCOL_NUMBER
+                    else TCP.PROTOCOL_NUMBER
+        val srcPort = port
+        val dstPort = port
+        () => new FlowMatch()
+                  .setNetworkSrc(src)
+                  .setNetworkDst(dst)
+                  .setNetworkProto(proto)
+                  .setSrcPort(srcPort)
+                  .setDstPort(dstPort)
+    }
+
+    def compare(lb: LoadBalancer, packet: () => FlowMatch,
+                lookup: (LoadBalancer, PacketContext) => VIP,
+                matches: (VIP, PacketContext) => Boolean): Unit = {
+        val expected = new PacketContext(1, null, packet())
+        val vip = lb.vips.find(matches(_, expected)).orNull
+
+        val actual = new PacketContext(1, null, packet())
+        lookup(lb, actual) should be theSameInstanceAs vip
+        actual.wcmatch.getSeenFields should be (expected.wcmatch.getSeenFields)
+    }
+
+    feature("Indexed VIP lookups behave as trying every VIP") {
+        for (size <- Seq(0, 1, 10, 100)) {
+            scenario(s"Load balancers with $size VIPs") {
+                for (i <- 0 until 20) {
+                    val lb = new LoadBalancer(UUID.randomUUID(), true,
+                                              UUID.randomUUID(), vips(size))
+                    for (j <- 0 until 50) {
+                        val pkt = packet
+                        compare(lb, pkt, _ findVip _, _ matches _)
+                        compare(lb, pkt, _ findVipReturn _, _ matchesReturn _)
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class PacketContextTest extends FeatureSpec with Matchers {
+
+    def fmatch = new FlowMatch()
+        .setEthSrc(MAC.random())
+        .setEthDst(MAC.random())
+        .setNetworkSrc(IPv4Addr.random)
+
+    val tag = FlowTagger.tagForDevice(UUID.randomUUID())
+
+    val callback = new Callback0 {
+        override def call(): Unit = { }
+    }
+
+    def handedOverContext = {
+        val context = new PacketContext(1, null, fmatch)
+        context.addFlowTag(tag)
+        context.addFlowRemovedCallback(callback)
+        context.handOverFlowTagsAndCallbacks()
+        context
+    }
+
+    feature("A pooled context leaves the flow tags it handed over alone") {
+        scenario("The context is reset for another packet") {
+            val context = handedOverContext
+            val tags = context.flowTags
+            val callbacks = context.flowRemovedCallbacks
+
+            context.reset(2, null, fmatch, null)
+
+            tags should contain (tag)
+            callbacks should have size 1
+            context.flowTags should not be theSameInstanceAs (tags)
+            context.flowTags shouldBe empty
+            context.flowRemovedCallbacks shouldBe empty
+        }
+
+        scenario("The context is postponed or dropped") {
+            for (release <- Seq[PacketContext => Unit](_.postpone(),
+                                                       _.prepareForDrop(0))) {
+                val context = handedOverContext
+                val tags = context.flowTags
+                val callbacks = context.flowRemovedCallbacks
+
+                release(context)
+
+                tags should contain (tag)
+                callbacks should have size 1
+                context.flowTags shouldBe empty
+            }
+        }
+
+        scenario("Tags that weren't handed over are reused") {
+            val context = new PacketContext(1, null, fmatch)
+            context.addFlowTag(tag)
+            val tags = context.flowTags
+
+            context.reset(2, null, fmatch, null)
+
+            context.flowTags should be theSameInstanceAs tags
+            context.flowTags shouldBe empty
+        }
+    }
+}
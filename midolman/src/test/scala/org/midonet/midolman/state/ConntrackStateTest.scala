@@ -18,6 +18,7 @@ package org.midonet.midolman.state
 
 import java.util.UUID
 
+import scala.collection.JavaConverters._
 import scala.collection.immutable.HashMap
 
 import org.junit.runner.RunWith
@@ -31,11 +32,12 @@ import org.midonet.midolman.topology.VirtualTopologyActor.PortRequest
 import org.midonet.midolman.topology.devices.BridgePort
 import org.midonet.odp.{FlowMatch, Packet}
 import org.midonet.odp.flows.FlowKeys
-import org.midonet.packets.{IPv4Addr, MAC, Ethernet}
+import org.midonet.packets.{IPv4Addr, MAC, Ethernet, TCP}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
 
 @RunWith(classOf[JUnitRunner])
 class ConntrackStateTest extends MidolmanSpec {
@@ -62,10 +64,16 @@ class ConntrackStateTest extends MidolmanSpec {
         VirtualTopologyActor ! port
     }
 
-    def context(eth: Ethernet = ping, egressPort: UUID = null) = {
+    def segment(flags: TCP.Flag*): Ethernet =
+        { eth src MAC.fromString("02:00:00:00:00:01") dst MAC.fromString("02:00:00:00:00:02") } <<
+        { ip4 src IPv4Addr.fromString("10.0.0.1") dst IPv4Addr.fromString("10.0.0.2") } <<
+        { tcp src 10000 dst 80 flags TCP.Flag.allOf(flags.toList.asJava) }
+
+    def context(eth: Ethernet = ping, egressPort: UUID = null,
+                tx: FlowStateTransaction[ConnTrackKey, ConnTrackValue] = connTrackTx) = {
         val fmatch = new FlowMatch(FlowKeys.fromEthernetPacket(eth))
         val ctx = new PacketContext(1, new Packet(eth, fmatch), fmatch, egressPort)
-        ctx.initialize(connTrackTx,
+        ctx.initialize(tx,
                        new FlowStateTransaction[NatKey, NatBinding](null),
                        HappyGoLuckyLeaser)
         ctx.inputPort = portId
@@ -152,6 +160,62 @@ class ConntrackStateTest extends MidolmanSpec {
         }
     }
 
+    feature("Closed connections expire sooner") {
+        scenario("Packets of open connections are not closing") {
+            context(segment(TCP.Flag.Syn)).isClosingConnection should be (false)
+            context(segment(TCP.Flag.Ack)).isClosingConnection should be (false)
+            context().isClosingConnection should be (false)
+            context(segment(TCP.Flag.Fin, TCP.Flag.Ack)).isClosingConnection should be (true)
+            context(segment(TCP.Flag.Rst)).isClosingConnection should be (true)
+        }
+
+        scenario("A FIN shortens the expiration of the connection's state") {
+            val clock = new MockClock
+            val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard()
+            val tx = new FlowStateTransaction(table)
+
+            val open = context(segment(TCP.Flag.Ack), tx = tx)
+            open.isForwardFlow should be (true)
+            open.trackConnection(egressDevice)
+            val openKeys = transactionValues(tx).keys
+            tx.commit()
+            tx.flush()
+
+            val fin = context(segment(TCP.Flag.Fin, TCP.Flag.Ack), tx = tx)
+            fin.isForwardFlow should be (true)
+            fin.trackConnection(egressDevice)
+            val finKeys = transactionValues(tx).keys
+            finKeys.map(_.expiresAfter).toSet should be (Set(FlowState.CLOSED_EXPIRATION))
+            tx.commit()
+            tx.flush()
+
+            // The flow of the open connection is the last one to go
+            finKeys foreach table.unref
+            openKeys foreach table.unref
+
+            clock.time = FlowState.CLOSED_EXPIRATION.toNanos + 1
+            table.expireIdleEntries()
+            openKeys foreach { k => table.get(k) should be (null) }
+        }
+
+        scenario("Open connections keep the idle expiration") {
+            val clock = new MockClock
+            val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard()
+            val tx = new FlowStateTransaction(table)
+
+            val open = context(segment(TCP.Flag.Ack), tx = tx)
+            open.isForwardFlow should be (true)
+            open.trackConnection(egressDevice)
+            val openKeys = transactionValues(tx).keys
+            tx.commit()
+            openKeys foreach table.unref
+
+            clock.time = FlowState.CLOSED_EXPIRATION.toNanos + 1
+            table.expireIdleEntries()
+            openKeys foreach { k => table.get(k) should not be null }
+        }
+    }
+
     def transactionValues[K, V](tx: FlowStateTransaction[K, V]): HashMap[K, V] =
        tx.fold(new HashMap[K, V](),
                new Reducer[K, V, HashMap[K, V]] {
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.File
+import java.nio.file.Files
+import java.util.{Arrays, UUID}
+
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPv4Addr, IPv6Addr, TCP, UDP}
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateJournalTest extends FeatureSpec
+                           with ShouldMatchers
+                           with BeforeAndAfter
+                           with OneInstancePerTest {
+
+    implicit var as: ActorSystem = _
+    var dir: File = _
+
+    val ingress = UUID.randomUUID()
+    val egress = UUID.randomUUID()
+    val device = UUID.randomUUID()
+
+    val connTrackKey = ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random,
+                                    80, TCP.PROTOCOL_NUMBER, device)
+    val connTrackKey6 = ConnTrackKey(IPv6Addr.random, 53, IPv6Addr.random,
+                                     5353, UDP.PROTOCOL_NUMBER, device)
+    val natKey = NatKey(FWD_SNAT, IPv4Addr.random, 10000, IPv4Addr.random,
+                        80, TCP.PROTOCOL_NUMBER, device)
+    val natBinding = NatBinding(IPv4Addr.random, 20000)
+
+    before {
+        as = ActorSystem("FlowStateJournalTest")
+        dir = Files.createTempDirectory("flow_state").toFile
+    }
+
+    after {
+        as.shutdown()
+        dir.listFiles() foreach (_.delete())
+        dir.delete()
+    }
+
+    def restart(size: Int = 64 * 1024) =
+        new JournalFlowStateStorageFactory(dir, size).create()
+
+    def strongConnTrack(storage: FlowStateStorage, port: UUID) =
+        Await.result(storage.fetchStrongConnTrackRefs(port), 1 second)
+
+    def weakConnTrack(storage: FlowStateStorage, port: UUID) =
+        Await.result(storage.fetchWeakConnTrackRefs(port), 1 second)
+
+    def strongNat(storage: FlowStateStorage, port: UUID) =
+        Await.result(storage.fetchStrongNatRefs(port), 1 second)
+
+    def weakNat(storage: FlowStateStorage, port: UUID) =
+        Await.result(storage.fetchWeakNatRefs(port), 1 second)
+
+    feature("Flow state survives a restart") {
+        scenario("Submitted keys are fetched after a restart") {
+            val storage = restart()
+            storage.touchConnTrackKey(connTrackKey, ingress,
+                                      Arrays.asList(egress).iterator())
+            storage.touchConnTrackKey(connTrackKey6, ingress,
+                                      Arrays.asList[UUID]().iterator())
+            storage.touchNatKey(natKey, natBinding, ingress,
+                                Arrays.asList(egress).iterator())
+            storage.submit()
+
+            val restarted = restart()
+            strongConnTrack(restarted, ingress) should have size 2
+            strongConnTrack(restarted, ingress) should contain (connTrackKey)
+            strongConnTrack(restarted, ingress) should contain (connTrackKey6)
+            weakConnTrack(restarted, egress) should have size 1
+            weakConnTrack(restarted, egress) should contain (connTrackKey)
+            strongNat(restarted, ingress).get(natKey) should be (natBinding)
+            weakNat(restarted, egress).get(natKey) should be (natBinding)
+            strongNat(restarted, egress) should be ('empty)
+        }
+
+        scenario("Keys survive consecutive restarts") {
+            val storage = restart()
+            storage.touchConnTrackKey(connTrackKey, ingress,
+                                      Arrays.asList[UUID]().iterator())
+            storage.submit()
+
+            restart()
+            strongConnTrack(restart(), ingress) should contain (connTrackKey)
+        }
+
+        scenario("Keys that are not submitted are lost") {
+            val storage = restart()
+            storage.touchConnTrackKey(connTrackKey, ingress,
+                                      Arrays.asList[UUID]().iterator())
+
+            strongConnTrack(restart(), ingress) should be ('empty)
+        }
+
+        scenario("Keys survive an interrupted compaction") {
+            val storage = restart()
+            storage.touchConnTrackKey(connTrackKey, ingress,
+                                      Arrays.asList[UUID]().iterator())
+            storage.submit()
+            restart()
+            Files.write(new File(dir, "flow_state.base.tmp").toPath,
+                        Array[Byte](1, 2, 3))
+
+            strongConnTrack(restart(), ingress) should contain (connTrackKey)
+            dir.list() should not contain "flow_state.base.tmp"
+            dir.list() should contain ("flow_state.base.journal")
+        }
+
+        scenario("Expired keys are not fetched") {
+            val journal = new FlowStateJournal(new File(dir, "flow_state.0.journal"),
+                                               64 * 1024, () => 0L)
+            val storage = new JournalFlowStateStorage(journal, null, () => 0L)
+            storage.touchConnTrackKey(connTrackKey, ingress,
+                                      Arrays.asList[UUID]().iterator())
+            storage.submit()
+
+            strongConnTrack(restart(), ingress) should be ('empty)
+        }
+    }
+
+    feature("The journal is compacted") {
+        scenario("A full journal keeps its live keys") {
+            val size = FlowStateJournal.HEADER_SIZE +
+                       10 * FlowStateJournal.RECORD_SIZE
+            val storage = restart(size)
+            for (i <- 0 until 100) {
+                storage.touchConnTrackKey(connTrackKey, ingress,
+                                          Arrays.asList(egress).iterator())
+                storage.submit()
+            }
+            val keys = (0 until 20) map { i =>
+                ConnTrackKey(IPv4Addr.random, i, IPv4Addr.random, 80,
+                             TCP.PROTOCOL_NUMBER, device)
+            }
+            keys foreach { k =>
+                storage.touchConnTrackKey(k, ingress,
+                                          Arrays.asList[UUID]().iterator())
+            }
+            storage.submit()
+            storage.asInstanceOf[JournalFlowStateStorage].journal
+                   .awaitCompaction()
+
+            val restarted = restart(size)
+            strongConnTrack(restarted, ingress) should have size 21
+            weakConnTrack(restarted, egress) should have size 1
+        }
+
+        scenario("Full segments are replaced by the compacted journal") {
+            val size = FlowStateJournal.HEADER_SIZE +
+                       10 * FlowStateJournal.RECORD_SIZE
+            val journal = new FlowStateJournal(
+                new File(dir, "flow_state.0.journal"), size,
+                () => System.currentTimeMillis)
+            val storage = new JournalFlowStateStorage(journal, null)
+            val keys = (0 until 25) map { i =>
+                ConnTrackKey(IPv4Addr.random, i, IPv4Addr.random, 80,
+                             TCP.PROTOCOL_NUMBER, device)
+            }
+            keys foreach { k =>
+                storage.touchConnTrackKey(k, ingress,
+                                          Arrays.asList[UUID]().iterator())
+                storage.submit()
+            }
+            journal.awaitCompaction()
+
+            dir.list().toSet should be (Set("flow_state.0.compacted.journal",
+                                            "flow_state.0.2.journal"))
+            journal.committedRecords should be (5)
+
+            val restarted = restart(size)
+            strongConnTrack(restarted, ingress) should have size 25
+            keys foreach { strongConnTrack(restarted, ingress) should contain (_) }
+        }
+    }
+
+    feature("The keys of the previous run are dropped once expired") {
+        scenario("Fetching after the keys expired") {
+            var time = 0L
+            val stored = FlowStateJournal.byPort(Arrays.asList(
+                FlowStateJournal.Entry(FlowStateJournal.STRONG, ingress,
+                                       connTrackKey, null, 10L)))
+            val journal = new FlowStateJournal(
+                new File(dir, "flow_state.0.journal"), 64 * 1024, () => time)
+            val storage = new JournalFlowStateStorage(journal, stored,
+                                                      () => time, 10L)
+
+            time = 5L
+            strongConnTrack(storage, ingress) should contain (connTrackKey)
+            time = 10L
+            strongConnTrack(storage, ingress) should be ('empty)
+            stored should be ('empty)
+        }
+    }
+}
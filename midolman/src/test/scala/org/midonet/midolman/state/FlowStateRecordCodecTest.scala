@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{IdleExpiration, OffHeapFlowStateTable}
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateRecordCodecTest extends FeatureSpec
+                               with ShouldMatchers
+                               with OneInstancePerTest {
+
+    val clock = new MockClock()
+    val deviceId = UUID.randomUUID()
+
+    val conntrackTable = new OffHeapFlowStateTable[ConnTrackKey, ConnTrackValue](
+        ConnTrackRecordCodec, 16, clock)
+    val natTable = new OffHeapFlowStateTable[NatKey, NatBinding](
+        NatRecordCodec, 16, clock)
+
+    def keys[K <: IdleExpiration, V](table: OffHeapFlowStateTable[K, V]): Set[K] =
+        table.fold(Set.empty[K], new Reducer[K, V, Set[K]] {
+            override def apply(acc: Set[K], k: K, v: V) = acc + k
+        })
+
+    feature("Connection tracking keys are stored as records") {
+        scenario("IPv4 and IPv6 keys are read back as equal keys") {
+            val v4 = ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random, 80,
+                                  TCP.PROTOCOL_NUMBER, deviceId)
+            val v6 = ConnTrackKey(IPv6Addr.random, 53, IPv6Addr.random, 5353,
+                                  UDP.PROTOCOL_NUMBER, deviceId)
+
+            conntrackTable.putAndRef(v4, FORWARD_FLOW)
+            conntrackTable.putAndRef(v6, RETURN_FLOW)
+
+            conntrackTable.get(v4) should be (FORWARD_FLOW)
+            conntrackTable.get(v6) should be (RETURN_FLOW)
+            conntrackTable.get(v4.copy(deviceId = UUID.randomUUID())) should be (null)
+            keys(conntrackTable) should be (Set(v4, v6))
+        }
+    }
+
+    feature("NAT keys and bindings are stored as records") {
+        scenario("Keys are read back with their type and expiration") {
+            val fwd = NatKey(FWD_STICKY_DNAT, IPv4Addr.random, 0,
+                             IPv4Addr.random, 80, TCP.PROTOCOL_NUMBER, deviceId)
+            val rev = NatKey(REV_SNAT, IPv4Addr.random, 1024,
+                             IPv4Addr.random, 80, TCP.PROTOCOL_NUMBER, deviceId)
+            val binding = NatBinding(IPv4Addr.random, 3000)
+
+            natTable.putAndRef(fwd, binding)
+            natTable.touch(rev, binding)
+
+            natTable.get(fwd) should be (binding)
+            natTable.get(rev) should be (binding)
+            natTable.get(rev.copy(keyType = REV_DNAT)) should be (null)
+            keys(natTable) should be (Set(fwd, rev))
+            keys(natTable) map (_.expiresAfter) should be (
+                Set(1 day, FlowState.DEFAULT_EXPIRATION))
+        }
+    }
+}
@@ -17,7 +17,7 @@
 package org.midonet.midolman.state
 
 import java.nio.ByteBuffer
-import java.util.{ArrayList, HashSet => JHashSet, List => JList, Set => JSet, UUID}
+import java.util.{ArrayList, HashMap => JHashMap, HashSet => JHashSet, List => JList, Set => JSet, UUID}
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable
@@ -29,6 +29,7 @@ import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 import org.slf4j.LoggerFactory
 
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.UnderlayResolver
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
@@ -278,6 +279,116 @@ class FlowStateReplicatorTest extends FeatureSpec
         }
     }
 
+    feature("State is coalesced across a batch of packets") {
+        def accumulate(): Unit = {
+            sender.accumulateNewKeys(connTrackTx, natTx, ingressPort.id,
+                                     List(egressPort1.id).asJava,
+                                     new mutable.HashSet[FlowTag](),
+                                     new ArrayList[Callback0])
+            natTx.commit()
+            connTrackTx.commit()
+            natTx.flush()
+            connTrackTx.flush()
+        }
+
+        scenario("The state of several packets is sent in a single packet") {
+            Given("The keys of several packets accumulated in the replicator")
+            for (k <- connTrackKeys) {
+                connTrackTx.putAndRef(k, ConnTrackState.RETURN_FLOW)
+                accumulate()
+            }
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+                accumulate()
+            }
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("A single packet should have been sent")
+            packetsSeen should have size 1
+            sender.pushed should be ((4, 1))
+
+            And("The peer should have received all the keys")
+            acceptPushedState()
+            assertRecipientHasAllKeys()
+        }
+
+        scenario("Keys are sent once to the same peers") {
+            Given("The same key accumulated twice in the replicator")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulate()
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulate()
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("The key should have been sent once")
+            sender.pushed should be ((1, 1))
+            acceptPushedState()
+            recipient.invalidatedKeys should have length (1)
+
+            And("It should be sent again in the next batch")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulate()
+            sender.pushState(dpChannel)
+            sender.pushed should be ((1, 1))
+        }
+
+        scenario("A key shared by two packets is sent once") {
+            Given("Two packets with a conntrack key in common")
+            for ((k, v) <- natMappings) {
+                connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+                natTx.putAndRef(k, v)
+                accumulate()
+            }
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("The state of both packets should have been sent")
+            sender.pushed should be ((2, 1))
+
+            And("The shared key should have been sent once")
+            acceptPushedState()
+            recipient.invalidatedKeys should have length (3)
+            recipient.invalidatedKeys.count(_ == connTrackKeys.head) should be (1)
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+
+        scenario("State too large for a packet is split") {
+            Given("More nat keys than fit in a packet in a transaction")
+            val keys = for (i <- 1 to 100) yield
+                NatKey(NatState.FWD_SNAT, "192.168.10.1", 10000 + i,
+                       "17.16.15.1", 80, 1, UUID.randomUUID()) ->
+                    NatBinding("1.2.3.4", 20000 + i)
+            for ((k, v) <- keys) {
+                natTx.putAndRef(k, v)
+            }
+            accumulate()
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("It should have been sent in several packets")
+            packetsSeen.size should be > 1
+            for ((packet, _) <- packetsSeen) {
+                packet.getEthernet.serialize().length should be <= (
+                    FlowStateEthernet.MTU -
+                    FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+            }
+
+            And("The peer should have received all the keys")
+            acceptPushedState()
+            for ((k, v) <- keys) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+    }
+
     feature("Unref callbacks are correctly added") {
         scenario("For conntrack keys") {
             Given("A conntrack key and a contrack ref in a transaction")
@@ -442,6 +553,61 @@ class FlowStateReplicatorTest extends FeatureSpec
             recipient.invalidatedKeys should contain (k)
         }
     }
+
+    feature("State fetched from storage is imported in slices") {
+        scenario("Queued state is imported a slice at a time") {
+            Given("A batch of state fetched from storage")
+            val batch = FlowStateBatch(
+                new JHashSet[ConnTrackKey](connTrackKeys.take(1).asJava),
+                new JHashSet[ConnTrackKey](connTrackKeys.drop(1).asJava),
+                new JHashMap[NatKey, NatBinding](natMappings.take(1).asJava),
+                new JHashMap[NatKey, NatBinding](natMappings.drop(1).asJava))
+
+            When("The batch is queued for import")
+            recipient.queueImport(batch)
+
+            Then("No key is imported until a slice is requested")
+            recipient.hasPendingImports should be (true)
+            recipient.conntrackTable.entries should be ('empty)
+
+            When("Slices of three keys are imported")
+            recipient.importSlice(3) should be (3)
+
+            Then("The conntrack keys and the first nat key are imported")
+            recipient.conntrackTable.get(connTrackKeys(0)) should be (ConnTrackState.FORWARD_FLOW)
+            recipient.conntrackTable.get(connTrackKeys(1)) should be (ConnTrackState.RETURN_FLOW)
+            recipient.natTable.entries should have size 1
+            recipient.hasPendingImports should be (true)
+
+            And("The last slice imports the rest")
+            recipient.importSlice(3) should be (1)
+            recipient.natTable.entries should be (natMappings)
+            recipient.hasPendingImports should be (false)
+            recipient.importSlice(3) should be (0)
+        }
+
+        scenario("Imported keys are not referenced") {
+            Given("Two queued batches")
+            recipient.queueImport(FlowStateBatch(
+                new JHashSet[ConnTrackKey](connTrackKeys.asJava),
+                new JHashSet[ConnTrackKey](),
+                new JHashMap[NatKey, NatBinding](),
+                new JHashMap[NatKey, NatBinding]()))
+            recipient.queueImport(FlowStateBatch(
+                new JHashSet[ConnTrackKey](),
+                new JHashSet[ConnTrackKey](),
+                new JHashMap[NatKey, NatBinding](natMappings.asJava),
+                new JHashMap[NatKey, NatBinding]()))
+
+            When("A slice spanning both batches is imported")
+            recipient.importSlice(10) should be (4)
+
+            Then("All the keys are imported and unreferenced")
+            recipient.hasPendingImports should be (false)
+            recipient.conntrackTable.unrefedKeys should be (connTrackKeys.toSet)
+            recipient.natTable.unrefedKeys should be (natMappings.keySet)
+        }
+    }
 }
 
 class TestableFlowStateReplicator(
@@ -462,6 +628,12 @@ class TestableFlowStateReplicator(
 
     override def getPortGroup(id: UUID) = portGroups(id)
 
+    var pushed = (0, 0)
+
+    override protected def statePushed(states: Int, packets: Int, bytes: Int) {
+        pushed = (states, packets)
+    }
+
     override def resolvePeers(ingressPort: UUID,
                               egressPorts: JList[UUID],
                               peers: JSet[UUID],
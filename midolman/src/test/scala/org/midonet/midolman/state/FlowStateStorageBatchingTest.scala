@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, Collections, UUID}
+import java.util.concurrent.Executor
+
+import com.codahale.metrics.MetricRegistry
+import com.datastax.driver.core.{ResultSetFuture, Session, Statement}
+import org.junit.runner.RunWith
+import org.mockito.Matchers.any
+import org.mockito.Mockito.{RETURNS_DEEP_STUBS, doAnswer, mock, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.packets.{IPv4Addr, TCP}
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateStorageBatchingTest extends FeatureSpec
+                                   with ShouldMatchers
+                                   with OneInstancePerTest {
+
+    val port = UUID.randomUUID()
+    val noPorts = Collections.emptyList[UUID]()
+
+    val metrics = new FlowStateStorageMetrics(new MetricRegistry)
+    val completions = new ArrayList[Runnable]()
+
+    val session = mock(classOf[Session], RETURNS_DEEP_STUBS)
+    val client = mock(classOf[CassandraClient])
+    when(client.session()).thenReturn(session)
+    when(session.executeAsync(any(classOf[Statement]))) thenAnswer new Answer[ResultSetFuture] {
+        override def answer(invocation: InvocationOnMock) = {
+            val future = mock(classOf[ResultSetFuture])
+            doAnswer(new Answer[Unit] {
+                override def answer(invocation: InvocationOnMock) =
+                    completions.add(invocation.getArguments()(0).asInstanceOf[Runnable])
+            }).when(future).addListener(any(classOf[Runnable]), any(classOf[Executor]))
+            future
+        }
+    }
+
+    val storage = new FlowStateStorageImpl(client, metrics, maxBatchSize = 2,
+                                           maxInFlight = 2, maxPending = 3)
+
+    def touch(n: Int): Unit =
+        for (i <- 0 until n) {
+            storage.touchConnTrackKey(
+                ConnTrackKey(IPv4Addr.random, i, IPv4Addr.random, 80,
+                             TCP.PROTOCOL_NUMBER, UUID.randomUUID()),
+                port, noPorts.iterator())
+        }
+
+    def complete(): Unit = completions.remove(0).run()
+
+    feature("Writes are batched") {
+        scenario("Writes are sent in batches of bounded size") {
+            touch(3)
+            storage.submit()
+
+            completions should have size 2
+            metrics.writesQueued.getCount should be (3)
+            metrics.writesSent.getCount should be (3)
+            metrics.writesDropped.getCount should be (0)
+        }
+    }
+
+    feature("The number of in-flight batches is bounded") {
+        scenario("Batches wait for earlier ones to complete") {
+            touch(6)
+            storage.submit()
+            completions should have size 2
+            metrics.writesSent.getCount should be (4)
+
+            complete()
+            completions should have size 2
+            metrics.writesSent.getCount should be (6)
+
+            complete()
+            complete()
+            completions should have size 0
+            metrics.writesSent.getCount should be (6)
+            metrics.writesDropped.getCount should be (0)
+        }
+
+        scenario("The oldest batches are dropped when Cassandra is slow") {
+            touch(4)
+            storage.submit()
+            touch(10)
+            storage.submit()
+
+            completions should have size 2
+            metrics.writesQueued.getCount should be (14)
+            metrics.writesSent.getCount should be (4)
+            metrics.writesDropped.getCount should be (4)
+
+            while (!completions.isEmpty)
+                complete()
+            metrics.writesSent.getCount should be (10)
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.midonet.midolman.state
 
+import java.util.{ArrayList, List => JList}
+
 import org.midonet.util.functors.Callback
 
 class MockNatBlockAllocator extends NatBlockAllocator {
@@ -28,4 +30,16 @@ class MockNatBlockAllocator extends NatBlockAllocator {
             natRange.deviceId,
             natRange.ip,
             natRange.tpPortStart / NatBlock.BLOCK_SIZE))
+
+    override def allocateBlocksInRange(natRange: NatRange, count: Int,
+                                       callback: Callback[JList[NatBlock], Exception]): Unit = {
+        val blocks = new ArrayList[NatBlock](count)
+        var block = natRange.tpPortStart / NatBlock.BLOCK_SIZE
+        while (blocks.size < count &&
+               block <= natRange.tpPortEnd / NatBlock.BLOCK_SIZE) {
+            blocks.add(new NatBlock(natRange.deviceId, natRange.ip, block))
+            block += 1
+        }
+        callback.onSuccess(blocks)
+    }
 }
@@ -16,8 +16,9 @@
 
 package org.midonet.midolman.state
 
-import java.util.UUID
+import java.util.{List => JList, UUID}
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.concurrent.duration._
 
@@ -44,6 +45,7 @@ class NatLeaserTest extends FeatureSpec
     val dev = UUID.randomUUID()
     val clock = new MockClock()
     val allocatedBlocks = mutable.Set[NatBlock]()
+    val freedBlocks = mutable.Set[NatBlock]()
     val natLeaser = new NatLeaser {
         override val log = Logger(NOPLogger.NOP_LOGGER)
         override val allocator: NatBlockAllocator = new NatBlockAllocator {
@@ -61,7 +63,17 @@ class NatLeaserTest extends FeatureSpec
                         }
                     } getOrElse NatBlock.NO_BLOCK)
 
-            override def freeBlock(natBlock: NatBlock): Unit = {}
+            override def allocateBlocksInRange(natRange: NatRange, count: Int,
+                                               callback: Callback[JList[NatBlock], Exception]): Unit = {
+                val blocks = (blockOf(natRange.tpPortStart) to blockOf(natRange.tpPortEnd)) map {
+                    new NatBlock(natRange.deviceId, natRange.ip, _)
+                } filterNot allocatedBlocks.contains take count
+                allocatedBlocks ++= blocks
+                callback.onSuccess(blocks.asJava)
+            }
+
+            override def freeBlock(natBlock: NatBlock): Unit =
+                freedBlocks += natBlock
         }
 
         override val clock = NatLeaserTest.this.clock
@@ -239,6 +251,88 @@ class NatLeaserTest extends FeatureSpec
         }
     }
 
+    feature("NatBlocks are leased ahead of time") {
+        scenario("Blocks are prefetched when few ports are left") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          4 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            allocatedBlocks should have size 1
+
+            // Connections to the same destination need a port each
+            val ports = (0 until NatBlock.BLOCK_SIZE - NatLeaser.LOW_WATERMARK) map { _ =>
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget)).transportPort
+            }
+            allocatedBlocks should have size 1
+
+            natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            allocatedBlocks should have size (1 + NatLeaser.PREFETCH_BLOCKS)
+
+            for (i <- ports.size + 1 until 4 * NatBlock.BLOCK_SIZE) {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            allocatedBlocks should have size 4
+
+            val f = intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            trap { f.waitFor.value.get.get } should be (NoNatBindingException)
+        }
+
+        scenario("Released ports are free again") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          4 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+
+            for (i <- 0 until 10) {
+                val bindings = (0 until NatBlock.BLOCK_SIZE - NatLeaser.LOW_WATERMARK) map { _ =>
+                    natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+                }
+                bindings foreach { natLeaser.freeNatBinding(dev, ip, 10, _) }
+            }
+            allocatedBlocks should have size 1
+        }
+
+        scenario("Prefetched blocks are kept while the ports are in use") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          4 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            val bindings = (0 to NatBlock.BLOCK_SIZE - NatLeaser.LOW_WATERMARK) map { _ =>
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            allocatedBlocks should have size (1 + NatLeaser.PREFETCH_BLOCKS)
+
+            for (i <- 0 until 3) {
+                clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+                natLeaser.obliterateUnusedBlocks()
+                natLeaser.allocateNatBinding(dev, ip, 20, Array(natTarget))
+            }
+            freedBlocks should be ('empty)
+            allocatedBlocks should have size (1 + NatLeaser.PREFETCH_BLOCKS)
+
+            bindings foreach { natLeaser.freeNatBinding(dev, ip, 10, _) }
+            for (i <- 0 until 2) {
+                clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+                natLeaser.obliterateUnusedBlocks()
+            }
+            freedBlocks should have size NatLeaser.PREFETCH_BLOCKS
+        }
+    }
+
     feature("NatBindings are released") {
         scenario("Simple case") {
             val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
@@ -19,7 +19,9 @@ package org.midonet.midolman.state
 import java.nio.ByteBuffer
 import java.util.UUID
 
+import scala.collection.JavaConverters._
 import scala.collection.immutable.HashMap
+import scala.concurrent.duration._
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -35,6 +37,7 @@ import org.midonet.packets._
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
 import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
 
 @RunWith(classOf[JUnitRunner])
 class NatStateTest extends MidolmanSpec {
@@ -52,11 +55,12 @@ class NatStateTest extends MidolmanSpec {
     val natStateTable = new ShardedFlowStateTable[NatKey, NatBinding]().addShard()
     val natTx = new FlowStateTransaction(natStateTable)
 
-    def context(eth: Ethernet = tcpPacket) = {
+    def context(eth: Ethernet = tcpPacket,
+                tx: FlowStateTransaction[NatKey, NatBinding] = natTx) = {
         val fmatch = new FlowMatch(FlowKeys.fromEthernetPacket(eth))
         val ctx = new PacketContext(1, new Packet(eth, fmatch), fmatch)
         ctx.initialize(new FlowStateTransaction[ConnTrackKey, ConnTrackValue](null),
-                       natTx,
+                       tx,
                        HappyGoLuckyLeaser)
         ctx
     }
@@ -445,6 +449,59 @@ class NatStateTest extends MidolmanSpec {
         }
     }
 
+    feature("NAT bindings of closed connections expire sooner") {
+        val src = IPv4Addr.random
+        val dst = IPv4Addr.random
+        def segment(flags: TCP.Flag*): Ethernet =
+            { eth src MAC.random() dst MAC.random() } <<
+            { ip4 src src dst dst } <<
+            { tcp src 10 dst 88 flags TCP.Flag.allOf(flags.toList.asJava) }
+
+        scenario("A FIN shortens the expiration of new bindings") {
+            val ctx = context(segment(TCP.Flag.Fin, TCP.Flag.Ack))
+            ctx.applySnat(deviceId, targets) should be (true)
+
+            val keys = transactionValues(natTx).keys
+            keys should have size 2
+            keys.map(_.expiresAfter).toSet should be (Set(FlowState.CLOSED_EXPIRATION))
+        }
+
+        scenario("A RST expires the bindings of an open connection") {
+            val clock = new MockClock
+            val table = new ShardedFlowStateTable[NatKey, NatBinding](clock).addShard()
+            val tx = new FlowStateTransaction(table)
+
+            context(segment(TCP.Flag.Ack), tx).applySnat(deviceId, targets) should be (true)
+            val openKeys = transactionValues(tx).keys
+            openKeys.map(_.expiresAfter).toSet should be (Set(FlowState.DEFAULT_EXPIRATION))
+            tx.commit()
+            tx.flush()
+
+            context(segment(TCP.Flag.Rst), tx).applySnat(deviceId, targets) should be (true)
+            val rstKeys = transactionValues(tx).keys
+            tx.commit()
+
+            rstKeys foreach table.unref
+            openKeys foreach table.unref
+
+            clock.time = FlowState.CLOSED_EXPIRATION.toNanos + 1
+            val expired = table.expireIdleEntries(Set.empty[NatKey],
+                new Reducer[NatKey, NatBinding, Set[NatKey]] {
+                    override def apply(acc: Set[NatKey], key: NatKey,
+                                       value: NatBinding) = acc + key
+                })
+            expired should be (openKeys.toSet)
+        }
+
+        scenario("Sticky DNAT bindings keep their expiration") {
+            val ctx = context(segment(TCP.Flag.Fin, TCP.Flag.Ack))
+            ctx.applyStickyDnat(deviceId, targets) should be (true)
+
+            transactionValues(natTx).keys.map(_.expiresAfter).toSet should be (
+                Set(1 day))
+        }
+    }
+
     feature("Other types of packets are not NATed") {
         val ctx = context({ eth src MAC.random() dst MAC.random() })
         ctx.applyDnat(deviceId, targets) should be (false)
@@ -66,7 +66,7 @@ import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActionSetKey, Fl
 import org.midonet.odp.protos.MockOvsDatapathConnection
 import org.midonet.packets.Ethernet
 import org.midonet.sdn.flows.WildcardFlow
-import org.midonet.util.concurrent.MockClock
+import org.midonet.util.concurrent.{MockClock, NanoClock}
 import org.midonet.util.functors.Callback0
 import org.scalatest._
 import org.scalatest.matchers.{BePropertyMatchResult, BePropertyMatcher}
@@ -106,6 +106,9 @@ trait MidolmanTestCase extends Suite with BeforeAndAfter
 
     val clock = new MockClock
 
+    /* The clock of the agent, which tests running in real time override */
+    protected def agentClock: NanoClock = clock
+
     implicit val askTimeout = Timeout(3 seconds)
     val timeout: FiniteDuration = askTimeout.duration
 
@@ -232,7 +235,7 @@ trait MidolmanTestCase extends Suite with BeforeAndAfter
             },
             new ClusterClientModule(),
             new MockMidolmanModule(),
-            new TestableMidolmanActorsModule(probesByName, actorsByName, clock),
+            new TestableMidolmanActorsModule(probesByName, actorsByName, agentClock),
             new ResourceProtectionModule(),
             new PrivateModule {
                 override def configure() {
@@ -188,7 +188,7 @@ trait VirtualTopologyHelper {
             override def vtepTunnellingOutputAction: FlowActionOutput = null
             override def isVtepTunnellingPort(portNumber: Integer): Boolean = false
             override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
-        }, null, 0) {
+        }, null, 0, null) {
             override def pushState(dpChannel: DatapathChannel): Unit = { }
             override def accumulateNewKeys(
                           conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
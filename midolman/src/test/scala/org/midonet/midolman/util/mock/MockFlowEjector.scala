@@ -25,6 +25,11 @@ import org.midonet.odp.{Flow, FlowMatch}
 class MockFlowEjector(val flowsTable: JMap[FlowMatch, Flow] = null) extends FlowEjector(32) {
     var flowDelCb: Flow => Unit = _
 
+    /* Whether to complete the flow deletions as the datapath would, giving
+     * the requests back to the FlowController. Needed when the flow table
+     * is expected to fill up and evict flows. */
+    var completeRequests = false
+
     override def eject(flowDelete: FlowRemoveCommand): Boolean = {
         if (flowDelCb ne null) {
             flowDelCb(new Flow(flowDelete.flowMatch))
@@ -32,6 +37,9 @@ class MockFlowEjector(val flowsTable: JMap[FlowMatch, Flow] = null) extends Flow
         if (flowsTable ne null) {
             flowsTable.remove(flowDelete.flowMatch)
         }
+        if (completeRequests) {
+            flowDelete.onCompleted()
+        }
         true
     }
 
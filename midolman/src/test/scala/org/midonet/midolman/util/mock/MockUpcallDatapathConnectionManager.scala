@@ -43,8 +43,12 @@ class MockUpcallDatapathConnectionManager(config: MidolmanConfig,
     var upcallHandler: BatchCollector[Packet] = null
 
     def initialize()(implicit ec: ExecutionContext, as: ActorSystem) {
+        initialize(Workers(IndexedSeq(PacketsEntryPoint)))
+    }
+
+    def initialize(workers: Workers)(implicit as: ActorSystem) {
         if (upcallHandler == null) {
-            upcallHandler = makeUpcallHandler(Workers(IndexedSeq(PacketsEntryPoint)))
+            upcallHandler = makeUpcallHandler(workers)
             conn.getConnection.datapathsSetNotificationHandler(upcallHandler)
         }
     }
@@ -17,6 +17,7 @@
 package org.midonet.packets;
 
 
+import java.io.Serializable;
 import java.util.Objects;
 
 import org.codehaus.jackson.annotate.JsonSubTypes;
@@ -30,7 +31,9 @@ import org.midonet.Util;
     @JsonSubTypes.Type(value = IPv4Subnet.class, name = "IPv4"),
     @JsonSubTypes.Type(value = IPv6Subnet.class, name = "IPv6")
 })
-public abstract class IPSubnet<T extends IPAddr> {
+public abstract class IPSubnet<T extends IPAddr> implements Serializable {
+
+    private static final long serialVersionUID = -2634516792405743625L;
 
     protected T address;
     protected int prefixLen;
@@ -83,7 +86,7 @@ public abstract class IPSubnet<T extends IPAddr> {
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (this.getClass() != o.getClass()) return false;
+        if (o == null || this.getClass() != o.getClass()) return false;
 
         IPSubnet<T> that = Util.uncheckedCast(o);
         return prefixLen == that.prefixLen &&
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection;
+
+import java.util.Arrays;
+
+/**
+ * An open addressed set of non negative ints, with linear probing and
+ * backward shift deletion, so that removals leave no tombstones behind.
+ *
+ * Elements live in a single int array that only grows, so adding and
+ * removing elements doesn't allocate once the set reached its working size,
+ * and iterating over the set is a scan of that array.
+ *
+ * Not thread-safe.
+ */
+public final class IntHashSet {
+
+    private static final int FREE = -1;
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+
+    public IntHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, FREE);
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int value) {
+        int i = hash(value) & mask;
+        int slot;
+        while ((slot = slots[i]) != FREE) {
+            if (slot == value)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    public boolean contains(int value) {
+        return value >= 0 && indexOf(value) >= 0;
+    }
+
+    /**
+     * Adds a value to the set, returning whether it wasn't already there.
+     */
+    public boolean add(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value: " + value);
+        int i = indexOf(value);
+        if (i >= 0)
+            return false;
+        slots[-1 - i] = value;
+        if (++size > slots.length * 3 / 4)
+            grow();
+        return true;
+    }
+
+    /**
+     * Removes a value from the set, returning whether it was there.
+     */
+    public boolean remove(int value) {
+        if (value < 0)
+            return false;
+        int i = indexOf(value);
+        if (i < 0)
+            return false;
+        size--;
+        // move back the entries that probed past the freed slot
+        int free = i;
+        int j = (i + 1) & mask;
+        int slot;
+        while ((slot = slots[j]) != FREE) {
+            int home = hash(slot) & mask;
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                slots[free] = slot;
+                free = j;
+            }
+            j = (j + 1) & mask;
+        }
+        slots[free] = FREE;
+        return true;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(slots, FREE);
+            size = 0;
+        }
+    }
+
+    /**
+     * Copies the elements of the set to the given array, which is grown if
+     * it can't hold all of them, and returns the array holding them.
+     */
+    public int[] toArray(int[] dst) {
+        if (dst.length < size)
+            dst = new int[size];
+        int n = 0;
+        for (int slot : slots) {
+            if (slot != FREE)
+                dst[n++] = slot;
+        }
+        return dst;
+    }
+
+    private void grow() {
+        int[] old = slots;
+        allocate(old.length << 1);
+        for (int slot : old) {
+            if (slot != FREE)
+                slots[-1 - indexOf(slot)] = slot;
+        }
+    }
+}
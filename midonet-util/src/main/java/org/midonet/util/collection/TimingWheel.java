@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection;
+
+import java.util.Arrays;
+
+import org.midonet.util.functors.Callback1;
+
+/**
+ * A hierarchical timing wheel, keyed by deadlines expressed in milliseconds.
+ *
+ * The first level has one bucket per millisecond for the next 256 ms, and
+ * each of the four upper levels has 64 buckets, each one spanning a whole
+ * turn of the level below, for a total horizon of 2^32 ms (~49 days).
+ * Deadlines further away are clamped to the horizon, so users must check
+ * whether an item really expired when it is handed back to them.
+ *
+ * Adding an item is O(1). Advancing the wheel visits the elapsed
+ * milliseconds while the first level holds items, and otherwise jumps to
+ * the next occupied bucket of the upper levels, whose items are moved down
+ * to the first level when the wheel reaches it. Buckets are unordered
+ * arrays that are reused once emptied, so the wheel doesn't allocate in
+ * steady state.
+ *
+ * Not thread-safe.
+ */
+public final class TimingWheel<T> {
+
+    private static final int ROOT_BITS = 8;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int ROOT_MASK = ROOT_SIZE - 1;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int UPPER_LEVELS = 4;
+    private static final long MAX_DELTA =
+        (1L << (ROOT_BITS + UPPER_LEVELS * LEVEL_BITS)) - 1;
+
+    private final Bucket[] root = new Bucket[ROOT_SIZE];
+    private final Bucket[][] levels = new Bucket[UPPER_LEVELS][LEVEL_SIZE];
+    private Bucket spare = new Bucket(true);
+
+    /* The first millisecond that has not been expired yet */
+    private long current;
+    private int size = 0;
+    private int rootSize = 0;
+
+    public TimingWheel(long now) {
+        current = now;
+        for (int i = 0; i < ROOT_SIZE; ++i)
+            root[i] = new Bucket(true);
+        for (Bucket[] level : levels)
+            for (int i = 0; i < LEVEL_SIZE; ++i)
+                level[i] = new Bucket(false);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules an item. Deadlines that already passed will be expired on
+     * the next call to advance().
+     */
+    public void add(T item, long deadline) {
+        long delta = deadline - current;
+        if (delta < 0) {
+            deadline = current;
+            delta = 0;
+        } else if (delta > MAX_DELTA) {
+            deadline = current + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        add(bucketFor(deadline, delta), item, deadline);
+        size++;
+    }
+
+    private void add(Bucket bucket, Object item, long deadline) {
+        bucket.add(item, deadline);
+        if (bucket.root)
+            rootSize++;
+    }
+
+    private Bucket bucketFor(long deadline, long delta) {
+        if (delta < ROOT_SIZE)
+            return root[(int) deadline & ROOT_MASK];
+        int shift = ROOT_BITS;
+        int level = 0;
+        while (delta >= (1L << (shift + LEVEL_BITS))) {
+            shift += LEVEL_BITS;
+            level++;
+        }
+        return levels[level][(int) (deadline >>> shift) & LEVEL_MASK];
+    }
+
+    /**
+     * Expires every item whose deadline is not after now, handing each of
+     * them to the callback in deadline order. The callback may add items
+     * back to the wheel.
+     */
+    public void advance(long now, Callback1<T> expired) {
+        if (size == 0) {
+            if (now >= current)
+                current = now + 1;
+            return;
+        }
+        while (current <= now) {
+            int index = (int) current & ROOT_MASK;
+            if (index == 0)
+                cascade(0);
+            if (rootSize == 0) {
+                current = Math.min(nextCascade(), now + 1);
+                continue;
+            }
+            Bucket bucket = root[index];
+            root[index] = spare;
+            spare = bucket;
+            current++;
+            rootSize -= bucket.size;
+            for (int i = 0; i < bucket.size; ++i) {
+                size--;
+                expired.call(bucket.<T>get(i));
+            }
+            bucket.clear();
+        }
+    }
+
+    private void cascade(int level) {
+        int shift = ROOT_BITS + level * LEVEL_BITS;
+        int index = (int) (current >>> shift) & LEVEL_MASK;
+        if (index == 0 && level + 1 < UPPER_LEVELS)
+            cascade(level + 1);
+        Bucket bucket = levels[level][index];
+        for (int i = 0; i < bucket.size; ++i) {
+            long deadline = bucket.deadlines[i];
+            add(bucketFor(deadline, deadline - current), bucket.items[i],
+                deadline);
+        }
+        bucket.clear();
+    }
+
+    /* The start of the earliest occupied bucket of the upper levels, which
+     * is where the wheel goes next when the first level is empty. */
+    private long nextCascade() {
+        long next = Long.MAX_VALUE;
+        int shift = ROOT_BITS;
+        for (Bucket[] level : levels) {
+            long position = current >>> shift;
+            for (int i = 1; i <= LEVEL_SIZE; ++i) {
+                if (level[(int) (position + i) & LEVEL_MASK].size > 0) {
+                    next = Math.min(next, (position + i) << shift);
+                    break;
+                }
+            }
+            shift += LEVEL_BITS;
+        }
+        return next;
+    }
+
+    /**
+     * Returns, without removing it, one of the items with the earliest
+     * deadlines, or null if the wheel is empty. Items are ordered to within
+     * the span of the bucket they sit in: exactly for the next 256 ms, to
+     * 256 ms for the next 16 s, and so on.
+     */
+    public T peek() {
+        Bucket bucket = earliestBucket();
+        return (bucket == null) ? null : bucket.<T>get(bucket.size - 1);
+    }
+
+    /**
+     * Removes and returns the item that peek() would return, or null if the
+     * wheel is empty.
+     */
+    public T poll() {
+        Bucket bucket = earliestBucket();
+        if (bucket == null)
+            return null;
+        size--;
+        if (bucket.root)
+            rootSize--;
+        return bucket.removeLast();
+    }
+
+    /* Buckets of a lower level always hold earlier deadlines than those of
+     * the levels above, so the first non empty bucket from the current
+     * position of each level holds the earliest deadlines. */
+    private Bucket earliestBucket() {
+        if (size == 0)
+            return null;
+        for (int i = 0; i < ROOT_SIZE; ++i) {
+            Bucket bucket = root[(int) (current + i) & ROOT_MASK];
+            if (bucket.size > 0)
+                return bucket;
+        }
+        int shift = ROOT_BITS;
+        for (Bucket[] level : levels) {
+            long position = current >>> shift;
+            for (int i = 1; i <= LEVEL_SIZE; ++i) {
+                Bucket bucket = level[(int) (position + i) & LEVEL_MASK];
+                if (bucket.size > 0)
+                    return bucket;
+            }
+            shift += LEVEL_BITS;
+        }
+        return null;
+    }
+
+    private static final class Bucket {
+        final boolean root;
+        Object[] items = new Object[4];
+        long[] deadlines = new long[4];
+        int size = 0;
+
+        Bucket(boolean root) {
+            this.root = root;
+        }
+
+        void add(Object item, long deadline) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            items[size] = item;
+            deadlines[size] = deadline;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T get(int i) {
+            return (T) items[i];
+        }
+
+        <T> T removeLast() {
+            size--;
+            T item = get(size);
+            items[size] = null;
+            return item;
+        }
+
+        void clear() {
+            Arrays.fill(items, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -22,7 +22,7 @@ import java.util.Random
 /**
  * Common abstraction for IPv4 and IPv6 addresses
  */
-trait IPAddr {
+trait IPAddr extends Serializable {
     type T <: IPAddr
     def toString: String
     def toUrlString: String
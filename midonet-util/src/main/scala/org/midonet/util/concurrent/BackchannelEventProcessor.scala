@@ -81,7 +81,7 @@ class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
             while (running.get()) {
                 poller.poll(eventHandler) match {
                     case PollState.GATING | PollState.IDLE =>
-                        retries = park(retries)
+                        retries = idle(retries)
                     case _ =>
                         retries = DEFAULT_RETRIES
                 }
@@ -93,6 +93,14 @@ class BackchannelEventProcessor[T >: Null](ringBuffer: RingBuffer[T],
         }
     }
 
+    /**
+     * Called when there are no events to process. By default the thread
+     * spins, then yields and is finally parked until there are events or
+     * work from the Backchannel; subclasses can trade CPU for latency.
+     */
+    protected def idle(retries: Int): Int =
+        park(retries)
+
     private def notifyStart(): Unit =
         eventHandler match {
             case aware: LifecycleAware =>
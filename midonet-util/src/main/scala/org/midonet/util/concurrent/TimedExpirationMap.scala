@@ -44,6 +44,11 @@ import org.midonet.util.collection.Reducer
  * when an entry is inserted happens-before the corresponding unref(), then it
  * also happens-before any operation the caller makes during entry expiration.
  *
+ * An entry is expired after the delay that expirationFor() gives for the key
+ * it was last unref'ed with, or for the key it was last referenced with, if
+ * that one is shorter. A reference can thus shorten the life of an entry even
+ * if it is not the last one to be released.
+ *
  * Synchronization is lock-free, and this is how the possible races are
  * prevented. Most are trivial but explained for completeness:
  *
@@ -84,7 +89,9 @@ import org.midonet.util.collection.Reducer
 final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
                                              expirationFor: K => Duration) {
 
-    case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
+    case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long) {
+        var expiresAfter: Duration = Duration.Inf
+    }
 
     private val refCountMap = new ConcurrentHashMap[K, Metadata]()
 
@@ -92,16 +99,30 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
      * Track entries that need to be deleted and the time at which they
      * should be deleted.
      *
-     * A queue provides traversal using insertion order. Expiring entries means
-     * iterating the queue until an non-expired time is found. When an entry is
-     * taken from the queue, the canonical up-to-date expiration time is found
-     * in the ref count map. The queue is just a flag to say "check this entry,
-     * it's probably expired".
+     * There is a queue for each expiration delay, so that entries in a queue
+     * are in the order of their expiration times, even though entries with a
+     * short delay are queued after entries with a long one. Expiring entries
+     * means iterating each queue until an non-expired time is found. When an
+     * entry is taken from a queue, the canonical up-to-date expiration time is
+     * found in the ref count map. The queue is just a flag to say "check this
+     * entry, it's probably expired".
      *
-     * An entry will only be present in this queue if it is also present
+     * An entry will only be present in these queues if it is also present
      * in the refCountMap.
      */
-    private val expiring = new ConcurrentLinkedQueue[(K, Long)]
+    private val expiring =
+        new ConcurrentHashMap[Long, ConcurrentLinkedQueue[(K, Long)]]()
+
+    private def expiringQueue(delay: Long) = {
+        val queue = expiring.get(delay)
+        if (queue ne null) {
+            queue
+        } else {
+            val newQueue = new ConcurrentLinkedQueue[(K, Long)]
+            val oldQueue = expiring.putIfAbsent(delay, newQueue)
+            if (oldQueue eq null) newQueue else oldQueue
+        }
+    }
 
     private def tryIncIfGreaterThan(atomic: AtomicInteger, threshold: Int): Int = {
         do {
@@ -119,6 +140,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
 
     private def insert(key: K, v: V) = {
         val metadata = Metadata(v, new PaddedAtomicInteger(1), Long.MaxValue)
+        metadata.expiresAfter = expirationFor(key)
         val old = refCountMap.putIfAbsent(key, metadata)
         if (old eq null)
             log.debug(s"Incrementing reference count of $key to 1")
@@ -183,6 +205,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
                 if (newCount == -1) {
                     null
                 } else {
+                    m.expiresAfter = expirationFor(key)
                     log.debug(s"Incrementing ref count of $key to $newCount")
                     if (newCount == 1)
                         log.debug(s"Unscheduling removal of $key")
@@ -214,9 +237,9 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
 
                 if (newVal == 0) {
                     log.debug(s"Scheduling removal of $key")
-                    val expiration = expirationFor(key).toMillis
+                    val expiration = (expirationFor(key) min m.expiresAfter).toMillis
                     m.expiration = currentTimeMillis + expiration
-                    expiring.offer((key, m.expiration))
+                    expiringQueue(expiration).offer((key, m.expiration))
                 } else if (newVal < 0) {
                     log.warn(s"Decrement a ref count past 0 for $key")
                     count.incrementAndGet()
@@ -243,6 +266,18 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
     def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
                                  reducer: Reducer[K, V, U]): U = {
         var acc = seed
+        val queues = expiring.values.iterator()
+        while (queues.hasNext) {
+            acc = obliterateIdleEntries(queues.next(), currentTimeMillis,
+                                        acc, reducer)
+        }
+        acc
+    }
+
+    private def obliterateIdleEntries[U](expiring: ConcurrentLinkedQueue[(K, Long)],
+                                         currentTimeMillis: Long, seed: U,
+                                         reducer: Reducer[K, V, U]): U = {
+        var acc = seed
         while (true) {
             val pair = expiring.peek()
             if ((pair eq null) || (pair._2 > currentTimeMillis))
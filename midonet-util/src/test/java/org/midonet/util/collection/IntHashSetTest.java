@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntHashSetTest {
+
+    @Test
+    public void testAddRemoveContains() {
+        IntHashSet set = new IntHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(3));
+        assertFalse(set.add(3));
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(4));
+        assertEquals(1, set.size());
+
+        assertFalse(set.remove(4));
+        assertTrue(set.remove(3));
+        assertFalse(set.contains(3));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeValues() {
+        new IntHashSet().add(-1);
+    }
+
+    @Test
+    public void testBehavesAsASet() {
+        IntHashSet set = new IntHashSet();
+        Set<Integer> reference = new HashSet<>();
+        Random rand = new Random(11);
+        for (int i = 0; i < 100000; ++i) {
+            int value = rand.nextInt(2048);
+            if (rand.nextBoolean())
+                assertEquals(reference.add(value), set.add(value));
+            else
+                assertEquals(reference.remove(value), set.remove(value));
+            assertEquals(reference.size(), set.size());
+        }
+        for (int value = 0; value < 2048; ++value)
+            assertEquals(reference.contains(value), set.contains(value));
+    }
+
+    @Test
+    public void testToArray() {
+        IntHashSet set = new IntHashSet();
+        for (int i = 0; i < 100; i += 2)
+            set.add(i);
+
+        int[] values = set.toArray(new int[0]);
+        int[] expected = new int[50];
+        for (int i = 0; i < 50; ++i)
+            expected[i] = i * 2;
+        Arrays.sort(values);
+        assertArrayEquals(expected, values);
+
+        int[] big = new int[128];
+        assertTrue(set.toArray(big) == big);
+    }
+
+    @Test
+    public void testClear() {
+        IntHashSet set = new IntHashSet(1000);
+        for (int i = 0; i < 1000; ++i)
+            set.add(i);
+        set.clear();
+        assertTrue(set.isEmpty());
+        for (int i = 0; i < 1000; ++i)
+            assertFalse(set.contains(i));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.midonet.util.functors.Callback1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private final long start = 1000000L;
+
+    private final List<Long> expired = new ArrayList<>();
+    private final Callback1<Long> collect = new Callback1<Long>() {
+        @Override
+        public void call(Long deadline) {
+            expired.add(deadline);
+        }
+    };
+
+    @Test
+    public void testExpiresOnDeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        wheel.add(start + 10, start + 10);
+
+        wheel.advance(start + 9, collect);
+        assertTrue(expired.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(start + 10, collect);
+        assertEquals(Collections.singletonList(start + 10), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testPastDeadlinesExpireOnNextAdvance() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        wheel.advance(start + 100, collect);
+        wheel.add(start, start);
+
+        wheel.advance(start + 101, collect);
+        assertEquals(Collections.singletonList(start), expired);
+    }
+
+    @Test
+    public void testExpiresInOrderAcrossLevels() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        Random rand = new Random(42);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            long deadline = start + rand.nextInt(5 * 60 * 1000);
+            deadlines.add(deadline);
+            wheel.add(deadline, deadline);
+        }
+
+        for (long now = start; now < start + 5 * 60 * 1000; now += 777) {
+            wheel.advance(now, collect);
+            for (Long deadline : expired)
+                assertTrue(deadline <= now);
+        }
+        wheel.advance(start + 5 * 60 * 1000, collect);
+
+        Collections.sort(deadlines);
+        assertEquals(deadlines, expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testSkipsEmptyBucketsOnLongAdvances() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        Random rand = new Random(3);
+        List<Long> deadlines = new ArrayList<>();
+        long horizon = 40L * 24 * 60 * 60 * 1000;
+        for (int i = 0; i < 1000; ++i) {
+            long deadline = start + (rand.nextLong() & Long.MAX_VALUE) % horizon;
+            deadlines.add(deadline);
+            wheel.add(deadline, deadline);
+        }
+
+        for (long now = start; now < start + horizon; now += 3600 * 1000) {
+            wheel.advance(now, collect);
+            for (Long deadline : expired)
+                assertTrue(deadline <= now);
+        }
+        wheel.advance(start + horizon, collect);
+
+        Collections.sort(deadlines);
+        assertEquals(deadlines, expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testUpperLevelsAreNotSkippedPastTheirDeadlines() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        // sits in the second upper level, then cascades before the item
+        // added later to the first upper level
+        long early = start + 20000;
+        wheel.add(early, early);
+        wheel.advance(start + 5000, collect);
+        long late = start + 5000 + 16000;
+        wheel.add(late, late);
+
+        wheel.advance(late, collect);
+        assertEquals(Arrays.asList(early, late), expired);
+    }
+
+    @Test
+    public void testPollReturnsEarliestDeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        for (int i = 0; i < 200; ++i) {
+            long deadline = start + i;
+            wheel.add(deadline, deadline);
+        }
+
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(Long.valueOf(start + i), wheel.peek());
+            assertEquals(Long.valueOf(start + i), wheel.poll());
+        }
+        assertNull(wheel.poll());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testPollOrdersToBucketSpan() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        Random rand = new Random(7);
+        for (int i = 0; i < 1000; ++i) {
+            long deadline = start + rand.nextInt(Integer.MAX_VALUE);
+            wheel.add(deadline, deadline);
+        }
+
+        long previous = start;
+        Long deadline;
+        while ((deadline = wheel.poll()) != null) {
+            long span = Long.highestOneBit(deadline - start);
+            assertTrue(deadline + span >= previous);
+            previous = Math.max(previous, deadline);
+        }
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testItemsCanBeRescheduledWhileExpiring() {
+        final TimingWheel<Long> wheel = new TimingWheel<>(start);
+        wheel.add(start + 300, start + 1);
+        wheel.advance(start + 1, new Callback1<Long>() {
+            @Override
+            public void call(Long deadline) {
+                wheel.add(deadline, deadline);
+            }
+        });
+        assertEquals(1, wheel.size());
+
+        wheel.advance(start + 299, collect);
+        assertTrue(expired.isEmpty());
+        wheel.advance(start + 300, collect);
+        assertEquals(Collections.singletonList(start + 300), expired);
+    }
+
+    @Test
+    public void testDistantDeadlinesAreClamped() {
+        TimingWheel<Long> wheel = new TimingWheel<>(start);
+        wheel.add(Long.MAX_VALUE, Long.MAX_VALUE);
+        wheel.add(start + 1, start + 1);
+
+        assertEquals(Long.valueOf(start + 1), wheel.poll());
+        assertEquals(Long.valueOf(Long.MAX_VALUE), wheel.poll());
+    }
+}
@@ -95,6 +95,42 @@ class TimedExpirationMapTest extends FeatureSpec
             map refCount "A" should be (0)
         }
 
+        scenario("A reference can shorten the expiration of an entry") {
+            var expiration: Duration = 10.millis
+            val map = new TimedExpirationMap[String, String](
+                Logger(NOPLogger.NOP_LOGGER), _ => expiration)
+
+            map.putAndRef("A", "X")
+            expiration = 1.millis
+            map.ref("A")
+            expiration = 10.millis
+            map.unref("A", 0)
+            map.unref("A", 0)
+
+            map.obliterateIdleEntries(1)
+            map get "A" should be (null)
+        }
+
+        scenario("Entries with a short expiration don't wait for longer ones") {
+            val map = new TimedExpirationMap[String, String](
+                Logger(NOPLogger.NOP_LOGGER),
+                key => if (key startsWith "closed") 5.seconds else 60.seconds)
+
+            for (i <- 0 until 10) {
+                map.putAndRef(s"idle$i", "X")
+                map.unref(s"idle$i", 0)
+            }
+            map.putAndRef("closed", "Y")
+            map.unref("closed", 1000)
+
+            map.obliterateIdleEntries(6000)
+            map get "closed" should be (null)
+            map get "idle0" should be ("X")
+
+            map.obliterateIdleEntries(60000)
+            map get "idle9" should be (null)
+        }
+
         scenario("obliterateIdleEntries blocks operations on the same key") {
             map.putAndRef("A", "X")
             map.unref("A", 0) should be ("X")
@@ -33,6 +33,7 @@ import org.midonet.netlink.clib.cLibrary;
 import org.midonet.netlink.exceptions.NetlinkException;
 import org.midonet.util.BatchCollector;
 import org.midonet.util.Bucket;
+import org.midonet.util.functors.Callback1;
 import org.midonet.util.io.SelectorInputQueue;
 
 /**
@@ -66,6 +67,10 @@ public abstract class AbstractNetlinkConnection {
     private ByteBuffer reply =
         BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
 
+    // Receive buffers for batched reads, one datagram per buffer. When null,
+    // every datagram is read with its own system call into the reply buffer.
+    private ByteBuffer[] replies = null;
+
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
     protected BatchCollector<Runnable> dispatcher;
@@ -130,6 +135,23 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    /**
+     * Sets how many datagrams handleReadEvent() will try to read with a
+     * single system call. Every extra datagram takes a read buffer of
+     * NETLINK_READ_BUFSIZE bytes. A size of 1 disables batched reads.
+     */
+    public synchronized void setReadBatchSize(int size) {
+        if (size <= 1) {
+            replies = null;
+            return;
+        }
+        replies = new ByteBuffer[size];
+        replies[0] = reply;
+        for (int i = 1; i < size; i++) {
+            replies[i] = BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+        }
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
@@ -222,6 +244,19 @@ public abstract class AbstractNetlinkConnection {
                                                 payload, timeoutMillis));
     }
 
+    /** Same as sendMultiAnswerNetlinkMessage(), but hands every answer to the
+     *  sink as soon as it is deserialised instead of collecting them, so that
+     *  large dumps don't need to be held in memory. The callback receives the
+     *  number of answers once the dump is over. */
+    protected <T> void sendStreamingNetlinkMessage(ByteBuffer payload,
+                                                   Callback1<T> sink,
+                                                   Callback<Integer> callback,
+                                                   Reader<T> reader,
+                                                   long timeoutMillis) {
+        enqueueRequest(NetlinkRequest.makeStream(sink, callback, reader,
+                                                 payload, timeoutMillis));
+    }
+
     private void enqueueRequest(NetlinkRequest req) {
         if (bypassSendQueue) {
             // If this stops being used only for testing, beware
@@ -351,14 +386,26 @@ public abstract class AbstractNetlinkConnection {
     public void handleReadEvent(final Bucket bucket) throws IOException {
         try {
             bucket.prepare();
-            for (int i = 0; i < maxBatchIoOps; i++) {
-                final int ret = processReadFromChannel(bucket);
-                if (ret <= 0) {
-                    if (ret < 0) {
-                        log.info("NETLINK read() error: {}",
-                            cLibrary.lib.strerror(Native.getLastError()));
+            if (replies == null) {
+                for (int i = 0; i < maxBatchIoOps; i++) {
+                    final int ret = processReadFromChannel(bucket);
+                    if (ret <= 0) {
+                        if (ret < 0) {
+                            log.info("NETLINK read() error: {}",
+                                cLibrary.lib.strerror(Native.getLastError()));
+                        }
+                        break;
                     }
-                    break;
+                }
+            } else {
+                int i = 0;
+                while (i < maxBatchIoOps) {
+                    final int wanted = Math.min(replies.length,
+                                                maxBatchIoOps - i);
+                    final int ret = processReadsFromChannel(bucket, wanted);
+                    if (ret <= 0)
+                        break;
+                    i += ret;
                 }
             }
         } catch (IOException e) {
@@ -380,6 +427,26 @@ public abstract class AbstractNetlinkConnection {
         int nbytes = channel.read(reply);
 
         reply.flip(); // sets the effective final limit for any number of msgs
+        processReply(reply, bucket);
+        return nbytes;
+    }
+
+    private synchronized int processReadsFromChannel(final Bucket bucket,
+                                                     int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            replies[i].clear();
+        }
+
+        // sets the effective final limit of each buffer for any number of msgs
+        int nmsgs = channel.readMessages(replies, 0, count);
+        for (int i = 0; i < nmsgs; i++) {
+            processReply(replies[i], bucket);
+        }
+        return nmsgs;
+    }
+
+    private void processReply(ByteBuffer reply, final Bucket bucket) {
         reply.mark();
         int finalLimit = reply.limit();
 
@@ -447,7 +514,6 @@ public abstract class AbstractNetlinkConnection {
             reply.limit(finalLimit);
             reply.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * Native layout of the struct mmsghdr array taken by sendmmsg() and
+ * recvmmsg(). Each message gets a single iovec pointing at the remaining
+ * bytes of a direct ByteBuffer. The headers and the iovecs share one direct
+ * buffer, which grows on demand and is otherwise reused across calls.
+ *
+ *   struct iovec   { void *iov_base; size_t iov_len; };
+ *   struct msghdr  { void *msg_name; socklen_t msg_namelen;
+ *                    struct iovec *msg_iov; size_t msg_iovlen;
+ *                    void *msg_control; size_t msg_controllen;
+ *                    int msg_flags; };
+ *   struct mmsghdr { struct msghdr msg_hdr; unsigned int msg_len; };
+ *
+ * NOT thread-safe, callers are expected to hold the channel's send or
+ * receive lock.
+ */
+final class MessageVector {
+
+    private static final int WORD = Native.POINTER_SIZE;
+
+    private static final int IOV_BASE = 0;
+    private static final int IOV_LEN = WORD;
+    private static final int IOVEC_SIZE = 2 * WORD;
+
+    private static final int MSG_IOV = 2 * WORD;
+    private static final int MSG_IOVLEN = 3 * WORD;
+    private static final int MSG_FLAGS = 6 * WORD;
+    private static final int MSGHDR_SIZE = align(MSG_FLAGS + 4);
+
+    private static final int MSG_LEN = MSGHDR_SIZE;
+    private static final int MMSGHDR_SIZE = align(MSG_LEN + 4);
+
+    private ByteBuffer headers;
+    private Pointer headersPtr;
+    private int capacity;
+
+    MessageVector(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    private static int align(int size) {
+        return (size + WORD - 1) & ~(WORD - 1);
+    }
+
+    private void ensureCapacity(int count) {
+        if (count <= capacity)
+            return;
+        // next power of two, highestOneBit(0) would leave room for nothing
+        capacity = count > 1 ? Integer.highestOneBit(count - 1) << 1 : 1;
+        headers = ByteBuffer.allocateDirect(capacity * (MMSGHDR_SIZE + IOVEC_SIZE))
+                            .order(ByteOrder.nativeOrder());
+        headersPtr = Native.getDirectBufferPointer(headers);
+    }
+
+    private int iovecOffset(int i) {
+        return capacity * MMSGHDR_SIZE + i * IOVEC_SIZE;
+    }
+
+    private void putWord(int offset, long value) {
+        if (WORD == 8)
+            headers.putLong(offset, value);
+        else
+            headers.putInt(offset, (int) value);
+    }
+
+    /**
+     * Points the first count message headers at the remaining bytes of
+     * buffers[offset] .. buffers[offset + count - 1], which must be direct.
+     * Returns the native buffer to pass to sendmmsg() or recvmmsg().
+     */
+    ByteBuffer wrap(ByteBuffer[] buffers, int offset, int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buf = buffers[offset + i];
+            int hdr = i * MMSGHDR_SIZE;
+            int iov = iovecOffset(i);
+
+            for (int j = 0; j < MMSGHDR_SIZE; j += 4)
+                headers.putInt(hdr + j, 0);
+
+            headersPtr.setPointer(iov + IOV_BASE,
+                Native.getDirectBufferPointer(buf).share(buf.position()));
+            putWord(iov + IOV_LEN, buf.remaining());
+            headersPtr.setPointer(hdr + MSG_IOV, headersPtr.share(iov));
+            putWord(hdr + MSG_IOVLEN, 1);
+        }
+        return headers;
+    }
+
+    /** Number of bytes transferred for the i-th message of the last call. */
+    int length(int i) {
+        return headers.getInt(i * MMSGHDR_SIZE + MSG_LEN);
+    }
+
+    /** Flags returned by the kernel for the i-th message of the last call. */
+    int flags(int i) {
+        return headers.getInt(i * MMSGHDR_SIZE + MSG_FLAGS);
+    }
+}
@@ -64,6 +64,11 @@ public class MockNetlinkChannel extends NetlinkChannel {
     protected void closeFileDescriptor() {
     }
 
+    @Override
+    protected boolean supportsMultiMessage() {
+        return false;
+    }
+
     @Override
     public int read(ByteBuffer dst) throws IOException {
         if (toRead.isEmpty()) {
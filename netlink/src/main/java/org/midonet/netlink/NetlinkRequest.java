@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.netlink.exceptions.NetlinkException;
+import org.midonet.util.functors.Callback1;
 
 /** Class used by AbstractNetlinkRequest to manage reply handlers and user given
  *  callbacks. */
@@ -45,8 +46,8 @@ public abstract class NetlinkRequest implements Runnable {
 
     private ByteBuffer outBuffer;
 
-    // can be callback of T for single-answer requests, or callback of Set<T>
-    // for multi-answer requests.
+    // can be callback of T for single-answer requests, callback of Set<T>
+    // for multi-answer requests, or callback of Integer for streamed requests.
     private final Callback<Object> userCallback;
     protected final Reader<Object> reader;
     public final long expirationTimeNanos;
@@ -169,6 +170,25 @@ public abstract class NetlinkRequest implements Runnable {
         return new MultiAnswerNetlinkRequest(cb, func, data, timeoutMillis);
     }
 
+    /** Factory method to create a NetlinkRequest which will be answered by a
+     *  sequence of replies that are not collected: each deserialised object
+     *  is handed to the sink, on the thread reading the replies, as soon as
+     *  it is read. The callback function takes as an input the number of
+     *  objects read. */
+    public static <T> NetlinkRequest makeStream(Callback1<T> sink,
+                                                Callback<Integer> callback,
+                                                Reader<T> reader,
+                                                ByteBuffer data,
+                                                long timeoutMillis) {
+        @SuppressWarnings("unchecked")
+        Callback<Object> cb = (Callback<Object>) (Callback<?>) callback;
+        @SuppressWarnings("unchecked")
+        Reader<Object> func = (Reader<Object>) reader;
+        @SuppressWarnings("unchecked")
+        Callback1<Object> out = (Callback1<Object>) sink;
+        return new StreamingNetlinkRequest(out, cb, func, data, timeoutMillis);
+    }
+
     static class SingleAnswerNetlinkRequest extends NetlinkRequest {
         public SingleAnswerNetlinkRequest(Callback<Object> callback,
                                           Reader<Object> reader,
@@ -210,6 +230,30 @@ public abstract class NetlinkRequest implements Runnable {
         }
     }
 
+    static class StreamingNetlinkRequest extends NetlinkRequest {
+        private final Callback1<Object> sink;
+        private int count = 0;
+
+        public StreamingNetlinkRequest(Callback1<Object> sink,
+                                       Callback<Object> callback,
+                                       Reader<Object> reader,
+                                       ByteBuffer data,
+                                       long timeoutMillis) {
+            super(callback, reader, data, timeoutMillis);
+            this.sink = sink;
+        }
+        @Override
+        public void addAnswerFragment(ByteBuffer buf) {
+            sink.call(reader.deserializeFrom(buf));
+            count++;
+        }
+        @Override
+        public Runnable successful() {
+            changeState(State.Success, count);
+            return this;
+        }
+    }
+
     // A null value is interpreted by the comparator as a netlinkrequest with
     // infinite timeout, and is therefore "larger" than any non-null request.
     public static final Comparator<NetlinkRequest> comparator =
@@ -53,6 +53,11 @@ public class NetlinkTracingChannel extends NetlinkChannelImpl {
         }
     }
 
+    @Override
+    protected boolean supportsMultiMessage() {
+        return false;
+    }
+
     @Override
     public int write(ByteBuffer buffer) throws IOException {
         int written = super.write(buffer);
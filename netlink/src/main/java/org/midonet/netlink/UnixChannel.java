@@ -24,6 +24,7 @@ import java.nio.channels.spi.SelectorProvider;
 import javax.annotation.Nullable;
 
 import com.sun.jna.Native;
+import com.sun.jna.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.nio.ch.SelectionKeyImpl;
@@ -78,6 +79,14 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
     private long rxBytes = 0;
     private long txBytes = 0;
 
+    // Whether sendmmsg() and recvmmsg() can be used, cleared the first time
+    // the C library or the kernel turn out not to provide them
+    private static volatile boolean multiMessageSupported = Platform.isLinux();
+
+    // Native message headers for batched I/O, guarded by sendLock and recvLock
+    private MessageVector sendVector;
+    private MessageVector recvVector;
+
     protected UnixChannel(SelectorProvider provider) {
         super(provider);
     }
@@ -206,6 +215,189 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         }
     }
 
+    /**
+     * Tells whether this channel can move several datagrams per system call
+     * with sendmmsg() and recvmmsg(). Subclasses that intercept the single
+     * message read() and write() calls should return false so that batched
+     * I/O is funneled through them.
+     */
+    protected boolean supportsMultiMessage() {
+        return multiMessageSupported;
+    }
+
+    /**
+     * Writes the datagrams held in buffers[offset] .. buffers[offset + count - 1]
+     * with a single sendmmsg() call, one datagram per buffer. Unlike write(),
+     * this method does not modify the buffers' positions. Returns the number
+     * of datagrams written, which can be less than count, or zero if the
+     * channel is non-blocking and the write would block. Falls back to
+     * one write() per datagram where sendmmsg() is not available.
+     */
+    public int writeMessages(ByteBuffer[] buffers, int offset, int count)
+            throws IOException {
+        if (count <= 0)
+            return 0;
+        if (!supportsMultiMessage() || !allDirect(buffers, offset, count))
+            return writeMessagesOneByOne(buffers, offset, count);
+
+        synchronized (sendLock) {
+            ensureConnected();
+            int n = 0;
+            try {
+                if (!prepareWrite())
+                    return 0;
+                if (sendVector == null)
+                    sendVector = new MessageVector(count);
+                ByteBuffer msgvec = sendVector.wrap(buffers, offset, count);
+                do {
+                    n = cLibrary.lib.sendmmsg(fdVal, msgvec, count, 0);
+                } while (n < 0 && Native.getLastError() == cLibrary.EINTR
+                         && isOpen());
+            } catch (UnsatisfiedLinkError e) {
+                disableMultiMessage(e.toString());
+                n = -1;
+            } finally {
+                finishWrite(n >= 0 ? n : IOStatus.UNAVAILABLE);
+            }
+
+            if (n >= 0) {
+                for (int i = 0; i < n; i++)
+                    txBytes += buffers[offset + i].remaining();
+                return n;
+            }
+            if (multiMessageSupported && !checkMultiMessageError("sendmmsg"))
+                return 0;
+        }
+        return writeMessagesOneByOne(buffers, offset, count);
+    }
+
+    /**
+     * Reads up to count datagrams into buffers[offset] ..
+     * buffers[offset + count - 1] with a single recvmmsg() call, one datagram
+     * per buffer. The call returns as soon as one datagram is available. The
+     * positions of the buffers are not modified, the limit of the i-th buffer
+     * that was filled is set to the end of the datagram. Returns the number
+     * of datagrams read, or zero if the channel is non-blocking and there
+     * was nothing to read. Falls back to a single read() where recvmmsg() is
+     * not available.
+     */
+    public int readMessages(ByteBuffer[] buffers, int offset, int count)
+            throws IOException {
+        if (count <= 0)
+            return 0;
+        if (!supportsMultiMessage() || !allDirect(buffers, offset, count))
+            return readOneMessage(buffers[offset]);
+
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            try {
+                if (!prepareRead())
+                    return 0;
+                if (recvVector == null)
+                    recvVector = new MessageVector(count);
+                ByteBuffer msgvec = recvVector.wrap(buffers, offset, count);
+                do {
+                    n = cLibrary.lib.recvmmsg(fdVal, msgvec, count,
+                                              cLibrary.MSG_WAITFORONE, null);
+                } while (n < 0 && Native.getLastError() == cLibrary.EINTR
+                         && isOpen());
+            } catch (UnsatisfiedLinkError e) {
+                disableMultiMessage(e.toString());
+                n = -1;
+            } finally {
+                finishRead(n >= 0 ? n : IOStatus.UNAVAILABLE);
+            }
+
+            if (n >= 0) {
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer buf = buffers[offset + i];
+                    int len = recvVector.length(i);
+                    if ((recvVector.flags(i) & cLibrary.MSG_TRUNC) != 0)
+                        log.warn("Truncated datagram of {} bytes", len);
+                    buf.limit(buf.position() + Math.min(len, buf.remaining()));
+                    rxBytes += len;
+                }
+                return n;
+            }
+            if (multiMessageSupported && !checkMultiMessageError("recvmmsg"))
+                return 0;
+        }
+        return readOneMessage(buffers[offset]);
+    }
+
+    private int writeMessagesOneByOne(ByteBuffer[] buffers, int offset,
+                                      int count) throws IOException {
+        int i = 0;
+        for (; i < count; i++) {
+            ByteBuffer buf = buffers[offset + i];
+            int start = buf.position();
+            try {
+                if (buf.hasRemaining() && write(buf) == 0)
+                    break;
+            } catch (IOException e) {
+                // as sendmmsg(), report the datagrams written so far and
+                // leave the error to the next call
+                if (i > 0)
+                    break;
+                throw e;
+            } finally {
+                buf.position(start);
+            }
+        }
+        return i;
+    }
+
+    private int readOneMessage(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int nbytes = 0;
+        try {
+            nbytes = read(dst);
+        } finally {
+            dst.position(start);
+        }
+        if (nbytes <= 0)
+            return 0;
+        dst.limit(start + nbytes);
+        return 1;
+    }
+
+    /**
+     * Examines errno after a failed sendmmsg() or recvmmsg(). Returns false
+     * if the call would have blocked, and true if the kernel lacks the call
+     * and the caller should fall back to one datagram per system call.
+     */
+    private boolean checkMultiMessageError(String call) throws IOException {
+        int errno = Native.getLastError();
+        if (errno == cLibrary.EAGAIN)
+            return false;
+        if (errno == cLibrary.ENOSYS) {
+            disableMultiMessage(call + "(): " + cLibrary.lib.strerror(errno));
+            return true;
+        }
+        if (!isOpen())
+            throw new AsynchronousCloseException();
+        throw new IOException(call + "() failed: " +
+                              cLibrary.lib.strerror(errno));
+    }
+
+    private static boolean allDirect(ByteBuffer[] buffers, int offset,
+                                     int count) {
+        for (int i = 0; i < count; i++) {
+            if (!buffers[offset + i].isDirect())
+                return false;
+        }
+        return true;
+    }
+
+    private static void disableMultiMessage(String reason) {
+        if (multiMessageSupported) {
+            multiMessageSupported = false;
+            log.warn("Batched socket I/O is not available ({}), falling back " +
+                     "to one system call per datagram", reason);
+        }
+    }
+
     private boolean prepareWrite() {
         begin();
         if (isOpen()) {
@@ -19,6 +19,7 @@ import java.nio.ByteBuffer;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.ByValue;
 import com.sun.jna.ptr.IntByReference;
@@ -84,6 +85,14 @@ public interface cLibrary extends Library {
     public static final int NETLINK_BROADCAST_ERROR = 4;
     public static final int NETLINK_NO_ENOBUFS = 5;
 
+    public static final int MSG_TRUNC = 0x20;
+    public static final int MSG_DONTWAIT = 0x40;
+    public static final int MSG_WAITFORONE = 0x10000;
+
+    public static final int EINTR = 4;
+    public static final int EAGAIN = 11;
+    public static final int ENOSYS = 38;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
@@ -108,6 +117,13 @@ public interface cLibrary extends Library {
 
     int recv(int fd, ByteBuffer buf, int len, int flags);
 
+    /* The message vectors are arrays of struct mmsghdr laid out in a direct
+     * buffer, see org.midonet.netlink.MessageVector. These calls are only
+     * available in linux >= 2.6.33 (recvmmsg) and >= 3.0 (sendmmsg). */
+    int sendmmsg(int fd, ByteBuffer msgvec, int vlen, int flags);
+
+    int recvmmsg(int fd, ByteBuffer msgvec, int vlen, int flags, Pointer timeout);
+
     int getpagesize();
 
     int close(long l);
@@ -44,6 +44,16 @@ class NetlinkWriter(val channel: NetlinkChannel) {
             src.limit(oldLimit)
         }
     }
+
+    /**
+     * Writes the first count buffers of srcs into the channel, one datagram
+     * per buffer and batching them into as few system calls as possible.
+     * This method will not modify the buffers' positions and limits,
+     * returning the amount of datagrams written.
+     */
+    @throws(classOf[IOException])
+    def writeMessages(srcs: Array[ByteBuffer], count: Int): Int =
+        channel.writeMessages(srcs, 0, count)
 }
 
 class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(channel) {
@@ -69,4 +79,38 @@ class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(chann
         }
         nbytes
     }
+
+    /**
+     * Writes all count datagrams into the underlying channel, blocking
+     * regardless of the channel mode while they are not all written. A
+     * datagram that fails to be written is skipped so that the ones after it
+     * still are, and the error of the first one that failed is thrown once
+     * all were tried.
+     */
+    @throws(classOf[IOException])
+    override def writeMessages(srcs: Array[ByteBuffer], count: Int): Int = {
+        var next = 0
+        var written = 0
+        var error: IOException = null
+        while (next < count) {
+            try {
+                val n = channel.writeMessages(srcs, next, count - next)
+                if (n == 0) {
+                    if (!channel.isOpen)
+                        return written
+
+                    selector.select(timeout)
+                }
+                next += n
+                written += n
+            } catch { case e: IOException if channel.isOpen =>
+                if (error eq null)
+                    error = e
+                next += 1
+            }
+        }
+        if (error ne null)
+            throw error
+        written
+    }
 }
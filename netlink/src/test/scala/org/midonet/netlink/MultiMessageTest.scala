@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, ShouldMatchers}
+
+@RunWith(classOf[JUnitRunner])
+class MultiMessageTest extends FeatureSpec
+                       with ShouldMatchers
+                       with BeforeAndAfter {
+
+    val numRequests = 4
+    var channel: NetlinkChannel = _
+
+    before {
+        channel = new NetlinkChannelFactory().create(blocking = true)
+    }
+
+    after {
+        channel.close()
+    }
+
+    private def familyRequest(seq: Int): ByteBuffer = {
+        val buf = BytesUtil.instance.allocateDirect(512)
+        GenlProtocol.familyNameRequest("nlctrl", NLFlag.REQUEST,
+                                       channel.getLocalAddress.getPid,
+                                       CtrlFamily.Context.GetFamily, buf)
+        buf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, seq)
+        buf
+    }
+
+    feature ("Channels move several datagrams per call") {
+        scenario ("Requests are written and replies read in batches") {
+            val requests = (1 to numRequests).map(familyRequest).toArray
+            val writer = new NetlinkBlockingWriter(channel)
+
+            writer.writeMessages(requests, numRequests) should be (numRequests)
+            requests foreach { _.position() should be (0) }
+
+            val replies = Array.fill(numRequests * 2)(
+                BytesUtil.instance.allocateDirect(8 * 1024))
+            var seqs = List.empty[Int]
+            while (seqs.size < numRequests) {
+                replies foreach { _.clear() }
+                val n = channel.readMessages(replies, 0, replies.length)
+                n should be > 0
+                (0 until n) foreach { i =>
+                    val reply = replies(i)
+                    reply.position() should be (0)
+                    reply.limit() should be (reply.getInt(NetlinkMessage.NLMSG_LEN_OFFSET))
+                    reply.getShort(NetlinkMessage.NLMSG_TYPE_OFFSET) should be (
+                        CtrlFamily.Context.GetFamily.commandFamily)
+                    seqs ::= reply.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)
+                }
+            }
+            seqs.sorted should be (1 to numRequests)
+        }
+
+        scenario ("A batch of a single datagram is written and read") {
+            val request = familyRequest(1)
+            channel.writeMessages(Array(request), 0, 1) should be (1)
+
+            val reply = BytesUtil.instance.allocateDirect(8 * 1024)
+            channel.readMessages(Array(reply), 0, 1) should be (1)
+            reply.getShort(NetlinkMessage.NLMSG_TYPE_OFFSET) should be (
+                CtrlFamily.Context.GetFamily.commandFamily)
+            reply.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET) should be (1)
+
+            val requests = (2 to 3).map(familyRequest).toArray
+            channel.writeMessages(requests, 0, requests.length) should be (2)
+        }
+
+        scenario ("Heap buffers are written one by one") {
+            val requests = (1 to numRequests) map { seq =>
+                val direct = familyRequest(seq)
+                val heap = ByteBuffer.allocate(direct.remaining())
+                heap.put(direct).flip()
+                heap
+            }
+
+            channel.writeMessages(requests.toArray, 1, numRequests - 1) should be (
+                numRequests - 1)
+        }
+
+        scenario ("A datagram that fails doesn't drop the rest of the batch") {
+            val failing = new MockNetlinkChannel(Netlink.selectorProvider,
+                                                 NetlinkProtocol.NETLINK_GENERIC) {
+                override def write(src: ByteBuffer): Int =
+                    if (src.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET) % 2 == 0)
+                        throw new IOException("Invalid argument")
+                    else
+                        super.write(src)
+            }
+            val requests = (1 to numRequests).map(familyRequest).toArray
+            val writer = new NetlinkBlockingWriter(failing)
+
+            an [IOException] should be thrownBy {
+                writer.writeMessages(requests, numRequests)
+            }
+            failing.written.toList.map(_.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)) should be (
+                (1 to numRequests).filter(_ % 2 != 0))
+        }
+    }
+}
@@ -15,10 +15,13 @@
  */
 package org.midonet.odp;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.RandomAccess;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -29,7 +32,8 @@ import org.midonet.odp.flows.*;
 import org.midonet.packets.*;
 
 /**
- * An ovs datapath flow match object. Contains a list of FlowKey instances.
+ * An ovs datapath flow match object. Contains a list of FlowKey instances
+ * and a flat, primitive copy of the fields they match on.
  *
  * @see FlowKey
  * @see org.midonet.odp.flows.FlowKeys
@@ -37,249 +41,39 @@ import org.midonet.packets.*;
 public class FlowMatch {
 
     public enum Field {
-        InputPortNumber {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.inputPortNumber;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.inputPortNumber;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.inputPortNumber == wcmatch2.inputPortNumber;
-            }
-        },
-        TunnelKey {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.tunnelKey;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Longs.hashCode(wcmatch.tunnelKey);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.tunnelKey == wcmatch2.tunnelKey;
-            }
-        },
-        TunnelSrc {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.tunnelSrc;
-            }
-            public int hashCode(FlowMatch  wcmatch) {
-                return wcmatch.tunnelSrc;
-            }
-            public boolean equals(FlowMatch  wcmatch1,
-                                  FlowMatch  wcmatch2) {
-                return wcmatch1.tunnelSrc == wcmatch2.tunnelSrc;
-            }
-        },
-        TunnelDst {
-            public String toString(FlowMatch  wcmatch) {
-                return toString() + "=" + wcmatch.tunnelDst;
-            }
-            public int hashCode(FlowMatch  wcmatch) {
-                return wcmatch.tunnelDst;
-            }
-            public boolean equals(FlowMatch  wcmatch1,
-                                  FlowMatch  wcmatch2) {
-                return wcmatch1.tunnelDst == wcmatch2.tunnelDst;
-            }
-        },
-        EthSrc {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.ethSrc;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Objects.hash(wcmatch.ethSrc);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Objects.equals(wcmatch1.ethSrc, wcmatch2.ethSrc);
-            }
-        },
-        EthDst {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.ethDst;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Objects.hashCode(wcmatch.ethDst);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Objects.equals(wcmatch1.ethDst, wcmatch2.ethDst);
-            }
-        },
-        EtherType {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.etherType;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.etherType;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.etherType == wcmatch2.etherType;
-            }
-        },
-        VlanId { // MM-custom field
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.vlanIds;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Objects.hashCode(wcmatch.vlanIds);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Objects.equals(wcmatch1.vlanIds, wcmatch2.vlanIds);
-            }
-        },
-        NetworkSrc {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.networkSrc;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Objects.hashCode(wcmatch.networkSrc);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Objects.equals(wcmatch1.networkSrc, wcmatch2.networkSrc);
-            }
-        },
-        NetworkDst {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.networkDst;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Objects.hashCode(wcmatch.networkDst);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Objects.equals(wcmatch1.networkDst, wcmatch2.networkDst);
-            }
-        },
-        NetworkProto {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + getNetworkProtocolAsString(wcmatch.networkProto);
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.networkProto;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.networkProto == wcmatch2.networkProto;
-            }
+        InputPortNumber,
+        TunnelKey,
+        TunnelSrc,
+        TunnelDst,
+        EthSrc,
+        EthDst,
+        EtherType,
+        VlanId, // MM-custom field
+        NetworkSrc,
+        NetworkDst,
+        NetworkProto,
+        NetworkTTL,
+        NetworkTOS,
+        FragmentType,
+        SrcPort,
+        DstPort,
+        IcmpId, // MM-custom field
+        IcmpData, // MM-custom field
+        COUNT;
+
+        public String toString(FlowMatch wcmatch) {
+            StringBuilder str = new StringBuilder(toString()).append('=');
+            wcmatch.appendValue(str, this);
+            return str.toString();
+        }
 
-            private String getNetworkProtocolAsString(byte networkProto) {
-                switch (networkProto) {
-                    case 1: return "icmp";
-                    case 2: return "igmp";
-                    case 4: return "ipv4-encap";
-                    case 6: return "tcp";
-                    case 8: return "egp";
-                    case 9: return "igp";
-                    case 17: return "udp";
-                    case 33: return "dccp";
-                    case 41: return "ipv6-encap";
-                    case 43: return "ipv6-route";
-                    case 44: return "ipv6-frag";
-                    case 47: return "gre";
-                    case 50: return "esp";
-                    case 51: return "ah";
-                    case 58: return "ipv6-icmp";
-                    case 59: return "ipv6-nonxt";
-                    case 60: return "ipv6-opts";
-                    case 94: return "ipip";
-                    case 97: return "etherip";
-                    case 112: return "vrrp";
-                    case 115: return "l2tp";
-                    case (byte)0x84: return "sctp";
-                    default: return Byte.toString(networkProto);
-                }
-            }
-        },
-        NetworkTTL {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.networkTTL;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.networkTTL;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.networkTTL == wcmatch2.networkTTL;
-            }
-        },
-        NetworkTOS {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.networkTOS;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.networkTOS;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.networkTOS == wcmatch2.networkTOS;
-            }
-        },
-        FragmentType {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.ipFragmentType;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.ipFragmentType.hashCode();
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.ipFragmentType.equals(wcmatch2.ipFragmentType);
-            }
-        },
-        SrcPort {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.srcPort;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.srcPort;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.srcPort == wcmatch2.srcPort;
-            }
-        },
-        DstPort {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.dstPort;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.dstPort;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.dstPort == wcmatch2.dstPort;
-            }
-        },
-        IcmpId { // MM-custom field
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.icmpId;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return wcmatch.icmpId;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return wcmatch1.icmpId == wcmatch2.icmpId;
-            }
-        },
-        IcmpData { // MM-custom field
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + Arrays.toString(wcmatch.icmpData);
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return Arrays.hashCode(wcmatch.icmpData);
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return Arrays.equals(wcmatch1.icmpData, wcmatch2.icmpData);
-            }
-        },
-        COUNT {
-            public String toString(FlowMatch wcmatch) {
-                return toString() + "=" + wcmatch.inputPortNumber;
-            }
-            public int hashCode(FlowMatch wcmatch) {
-                return 0;
-            }
-            public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
-                return false;
-            }
-        };
+        public int hashCode(FlowMatch wcmatch) {
+            return wcmatch.fieldHashCode(this);
+        }
 
-        public abstract String toString(FlowMatch wmatch);
-        public abstract int hashCode(FlowMatch wmatch);
-        public abstract boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2);
+        public boolean equals(FlowMatch wcmatch1, FlowMatch wcmatch2) {
+            return wcmatch1.fieldEquals(wcmatch2, this);
+        }
     }
 
     private static final Field[] fields = Field.values();
@@ -298,15 +92,30 @@ public class FlowMatch {
     public static final long icmpFieldsMask = (1L << Field.IcmpData.ordinal()) |
                                               (1L << Field.IcmpId.ordinal());
 
+    private static final long connectionFieldsMask =
+        (1L << Field.NetworkSrc.ordinal()) | (1L << Field.NetworkDst.ordinal()) |
+        (1L << Field.NetworkProto.ordinal()) | (1L << Field.SrcPort.ordinal()) |
+        (1L << Field.DstPort.ordinal());
+
+    /* The match is laid out as primitive fields so that hashing and comparing
+     * matches, which the flow tables do constantly, doesn't chase pointers.
+     * MACs are kept as longs and IP addresses as two longs, an IPv4 address
+     * taking the lower one. The MAC and IPAddr objects handed out by the
+     * getters are materialized on demand and cached until the field changes.
+     */
     private int inputPortNumber = 0;
     private long tunnelKey = 0L;
     private int tunnelSrc = 0;
     private int tunnelDst = 0;
-    private MAC ethSrc;
-    private MAC ethDst;
+    private long ethSrc = 0L;
+    private long ethDst = 0L;
     private short etherType = (short) FlowKeyEtherType.Type.ETH_P_NONE.value;
-    private IPAddr networkSrc;
-    private IPAddr networkDst;
+    private boolean networkSrcIsV6 = false;
+    private long networkSrcUpper = 0L;
+    private long networkSrcLower = 0L;
+    private boolean networkDstIsV6 = false;
+    private long networkDstUpper = 0L;
+    private long networkDstLower = 0L;
     private byte networkProto = 0;
     private byte networkTTL = 0;
     private byte networkTOS = 0;
@@ -316,8 +125,22 @@ public class FlowMatch {
 
     // Extended fields only supported inside MM
     private short icmpId = 0;
-    private byte[] icmpData;
-    private List<Short> vlanIds = new ArrayList<>();
+    private byte[] icmpData = new byte[0];
+    private int icmpDataLength = -1; // -1 stands for no icmp data
+    private short[] vlanIds = new short[2];
+    private int vlanIdCount = 0;
+
+    /* The getters of the icmp data and the VLAN ids return views of the
+     * arrays, which are then copied before being changed. */
+    private boolean icmpDataShared = false;
+    private boolean vlanIdsShared = false;
+    private List<Short> vlanIdList = null;
+
+    // Lazily created objects for the getters
+    private MAC ethSrcAddr;
+    private MAC ethDstAddr;
+    private IPAddr networkSrcAddr;
+    private IPAddr networkDstAddr;
 
     private long trackSeenFields = 1L;
 
@@ -458,10 +281,18 @@ public class FlowMatch {
         tunnelSrc = that.tunnelSrc;
         tunnelDst = that.tunnelDst;
         ethSrc = that.ethSrc;
+        ethSrcAddr = that.ethSrcAddr;
         ethDst = that.ethDst;
+        ethDstAddr = that.ethDstAddr;
         etherType = that.etherType;
-        networkSrc = that.networkSrc;
-        networkDst = that.networkDst;
+        networkSrcIsV6 = that.networkSrcIsV6;
+        networkSrcUpper = that.networkSrcUpper;
+        networkSrcLower = that.networkSrcLower;
+        networkSrcAddr = that.networkSrcAddr;
+        networkDstIsV6 = that.networkDstIsV6;
+        networkDstUpper = that.networkDstUpper;
+        networkDstLower = that.networkDstLower;
+        networkDstAddr = that.networkDstAddr;
         networkProto = that.networkProto;
         networkTTL = that.networkTTL;
         networkTOS = that.networkTOS;
@@ -469,8 +300,12 @@ public class FlowMatch {
         srcPort = that.srcPort;
         dstPort = that.dstPort;
         icmpId = that.icmpId;
-        vlanIds = new ArrayList<>(that.vlanIds);
-        setIcmpData(that.icmpData);
+        copyIcmpData(that.icmpData, that.icmpDataLength);
+        unshareVlanIds();
+        vlanIdCount = 0;
+        for (int i = 0; i < that.vlanIdCount; ++i) {
+            pushVlanId(that.vlanIds[i]);
+        }
         usedFields = that.usedFields;
         trackSeenFields = that.trackSeenFields;
         seenFields = that.seenFields;
@@ -483,12 +318,13 @@ public class FlowMatch {
      * used fields.
      */
     public void clear() {
-        this.icmpData = null;
-        this.networkSrc = null;
-        this.networkDst = null;
-        this.ethSrc = null;
-        this.ethDst = null;
-        this.vlanIds = null;
+        this.icmpDataLength = -1;
+        this.networkSrcAddr = null;
+        this.networkDstAddr = null;
+        this.ethSrcAddr = null;
+        this.ethDstAddr = null;
+        unshareVlanIds();
+        this.vlanIdCount = 0;
         this.etherType = (short) FlowKeyEtherType.Type.ETH_P_NONE.value;
         this.usedFields = 0;
         this.trackSeenFields = 1;
@@ -556,15 +392,23 @@ public class FlowMatch {
 
     @Nonnull
     public FlowMatch setEthSrc(@Nonnull MAC addr) {
+        setEthSrc(addr.asLong());
+        this.ethSrcAddr = addr;
+        return this;
+    }
+
+    private void setEthSrc(long addr) {
         fieldUsed(Field.EthSrc);
         this.ethSrc = addr;
-        return this;
+        this.ethSrcAddr = null;
     }
 
     @Nullable
     public MAC getEthSrc() {
         fieldSeen(Field.EthSrc);
-        return ethSrc;
+        if (ethSrcAddr == null && isUsed(Field.EthSrc))
+            ethSrcAddr = new MAC(ethSrc);
+        return ethSrcAddr;
     }
 
     @Nonnull
@@ -574,15 +418,23 @@ public class FlowMatch {
 
     @Nonnull
     public FlowMatch setEthDst(@Nonnull MAC addr) {
+        setEthDst(addr.asLong());
+        this.ethDstAddr = addr;
+        return this;
+    }
+
+    private void setEthDst(long addr) {
         fieldUsed(Field.EthDst);
         this.ethDst = addr;
-        return this;
+        this.ethDstAddr = null;
     }
 
     @Nullable
     public MAC getEthDst() {
         fieldSeen(Field.EthDst);
-        return ethDst;
+        if (ethDstAddr == null && isUsed(Field.EthDst))
+            ethDstAddr = new MAC(ethDst);
+        return ethDstAddr;
     }
 
     @Nonnull
@@ -599,15 +451,31 @@ public class FlowMatch {
 
     @Nonnull
     public FlowMatch setNetworkSrc(@Nonnull IPAddr addr) {
-        fieldUsed(Field.NetworkSrc);
-        this.networkSrc = addr;
+        if (addr instanceof IPv4Addr) {
+            setNetworkSrc(false, 0L, ((IPv4Addr) addr).toInt());
+        } else {
+            IPv6Addr ipv6 = (IPv6Addr) addr;
+            setNetworkSrc(true, ipv6.upperWord(), ipv6.lowerWord());
+        }
+        this.networkSrcAddr = addr;
         return this;
     }
 
+    private void setNetworkSrc(boolean isV6, long upper, long lower) {
+        fieldUsed(Field.NetworkSrc);
+        this.networkSrcIsV6 = isV6;
+        this.networkSrcUpper = upper;
+        this.networkSrcLower = lower;
+        this.networkSrcAddr = null;
+    }
+
     @Nullable
     public IPAddr getNetworkSrcIP() {
         fieldSeen(Field.NetworkSrc);
-        return networkSrc;
+        if (networkSrcAddr == null && isUsed(Field.NetworkSrc))
+            networkSrcAddr = toIPAddr(networkSrcIsV6, networkSrcUpper,
+                                      networkSrcLower);
+        return networkSrcAddr;
     }
 
     /**
@@ -616,15 +484,35 @@ public class FlowMatch {
      */
     @Nonnull
     public FlowMatch setNetworkDst(@Nonnull IPAddr addr) {
-        fieldUsed(Field.NetworkDst);
-        this.networkDst = addr;
+        if (addr instanceof IPv4Addr) {
+            setNetworkDst(false, 0L, ((IPv4Addr) addr).toInt());
+        } else {
+            IPv6Addr ipv6 = (IPv6Addr) addr;
+            setNetworkDst(true, ipv6.upperWord(), ipv6.lowerWord());
+        }
+        this.networkDstAddr = addr;
         return this;
     }
 
+    private void setNetworkDst(boolean isV6, long upper, long lower) {
+        fieldUsed(Field.NetworkDst);
+        this.networkDstIsV6 = isV6;
+        this.networkDstUpper = upper;
+        this.networkDstLower = lower;
+        this.networkDstAddr = null;
+    }
+
     @Nullable
     public IPAddr getNetworkDstIP() {
         fieldSeen(Field.NetworkDst);
-        return networkDst;
+        if (networkDstAddr == null && isUsed(Field.NetworkDst))
+            networkDstAddr = toIPAddr(networkDstIsV6, networkDstUpper,
+                                      networkDstLower);
+        return networkDstAddr;
+    }
+
+    private static IPAddr toIPAddr(boolean isV6, long upper, long lower) {
+        return isV6 ? new IPv6Addr(upper, lower) : new IPv4Addr((int) lower);
     }
 
     @Nonnull
@@ -716,17 +604,41 @@ public class FlowMatch {
     public FlowMatch setIcmpData(byte[] icmpData) {
         fieldUsed(Field.IcmpData);
         if (icmpData != null)
-            this.icmpData = Arrays.copyOf(icmpData, icmpData.length);
+            copyIcmpData(icmpData, icmpData.length);
         else
-            icmpData = null;
+            icmpDataLength = -1;
         return this;
     }
 
+    private void copyIcmpData(byte[] data, int length) {
+        if (length > icmpData.length || (icmpDataShared && length >= 0)) {
+            icmpData = new byte[length];
+            icmpDataShared = false;
+        }
+        if (length > 0)
+            System.arraycopy(data, 0, icmpData, 0, length);
+        icmpDataLength = length;
+    }
+
     @Nullable
     public byte[] getIcmpData() {
         fieldSeen(Field.IcmpData);
-        return (icmpData == null) ? null
-                                  : Arrays.copyOf(icmpData, icmpData.length);
+        return (icmpDataLength < 0) ? null
+                                    : Arrays.copyOf(icmpData, icmpDataLength);
+    }
+
+    /**
+     * @return a read-only view of the icmp data in this match, which later
+     *         changes to the match leave alone. Unlike getIcmpData(), it
+     *         doesn't copy the data.
+     */
+    @Nullable
+    public ByteBuffer getIcmpDataView() {
+        fieldSeen(Field.IcmpData);
+        if (icmpDataLength < 0)
+            return null;
+        icmpDataShared = true;
+        return ByteBuffer.wrap(icmpData, 0, icmpDataLength).asReadOnlyBuffer();
     }
 
     @Nonnull
@@ -734,7 +646,8 @@ public class FlowMatch {
         if (!isUsed(Field.VlanId)) {
             fieldUsed(Field.VlanId);
         }
-        this.vlanIds.add(vlanId);
+        pushVlanId(vlanId);
+        invalidateHashCode();
         return this;
     }
 
@@ -743,24 +656,83 @@ public class FlowMatch {
         if (!isUsed(Field.VlanId)) {
             fieldUsed(Field.VlanId);
         }
-        this.vlanIds.addAll(vlanIds);
+        for (int i = 0; i < vlanIds.size(); ++i) {
+            pushVlanId(vlanIds.get(i));
+        }
+        invalidateHashCode();
         return this;
     }
 
+    private void pushVlanId(short vlanId) {
+        unshareVlanIds();
+        if (vlanIdCount == vlanIds.length)
+            vlanIds = Arrays.copyOf(vlanIds, vlanIds.length * 2);
+        vlanIds[vlanIdCount++] = vlanId;
+    }
+
     @Nonnull
     public FlowMatch removeVlanId(short vlanId) {
-        int index = vlanIds.indexOf(vlanId);
-        if (index != -1)
-            vlanIds.remove(index);
-        if (vlanIds.isEmpty())
+        for (int i = 0; i < vlanIdCount; ++i) {
+            if (vlanIds[i] == vlanId) {
+                unshareVlanIds();
+                System.arraycopy(vlanIds, i + 1, vlanIds, i,
+                                 vlanIdCount - i - 1);
+                vlanIdCount--;
+                invalidateHashCode();
+                break;
+            }
+        }
+        if (vlanIdCount == 0)
             fieldUnused(Field.VlanId);
         return this;
     }
 
+    private void unshareVlanIds() {
+        vlanIdList = null;
+        if (vlanIdsShared) {
+            vlanIds = vlanIds.clone();
+            vlanIdsShared = false;
+        }
+    }
+
+    /**
+     * @return a read-only view of the VLAN ids in this match, which later
+     *         changes to the match leave alone.
+     */
     @Nullable
     public List<Short> getVlanIds() {
         fieldSeen(Field.VlanId);
-        return vlanIds;
+        if (vlanIdCount == 0)
+            return Collections.emptyList();
+        if (vlanIdList == null) {
+            vlanIdList = new VlanIdList(vlanIds, vlanIdCount);
+            vlanIdsShared = true;
+        }
+        return vlanIdList;
+    }
+
+    private static final class VlanIdList extends AbstractList<Short>
+                                          implements RandomAccess {
+        private final short[] ids;
+        private final int count;
+
+        VlanIdList(short[] ids, int count) {
+            this.ids = ids;
+            this.count = count;
+        }
+
+        @Override
+        public Short get(int index) {
+            if (index >= count)
+                throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + count);
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
     }
 
     public long getSequence() {
@@ -772,14 +744,81 @@ public class FlowMatch {
         return this;
     }
 
+    private static boolean isSet(long fields, Field field) {
+        return (fields & (1L << field.ordinal())) != 0;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || !(o instanceof FlowMatch)) return false;
 
         FlowMatch that = (FlowMatch) o;
-        for (Field f : fields) {
-            if (isUsed(f) && (!that.isUsed(f) || !f.equals(this, that)))
+        long used = usedFields;
+        if ((that.usedFields & used) != used)
+            return false;
+
+        if (isSet(used, Field.InputPortNumber) &&
+                inputPortNumber != that.inputPortNumber)
+            return false;
+        if (isSet(used, Field.TunnelKey) && tunnelKey != that.tunnelKey)
+            return false;
+        if (isSet(used, Field.TunnelSrc) && tunnelSrc != that.tunnelSrc)
+            return false;
+        if (isSet(used, Field.TunnelDst) && tunnelDst != that.tunnelDst)
+            return false;
+        if (isSet(used, Field.EthSrc) && ethSrc != that.ethSrc)
+            return false;
+        if (isSet(used, Field.EthDst) && ethDst != that.ethDst)
+            return false;
+        if (isSet(used, Field.EtherType) && etherType != that.etherType)
+            return false;
+        if (isSet(used, Field.VlanId) && !vlanIdsEqual(that))
+            return false;
+        if (isSet(used, Field.NetworkSrc) &&
+                (networkSrcLower != that.networkSrcLower ||
+                 networkSrcUpper != that.networkSrcUpper ||
+                 networkSrcIsV6 != that.networkSrcIsV6))
+            return false;
+        if (isSet(used, Field.NetworkDst) &&
+                (networkDstLower != that.networkDstLower ||
+                 networkDstUpper != that.networkDstUpper ||
+                 networkDstIsV6 != that.networkDstIsV6))
+            return false;
+        if (isSet(used, Field.NetworkProto) &&
+                networkProto != that.networkProto)
+            return false;
+        if (isSet(used, Field.NetworkTTL) && networkTTL != that.networkTTL)
+            return false;
+        if (isSet(used, Field.NetworkTOS) && networkTOS != that.networkTOS)
+            return false;
+        if (isSet(used, Field.FragmentType) &&
+                ipFragmentType != that.ipFragmentType)
+            return false;
+        if (isSet(used, Field.SrcPort) && srcPort != that.srcPort)
+            return false;
+        if (isSet(used, Field.DstPort) && dstPort != that.dstPort)
+            return false;
+        if (isSet(used, Field.IcmpId) && icmpId != that.icmpId)
+            return false;
+        return !isSet(used, Field.IcmpData) || icmpDataEqual(that);
+    }
+
+    private boolean vlanIdsEqual(FlowMatch that) {
+        if (vlanIdCount != that.vlanIdCount)
+            return false;
+        for (int i = 0; i < vlanIdCount; ++i) {
+            if (vlanIds[i] != that.vlanIds[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean icmpDataEqual(FlowMatch that) {
+        if (icmpDataLength != that.icmpDataLength)
+            return false;
+        for (int i = 0; i < icmpDataLength; ++i) {
+            if (icmpData[i] != that.icmpData[i])
                 return false;
         }
         return true;
@@ -788,30 +827,148 @@ public class FlowMatch {
     @Override
     public int hashCode() {
         if (hashCode == 0) {
-            int result = Longs.hashCode(usedFields);
-            for (Field f : fields) {
-                if (isUsed(f))
-                    result = 31 * result + f.hashCode(this);
-            }
+            long used = usedFields;
+            int result = Longs.hashCode(used);
+            if (isSet(used, Field.InputPortNumber))
+                result = 31 * result + inputPortNumber;
+            if (isSet(used, Field.TunnelKey))
+                result = 31 * result + Longs.hashCode(tunnelKey);
+            if (isSet(used, Field.TunnelSrc))
+                result = 31 * result + tunnelSrc;
+            if (isSet(used, Field.TunnelDst))
+                result = 31 * result + tunnelDst;
+            if (isSet(used, Field.EthSrc))
+                result = 31 * result + Longs.hashCode(ethSrc);
+            if (isSet(used, Field.EthDst))
+                result = 31 * result + Longs.hashCode(ethDst);
+            if (isSet(used, Field.EtherType))
+                result = 31 * result + etherType;
+            if (isSet(used, Field.VlanId))
+                result = 31 * result + vlanIdsHash();
+            if (isSet(used, Field.NetworkSrc))
+                result = 31 * result + networkSrcHash();
+            if (isSet(used, Field.NetworkDst))
+                result = 31 * result + networkDstHash();
+            if (isSet(used, Field.NetworkProto))
+                result = 31 * result + networkProto;
+            if (isSet(used, Field.NetworkTTL))
+                result = 31 * result + networkTTL;
+            if (isSet(used, Field.NetworkTOS))
+                result = 31 * result + networkTOS;
+            if (isSet(used, Field.FragmentType))
+                result = 31 * result + ipFragmentType.ordinal();
+            if (isSet(used, Field.SrcPort))
+                result = 31 * result + srcPort;
+            if (isSet(used, Field.DstPort))
+                result = 31 * result + dstPort;
+            if (isSet(used, Field.IcmpId))
+                result = 31 * result + icmpId;
+            if (isSet(used, Field.IcmpData))
+                result = 31 * result + icmpDataHash();
             hashCode = result;
         }
         return hashCode;
     }
 
+    private boolean fieldEquals(FlowMatch that, Field field) {
+        switch (field) {
+            case InputPortNumber:
+                return inputPortNumber == that.inputPortNumber;
+            case TunnelKey: return tunnelKey == that.tunnelKey;
+            case TunnelSrc: return tunnelSrc == that.tunnelSrc;
+            case TunnelDst: return tunnelDst == that.tunnelDst;
+            case EthSrc: return ethSrc == that.ethSrc;
+            case EthDst: return ethDst == that.ethDst;
+            case EtherType: return etherType == that.etherType;
+            case VlanId: return vlanIdsEqual(that);
+            case NetworkSrc:
+                return networkSrcLower == that.networkSrcLower &&
+                       networkSrcUpper == that.networkSrcUpper &&
+                       networkSrcIsV6 == that.networkSrcIsV6;
+            case NetworkDst:
+                return networkDstLower == that.networkDstLower &&
+                       networkDstUpper == that.networkDstUpper &&
+                       networkDstIsV6 == that.networkDstIsV6;
+            case NetworkProto: return networkProto == that.networkProto;
+            case NetworkTTL: return networkTTL == that.networkTTL;
+            case NetworkTOS: return networkTOS == that.networkTOS;
+            case FragmentType: return ipFragmentType == that.ipFragmentType;
+            case SrcPort: return srcPort == that.srcPort;
+            case DstPort: return dstPort == that.dstPort;
+            case IcmpId: return icmpId == that.icmpId;
+            case IcmpData: return icmpDataEqual(that);
+            default: return false;
+        }
+    }
+
+    private int fieldHashCode(Field field) {
+        switch (field) {
+            case InputPortNumber: return inputPortNumber;
+            case TunnelKey: return Longs.hashCode(tunnelKey);
+            case TunnelSrc: return tunnelSrc;
+            case TunnelDst: return tunnelDst;
+            case EthSrc: return Longs.hashCode(ethSrc);
+            case EthDst: return Longs.hashCode(ethDst);
+            case EtherType: return etherType;
+            case VlanId: return vlanIdsHash();
+            case NetworkSrc: return networkSrcHash();
+            case NetworkDst: return networkDstHash();
+            case NetworkProto: return networkProto;
+            case NetworkTTL: return networkTTL;
+            case NetworkTOS: return networkTOS;
+            case FragmentType: return ipFragmentType.ordinal();
+            case SrcPort: return srcPort;
+            case DstPort: return dstPort;
+            case IcmpId: return icmpId;
+            case IcmpData: return icmpDataHash();
+            default: return 0;
+        }
+    }
+
+    private int networkSrcHash() {
+        return 31 * Longs.hashCode(networkSrcUpper) +
+               Longs.hashCode(networkSrcLower);
+    }
+
+    private int networkDstHash() {
+        return 31 * Longs.hashCode(networkDstUpper) +
+               Longs.hashCode(networkDstLower);
+    }
+
+    private int vlanIdsHash() {
+        int result = 1;
+        for (int i = 0; i < vlanIdCount; ++i) {
+            result = 31 * result + vlanIds[i];
+        }
+        return result;
+    }
+
+    private int icmpDataHash() {
+        if (icmpDataLength < 0)
+            return 0;
+        int result = 1;
+        for (int i = 0; i < icmpDataLength; ++i) {
+            result = 31 * result + icmpData[i];
+        }
+        return result;
+    }
+
     /** Returns a hash code which only uses for its calculation fields that are
      *  part of a stateful L4 connection. This allows for  a consistent result
-     *  across multiple matches that belong to the same connection.
+     *  across multiple matches that belong to the same connection. Only
+     *  fields the datapath knows about are used, so that the hash of a flow
+     *  dumped from the datapath is that of the match it was created for,
+     *  and so that relying on it doesn't make a flow userspace only.
      */
     public int connectionHash() {
         if (connectionHash == 0) {
             int connHash = 0;
             if (highestLayer(usedFields) >= 4) {
-                connHash = 31 * connHash + Field.NetworkSrc.hashCode(this);
-                connHash = 31 * connHash + Field.NetworkDst.hashCode(this);
-                connHash = 31 * connHash + Field.NetworkProto.hashCode(this);
-                connHash = 31 * connHash + Field.SrcPort.hashCode(this);
-                connHash = 31 * connHash + Field.DstPort.hashCode(this);
-                connHash = 31 * connHash + Field.IcmpId.hashCode(this);
+                connHash = 31 * connHash + networkSrcHash();
+                connHash = 31 * connHash + networkDstHash();
+                connHash = 31 * connHash + networkProto;
+                connHash = 31 * connHash + srcPort;
+                connHash = 31 * connHash + dstPort;
             } else {
                 connHash = hashCode();
             }
@@ -820,6 +977,18 @@ public class FlowMatch {
         return connectionHash;
     }
 
+    /** Returns the connection hash, marking the fields it is computed from
+     *  as seen, so that a decision taken on it applies to a single
+     *  connection.
+     */
+    public int seenConnectionHash() {
+        if (trackSeenFields != 0) {
+            seenFields |= (highestLayer(usedFields) >= 4)
+                          ? connectionFieldsMask & usedFields : usedFields;
+        }
+        return connectionHash();
+    }
+
     private void invalidateHashCode() {
         hashCode = 0;
         connectionHash = 0;
@@ -829,8 +998,9 @@ public class FlowMatch {
     public String toString() {
         StringBuilder str = new StringBuilder("FlowMatch[");
         for (Field f : fields) {
-            if (isUsed(f)) {
-                str.append(f.toString(this));
+            if (f != Field.COUNT && isUsed(f)) {
+                str.append(f.toString()).append('=');
+                appendValue(str, f);
                 str.append(", ");
             }
         }
@@ -841,6 +1011,70 @@ public class FlowMatch {
         return str.toString();
     }
 
+    private void appendValue(StringBuilder str, Field field) {
+        switch (field) {
+            case InputPortNumber: str.append(inputPortNumber); break;
+            case TunnelKey: str.append(tunnelKey); break;
+            case TunnelSrc: str.append(tunnelSrc); break;
+            case TunnelDst: str.append(tunnelDst); break;
+            case EthSrc: str.append(MAC.longToString(ethSrc)); break;
+            case EthDst: str.append(MAC.longToString(ethDst)); break;
+            case EtherType: str.append(etherType); break;
+            case VlanId:
+                str.append(Arrays.toString(Arrays.copyOf(vlanIds, vlanIdCount)));
+                break;
+            case NetworkSrc:
+                str.append(toIPAddr(networkSrcIsV6, networkSrcUpper,
+                                    networkSrcLower));
+                break;
+            case NetworkDst:
+                str.append(toIPAddr(networkDstIsV6, networkDstUpper,
+                                    networkDstLower));
+                break;
+            case NetworkProto:
+                str.append(getNetworkProtocolAsString(networkProto));
+                break;
+            case NetworkTTL: str.append(networkTTL); break;
+            case NetworkTOS: str.append(networkTOS); break;
+            case FragmentType: str.append(ipFragmentType); break;
+            case SrcPort: str.append(srcPort); break;
+            case DstPort: str.append(dstPort); break;
+            case IcmpId: str.append(icmpId); break;
+            case IcmpData:
+                str.append(icmpDataLength < 0 ? "null" : Arrays.toString(
+                    Arrays.copyOf(icmpData, icmpDataLength)));
+                break;
+        }
+    }
+
+    private static String getNetworkProtocolAsString(byte networkProto) {
+        switch (networkProto) {
+            case 1: return "icmp";
+            case 2: return "igmp";
+            case 4: return "ipv4-encap";
+            case 6: return "tcp";
+            case 8: return "egp";
+            case 9: return "igp";
+            case 17: return "udp";
+            case 33: return "dccp";
+            case 41: return "ipv6-encap";
+            case 43: return "ipv6-route";
+            case 44: return "ipv6-frag";
+            case 47: return "gre";
+            case 50: return "esp";
+            case 51: return "ah";
+            case 58: return "ipv6-icmp";
+            case 59: return "ipv6-nonxt";
+            case 60: return "ipv6-opts";
+            case 94: return "ipip";
+            case 97: return "etherip";
+            case 112: return "vrrp";
+            case 115: return "l2tp";
+            case (byte)0x84: return "sctp";
+            default: return Byte.toString(networkProto);
+        }
+    }
+
     /**
      * Implement cloneable interface
      */
@@ -873,8 +1107,8 @@ public class FlowMatch {
             case OpenVSwitch.FlowKey.Attr.Ethernet:
                 FlowKeyEthernet ethernet = as(flowKey,
                                               FlowKeyEthernet.class);
-                setEthSrc(MAC.fromAddress(ethernet.eth_src));
-                setEthDst(MAC.fromAddress(ethernet.eth_dst));
+                setEthSrc(MAC.bytesToLong(ethernet.eth_src));
+                setEthDst(MAC.bytesToLong(ethernet.eth_dst));
                 break;
 
             case OpenVSwitch.FlowKey.Attr.VLan:
@@ -890,10 +1124,8 @@ public class FlowMatch {
 
             case OpenVSwitch.FlowKey.Attr.IPv4:
                 FlowKeyIPv4 ipv4 = as(flowKey, FlowKeyIPv4.class);
-                setNetworkSrc(
-                    IPv4Addr.fromInt(ipv4.ipv4_src));
-                setNetworkDst(
-                    IPv4Addr.fromInt(ipv4.ipv4_dst));
+                setNetworkSrc(false, 0L, ipv4.ipv4_src);
+                setNetworkDst(false, 0L, ipv4.ipv4_dst);
                 setNetworkProto(ipv4.ipv4_proto);
                 setIpFragmentType(IPFragmentType.fromByte(ipv4.ipv4_frag));
                 setNetworkTTL(ipv4.ipv4_ttl);
@@ -904,12 +1136,12 @@ public class FlowMatch {
                 FlowKeyIPv6 ipv6 = as(flowKey, FlowKeyIPv6.class);
                 int[] intSrc = ipv6.ipv6_src;
                 int[] intDst = ipv6.ipv6_dst;
-                setNetworkSrc(new IPv6Addr(
+                setNetworkSrc(true,
                     (((long) intSrc[0]) << 32) | (intSrc[1] & 0xFFFFFFFFL),
-                    (((long) intSrc[2]) << 32) | (intSrc[3] & 0xFFFFFFFFL)));
-                setNetworkDst(new IPv6Addr(
+                    (((long) intSrc[2]) << 32) | (intSrc[3] & 0xFFFFFFFFL));
+                setNetworkDst(true,
                     (((long) intDst[0]) << 32) | (intDst[1] & 0xFFFFFFFFL),
-                    (((long) intDst[2]) << 32) | (intDst[3] & 0xFFFFFFFFL)));
+                    (((long) intDst[2]) << 32) | (intDst[3] & 0xFFFFFFFFL));
                 setNetworkProto(ipv6.ipv6_proto);
                 setIpFragmentType(IPFragmentType.fromByte(ipv6.ipv6_frag));
                 setNetworkTTL(ipv6.ipv6_hlimit);
@@ -948,8 +1180,8 @@ public class FlowMatch {
 
             case OpenVSwitch.FlowKey.Attr.ARP:
                 FlowKeyARP arp = as(flowKey, FlowKeyARP.class);
-                setNetworkSrc(IPv4Addr.fromInt(arp.arp_sip));
-                setNetworkDst(IPv4Addr.fromInt(arp.arp_tip));
+                setNetworkSrc(false, 0L, arp.arp_sip);
+                setNetworkDst(false, 0L, arp.arp_tip);
                 setEtherType(ARP.ETHERTYPE);
                 setNetworkProto((byte) arp.arp_op);
                 break;
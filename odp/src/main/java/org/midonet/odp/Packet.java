@@ -17,6 +17,7 @@ package org.midonet.odp;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Objects;
 
 import org.slf4j.Logger;
@@ -30,11 +31,14 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
- * via a kernel notification.
+ * via a kernel notification. In that case the frame is only deserialized into
+ * an {@link Ethernet} the first time it is asked for, since most packets are
+ * simulated and executed relying on the flow keys alone.
  *
  * @see FlowMatch
  */
@@ -51,6 +55,7 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -61,12 +66,33 @@ public class Packet {
         this.match = match;
     }
 
+    /**
+     * Builds a Packet over a raw frame. The frame is parsed lazily by
+     * getEthernet(), so the array must not be modified afterwards.
+     */
+    public Packet(byte[] data, FlowMatch match) {
+        this.data = data;
+        this.match = match;
+    }
+
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            try {
+                eth = Ethernet.deserialize(data);
+            } catch (MalformedPacketException e) {
+                throw new IllegalStateException("Malformed packet", e);
+            }
+        }
         return eth;
     }
 
+    /**
+     * Returns the frame as it should be sent to the datapath: the original
+     * bytes if the frame was never deserialized, otherwise the serialized
+     * Ethernet, which may have been modified.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        return (eth == null && data != null) ? data : eth.serialize();
     }
 
     public FlowMatch getMatch() {
@@ -90,6 +116,21 @@ public class Packet {
         return this;
     }
 
+    private String frameToString() {
+        if (eth != null || data == null)
+            return String.valueOf(eth);
+        try {
+            return Ethernet.deserialize(data).toString();
+        } catch (MalformedPacketException | RuntimeException e) {
+            return "malformed frame of " + data.length + " bytes";
+        }
+    }
+
+    /* Packets built over a raw frame are compared by its bytes, which never
+     * change, and not by the Ethernet that getEthernet() may later parse and
+     * the simulation modify: the packet must keep its hash code while it
+     * sits in a set. Such a packet is never equal to one built over an
+     * Ethernet. */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -98,7 +139,11 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        boolean sameFrame = (data != null || that.data != null)
+            ? Arrays.equals(this.data, that.data)
+            : Objects.equals(this.eth, that.eth);
+
+        return sameFrame
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -106,7 +151,8 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = (data != null) ? Arrays.hashCode(data)
+                                    : Objects.hashCode(eth);
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -116,7 +162,7 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + frameToString() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
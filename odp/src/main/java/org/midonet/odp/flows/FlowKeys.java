@@ -322,6 +322,18 @@ public class FlowKeys {
         return keys;
     }
 
+    /**
+     * Tells whether addUserspaceKeys() needs to look into the packet to
+     * complete the given kernel keys.
+     */
+    public static boolean needsUserspaceKeys(List<FlowKey> keys) {
+        for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i) instanceof FlowKeyICMP)
+                return true;
+        }
+        return false;
+    }
+
     public static void addUserspaceKeys(Ethernet ethPkt, ArrayList<FlowKey> keys) {
         for (int i = 0; i < keys.size(); ++i) {
             if (keys.get(i) instanceof FlowKeyICMP) {
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -40,6 +41,7 @@ import org.midonet.packets.Ethernet;
 import org.midonet.packets.FlowStateEthernet;
 import org.midonet.packets.MalformedPacketException;
 import org.midonet.util.BatchCollector;
+import org.midonet.util.functors.Callback1;
 import org.midonet.util.functors.Callback2;
 
 import static org.midonet.netlink.exceptions.NetlinkException.ErrorCode.*;
@@ -280,9 +282,22 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
         callback.onSuccess(flows);
     }
 
+    @Override
+    protected void _doFlowsDump(@Nonnull Datapath datapath,
+                                @Nonnull Callback1<Flow> sink,
+                                @Nonnull Callback<Integer> callback,
+                                long timeoutMillis) {
+        int count = 0;
+        for (Flow flow : flowsTable.values()) {
+            sink.call(flow);
+            count++;
+        }
+        callback.onSuccess(count);
+    }
+
     @Override
     protected void _doFlowsCreate(@Nonnull Datapath datapath, @Nonnull Flow flow, Callback<Flow> callback, long timeout) {
-        flow.setLastUsedTime(System.currentTimeMillis());
+        flow.setLastUsedTime(now());
         flowsTable.put(flow.getMatch(), flow);
         if (callback != null)
             callback.onSuccess(flow);
@@ -336,7 +351,13 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
     }
 
     public void setFlowLastUsedTimeToNow(FlowMatch match){
-        flowsTable.get(match).setLastUsedTime(System.currentTimeMillis());
+        flowsTable.get(match).setLastUsedTime(now());
+    }
+
+    /* The datapath reports when flows were last used in milliseconds of the
+     * monotonic clock. */
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     @Override
@@ -46,6 +46,7 @@ import org.midonet.odp.Packet;
 import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.util.BatchCollector;
+import org.midonet.util.functors.Callback1;
 
 /**
  * OvsDatapath protocol implementation.
@@ -486,6 +487,29 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                               @Nonnull final Callback<Set<Flow>> callback,
                                               long timeoutMillis);
 
+    /**
+     * Callback based api for dumping flows without collecting them, suited to
+     * periodic sweeps over large flow tables. Every flow is handed to the sink
+     * as soon as it is read, on the thread reading the replies.
+     *
+     * @param datapath      the name of the datapath
+     * @param sink          the callback that will receive each flow.
+     * @param callback      the callback that will receive the number of flows
+     *                      once the dump is over.
+     * @param timeoutMillis the timeout we are willing to wait for response.
+     */
+    public void flowsDump(@Nonnull final Datapath datapath,
+                          @Nonnull final Callback1<Flow> sink,
+                          @Nonnull final Callback<Integer> callback,
+                          long timeoutMillis) {
+        _doFlowsDump(datapath, sink, callback, timeoutMillis);
+    }
+
+    protected abstract void _doFlowsDump(@Nonnull Datapath datapath,
+                                         @Nonnull Callback1<Flow> sink,
+                                         @Nonnull Callback<Integer> callback,
+                                         long timeoutMillis);
+
     /**
      * Callback based api for for flushing all the flows belonging to a datapath.
      *
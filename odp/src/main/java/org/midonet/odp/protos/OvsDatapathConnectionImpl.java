@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -46,6 +45,7 @@ import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
 import org.midonet.util.BatchCollector;
+import org.midonet.util.functors.Callback1;
 
 /**
  * Netlink transport aware implementation of a OvsDatapathConnection.
@@ -71,22 +71,42 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
 
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private byte[] data;
         private Long userData;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
-                keys.clear();
+            Packet p = (data == null) ? null : build();
+            data = null;
+            keys.clear();
+            userData = null;
+            return p;
+        }
+
+        /* The frame is only deserialized here if the kernel keys need to be
+         * completed from the payload; otherwise it is left to the first
+         * caller of Packet.getEthernet(). */
+        private Packet build() {
+            if (data.length < Ethernet.MIN_HEADER_LEN) {
+                log.warn("Dropping malformed packet of {} bytes", data.length);
                 return null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys));
+            Packet p;
+            if (FlowKeys.needsUserspaceKeys(keys)) {
+                Ethernet eth;
+                try {
+                    eth = Ethernet.deserialize(data);
+                } catch (Exception e) {
+                    log.warn("Dropping malformed packet", e);
+                    return null;
+                }
+                FlowKeys.addUserspaceKeys(eth, keys);
+                p = new Packet(eth, new FlowMatch(keys));
+            } else {
+                p = new Packet(data, new FlowMatch(keys));
+            }
             p.setUserData(userData);
-            eth = null;
-            keys.clear();
-            userData = null;
             return p;
         }
 
@@ -94,16 +114,10 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
-                    }
+                    // The read buffer is reused by the next upcall, so the
+                    // frame is copied out as is.
+                    data = new byte[buffer.remaining()];
+                    buffer.get(data);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
@@ -333,6 +347,26 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
                                       timeoutMillis);
     }
 
+    @Override
+    protected void _doFlowsDump(@Nonnull Datapath datapath,
+                                @Nonnull Callback1<Flow> sink,
+                                @Nonnull Callback<Integer> callback,
+                                long timeoutMillis) {
+        int datapathId = datapath.getIndex();
+
+        if (datapathId == 0) {
+            callback.onError(
+                new OvsDatapathInvalidParametersException(
+                    "The datapath to dump flows for needs a valid datapath id"));
+            return;
+        }
+
+        ByteBuffer buf = getBuffer();
+        protocol.prepareFlowEnum(datapathId, buf);
+        sendStreamingNetlinkMessage(buf, sink, callback, Flow.deserializer,
+                                    timeoutMillis);
+    }
+
     @Override
     protected void _doFlowsCreate(@Nonnull final Datapath datapath,
                                   @Nonnull final Flow flow,
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.midonet.odp.flows.FlowKey;
+
+/**
+ * Compares the primitive FlowMatch against the object based layout it
+ * replaced (ObjectFlowMatch) when building matches out of upcall flow keys,
+ * hashing them, and looking them up in a table as the flow tables do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+public class FlowMatchBenchmark {
+
+    private static final int NUM_MATCHES = 1024;
+
+    private final List<List<FlowKey>> keys = new ArrayList<>(NUM_MATCHES);
+
+    private final HashMap<FlowMatch, Object> table = new HashMap<>();
+    private final FlowMatch[] lookups = new FlowMatch[NUM_MATCHES];
+
+    private final HashMap<ObjectFlowMatch, Object> objectTable = new HashMap<>();
+    private final ObjectFlowMatch[] objectLookups =
+        new ObjectFlowMatch[NUM_MATCHES];
+
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(0x5eed);
+        for (int i = 0; i < NUM_MATCHES; ++i) {
+            List<FlowKey> k = FlowMatches.generateFlowMatch(rand).getKeys();
+            keys.add(k);
+            table.put(new FlowMatch(k), this);
+            lookups[i] = new FlowMatch(k);
+            objectTable.put(new ObjectFlowMatch(k), this);
+            objectLookups[i] = new ObjectFlowMatch(k);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (NUM_MATCHES - 1);
+        return index;
+    }
+
+    @Benchmark
+    public FlowMatch buildFlowMatch() {
+        return new FlowMatch(keys.get(next()));
+    }
+
+    @Benchmark
+    public ObjectFlowMatch buildObjectFlowMatch() {
+        return new ObjectFlowMatch(keys.get(next()));
+    }
+
+    @Benchmark
+    public int hashFlowMatch() {
+        return new FlowMatch(keys.get(next())).hashCode();
+    }
+
+    @Benchmark
+    public int hashObjectFlowMatch() {
+        return new ObjectFlowMatch(keys.get(next())).hashCode();
+    }
+
+    @Benchmark
+    public Object lookupFlowMatch() {
+        return table.get(lookups[next()]);
+    }
+
+    @Benchmark
+    public Object lookupObjectFlowMatch() {
+        return objectTable.get(objectLookups[next()]);
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.google.common.primitives.Longs;
+
+import org.midonet.odp.flows.*;
+import org.midonet.packets.*;
+
+/**
+ * The object based layout FlowMatch had before it was flattened into
+ * primitive fields: addresses are objects and each field is hashed and
+ * compared through a virtual method of its Field. Only the parts needed to
+ * build a match from flow keys, hash it and compare it are kept, so that
+ * FlowMatchBenchmark can measure both layouts side by side.
+ */
+public class ObjectFlowMatch {
+
+    enum Field {
+        InputPortNumber {
+            int hashCode(ObjectFlowMatch m) { return m.inputPortNumber; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.inputPortNumber == m2.inputPortNumber;
+            }
+        },
+        TunnelKey {
+            int hashCode(ObjectFlowMatch m) { return Longs.hashCode(m.tunnelKey); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.tunnelKey == m2.tunnelKey;
+            }
+        },
+        TunnelSrc {
+            int hashCode(ObjectFlowMatch m) { return m.tunnelSrc; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.tunnelSrc == m2.tunnelSrc;
+            }
+        },
+        TunnelDst {
+            int hashCode(ObjectFlowMatch m) { return m.tunnelDst; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.tunnelDst == m2.tunnelDst;
+            }
+        },
+        EthSrc {
+            int hashCode(ObjectFlowMatch m) { return Objects.hashCode(m.ethSrc); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Objects.equals(m1.ethSrc, m2.ethSrc);
+            }
+        },
+        EthDst {
+            int hashCode(ObjectFlowMatch m) { return Objects.hashCode(m.ethDst); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Objects.equals(m1.ethDst, m2.ethDst);
+            }
+        },
+        EtherType {
+            int hashCode(ObjectFlowMatch m) { return m.etherType; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.etherType == m2.etherType;
+            }
+        },
+        VlanId {
+            int hashCode(ObjectFlowMatch m) { return Objects.hashCode(m.vlanIds); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Objects.equals(m1.vlanIds, m2.vlanIds);
+            }
+        },
+        NetworkSrc {
+            int hashCode(ObjectFlowMatch m) { return Objects.hashCode(m.networkSrc); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Objects.equals(m1.networkSrc, m2.networkSrc);
+            }
+        },
+        NetworkDst {
+            int hashCode(ObjectFlowMatch m) { return Objects.hashCode(m.networkDst); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Objects.equals(m1.networkDst, m2.networkDst);
+            }
+        },
+        NetworkProto {
+            int hashCode(ObjectFlowMatch m) { return m.networkProto; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.networkProto == m2.networkProto;
+            }
+        },
+        NetworkTTL {
+            int hashCode(ObjectFlowMatch m) { return m.networkTTL; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.networkTTL == m2.networkTTL;
+            }
+        },
+        NetworkTOS {
+            int hashCode(ObjectFlowMatch m) { return m.networkTOS; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.networkTOS == m2.networkTOS;
+            }
+        },
+        FragmentType {
+            int hashCode(ObjectFlowMatch m) { return m.ipFragmentType.hashCode(); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.ipFragmentType.equals(m2.ipFragmentType);
+            }
+        },
+        SrcPort {
+            int hashCode(ObjectFlowMatch m) { return m.srcPort; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.srcPort == m2.srcPort;
+            }
+        },
+        DstPort {
+            int hashCode(ObjectFlowMatch m) { return m.dstPort; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.dstPort == m2.dstPort;
+            }
+        },
+        IcmpId {
+            int hashCode(ObjectFlowMatch m) { return m.icmpId; }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return m1.icmpId == m2.icmpId;
+            }
+        },
+        IcmpData {
+            int hashCode(ObjectFlowMatch m) { return Arrays.hashCode(m.icmpData); }
+            boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2) {
+                return Arrays.equals(m1.icmpData, m2.icmpData);
+            }
+        };
+
+        abstract int hashCode(ObjectFlowMatch m);
+        abstract boolean equals(ObjectFlowMatch m1, ObjectFlowMatch m2);
+    }
+
+    private static final Field[] fields = Field.values();
+
+    private int inputPortNumber = 0;
+    private long tunnelKey = 0L;
+    private int tunnelSrc = 0;
+    private int tunnelDst = 0;
+    private MAC ethSrc;
+    private MAC ethDst;
+    private short etherType = (short) FlowKeyEtherType.Type.ETH_P_NONE.value;
+    private IPAddr networkSrc;
+    private IPAddr networkDst;
+    private byte networkProto = 0;
+    private byte networkTTL = 0;
+    private byte networkTOS = 0;
+    private IPFragmentType ipFragmentType = IPFragmentType.None;
+    private int srcPort = 0;
+    private int dstPort = 0;
+    private short icmpId = 0;
+    private byte[] icmpData;
+    private List<Short> vlanIds = new ArrayList<>();
+
+    private long usedFields = 0;
+    private final ArrayList<FlowKey> keys = new ArrayList<>();
+    private int hashCode = 0;
+
+    public ObjectFlowMatch(Iterable<FlowKey> keys) {
+        for (FlowKey key : keys) {
+            this.keys.add(FlowKeys.intern(key));
+            processMatchKey(key);
+        }
+    }
+
+    private void fieldUsed(Field field) {
+        usedFields |= 1L << field.ordinal();
+        hashCode = 0;
+    }
+
+    private boolean isUsed(Field field) {
+        return (usedFields & (1L << field.ordinal())) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || !(o instanceof ObjectFlowMatch)) return false;
+
+        ObjectFlowMatch that = (ObjectFlowMatch) o;
+        for (Field f : fields) {
+            if (isUsed(f) && (!that.isUsed(f) || !f.equals(this, that)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        if (hashCode == 0) {
+            int result = Longs.hashCode(usedFields);
+            for (Field f : fields) {
+                if (isUsed(f))
+                    result = 31 * result + f.hashCode(this);
+            }
+            hashCode = result;
+        }
+        return hashCode;
+    }
+
+    private void processMatchKey(FlowKey flowKey) {
+        switch (flowKey.attrId()) {
+            case OpenVSwitch.FlowKey.Attr.Encap:
+                for (FlowKey k : ((FlowKeyEncap) flowKey).keys)
+                    processMatchKey(k);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.InPort:
+                inputPortNumber = ((FlowKeyInPort) flowKey).portNo;
+                fieldUsed(Field.InputPortNumber);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Ethernet:
+                FlowKeyEthernet ethernet = (FlowKeyEthernet) flowKey;
+                ethSrc = MAC.fromAddress(ethernet.eth_src);
+                ethDst = MAC.fromAddress(ethernet.eth_dst);
+                fieldUsed(Field.EthSrc);
+                fieldUsed(Field.EthDst);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.VLan:
+                vlanIds.add(((FlowKeyVLAN) flowKey).vlan);
+                fieldUsed(Field.VlanId);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Ethertype:
+                etherType = ((FlowKeyEtherType) flowKey).etherType;
+                fieldUsed(Field.EtherType);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.IPv4:
+                FlowKeyIPv4 ipv4 = (FlowKeyIPv4) flowKey;
+                networkSrc = IPv4Addr.fromInt(ipv4.ipv4_src);
+                networkDst = IPv4Addr.fromInt(ipv4.ipv4_dst);
+                networkProto = ipv4.ipv4_proto;
+                ipFragmentType = IPFragmentType.fromByte(ipv4.ipv4_frag);
+                networkTTL = ipv4.ipv4_ttl;
+                networkTOS = ipv4.ipv4_tos;
+                fieldUsed(Field.NetworkSrc);
+                fieldUsed(Field.NetworkDst);
+                fieldUsed(Field.NetworkProto);
+                fieldUsed(Field.FragmentType);
+                fieldUsed(Field.NetworkTTL);
+                fieldUsed(Field.NetworkTOS);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.TCP:
+                FlowKeyTCP tcp = (FlowKeyTCP) flowKey;
+                srcPort = tcp.tcp_src;
+                dstPort = tcp.tcp_dst;
+                networkProto = TCP.PROTOCOL_NUMBER;
+                fieldUsed(Field.SrcPort);
+                fieldUsed(Field.DstPort);
+                fieldUsed(Field.NetworkProto);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.UDP:
+                FlowKeyUDP udp = (FlowKeyUDP) flowKey;
+                srcPort = udp.udp_src;
+                dstPort = udp.udp_dst;
+                networkProto = UDP.PROTOCOL_NUMBER;
+                fieldUsed(Field.SrcPort);
+                fieldUsed(Field.DstPort);
+                fieldUsed(Field.NetworkProto);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ICMP:
+                FlowKeyICMP icmp = (FlowKeyICMP) flowKey;
+                srcPort = Unsigned.unsign(icmp.icmp_type);
+                dstPort = Unsigned.unsign(icmp.icmp_code);
+                if (icmp instanceof FlowKeyICMPEcho) {
+                    icmpId = ((FlowKeyICMPEcho) icmp).icmp_id;
+                    fieldUsed(Field.IcmpId);
+                } else if (icmp instanceof FlowKeyICMPError) {
+                    byte[] data = ((FlowKeyICMPError) icmp).icmp_data;
+                    icmpData = data == null ? null
+                                            : Arrays.copyOf(data, data.length);
+                    fieldUsed(Field.IcmpData);
+                }
+                networkProto = ICMP.PROTOCOL_NUMBER;
+                fieldUsed(Field.SrcPort);
+                fieldUsed(Field.DstPort);
+                fieldUsed(Field.NetworkProto);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ARP:
+                FlowKeyARP arp = (FlowKeyARP) flowKey;
+                networkSrc = IPv4Addr.fromInt(arp.arp_sip);
+                networkDst = IPv4Addr.fromInt(arp.arp_tip);
+                etherType = ARP.ETHERTYPE;
+                networkProto = (byte) arp.arp_op;
+                fieldUsed(Field.NetworkSrc);
+                fieldUsed(Field.NetworkDst);
+                fieldUsed(Field.EtherType);
+                fieldUsed(Field.NetworkProto);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Tunnel_N:
+                FlowKeyTunnel tunnel = (FlowKeyTunnel) flowKey;
+                tunnelKey = tunnel.tun_id;
+                tunnelSrc = tunnel.ipv4_src;
+                tunnelDst = tunnel.ipv4_dst;
+                fieldUsed(Field.TunnelKey);
+                fieldUsed(Field.TunnelSrc);
+                fieldUsed(Field.TunnelDst);
+                break;
+        }
+    }
+}
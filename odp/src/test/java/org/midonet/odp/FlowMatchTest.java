@@ -16,7 +16,9 @@
 
 package org.midonet.odp.flows;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.After;
@@ -29,11 +31,16 @@ import org.midonet.packets.Ethernet;
 import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv6Addr;
 import org.midonet.packets.MAC;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.midonet.odp.flows.FlowKeys.arp;
 import static org.midonet.odp.flows.FlowKeys.tcp;
@@ -180,4 +187,169 @@ public class FlowMatchTest {
         assertEquals(fkIcmp.icmp_code, ICMP.CODE_NONE);
     }
 
+    @Test
+    public void testFieldsFromKeys() {
+        MAC srcMac = MAC.fromString("aa:bb:cc:dd:ee:ff");
+        MAC dstMac = MAC.fromString("ff:ee:dd:cc:bb:aa");
+        IPv4Addr srcIp = IPv4Addr.fromString("10.0.0.1");
+        IPv4Addr dstIp = IPv4Addr.fromString("10.0.0.2");
+        ICMP icmp = new ICMP();
+        icmp.setEchoRequest((short)9507, (short)10, "hello".getBytes());
+        FlowMatch m = FlowMatches.fromEthernetPacket(
+            makeFrame(srcMac, dstMac, srcIp, dstIp, icmp));
+
+        assertEquals(srcMac, m.getEthSrc());
+        assertEquals(dstMac, m.getEthDst());
+        assertSame(m.getEthSrc(), m.getEthSrc());
+        assertEquals(srcIp, m.getNetworkSrcIP());
+        assertEquals(dstIp, m.getNetworkDstIP());
+        assertSame(m.getNetworkSrcIP(), m.getNetworkSrcIP());
+        assertEquals(ICMP.PROTOCOL_NUMBER, m.getNetworkProto());
+        assertEquals((short) 9507, m.getIcmpIdentifier());
+
+        FlowMatch clone = m.clone();
+        assertEquals(m, clone);
+        assertEquals(m.hashCode(), clone.hashCode());
+        assertEquals(m.connectionHash(), clone.connectionHash());
+
+        clone.setNetworkDst(IPv4Addr.fromString("10.0.0.3"));
+        assertNotEquals(m, clone);
+        assertEquals(IPv4Addr.fromString("10.0.0.3"), clone.getNetworkDstIP());
+    }
+
+    @Test
+    public void testIPv4AndIPv6AddressesDiffer() {
+        FlowMatch m1 = new FlowMatch().setNetworkSrc(IPv4Addr.fromInt(1));
+        FlowMatch m2 = new FlowMatch().setNetworkSrc(IPv6Addr.fromLong(0L, 1L));
+        assertNotEquals(m1, m2);
+        assertEquals(IPv4Addr.fromInt(1), m1.getNetworkSrcIP());
+        assertEquals(IPv6Addr.fromLong(0L, 1L), m2.getNetworkSrcIP());
+        assertNull(new FlowMatch().getNetworkSrcIP());
+    }
+
+    @Test
+    public void testSeenConnectionHash() {
+        FlowMatch m = new FlowMatch()
+            .setEthSrc(MAC.fromString("aa:bb:cc:dd:ee:ff"))
+            .setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+            .setNetworkDst(IPv4Addr.fromString("10.0.0.2"))
+            .setNetworkProto((byte) 6)
+            .setNetworkTTL((byte) 64)
+            .setSrcPort(1234)
+            .setDstPort(80);
+        assertEquals(m.connectionHash(), m.seenConnectionHash());
+        assertTrue(m.isSeen(FlowMatch.Field.NetworkSrc));
+        assertTrue(m.isSeen(FlowMatch.Field.NetworkDst));
+        assertTrue(m.isSeen(FlowMatch.Field.NetworkProto));
+        assertTrue(m.isSeen(FlowMatch.Field.SrcPort));
+        assertTrue(m.isSeen(FlowMatch.Field.DstPort));
+        assertFalse(m.isSeen(FlowMatch.Field.EthSrc));
+        assertFalse(m.isSeen(FlowMatch.Field.NetworkTTL));
+        assertFalse(m.userspaceFieldsSeen());
+
+        FlowMatch echo = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+            .setNetworkDst(IPv4Addr.fromString("10.0.0.2"))
+            .setNetworkProto((byte) 1)
+            .setSrcPort(8)
+            .setDstPort(0)
+            .setIcmpIdentifier((short) 7);
+        FlowMatch kernelEcho = echo.clone();
+        kernelEcho.setIcmpIdentifier((short) 0);
+        assertEquals(kernelEcho.connectionHash(), echo.seenConnectionHash());
+        assertFalse(echo.userspaceFieldsSeen());
+
+        m = new FlowMatch().setNetworkSrc(IPv4Addr.fromString("10.0.0.1"));
+        m.doNotTrackSeenFields();
+        m.seenConnectionHash();
+        m.doTrackSeenFields();
+        assertFalse(m.isSeen(FlowMatch.Field.NetworkSrc));
+        m.seenConnectionHash();
+        assertTrue(m.isSeen(FlowMatch.Field.NetworkSrc));
+    }
+
+    @Test
+    public void testVlanIds() {
+        FlowMatch m1 = new FlowMatch();
+        FlowMatch m2 = new FlowMatch();
+        for (short vlan = 1; vlan <= 3; ++vlan) {
+            m1.addVlanId(vlan);
+            m2.addVlanId(vlan);
+        }
+        assertEquals(m1, m2);
+        assertEquals(m1.hashCode(), m2.hashCode());
+        assertEquals(3, m1.getVlanIds().size());
+
+        m1.removeVlanId((short) 2);
+        assertNotEquals(m1, m2);
+        assertEquals((short) 1, (short) m1.getVlanIds().get(0));
+        assertEquals((short) 3, (short) m1.getVlanIds().get(1));
+
+        m1.removeVlanId((short) 1);
+        m1.removeVlanId((short) 3);
+        assertTrue(m1.getVlanIds().isEmpty());
+        assertFalse(m1.isUsed(FlowMatch.Field.VlanId));
+    }
+
+    @Test
+    public void testVlanIdsViewIsNotChangedByTheMatch() {
+        FlowMatch m1 = new FlowMatch().addVlanId((short) 1)
+                                      .addVlanId((short) 2);
+        List<Short> vlanIds = m1.getVlanIds();
+        assertSame(vlanIds, m1.getVlanIds());
+
+        m1.removeVlanId((short) 1);
+        m1.addVlanId((short) 3);
+        assertEquals(Arrays.asList((short) 1, (short) 2), vlanIds);
+        assertEquals(Arrays.asList((short) 2, (short) 3), m1.getVlanIds());
+
+        m1.clear();
+        m1.addVlanId((short) 4);
+        assertEquals(Arrays.asList((short) 1, (short) 2), vlanIds);
+    }
+
+    @Test
+    public void testIcmpData() {
+        byte[] data = "data".getBytes();
+        FlowMatch m1 = new FlowMatch().setIcmpData(data);
+        FlowMatch m2 = new FlowMatch().setIcmpData(data.clone());
+        assertEquals(m1, m2);
+        assertEquals(m1.hashCode(), m2.hashCode());
+
+        data[0] = 0;
+        assertEquals(m1, m2);
+        assertArrayEquals("data".getBytes(), m1.getIcmpData());
+        m1.getIcmpData()[0] = 0;
+        assertArrayEquals("data".getBytes(), m1.getIcmpData());
+        assertTrue(m1.getIcmpDataView().isReadOnly());
+        assertEquals(ByteBuffer.wrap("data".getBytes()), m1.getIcmpDataView());
+
+        ByteBuffer view = m1.getIcmpDataView();
+        m1.setIcmpData("other".getBytes());
+        assertEquals(ByteBuffer.wrap("data".getBytes()), view);
+        assertArrayEquals("other".getBytes(), m1.getIcmpData());
+        m1.setIcmpData("data".getBytes());
+
+        m2.setIcmpData(null);
+        assertNull(m2.getIcmpData());
+        assertNull(m2.getIcmpDataView());
+        assertNotEquals(m1, m2);
+    }
+
+    @Test
+    public void testFieldAccessors() {
+        FlowMatch m1 = new FlowMatch().setEthSrc("02:aa:bb:cc:dd:ee")
+                                      .setIcmpData("data".getBytes());
+        FlowMatch m2 = new FlowMatch().setEthSrc("02:aa:bb:cc:dd:ee")
+                                      .setIcmpData("other".getBytes());
+
+        assertTrue(FlowMatch.Field.EthSrc.equals(m1, m2));
+        assertEquals(FlowMatch.Field.EthSrc.hashCode(m1),
+                     FlowMatch.Field.EthSrc.hashCode(m2));
+        assertEquals("EthSrc=02:aa:bb:cc:dd:ee",
+                     FlowMatch.Field.EthSrc.toString(m1));
+        assertFalse(FlowMatch.Field.IcmpData.equals(m1, m2));
+        assertEquals(Arrays.hashCode("data".getBytes()),
+                     FlowMatch.Field.IcmpData.hashCode(m1));
+    }
 }
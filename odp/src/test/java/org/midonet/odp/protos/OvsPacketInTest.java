@@ -23,10 +23,12 @@ import org.midonet.odp.Packet;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.packets.Ethernet;
 import org.midonet.packets.IPv4Addr;
-import org.midonet.packets.MalformedPacketException;
+import org.midonet.packets.MAC;
 import org.midonet.util.BatchCollector;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.Future;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -70,13 +72,49 @@ public class OvsPacketInTest extends AbstractNetlinkProtocolTest {
         }
     }
 
-    private Packet expectedArpPacket() throws MalformedPacketException {
-        Ethernet payload = Ethernet.deserialize(new byte[]{
-                -1, -1, -1, -1, -1, -1, 62, 5, -44, 115, 45,
-                76, 8, 6, 0, 1, 8, 0, 6, 4, 0, 1, 62, 5, -44, 115, 45, 76, -80, 28,
-                127, 69, 0, 0, 0, 0, 0, 0, -64, -88, 100, 10
-        });
+    @Test
+    public void testFrameIsDeserializedLazily() throws Exception {
+        Packet packet = new Packet(arpFrame, expectedArpPacket().getMatch());
+
+        assertThat(packet.getData(), sameInstance(arpFrame));
+        assertThat(packet.getEthernet(),
+                   equalTo(Ethernet.deserialize(arpFrame)));
+        assertThat(packet.getEthernet(), sameInstance(packet.getEthernet()));
+        assertThat(packet.getData(), equalTo(arpFrame));
+    }
+
+    @Test
+    public void testMalformedFrameIsNotDeserializedByEquality() throws Exception {
+        byte[] frame = new byte[] { 1, 2, 3, 4, 5 };
+        FlowMatch match = expectedArpPacket().getMatch();
+        Packet packet = new Packet(frame, match);
+        Set<Packet> packets = new HashSet<>();
+
+        assertThat(packets.add(packet), is(true));
+        assertThat(packets.add(new Packet(frame.clone(), match)), is(false));
+        assertThat(packets.add(new Packet(arpFrame, match)), is(true));
+        assertThat(packet.toString(), containsString("malformed"));
+    }
+
+    @Test
+    public void testParsingTheFrameKeepsTheHashCode() throws Exception {
+        Packet packet = new Packet(arpFrame.clone(), expectedArpPacket().getMatch());
+        Set<Packet> packets = new HashSet<>();
+        packets.add(packet);
+
+        packet.getEthernet().setSourceMACAddress(
+            MAC.fromString("02:00:00:00:00:01"));
+        assertThat(packets.contains(packet), is(true));
+        assertThat(packets.remove(packet), is(true));
+    }
+
+    private final byte[] arpFrame = new byte[]{
+            -1, -1, -1, -1, -1, -1, 62, 5, -44, 115, 45,
+            76, 8, 6, 0, 1, 8, 0, 6, 4, 0, 1, 62, 5, -44, 115, 45, 76, -80, 28,
+            127, 69, 0, 0, 0, 0, 0, 0, -64, -88, 100, 10
+    };
 
+    private Packet expectedArpPacket() {
         ArrayList<FlowKey> keys = new ArrayList<>();
         keys.add(inPort(0));
         keys.add(ethernet(macFromString("3e:05:d4:73:2d:4c"),
@@ -87,7 +125,7 @@ public class OvsPacketInTest extends AbstractNetlinkProtocolTest {
                      (byte) 1,
                       IPv4Addr.stringToInt("176.28.127.69"),
                       IPv4Addr.stringToInt("192.168.100.10")));
-        Packet packet = new Packet(payload, new FlowMatch(keys));
+        Packet packet = new Packet(arpFrame, new FlowMatch(keys));
         packet.setReason(Packet.Reason.FlowTableMiss);
 
         return packet;